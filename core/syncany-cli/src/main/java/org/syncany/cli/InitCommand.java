@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import org.syncany.chunk.FixedChunker;
 import org.syncany.config.to.ConfigTO;
 import org.syncany.config.to.DefaultRepoTOFactory;
 import org.syncany.config.to.RepoTO;
@@ -97,6 +98,7 @@ public class InitCommand extends AbstractInitCommand {
 		OptionSpec<Void> optionShortUrl = parser.acceptsAll(asList("s", "short"));
 		OptionSpec<Void> optionHeadlessMode = parser.acceptsAll(asList("l", "headless"));
 		OptionSpec<String> optionPassword = parser.acceptsAll(asList("password")).withRequiredArg();
+		OptionSpec<String> optionChunker = parser.acceptsAll(asList("c", "chunker")).withRequiredArg().defaultsTo(FixedChunker.TYPE);
 
 		OptionSet options = parser.parse(operationArguments);
 
@@ -118,9 +120,9 @@ public class InitCommand extends AbstractInitCommand {
 		// Cipher specs: --no-encryption, --advanced
 		List<CipherSpec> cipherSpecs = getCipherSpecs(encryptionEnabled, advancedModeEnabled);
 
-		// Compression: --no-compression
+		// Compression: --no-compression, chunker: --chunker
 		// DefaultRepoTOFactory also creates default chunkers
-		RepoTOFactory repoTOFactory = new DefaultRepoTOFactory(compressionEnabled, cipherSpecs);
+		RepoTOFactory repoTOFactory = new DefaultRepoTOFactory(compressionEnabled, cipherSpecs, options.valueOf(optionChunker));
 
 		// Genlink options: --short
 		GenlinkOperationOptions genlinkOptions = new GenlinkOperationOptions();
@@ -0,0 +1,282 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.chunk;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Implements a {@link Transformer} that compresses the input/output stream using the
+ * Deflate algorithm, but only if the data is likely to be compressible.
+ * 
+ * <p>Before writing anything, the output stream buffers a sample of up to {@link #SAMPLE_SIZE}
+ * bytes and estimates its entropy (Shannon entropy of the byte distribution, in bits per byte).
+ * If the entropy is above {@link #MAX_COMPRESSIBLE_ENTROPY}, the data is most likely already
+ * compressed or encrypted (images, videos, archives, ...), and the stream is stored as is.
+ * Otherwise, it is deflated with the configured level. Since the transformer is applied to 
+ * each multichunk individually, this decision is made per multichunk.
+ * 
+ * <p>The choice is recorded in a one-byte header ({@link #FORMAT_STORED} or {@link #FORMAT_DEFLATED})
+ * at the beginning of the stream, so that the input stream knows how to read it.
+ * 
+ * <p>Unlike the {@link GzipTransformer}, this transformer defaults to the fastest
+ * compression level ({@link Deflater#BEST_SPEED}); a different level can be set
+ * using the {@link #PROPERTY_LEVEL} setting.
+ * 
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class AdaptiveTransformer extends Transformer {
+	private static final Logger logger = Logger.getLogger(AdaptiveTransformer.class.getSimpleName());
+
+	public static final String TYPE = "adaptive";
+	public static final String PROPERTY_LEVEL = "level";
+
+	public static final int FORMAT_STORED = 0;
+	public static final int FORMAT_DEFLATED = 1;
+
+	public static final int SAMPLE_SIZE = 128 * 1024;
+	public static final double MAX_COMPRESSIBLE_ENTROPY = 7.5;
+
+	private int level;
+
+	public AdaptiveTransformer() {
+		this(Deflater.BEST_SPEED, null);
+	}
+
+	public AdaptiveTransformer(Transformer nextTransformer) {
+		this(Deflater.BEST_SPEED, nextTransformer);
+	}
+
+	public AdaptiveTransformer(int level, Transformer nextTransformer) {
+		super(nextTransformer);
+		this.level = level;
+	}
+
+	@Override
+	public void init(Map<String, String> settings) throws Exception {
+		String levelStr = (settings != null) ? settings.get(PROPERTY_LEVEL) : null;
+
+		if (levelStr != null) {
+			try {
+				level = Integer.parseInt(levelStr);
+			}
+			catch (NumberFormatException e) {
+				throw new Exception("Invalid setting for " + PROPERTY_LEVEL + ": " + levelStr, e);
+			}
+
+			if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+				throw new Exception("Invalid setting for " + PROPERTY_LEVEL + ": " + level + ", must be between " + Deflater.BEST_SPEED
+						+ " and " + Deflater.BEST_COMPRESSION);
+			}
+		}
+	}
+
+	@Override
+	public OutputStream createOutputStream(OutputStream out) throws IOException {
+		if (nextTransformer == null) {
+			return new AdaptiveOutputStream(out, level);
+		}
+		else {
+			return new AdaptiveOutputStream(nextTransformer.createOutputStream(out), level);
+		}
+	}
+
+	@Override
+	public InputStream createInputStream(InputStream in) throws IOException {
+		if (nextTransformer == null) {
+			return createAdaptiveInputStream(in);
+		}
+		else {
+			return createAdaptiveInputStream(nextTransformer.createInputStream(in));
+		}
+	}
+
+	private InputStream createAdaptiveInputStream(InputStream in) throws IOException {
+		int format = in.read();
+
+		switch (format) {
+		case FORMAT_STORED:
+			return in;
+
+		case FORMAT_DEFLATED:
+			return new AdaptiveInflaterInputStream(in);
+
+		default:
+			in.close();
+			throw new IOException("Invalid stream format: " + format);
+		}
+	}
+
+	/**
+	 * Estimates the entropy of the given bytes, i.e. the average number of bits
+	 * per byte needed to encode the data; 0 for uniform data, 8 for random data.
+	 */
+	public static double estimateEntropy(byte[] data, int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+
+		int[] byteCounts = new int[256];
+
+		for (int i = offset; i < offset + length; i++) {
+			byteCounts[data[i] & 0xff]++;
+		}
+
+		double entropy = 0;
+
+		for (int byteCount : byteCounts) {
+			if (byteCount > 0) {
+				double probability = (double) byteCount / length;
+				entropy -= probability * Math.log(probability);
+			}
+		}
+
+		return entropy / Math.log(2);
+	}
+
+	@Override
+	public String toString() {
+		return (nextTransformer == null) ? "Adaptive" : "Adaptive-" + nextTransformer;
+	}
+
+	/**
+	 * Output stream that buffers the first {@link AdaptiveTransformer#SAMPLE_SIZE} bytes,
+	 * then writes the format header and passes all data to either the underlying stream
+	 * (stored) or a {@link DeflaterOutputStream} (deflated).
+	 */
+	private static class AdaptiveOutputStream extends FilterOutputStream {
+		private int level;
+		private byte[] sample;
+		private int sampleLength;
+		private OutputStream targetOutputStream;
+		private Deflater deflater;
+
+		public AdaptiveOutputStream(OutputStream out, int level) {
+			super(out);
+
+			this.level = level;
+			this.sample = new byte[SAMPLE_SIZE];
+			this.sampleLength = 0;
+			this.targetOutputStream = null;
+			this.deflater = null;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (targetOutputStream == null) {
+				int sampleBytes = Math.min(len, sample.length - sampleLength);
+
+				System.arraycopy(b, off, sample, sampleLength, sampleBytes);
+				sampleLength += sampleBytes;
+
+				off += sampleBytes;
+				len -= sampleBytes;
+
+				if (sampleLength < sample.length) {
+					return;
+				}
+
+				selectTargetOutputStream();
+			}
+
+			if (len > 0) {
+				targetOutputStream.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (targetOutputStream != null) {
+				targetOutputStream.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (targetOutputStream == null) {
+					selectTargetOutputStream();
+				}
+
+				targetOutputStream.close();
+			}
+			finally {
+				if (deflater != null) {
+					deflater.end();
+				}
+			}
+		}
+
+		private void selectTargetOutputStream() throws IOException {
+			double entropy = estimateEntropy(sample, 0, sampleLength);
+
+			if (entropy > MAX_COMPRESSIBLE_ENTROPY) {
+				logger.log(Level.FINE, "- Sample entropy is {0} bits/byte; storing stream uncompressed", entropy);
+
+				out.write(FORMAT_STORED);
+				targetOutputStream = out;
+			}
+			else {
+				logger.log(Level.FINE, "- Sample entropy is {0} bits/byte; deflating stream (level {1})", new Object[] { entropy, level });
+
+				deflater = new Deflater(level);
+
+				out.write(FORMAT_DEFLATED);
+				targetOutputStream = new DeflaterOutputStream(out, deflater, 16 * 1024);
+			}
+
+			targetOutputStream.write(sample, 0, sampleLength);
+			sample = null;
+		}
+	}
+
+	/**
+	 * Inflater input stream with a larger buffer. Unlike an {@link InflaterInputStream}
+	 * with a custom {@link Inflater}, this stream releases the inflater's native memory
+	 * when it is closed.
+	 */
+	private static class AdaptiveInflaterInputStream extends InflaterInputStream {
+		public AdaptiveInflaterInputStream(InputStream in) {
+			super(in, new Inflater(), 16 * 1024);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			}
+			finally {
+				inf.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.chunk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The async multichunk writer moves the CPU-heavy part of writing a multichunk, i.e.
+ * running the {@link Transformer} chain (compression and encryption), off the
+ * {@link Deduper} thread.
+ *
+ * <p>Instead of writing a multichunk through the transformer directly, the deduper
+ * writes the raw multichunk into a {@link MultiChunkBuffer} (see {@link #createBuffer(File)}).
+ * Once the multichunk is closed, the buffer is passed to {@link #write(MultiChunkBuffer)}, and
+ * a worker thread transforms it and writes it to the multichunk file.
+ *
+ * <p>To bound memory usage, at most <tt>threads + 1</tt> buffers exist at the same time:
+ * one being filled by the deduper, and one per worker thread. If all buffers are in use,
+ * {@link #createBuffer(File)} blocks until a worker has finished. A buffer is given back
+ * once its multichunk has been written (or could not be written), or when the writer is
+ * closed (for buffers that were never passed to {@link #write(MultiChunkBuffer)}).
+ *
+ * <p>The multichunk files are only guaranteed to be complete after {@link #awaitAll()}
+ * returned. Errors of the workers are rethrown by this method (or by the next call to
+ * {@link #createBuffer(File)}).
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+class AsyncMultiChunkWriter {
+	private static final Logger logger = Logger.getLogger(AsyncMultiChunkWriter.class.getSimpleName());
+
+	private Transformer transformer;
+	private ExecutorService executor;
+	private Semaphore bufferPermits;
+	private Set<MultiChunkBuffer> acquiredBuffers;
+	private LinkedList<Future<Void>> pendingWrites;
+
+	public AsyncMultiChunkWriter(Transformer transformer, int threads) {
+		this.transformer = transformer;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+			.setNameFormat("Transformer/%d")
+			.setDaemon(true)
+			.build());
+		this.bufferPermits = new Semaphore(threads + 1);
+		this.acquiredBuffers = Collections.newSetFromMap(new ConcurrentHashMap<MultiChunkBuffer, Boolean>());
+		this.pendingWrites = new LinkedList<Future<Void>>();
+	}
+
+	/**
+	 * Creates a new in-memory buffer for a multichunk that will be written to the given
+	 * file. This method blocks if the maximum number of buffers is in use.
+	 */
+	public MultiChunkBuffer createBuffer(File multiChunkFile) throws IOException {
+		checkCompletedWrites();
+
+		try {
+			bufferPermits.acquire();
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for multichunk buffer.");
+		}
+
+		MultiChunkBuffer multiChunkBuffer = new MultiChunkBuffer(multiChunkFile);
+		acquiredBuffers.add(multiChunkBuffer);
+
+		return multiChunkBuffer;
+	}
+
+	/**
+	 * Transforms the given (closed) multichunk buffer and writes it to its target
+	 * file on a worker thread.
+	 */
+	public void write(final MultiChunkBuffer multiChunkBuffer) throws IOException {
+		Future<Void> pendingWrite;
+
+		try {
+			pendingWrite = executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					try (OutputStream multiChunkOutputStream = transformer.createOutputStream(new FileOutputStream(multiChunkBuffer.getFile()))) {
+						multiChunkBuffer.writeTo(multiChunkOutputStream);
+					}
+					finally {
+						releaseBuffer(multiChunkBuffer);
+					}
+
+					logger.log(Level.FINEST, "- Wrote multichunk file {0}", multiChunkBuffer.getFile());
+					return null;
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			releaseBuffer(multiChunkBuffer);
+			throw new IOException("Cannot write multichunk, writer is closed.", e);
+		}
+
+		pendingWrites.add(pendingWrite);
+	}
+
+	/**
+	 * Waits until all multichunks passed to {@link #write(MultiChunkBuffer)} have
+	 * been written to their files.
+	 *
+	 * @throws IOException If any of the multichunks could not be written
+	 */
+	public void awaitAll() throws IOException {
+		while (!pendingWrites.isEmpty()) {
+			awaitWrite(pendingWrites.removeFirst());
+		}
+	}
+
+	/**
+	 * Stops the worker threads. Multichunks that have not been written
+	 * yet are not written, and all buffers are given back.
+	 */
+	public void close() {
+		executor.shutdownNow();
+
+		for (MultiChunkBuffer multiChunkBuffer : acquiredBuffers) {
+			releaseBuffer(multiChunkBuffer);
+		}
+	}
+
+	/**
+	 * Gives back the permit of the given buffer. Each buffer's permit is
+	 * only released once, no matter how often this method is called.
+	 */
+	private void releaseBuffer(MultiChunkBuffer multiChunkBuffer) {
+		if (acquiredBuffers.remove(multiChunkBuffer)) {
+			bufferPermits.release();
+		}
+	}
+
+	private void checkCompletedWrites() throws IOException {
+		while (!pendingWrites.isEmpty() && pendingWrites.getFirst().isDone()) {
+			awaitWrite(pendingWrites.removeFirst());
+		}
+	}
+
+	private void awaitWrite(Future<Void> pendingWrite) throws IOException {
+		try {
+			pendingWrite.get();
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for multichunk to be written.");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			else {
+				throw new IOException("Cannot write multichunk.", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * In-memory buffer for a raw (untransformed) multichunk, together with
+	 * the file the multichunk will eventually be written to.
+	 */
+	public static class MultiChunkBuffer extends ByteArrayOutputStream {
+		private static final int INITIAL_BUFFER_SIZE = 512 * 1024;
+
+		private File file;
+
+		public MultiChunkBuffer(File file) {
+			super(INITIAL_BUFFER_SIZE);
+			this.file = file;
+		}
+
+		public File getFile() {
+			return file;
+		}
+	}
+}
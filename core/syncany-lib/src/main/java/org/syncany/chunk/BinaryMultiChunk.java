@@ -0,0 +1,378 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.chunk;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+
+/**
+ * Implements a {@link MultiChunk} using a compact binary container format. Compared to the
+ * {@link ZipMultiChunk}, there are no per-chunk headers or a central directory that need
+ * to be parsed. The format is:
+ * 
+ * <pre>
+ *   header:  magic (4 bytes, "SYMC") | version (4 bytes)
+ *   payload: chunk data, one chunk after the other (no separators)
+ *   index:   (checksum | offset (8 bytes) | length (4 bytes)) per chunk, in write order
+ *   trailer: index offset (8 bytes) | chunk count (4 bytes) | checksum length (4 bytes) | magic (4 bytes)
+ * </pre>
+ * 
+ * <p>When writing, chunks are streamed to the underlying output stream as they are added.
+ * Index and trailer are written when the multichunk is closed.
+ * 
+ * <p>When reading from a file, only the trailer and the index are read initially. Chunks are then
+ * accessed directly at their offset, using positional reads on the file's {@link FileChannel}
+ * (no intermediate copy). When reading from an input stream, random access is not possible, so
+ * the (decrypted/uncompressed) multichunk is read into memory first.
+ * 
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class BinaryMultiChunk extends MultiChunk {
+	public static final int MAGIC = 0x53594d43; // "SYMC"
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 8;
+	private static final int TRAILER_SIZE = 20;
+
+	// Write mode
+	private DataOutputStream multiChunkOutputStream;
+	private List<Chunk> writtenChunks;
+	private long writtenPayloadSize;
+
+	// Read mode
+	private InputStream multiChunkInputStream;
+	private FileChannel multiChunkChannel;
+	private ByteBuffer multiChunkBuffer;
+
+	private List<IndexEntry> index;
+	private Map<ChunkChecksum, IndexEntry> indexMap;
+	private int nextReadIndex;
+
+	public BinaryMultiChunk(InputStream is) {
+		super(0);
+		this.multiChunkInputStream = is;
+	}
+
+	@SuppressWarnings("resource")
+	public BinaryMultiChunk(File file) throws IOException {
+		super(0);
+		this.multiChunkChannel = new RandomAccessFile(file, "r").getChannel();
+
+		try {
+			readIndex(multiChunkChannel.size());
+		}
+		catch (IOException e) {
+			multiChunkChannel.close();
+			throw e;
+		}
+	}
+
+	public BinaryMultiChunk(MultiChunkId id, int minSize, OutputStream os) throws IOException {
+		super(id, minSize);
+
+		this.multiChunkOutputStream = new DataOutputStream(os);
+		this.writtenChunks = new ArrayList<Chunk>();
+		this.writtenPayloadSize = 0;
+
+		multiChunkOutputStream.writeInt(MAGIC);
+		multiChunkOutputStream.writeInt(VERSION);
+	}
+
+	@Override
+	public boolean isFull() {
+		return size >= minSize * 1024; // minSize is in KB!
+	}
+
+	@Override
+	public void write(Chunk chunk) throws IOException {
+		size += chunk.getSize();
+
+		multiChunkOutputStream.write(chunk.getContent(), 0, chunk.getSize());
+
+		// Only checksum and size are needed for the index; content is not kept
+		writtenChunks.add(new Chunk(chunk.getChecksum().clone(), null, chunk.getSize(), null));
+		writtenPayloadSize += chunk.getSize();
+	}
+
+	@Override
+	public InputStream getChunkInputStream(byte[] checksum) throws IOException {
+		loadStream();
+
+		IndexEntry indexEntry = indexMap.get(new ChunkChecksum(checksum));
+
+		if (indexEntry == null) {
+			return null;
+		}
+		else if (multiChunkChannel != null) {
+			return new ChannelRegionInputStream(multiChunkChannel, indexEntry.offset, indexEntry.length);
+		}
+		else {
+			ByteBuffer chunkBuffer = multiChunkBuffer.duplicate();
+			chunkBuffer.position((int) indexEntry.offset);
+			chunkBuffer.limit((int) indexEntry.offset + indexEntry.length);
+
+			return new ByteBufferInputStream(chunkBuffer);
+		}
+	}
+
+	@Override
+	public Chunk read() throws IOException {
+		loadStream();
+
+		if (nextReadIndex >= index.size()) {
+			return null;
+		}
+
+		IndexEntry indexEntry = index.get(nextReadIndex++);
+		byte[] chunkContent = new byte[indexEntry.length];
+
+		try (InputStream chunkInputStream = getChunkInputStream(indexEntry.checksum.getBytes())) {
+			IOUtils.readFully(chunkInputStream, chunkContent);
+		}
+
+		return new Chunk(indexEntry.checksum.getBytes(), chunkContent, chunkContent.length, null);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (multiChunkOutputStream != null) {
+			writeIndex();
+			multiChunkOutputStream.close();
+		}
+
+		if (multiChunkInputStream != null) {
+			multiChunkInputStream.close();
+		}
+
+		if (multiChunkChannel != null) {
+			multiChunkChannel.close();
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		long indexOffset = HEADER_SIZE + writtenPayloadSize;
+		int checksumLength = (writtenChunks.size() > 0) ? writtenChunks.get(0).getChecksum().length : 0;
+		long chunkOffset = HEADER_SIZE;
+
+		for (Chunk chunk : writtenChunks) {
+			if (chunk.getChecksum().length != checksumLength) {
+				throw new IOException("All chunk checksums in a multichunk must have the same length.");
+			}
+
+			multiChunkOutputStream.write(chunk.getChecksum());
+			multiChunkOutputStream.writeLong(chunkOffset);
+			multiChunkOutputStream.writeInt(chunk.getSize());
+
+			chunkOffset += chunk.getSize();
+		}
+
+		multiChunkOutputStream.writeLong(indexOffset);
+		multiChunkOutputStream.writeInt(writtenChunks.size());
+		multiChunkOutputStream.writeInt(checksumLength);
+		multiChunkOutputStream.writeInt(MAGIC);
+
+		writtenChunks = null;
+	}
+
+	private void loadStream() throws IOException {
+		if (index == null) {
+			multiChunkBuffer = ByteBuffer.wrap(IOUtils.toByteArray(multiChunkInputStream));
+			readIndex(multiChunkBuffer.limit());
+		}
+	}
+
+	private void readIndex(long multiChunkSize) throws IOException {
+		if (multiChunkSize < HEADER_SIZE + TRAILER_SIZE) {
+			throw new IOException("Invalid multichunk: Too small for header and trailer.");
+		}
+
+		ByteBuffer header = readFully(0, HEADER_SIZE);
+		ByteBuffer trailer = readFully(multiChunkSize - TRAILER_SIZE, TRAILER_SIZE);
+
+		long indexOffset = trailer.getLong();
+		int chunkCount = trailer.getInt();
+		int checksumLength = trailer.getInt();
+
+		if (header.getInt() != MAGIC || trailer.getInt() != MAGIC) {
+			throw new IOException("Invalid multichunk: Magic bytes do not match.");
+		}
+		else if (header.getInt() != VERSION) {
+			throw new IOException("Invalid multichunk: Unsupported version.");
+		}
+
+		long indexSize = (long) chunkCount * (checksumLength + 12);
+
+		if (chunkCount < 0 || checksumLength < 0 || indexOffset < HEADER_SIZE || indexOffset + indexSize != multiChunkSize - TRAILER_SIZE) {
+			throw new IOException("Invalid multichunk: Inconsistent index.");
+		}
+
+		ByteBuffer indexBuffer = readFully(indexOffset, (int) indexSize);
+
+		index = new ArrayList<IndexEntry>(chunkCount);
+		indexMap = new HashMap<ChunkChecksum, IndexEntry>(chunkCount * 2);
+
+		for (int i = 0; i < chunkCount; i++) {
+			byte[] checksum = new byte[checksumLength];
+			indexBuffer.get(checksum);
+
+			IndexEntry indexEntry = new IndexEntry(new ChunkChecksum(checksum), indexBuffer.getLong(), indexBuffer.getInt());
+
+			if (indexEntry.offset < HEADER_SIZE || indexEntry.length < 0 || indexEntry.offset + indexEntry.length > indexOffset) {
+				throw new IOException("Invalid multichunk: Chunk outside of payload.");
+			}
+
+			index.add(indexEntry);
+			indexMap.put(indexEntry.checksum, indexEntry);
+		}
+	}
+
+	private ByteBuffer readFully(long position, int length) throws IOException {
+		if (multiChunkChannel == null) {
+			ByteBuffer region = multiChunkBuffer.duplicate();
+			region.position((int) position);
+			region.limit((int) position + length);
+
+			return region.slice();
+		}
+		else {
+			ByteBuffer region = ByteBuffer.allocate(length);
+
+			while (region.hasRemaining()) {
+				if (multiChunkChannel.read(region, position + region.position()) < 0) {
+					throw new EOFException("Unexpected end of multichunk.");
+				}
+			}
+
+			region.flip();
+			return region;
+		}
+	}
+
+	private static class IndexEntry {
+		private ChunkChecksum checksum;
+		private long offset;
+		private int length;
+
+		public IndexEntry(ChunkChecksum checksum, long offset, int length) {
+			this.checksum = checksum;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Input stream reading a region of a file channel using positional reads. The
+	 * stream does not change the channel's position and does not close the channel,
+	 * so that multiple chunks of one multichunk can be read independently.
+	 */
+	private static class ChannelRegionInputStream extends InputStream {
+		private FileChannel channel;
+		private long position;
+		private long endPosition;
+
+		public ChannelRegionInputStream(FileChannel channel, long offset, int length) {
+			this.channel = channel;
+			this.position = offset;
+			this.endPosition = offset + length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] singleByte = new byte[1];
+			return (read(singleByte, 0, 1) == -1) ? -1 : singleByte[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= endPosition) {
+				return -1;
+			}
+
+			int readLength = (int) Math.min(len, endPosition - position);
+			int read = channel.read(ByteBuffer.wrap(b, off, readLength), position);
+
+			if (read < 0) {
+				throw new EOFException("Unexpected end of multichunk.");
+			}
+
+			position += read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n) {
+			long skipped = Math.max(0, Math.min(n, endPosition - position));
+			position += skipped;
+
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, endPosition - position);
+		}
+	}
+
+	/**
+	 * Input stream reading the remaining bytes of a byte buffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private ByteBuffer buffer;
+
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+
+			int readLength = Math.min(len, buffer.remaining());
+			buffer.get(b, off, readLength);
+
+			return readLength;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
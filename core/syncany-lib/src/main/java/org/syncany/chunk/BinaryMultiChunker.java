@@ -0,0 +1,63 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.chunk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+
+/**
+ * Multichunker creating {@link BinaryMultiChunk}s, i.e. multichunks in a compact
+ * binary container format with a chunk index at the end of the file.
+ * 
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class BinaryMultiChunker extends MultiChunker {
+	public static final String TYPE = "binary";
+
+	public BinaryMultiChunker() {
+		// Nothing
+	}
+
+	public BinaryMultiChunker(int minMultiChunkSize) {
+		super(minMultiChunkSize);
+	}
+
+	@Override
+	public MultiChunk createMultiChunk(InputStream is) {
+		return new BinaryMultiChunk(is);
+	}
+
+	@Override
+	public MultiChunk createMultiChunk(File file) throws IOException {
+		return new BinaryMultiChunk(file);
+	}
+
+	@Override
+	public MultiChunk createMultiChunk(MultiChunkId id, OutputStream os) throws IOException {
+		return new BinaryMultiChunk(id, minMultiChunkSize, os);
+	}
+
+	@Override
+	public String toString() {
+		return "Binary-" + minMultiChunkSize;
+	}
+}
@@ -18,9 +18,13 @@
 package org.syncany.chunk;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Enumeration;
 
+import org.syncany.util.EnvironmentUtil;
+
 /**
  * The chunker implements a core part of the deduplication process by breaking
  * files into individual {@link Chunk}s. A chunker emits an enumeration of chunks,
@@ -37,6 +41,13 @@ public abstract class Chunker {
 	 * approximate size of a chunk. In bytes. 
 	 */
 	public static final String PROPERTY_SIZE = "size";
+
+	/**
+	 * Files of at least this size are read via memory-mapped regions by
+	 * {@link #openFile(File)}. Smaller files are read with regular streams,
+	 * because mapping them costs more than it saves.
+	 */
+	public static final long MAPPED_FILE_THRESHOLD = 16 * 1024 * 1024;
 	
     /**
      * Opens the given file and creates enumeration of {@link Chunk}s. This method 
@@ -51,6 +62,21 @@ public abstract class Chunker {
      * @throws IOException If any file exceptions occur
      */	
 	public abstract ChunkEnumeration createChunks(File file) throws IOException;
+
+	/**
+	 * Opens the given file for chunking. Large files are read through a
+	 * {@link MappedFileInputStream} to avoid many small read system calls; smaller
+	 * files are read with a {@link FileInputStream}. On Windows, files are never mapped,
+	 * because a mapped file stays locked until the mapping is garbage collected.
+	 */
+	protected InputStream openFile(File file) throws IOException {
+		if (file.length() >= MAPPED_FILE_THRESHOLD && !EnvironmentUtil.isWindows()) {
+			return new MappedFileInputStream(file);
+		}
+		else {
+			return new FileInputStream(file);
+		}
+	}
 			
 	/**
 	 * Returns a string representation of the chunker implementation.
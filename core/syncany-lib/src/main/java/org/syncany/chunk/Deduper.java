@@ -20,8 +20,10 @@ package org.syncany.chunk;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
+import org.syncany.chunk.AsyncMultiChunkWriter.MultiChunkBuffer;
 import org.syncany.chunk.Chunker.ChunkEnumeration;
 import org.syncany.database.MultiChunkEntry.MultiChunkId;
 
@@ -49,13 +51,45 @@ public class Deduper {
 	private Transformer transformer;
 	private long maxTotalSize;
 	private long maxNumberOfFiles;
+	private int indexerThreads;
+	private int transformerThreads;
 
 	public Deduper(Chunker chunker, MultiChunker multiChunker, Transformer transformer, long maxTotalSize, long maxNumberOfFiles) {
+		this(chunker, multiChunker, transformer, maxTotalSize, maxNumberOfFiles, 1);
+	}
+
+	public Deduper(Chunker chunker, MultiChunker multiChunker, Transformer transformer, long maxTotalSize, long maxNumberOfFiles,
+			int indexerThreads) {
+
+		this(chunker, multiChunker, transformer, maxTotalSize, maxNumberOfFiles, indexerThreads, 0);
+	}
+
+	/**
+	 * Creates a new deduper. If <tt>indexerThreads</tt> is larger than one, upcoming files are
+	 * read, chunked and hashed in parallel by a {@link ParallelChunker}, while the chunks are
+	 * still committed (i.e. passed to the listener and written to multichunks) sequentially
+	 * and in the original file order. The resulting chunks and multichunks are therefore
+	 * identical to the single-threaded mode.
+	 * 
+	 * <p>If <tt>transformerThreads</tt> is larger than zero, closed multichunks are transformed
+	 * (compressed/encrypted) and written to their files by an {@link AsyncMultiChunkWriter}
+	 * with the given number of threads, instead of on the deduper thread. Multichunk files are
+	 * complete before the listener's {@link DeduperListener#onFinish() onFinish()} is called,
+	 * and before {@link #deduplicate(List, DeduperListener)} returns.
+	 * 
+	 * <p>If the multichunker is {@link MultiChunker#isSeekable() seekable}, the transformer
+	 * is not applied to the multichunks as a whole.
+	 */
+	public Deduper(Chunker chunker, MultiChunker multiChunker, Transformer transformer, long maxTotalSize, long maxNumberOfFiles,
+			int indexerThreads, int transformerThreads) {
+
 		this.chunker = chunker;
 		this.multiChunker = multiChunker;
-		this.transformer = transformer;
+		this.transformer = (multiChunker.isSeekable()) ? new NoTransformer() : transformer; // Seekable multichunkers transform chunks themselves
 		this.maxTotalSize = maxTotalSize;
 		this.maxNumberOfFiles = maxNumberOfFiles;
+		this.indexerThreads = indexerThreads;
+		this.transformerThreads = transformerThreads;
 	}
 	
 	/**
@@ -69,12 +103,38 @@ public class Deduper {
 	 * @throws IOException If a file cannot be read or an unexpected exception occurs
 	 */
 	public void deduplicate(List<File> files, DeduperListener listener) throws IOException {
+		Chunker fileChunker = (indexerThreads > 1) ? new ParallelChunker(chunker, indexerThreads) : chunker;
+		AsyncMultiChunkWriter multiChunkWriter = (transformerThreads > 0) ? new AsyncMultiChunkWriter(transformer, transformerThreads) : null;
+
+		try {
+			deduplicate(files, listener, fileChunker, multiChunkWriter);
+		}
+		finally {
+			if (fileChunker instanceof ParallelChunker) {
+				((ParallelChunker) fileChunker).close();
+			}
+
+			if (multiChunkWriter != null) {
+				multiChunkWriter.close();
+			}
+		}
+	}
+
+	private void deduplicate(List<File> files, DeduperListener listener, Chunker fileChunker, AsyncMultiChunkWriter multiChunkWriter)
+			throws IOException {
+
+
 		Chunk chunk = null;
 		MultiChunk multiChunk = null;
+		MultiChunkBuffer multiChunkBuffer = null;
 		long totalMultiChunkSize = 0L;
 		long totalNumFiles = 0L;
 		
 		while (!files.isEmpty()) {
+			if (fileChunker instanceof ParallelChunker) {
+				((ParallelChunker) fileChunker).prefetch(files, maxNumberOfFiles - totalNumFiles);
+			}
+
 			File file = files.remove(0);
 			totalNumFiles++;
 			
@@ -90,7 +150,7 @@ public class Deduper {
 
 			if (dedupContents) {
 				// Create chunks from file
-				ChunkEnumeration chunksEnum = chunker.createChunks(file);
+				ChunkEnumeration chunksEnum = fileChunker.createChunks(file);
 
 				while (chunksEnum.hasMoreElements()) {
 					chunk = chunksEnum.nextElement();
@@ -106,19 +166,27 @@ public class Deduper {
 						// - Check if multichunk full
 						if (multiChunk != null && multiChunk.isFull()) {
 							totalMultiChunkSize += multiChunk.getSize();
-							multiChunk.close();
-							listener.onMultiChunkClose(multiChunk);
+							closeMultiChunk(multiChunk, multiChunkBuffer, multiChunkWriter, listener);
 
 							multiChunk = null;
+							multiChunkBuffer = null;
 						}
 
 						// - Open new multichunk if non-existent
 						if (multiChunk == null) {
 							MultiChunkId newMultiChunkId = listener.createNewMultiChunkId(chunk);
 							File multiChunkFile = listener.getMultiChunkFile(newMultiChunkId);
-							
-							multiChunk = multiChunker.createMultiChunk(newMultiChunkId, 
-								transformer.createOutputStream(new FileOutputStream(multiChunkFile)));
+							OutputStream multiChunkOutputStream;
+
+							if (multiChunkWriter != null) {
+								multiChunkBuffer = multiChunkWriter.createBuffer(multiChunkFile);
+								multiChunkOutputStream = multiChunkBuffer;
+							}
+							else {
+								multiChunkOutputStream = transformer.createOutputStream(new FileOutputStream(multiChunkFile));
+							}
+
+							multiChunk = multiChunker.createMultiChunk(newMultiChunkId, multiChunkOutputStream);
 
 							listener.onMultiChunkOpen(multiChunk);
 						}
@@ -149,12 +217,13 @@ public class Deduper {
 			// Check if we have reached the transaction limit
 			if (multiChunk != null) {
 				if (totalMultiChunkSize + multiChunk.getSize() >= maxTotalSize || totalNumFiles >= maxNumberOfFiles) {
-					multiChunk.close();
-					listener.onMultiChunkClose(multiChunk);
+					closeMultiChunk(multiChunk, multiChunkBuffer, multiChunkWriter, listener);
+					awaitMultiChunkWrites(multiChunkWriter);
 					return;
 				}
 			}
 			else if (totalMultiChunkSize >= maxTotalSize || totalNumFiles >= maxNumberOfFiles) {
+				awaitMultiChunkWrites(multiChunkWriter);
 				return;
 			}
 		}
@@ -162,14 +231,33 @@ public class Deduper {
 		// Close and add last multichunk
 		if (multiChunk != null) {
 			// Data
-			multiChunk.close();
-			listener.onMultiChunkClose(multiChunk);
+			closeMultiChunk(multiChunk, multiChunkBuffer, multiChunkWriter, listener);
 
 			multiChunk = null;
+			multiChunkBuffer = null;
 		}
 		
+		awaitMultiChunkWrites(multiChunkWriter);
 		listener.onFinish();
 
 		return;
 	}	
+
+	private void closeMultiChunk(MultiChunk multiChunk, MultiChunkBuffer multiChunkBuffer, AsyncMultiChunkWriter multiChunkWriter,
+			DeduperListener listener) throws IOException {
+
+		multiChunk.close();
+
+		if (multiChunkWriter != null) {
+			multiChunkWriter.write(multiChunkBuffer);
+		}
+
+		listener.onMultiChunkClose(multiChunk);
+	}
+
+	private void awaitMultiChunkWrites(AsyncMultiChunkWriter multiChunkWriter) throws IOException {
+		if (multiChunkWriter != null) {
+			multiChunkWriter.awaitAll();
+		}
+	}
 }
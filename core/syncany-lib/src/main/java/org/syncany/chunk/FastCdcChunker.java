@@ -0,0 +1,296 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.chunk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The FastCDC chunker is a content-based {@link Chunker} using the Gear rolling hash,
+ * based on the paper of Wen Xia et al., 2016.
+ *
+ * <p>Compared to the {@link TttdChunker}, the Gear hash only needs one shift, one addition
+ * and one table lookup per byte. In addition, the chunker implements two optimizations
+ * of the FastCDC algorithm:
+ *
+ * <ul>
+ *  <li><i>Cut-point skipping:</i> The first <tt>minChunkSize</tt> bytes of a chunk are
+ *      never examined for a breakpoint, so they are not hashed at all.</li>
+ *  <li><i>Normalized chunking:</i> Before the average chunk size is reached, a stricter
+ *      mask (more bits) is used; afterwards, a looser mask (fewer bits) is used. This
+ *      narrows the chunk size distribution around the average chunk size.</li>
+ * </ul>
+ *
+ * <p>Chunks are between <tt>avgChunkSize/4</tt> and <tt>avgChunkSize*8</tt> bytes long.
+ * Like the other chunkers, the enumeration reuses its chunk buffer: the content of a
+ * returned chunk is only valid until the enumeration is called again.
+ *
+ * <p><b>Note:</b> The chunk boundaries depend on the gear table and the masks. Changing
+ * any of them changes the chunks of all files, and thereby breaks deduplication against
+ * existing repositories.
+ *
+ * @see <a href="https://www.usenix.org/conference/atc16/technical-sessions/presentation/xia">FastCDC: a Fast and Efficient Content-Defined Chunking Approach for Data Deduplication (2016, Wen Xia et al.)</a>
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class FastCdcChunker extends Chunker {
+	private static final Logger logger = Logger.getLogger(FastCdcChunker.class.getSimpleName());
+
+	public static final String TYPE = "fastcdc";
+	public static final String DEFAULT_DIGEST_ALG = "SHA1";
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final int NORMALIZATION_LEVEL = 2;
+	private static final long GEAR_SEED = 0x5379_6e63_616e_7921L; // "Syncany!"
+	private static final long[] GEAR = createGearTable(GEAR_SEED);
+
+	private int minChunkSize;
+	private int avgChunkSize;
+	private int maxChunkSize;
+	private long maskSmall;
+	private long maskLarge;
+	private String checksumAlgorithm;
+
+	/**
+	 * Creates a new FastCDC chunker with the default file/chunk checksum
+	 * algorithm SHA1.
+	 *
+	 * @param avgChunkSize Desired average size of a chunk in bytes
+	 */
+	public FastCdcChunker(int avgChunkSize) {
+		this(avgChunkSize, DEFAULT_DIGEST_ALG);
+	}
+
+	/**
+	 * Creates a new FastCDC chunker.
+	 *
+	 * @param avgChunkSize Desired average size of a chunk in bytes
+	 * @param checksumAlgorithm Algorithm to calculate the chunk and file checksums (e.g. SHA1, MD5)
+	 */
+	public FastCdcChunker(int avgChunkSize, String checksumAlgorithm) {
+		if (avgChunkSize < 256) {
+			throw new IllegalArgumentException("Average chunk size must be at least 256 bytes.");
+		}
+
+		int bits = 31 - Integer.numberOfLeadingZeros(avgChunkSize); // floor(log2(avg))
+
+		this.minChunkSize = avgChunkSize / 4;
+		this.avgChunkSize = avgChunkSize;
+		this.maxChunkSize = avgChunkSize * 8;
+		this.maskSmall = createMask(bits + NORMALIZATION_LEVEL);
+		this.maskLarge = createMask(bits - NORMALIZATION_LEVEL);
+		this.checksumAlgorithm = checksumAlgorithm;
+	}
+
+	@Override
+	public ChunkEnumeration createChunks(File file) throws IOException {
+		return new FastCdcEnumeration(openFile(file));
+	}
+
+	@Override
+	public String getChecksumAlgorithm() {
+		return checksumAlgorithm;
+	}
+
+	@Override
+	public String toString() {
+		return "FastCDC-" + avgChunkSize + "-" + checksumAlgorithm;
+	}
+
+	/**
+	 * Returns the cut point for the given buffer, i.e. the length of the next
+	 * chunk. The buffer holds <tt>length</tt> valid bytes, and <tt>length</tt>
+	 * is only smaller than the max. chunk size at the end of the file.
+	 */
+	private int findCutPoint(byte[] buffer, int length) {
+		if (length <= minChunkSize) {
+			return length;
+		}
+
+		int normalSize = Math.min(avgChunkSize, length);
+		int maxSize = Math.min(maxChunkSize, length);
+		long fingerprint = 0;
+		int pos = minChunkSize;
+
+		for (; pos < normalSize; pos++) {
+			fingerprint = (fingerprint << 1) + GEAR[buffer[pos] & 0xff];
+
+			if ((fingerprint & maskSmall) == 0) {
+				return pos + 1;
+			}
+		}
+
+		for (; pos < maxSize; pos++) {
+			fingerprint = (fingerprint << 1) + GEAR[buffer[pos] & 0xff];
+
+			if ((fingerprint & maskLarge) == 0) {
+				return pos + 1;
+			}
+		}
+
+		return maxSize;
+	}
+
+	/**
+	 * Creates a mask with the given number of bits, using the upper bits of
+	 * the fingerprint. The upper bits of a Gear fingerprint depend on the last
+	 * 64 bytes, whereas the lowest bits only depend on the last few bytes.
+	 */
+	private static long createMask(int bits) {
+		return (bits <= 0) ? 0 : -1L << (64 - bits);
+	}
+
+	/**
+	 * Creates the Gear table of 256 pseudo-random 64-bit values using the
+	 * SplitMix64 generator. The table must never change, see class comment.
+	 */
+	private static long[] createGearTable(long seed) {
+		long[] gear = new long[256];
+		long state = seed;
+
+		for (int i = 0; i < gear.length; i++) {
+			state += 0x9e3779b97f4a7c15L;
+
+			long z = state;
+			z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+			z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+
+			gear[i] = z ^ (z >>> 31);
+		}
+
+		return gear;
+	}
+
+	public class FastCdcEnumeration implements ChunkEnumeration {
+		private InputStream in;
+		private boolean endOfStream;
+		private boolean closed;
+
+		private byte[] buffer;
+		private int bufferLength;
+		private int lastChunkSize;
+
+		private MessageDigest chunkDigest;
+		private MessageDigest fileDigest;
+
+		public FastCdcEnumeration(InputStream in) {
+			this.in = in;
+			this.endOfStream = false;
+			this.closed = false;
+			this.buffer = new byte[maxChunkSize + 1]; // One byte ahead, to detect the last chunk
+			this.bufferLength = 0;
+			this.lastChunkSize = 0;
+
+			try {
+				this.chunkDigest = MessageDigest.getInstance(checksumAlgorithm);
+				this.fileDigest = MessageDigest.getInstance(checksumAlgorithm);
+			}
+			catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public boolean hasMoreElements() {
+			if (closed) {
+				return false;
+			}
+
+			try {
+				fillBuffer();
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "Error while reading from file input stream.", e);
+				close();
+			}
+
+			return !closed;
+		}
+
+		@Override
+		public Chunk nextElement() {
+			if (!hasMoreElements()) {
+				return null;
+			}
+
+			int chunkSize = findCutPoint(buffer, Math.min(bufferLength, maxChunkSize));
+
+			chunkDigest.reset();
+			chunkDigest.update(buffer, 0, chunkSize);
+
+			byte[] chunkChecksum = chunkDigest.digest();
+			byte[] fileChecksum = null;
+
+			if (endOfStream && chunkSize == bufferLength) {
+				fileChecksum = fileDigest.digest();
+				close();
+			}
+
+			lastChunkSize = chunkSize;
+			return new Chunk(chunkChecksum, buffer, chunkSize, fileChecksum);
+		}
+
+		/**
+		 * Moves the unused remainder of the buffer (behind the last returned chunk)
+		 * to the front, and refills the buffer up to the max. chunk size plus one byte. 
+		 * Reading one byte more than a chunk can hold ensures that the end of the stream 
+		 * is known before the last chunk is returned, even if the stream length is a 
+		 * multiple of the max. chunk size. Closes the enumeration if there are no more 
+		 * bytes left.
+		 */
+		private void fillBuffer() throws IOException {
+			if (lastChunkSize > 0) {
+				bufferLength -= lastChunkSize;
+				System.arraycopy(buffer, lastChunkSize, buffer, 0, bufferLength);
+
+				lastChunkSize = 0;
+			}
+
+			while (!endOfStream && bufferLength < buffer.length) {
+				int read = in.read(buffer, bufferLength, Math.min(READ_BUFFER_SIZE, buffer.length - bufferLength));
+
+				if (read == -1) {
+					endOfStream = true;
+				}
+				else {
+					fileDigest.update(buffer, bufferLength, read);
+					bufferLength += read;
+				}
+			}
+
+			if (endOfStream && bufferLength == 0) {
+				close();
+			}
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+
+			try {
+				in.close();
+			}
+			catch (IOException e) {
+				logger.log(Level.INFO, "Error while closing", e);
+			}
+		}
+	}
+}
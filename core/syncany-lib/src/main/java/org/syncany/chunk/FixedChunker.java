@@ -18,7 +18,6 @@
 package org.syncany.chunk;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
@@ -70,7 +69,7 @@ public class FixedChunker extends Chunker {
 
 	@Override
 	public ChunkEnumeration createChunks(File file) throws IOException {
-		return new FixedChunkEnumeration(new FileInputStream(file));
+		return new FixedChunkEnumeration(openFile(file));
 	}
 
 	@Override
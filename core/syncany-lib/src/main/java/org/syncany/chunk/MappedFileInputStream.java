@@ -0,0 +1,239 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.chunk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Input stream that reads a file through memory-mapped regions of a {@link FileChannel}
+ * instead of individual read system calls. The file is mapped in windows of a fixed size,
+ * which slide forward as the stream is read, so files larger than 2 GB can be read as well.
+ *
+ * <p>Unlike the {@link java.io.FileInputStream}, {@link #read(byte[], int, int)} always fills
+ * the given buffer (unless the end of the file is reached), and {@link #available()} does not
+ * require a system call. This is what the {@link FixedChunker} relies on.
+ *
+ * <p>The stream is used by the {@link Chunker}s for large files only (see {@link Chunker#openFile(File)}).
+ * Mapped windows cannot be unmapped explicitly; they are released by the garbage collector. Because 
+ * a mapped file stays locked on Windows until then, the chunkers do not use this stream on Windows.
+ *
+ * <p>If a window cannot be mapped, or if the file size changes while it is read, the stream falls 
+ * back to buffered reads from the channel for the rest of the file. The file size is checked before
+ * every window is mapped. If the file is truncated while a window is read, the JVM may raise an 
+ * {@link InternalError} (or crash with a bus error, which cannot be handled); the error is caught 
+ * where possible, but checking the size is the stream's actual protection.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class MappedFileInputStream extends InputStream {
+	private static final Logger logger = Logger.getLogger(MappedFileInputStream.class.getSimpleName());
+
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+	private static final int CHANNEL_BUFFER_SIZE = 64 * 1024;
+
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+	private long size;
+	private int windowSize;
+
+	private long windowOffset;
+	private ByteBuffer window;
+
+	private boolean channelMode;
+	private ByteBuffer channelBuffer;
+	private byte[] singleByte;
+
+	public MappedFileInputStream(File file) throws IOException {
+		this(file, DEFAULT_WINDOW_SIZE);
+	}
+
+	public MappedFileInputStream(File file, int windowSize) throws IOException {
+		this.randomAccessFile = new RandomAccessFile(file, "r");
+		this.channel = randomAccessFile.getChannel();
+		this.size = channel.size();
+		this.windowSize = windowSize;
+		this.windowOffset = 0;
+		this.window = null;
+		this.channelMode = false;
+		this.channelBuffer = null;
+		this.singleByte = new byte[1];
+	}
+
+	@Override
+	public int read() throws IOException {
+		int bytesRead = read(singleByte, 0, 1);
+		return (bytesRead == 1) ? singleByte[0] & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+
+		int bytesRead = 0;
+
+		while (bytesRead < length) {
+			long position = getPosition();
+
+			try {
+				if (!ensureWindow()) {
+					break;
+				}
+
+				int readLength = Math.min(length - bytesRead, window.remaining());
+				window.get(buffer, offset + bytesRead, readLength);
+
+				bytesRead += readLength;
+			}
+			catch (InternalError e) {
+				// Raised by the JVM if the mapped region is no longer backed by the file
+				switchToChannel(position, e);
+			}
+		}
+
+		return (bytesRead > 0) ? bytesRead : -1;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipLength = Math.max(0, Math.min(n, getSize() - getPosition()));
+
+		if (window != null && skipLength <= window.remaining()) {
+			window.position(window.position() + (int) skipLength);
+		}
+		else {
+			long newPosition = getPosition() + skipLength;
+
+			releaseWindow();
+			windowOffset = newPosition;
+		}
+
+		return skipLength;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.max(0, Math.min(Integer.MAX_VALUE, getSize() - getPosition()));
+	}
+
+	@Override
+	public void close() throws IOException {
+		releaseWindow();
+		randomAccessFile.close();
+	}
+
+	private long getSize() throws IOException {
+		return (channelMode) ? channel.size() : size;
+	}
+
+	private long getPosition() {
+		return (window != null) ? windowOffset + window.position() : windowOffset;
+	}
+
+	/**
+	 * Makes sure that the current window has remaining bytes, and maps (or, in channel
+	 * mode, reads) the next window if it does not. Returns false if the end of the file 
+	 * is reached.
+	 */
+	private boolean ensureWindow() throws IOException {
+		if (window != null && window.hasRemaining()) {
+			return true;
+		}
+
+		long position = getPosition();
+
+		if (!channelMode && channel.size() != size) {
+			switchToChannel(position, null);
+		}
+
+		if (channelMode) {
+			return readWindowFromChannel(position);
+		}
+		else if (position >= size) {
+			return false;
+		}
+
+		releaseWindow();
+
+		try {
+			window = channel.map(MapMode.READ_ONLY, position, Math.min(windowSize, size - position));
+			windowOffset = position;
+
+			return true;
+		}
+		catch (IOException | RuntimeException e) {
+			switchToChannel(position, e);
+			return readWindowFromChannel(position);
+		}
+	}
+
+	/**
+	 * Stops using mapped windows and continues with buffered reads from the channel at the
+	 * given position. This is done if a window cannot be mapped, or if the file changed while 
+	 * it is being read.
+	 */
+	private void switchToChannel(long position, Throwable cause) {
+		logger.log(Level.FINE, "Cannot map file or file changed while reading it; reading from channel from position " + position + " on.", cause);
+
+		window = null;
+		windowOffset = position;
+
+		channelMode = true;
+		channelBuffer = ByteBuffer.allocate(CHANNEL_BUFFER_SIZE);
+	}
+
+	/**
+	 * Fills the channel buffer from the given position on, and uses it as the current
+	 * window. Returns false if the end of the file is reached.
+	 */
+	private boolean readWindowFromChannel(long position) throws IOException {
+		channelBuffer.clear();
+
+		while (channelBuffer.hasRemaining()) {
+			if (channel.read(channelBuffer, position + channelBuffer.position()) == -1) {
+				break;
+			}
+		}
+
+		channelBuffer.flip();
+
+		window = channelBuffer;
+		windowOffset = position;
+
+		return window.hasRemaining();
+	}
+
+	/**
+	 * Drops the current window. Mapped windows are unmapped by the garbage collector.
+	 */
+	private void releaseWindow() {
+		if (window != null) {
+			windowOffset = getPosition();
+			window = null;
+		}
+	}
+}
@@ -143,6 +143,18 @@ public abstract class MultiChunker {
 	 */
 	public abstract MultiChunk createMultiChunk(File file) throws IOException;
 
+	/**
+	 * Returns whether the multichunks of this multichunker are seekable, i.e. whether
+	 * individual chunks can be read from a remote multichunk using byte ranges.
+	 * 
+	 * <p>Seekable multichunkers transform (compress/encrypt) each chunk themselves. Their
+	 * multichunks must therefore be stored, uploaded and downloaded as they are, instead 
+	 * of being transformed as a whole.
+	 */
+	public boolean isSeekable() {
+		return false;
+	}
+
 	/**
 	 * Returns a comprehensive string representation of a multichunker
 	 */
@@ -0,0 +1,301 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.chunk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The parallel chunker wraps another {@link Chunker} and reads, chunks and hashes
+ * upcoming files on a pool of worker threads, while the {@link Deduper} is still busy
+ * committing the chunks of the current file.
+ *
+ * <p>Files are prefetched in the order of the file list passed to {@link #prefetch(List, long)}.
+ * The chunks of a file are handed to the consumer in exactly the order the underlying
+ * chunker emits them, so the multichunk packing is identical to sequential processing.
+ * To bound memory usage, each worker only buffers a few chunks ahead; workers of files
+ * further back in the queue block until the consumer reaches them.
+ *
+ * <p>If a prefetched file has been modified (size or last modified date) between the time
+ * the worker started reading it and the time the consumer requests it, or if the worker
+ * was unable to open it, the prefetched chunks are discarded and the file is chunked
+ * synchronously by the underlying chunker.
+ *
+ * <p>This class is not thread-safe and must only be used by a single consumer thread.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+class ParallelChunker extends Chunker {
+	private static final Logger logger = Logger.getLogger(ParallelChunker.class.getSimpleName());
+
+	private static final int MAX_BUFFERED_CHUNKS_PER_FILE = 4;
+
+	private static final Chunk END_OF_FILE = new Chunk(null, null, 0, null);
+	private static final Chunk NULL_CHUNK = new Chunk(null, null, 0, null);
+	private static final Chunk ERROR = new Chunk(null, null, 0, null);
+
+	private Chunker chunker;
+	private int lookahead;
+	private ExecutorService executor;
+	private LinkedList<PrefetchedChunkEnumeration> prefetchedFiles;
+
+	public ParallelChunker(Chunker chunker, int threads) {
+		this.chunker = chunker;
+		this.lookahead = threads + 1;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+			.setNameFormat("Indexer/%d")
+			.setDaemon(true)
+			.build());
+		this.prefetchedFiles = new LinkedList<PrefetchedChunkEnumeration>();
+	}
+
+	/**
+	 * Submits the first files of the given list to the worker pool, unless they have already
+	 * been submitted. The list is expected to be consumed from the head, i.e. files
+	 * previously prefetched must be at the beginning of the list.
+	 *
+	 * @param files Remaining files to be processed by the consumer, in order
+	 * @param maxFiles Maximum number of files the consumer will process before stopping
+	 */
+	public void prefetch(List<File> files, long maxFiles) {
+		long prefetchCount = Math.min(Math.min(lookahead, maxFiles), files.size());
+
+		for (int i = prefetchedFiles.size(); i < prefetchCount; i++) {
+			PrefetchedChunkEnumeration prefetchedFile = new PrefetchedChunkEnumeration(files.get(i));
+			prefetchedFile.future = executor.submit(prefetchedFile);
+
+			prefetchedFiles.add(prefetchedFile);
+		}
+	}
+
+	/**
+	 * Returns the chunks of the given file, either from the prefetched files or by chunking
+	 * the file synchronously. Prefetched files in front of the requested file are assumed to
+	 * have been skipped by the consumer and are discarded.
+	 */
+	@Override
+	public ChunkEnumeration createChunks(File file) throws IOException {
+		PrefetchedChunkEnumeration prefetchedFile = pollPrefetchedFile(file);
+
+		if (prefetchedFile == null) {
+			return chunker.createChunks(file);
+		}
+
+		if (!prefetchedFile.awaitOpened() || prefetchedFile.sizeBefore != file.length()
+				|| prefetchedFile.lastModifiedBefore != file.lastModified()) {
+
+			logger.log(Level.FINE, "Prefetched chunks of {0} are unusable (file changed or unreadable); chunking file again.", file);
+
+			prefetchedFile.close();
+			return chunker.createChunks(file);
+		}
+
+		return prefetchedFile;
+	}
+
+	/**
+	 * Cancels all outstanding prefetch tasks and stops the worker threads.
+	 */
+	public void close() {
+		for (PrefetchedChunkEnumeration prefetchedFile : prefetchedFiles) {
+			prefetchedFile.close();
+		}
+
+		prefetchedFiles.clear();
+		executor.shutdownNow();
+	}
+
+	@Override
+	public String getChecksumAlgorithm() {
+		return chunker.getChecksumAlgorithm();
+	}
+
+	@Override
+	public String toString() {
+		return "Parallel-" + chunker.toString();
+	}
+
+	private PrefetchedChunkEnumeration pollPrefetchedFile(File file) {
+		while (!prefetchedFiles.isEmpty()) {
+			PrefetchedChunkEnumeration prefetchedFile = prefetchedFiles.removeFirst();
+
+			if (prefetchedFile.file.equals(file)) {
+				return prefetchedFile;
+			}
+			else {
+				prefetchedFile.close();
+			}
+		}
+
+		return null;
+	}
+
+	private class PrefetchedChunkEnumeration implements ChunkEnumeration, Runnable {
+		private File file;
+		private Future<?> future;
+		private BlockingQueue<Chunk> chunks;
+		private CountDownLatch opened;
+
+		private volatile boolean openSuccess;
+		private volatile long sizeBefore;
+		private volatile long lastModifiedBefore;
+		private volatile RuntimeException error;
+
+		private Chunk nextChunk;
+
+		public PrefetchedChunkEnumeration(File file) {
+			this.file = file;
+			this.chunks = new ArrayBlockingQueue<Chunk>(MAX_BUFFERED_CHUNKS_PER_FILE);
+			this.opened = new CountDownLatch(1);
+			this.openSuccess = false;
+			this.nextChunk = null;
+		}
+
+		@Override
+		public void run() {
+			ChunkEnumeration chunkEnumeration = null;
+
+			try {
+				sizeBefore = file.length();
+				lastModifiedBefore = file.lastModified();
+
+				// Never read directories, symlinks or special files; the consumer
+				// does not chunk them anyway, and reading a FIFO would block forever.
+				if (Files.isRegularFile(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+					chunkEnumeration = chunker.createChunks(file);
+					openSuccess = true;
+				}
+			}
+			catch (IOException | RuntimeException e) {
+				logger.log(Level.FINE, "Cannot prefetch chunks of " + file + "; consumer will chunk file synchronously.", e);
+			}
+			finally {
+				opened.countDown();
+			}
+
+			if (chunkEnumeration == null) {
+				return;
+			}
+
+			try {
+				while (chunkEnumeration.hasMoreElements()) {
+					Chunk chunk = chunkEnumeration.nextElement();
+					chunks.put((chunk != null) ? copyChunk(chunk) : NULL_CHUNK);
+				}
+
+				chunks.put(END_OF_FILE);
+			}
+			catch (InterruptedException e) {
+				logger.log(Level.FINEST, "Prefetching chunks of {0} cancelled.", file);
+			}
+			catch (RuntimeException e) {
+				error = e;
+				putErrorMarker();
+			}
+			finally {
+				chunkEnumeration.close();
+			}
+		}
+
+		/**
+		 * Chunkers may reuse their content buffer for subsequent chunks (e.g. the
+		 * {@link FixedChunker}), so buffered chunks need their own copy of the content.
+		 */
+		private Chunk copyChunk(Chunk chunk) {
+			return new Chunk(chunk.getChecksum(), Arrays.copyOf(chunk.getContent(), chunk.getSize()), chunk.getSize(), chunk.getFileChecksum());
+		}
+
+		private void putErrorMarker() {
+			try {
+				chunks.put(ERROR);
+			}
+			catch (InterruptedException e) {
+				logger.log(Level.FINEST, "Prefetching chunks of {0} cancelled.", file);
+			}
+		}
+
+		private boolean awaitOpened() {
+			try {
+				opened.await();
+				return openSuccess;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		@Override
+		public boolean hasMoreElements() {
+			if (nextChunk == null) {
+				nextChunk = takeChunk();
+			}
+
+			return nextChunk != END_OF_FILE;
+		}
+
+		@Override
+		public Chunk nextElement() {
+			if (!hasMoreElements()) {
+				return null;
+			}
+
+			Chunk chunk = nextChunk;
+			nextChunk = null;
+
+			return (chunk != NULL_CHUNK) ? chunk : null;
+		}
+
+		private Chunk takeChunk() {
+			try {
+				Chunk chunk = chunks.take();
+
+				if (chunk == ERROR) {
+					throw error;
+				}
+
+				return chunk;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for chunks of " + file, e);
+			}
+		}
+
+		@Override
+		public void close() {
+			future.cancel(true);
+			chunks.clear();
+		}
+	}
+}
@@ -0,0 +1,422 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.chunk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+
+/**
+ * Implements a {@link MultiChunk} that can be read partially, without downloading or
+ * decrypting the entire multichunk. Unlike other multichunks, which are transformed 
+ * (compressed/encrypted) as a whole, each chunk is transformed individually and stored
+ * as a separate record. The format is:
+ * 
+ * <pre>
+ *   header:  magic (4 bytes, "SYMS") | version (4 bytes)
+ *   records: transformed chunk data, one record per chunk (no separators), each
+ *            followed by random padding up to a multiple of {@link #RECORD_PADDING_SIZE}
+ *   index:   transformed (chunk count (4 bytes) | checksum length (4 bytes) 
+ *            | (checksum | record offset (8 bytes) | record length (4 bytes)) per chunk)
+ *   trailer: index offset (8 bytes) | index length (4 bytes) | magic (4 bytes)
+ * </pre>
+ * 
+ * <p>Since the index is transformed as well, the chunk checksums are not visible to
+ * the remote storage. Only the trailer is stored in plain text. To read individual chunks
+ * from a remote multichunk, a client fetches the trailer and the index using a range request
+ * (see {@link #readTrailer(byte[])} and {@link #readIndex(byte[], Transformer)}), and then
+ * only the records it needs (see {@link #readRecord(byte[], Transformer)}). 
+ * 
+ * <p><b>Note:</b> Individually transformed records leak more information than a multichunk
+ * that is encrypted as a whole: The remote storage can see where records begin (e.g. by the
+ * cipher header of each record), and thereby the number of chunks and their approximate sizes, 
+ * and with range requests also which chunks are read. To hide the exact chunk sizes, records are
+ * padded with random bytes to a multiple of {@link #RECORD_PADDING_SIZE} (unless the chunks are
+ * not transformed at all). The padding costs up to {@link #RECORD_PADDING_SIZE} bytes per chunk.
+ * 
+ * <p>When reading from a file, only the trailer and the index are read initially. Records are
+ * then read using positional reads, and transformed when a chunk is requested. When reading from 
+ * an input stream, the multichunk is read into memory first.
+ * 
+ * @see SeekableMultiChunker
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class SeekableMultiChunk extends MultiChunk {
+	public static final int MAGIC = 0x53594d53; // "SYMS"
+	public static final int VERSION = 1;
+
+	public static final int HEADER_SIZE = 8;
+	public static final int TRAILER_SIZE = 16;
+	public static final int RECORD_PADDING_SIZE = 4 * 1024;
+
+	private static final SecureRandom paddingRandom = new SecureRandom();
+
+	private Transformer transformer;
+
+	// Write mode
+	private DataOutputStream multiChunkOutputStream;
+	private List<Record> writtenRecords;
+	private long writtenSize;
+
+	// Read mode
+	private InputStream multiChunkInputStream;
+	private FileChannel multiChunkChannel;
+	private byte[] multiChunkBytes;
+
+	private List<Record> index;
+	private Map<ChunkChecksum, Record> indexMap;
+	private int nextReadIndex;
+
+	public SeekableMultiChunk(InputStream is, Transformer transformer) {
+		super(0);
+
+		this.multiChunkInputStream = is;
+		this.transformer = transformer;
+	}
+
+	@SuppressWarnings("resource")
+	public SeekableMultiChunk(File file, Transformer transformer) throws IOException {
+		super(0);
+
+		this.multiChunkChannel = new RandomAccessFile(file, "r").getChannel();
+		this.transformer = transformer;
+
+		try {
+			readIndex(multiChunkChannel.size());
+		}
+		catch (IOException e) {
+			multiChunkChannel.close();
+			throw e;
+		}
+	}
+
+	public SeekableMultiChunk(MultiChunkId id, int minSize, OutputStream os, Transformer transformer) throws IOException {
+		super(id, minSize);
+
+		this.multiChunkOutputStream = new DataOutputStream(os);
+		this.writtenRecords = new ArrayList<Record>();
+		this.writtenSize = HEADER_SIZE;
+		this.transformer = transformer;
+
+		multiChunkOutputStream.writeInt(MAGIC);
+		multiChunkOutputStream.writeInt(VERSION);
+	}
+
+	@Override
+	public boolean isFull() {
+		return size >= minSize * 1024; // minSize is in KB!
+	}
+
+	@Override
+	public void write(Chunk chunk) throws IOException {
+		byte[] record = transform(chunk.getContent(), 0, chunk.getSize());
+		byte[] padding = createPadding(record.length);
+
+		multiChunkOutputStream.write(record);
+		multiChunkOutputStream.write(padding);
+
+		writtenRecords.add(new Record(new ChunkChecksum(chunk.getChecksum().clone()), writtenSize, record.length));
+		writtenSize += record.length + padding.length;
+		size += chunk.getSize();
+	}
+
+	@Override
+	public InputStream getChunkInputStream(byte[] checksum) throws IOException {
+		loadStream();
+
+		Record record = indexMap.get(new ChunkChecksum(checksum));
+
+		if (record == null) {
+			return null;
+		}
+
+		return transformer.createInputStream(new ByteArrayInputStream(readFully(record.offset, record.length)));
+	}
+
+	@Override
+	public Chunk read() throws IOException {
+		loadStream();
+
+		if (nextReadIndex >= index.size()) {
+			return null;
+		}
+
+		Record record = index.get(nextReadIndex++);
+		byte[] chunkContent = readRecord(readFully(record.offset, record.length), transformer);
+
+		return new Chunk(record.checksum.getBytes(), chunkContent, chunkContent.length, null);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (multiChunkOutputStream != null) {
+			writeIndex();
+			multiChunkOutputStream.close();
+		}
+
+		if (multiChunkInputStream != null) {
+			multiChunkInputStream.close();
+		}
+
+		if (multiChunkChannel != null) {
+			multiChunkChannel.close();
+		}
+	}
+
+	/**
+	 * Parses the trailer at the end of the given bytes, i.e. the last {@link #TRAILER_SIZE}
+	 * bytes of a multichunk (or more), and returns the position and length of the index.
+	 */
+	public static Trailer readTrailer(byte[] multiChunkTail) throws IOException {
+		if (multiChunkTail.length < TRAILER_SIZE) {
+			throw new IOException("Invalid multichunk: Too small for trailer.");
+		}
+
+		ByteBuffer trailerBuffer = ByteBuffer.wrap(multiChunkTail, multiChunkTail.length - TRAILER_SIZE, TRAILER_SIZE);
+		Trailer trailer = new Trailer(trailerBuffer.getLong(), trailerBuffer.getInt());
+
+		if (trailerBuffer.getInt() != MAGIC) {
+			throw new IOException("Invalid multichunk: Magic bytes do not match.");
+		}
+		else if (trailer.indexOffset < HEADER_SIZE || trailer.indexLength < 0) {
+			throw new IOException("Invalid multichunk: Inconsistent trailer.");
+		}
+
+		return trailer;
+	}
+
+	/**
+	 * Transforms and parses the given (transformed) index bytes, and returns the 
+	 * records in the order in which they are stored in the multichunk.
+	 */
+	public static List<Record> readIndex(byte[] transformedIndex, Transformer transformer) throws IOException {
+		try (DataInputStream indexInputStream = new DataInputStream(transformer.createInputStream(new ByteArrayInputStream(transformedIndex)))) {
+			int chunkCount = indexInputStream.readInt();
+			int checksumLength = indexInputStream.readInt();
+
+			if (chunkCount < 0 || checksumLength < 0) {
+				throw new IOException("Invalid multichunk: Inconsistent index.");
+			}
+
+			List<Record> records = new ArrayList<Record>(chunkCount);
+
+			for (int i = 0; i < chunkCount; i++) {
+				byte[] checksum = new byte[checksumLength];
+				indexInputStream.readFully(checksum);
+
+				Record record = new Record(new ChunkChecksum(checksum), indexInputStream.readLong(), indexInputStream.readInt());
+
+				if (record.offset < HEADER_SIZE || record.length < 0) {
+					throw new IOException("Invalid multichunk: Record outside of multichunk.");
+				}
+
+				records.add(record);
+			}
+
+			return records;
+		}
+	}
+
+	/**
+	 * Transforms the given (transformed) record bytes and returns the chunk content.
+	 */
+	public static byte[] readRecord(byte[] transformedRecord, Transformer transformer) throws IOException {
+		try (InputStream recordInputStream = transformer.createInputStream(new ByteArrayInputStream(transformedRecord))) {
+			return IOUtils.toByteArray(recordInputStream);
+		}
+	}
+
+	private byte[] transform(byte[] content, int offset, int length) throws IOException {
+		ByteArrayOutputStream transformedOutputStream = new ByteArrayOutputStream(length + 512);
+
+		try (OutputStream transformerOutputStream = transformer.createOutputStream(transformedOutputStream)) {
+			transformerOutputStream.write(content, offset, length);
+		}
+
+		return transformedOutputStream.toByteArray();
+	}
+
+	/**
+	 * Creates random padding bytes for a record of the given length. The index records 
+	 * the actual length of each record, so the padding is never read.
+	 */
+	private byte[] createPadding(int recordLength) {
+		if (transformer instanceof NoTransformer || recordLength % RECORD_PADDING_SIZE == 0) {
+			return new byte[0];
+		}
+
+		byte[] padding = new byte[RECORD_PADDING_SIZE - recordLength % RECORD_PADDING_SIZE];
+		paddingRandom.nextBytes(padding);
+
+		return padding;
+	}
+
+	private void writeIndex() throws IOException {
+		int checksumLength = (writtenRecords.size() > 0) ? writtenRecords.get(0).checksum.getBytes().length : 0;
+
+		ByteArrayOutputStream indexOutputStream = new ByteArrayOutputStream();
+		DataOutputStream indexDataOutputStream = new DataOutputStream(indexOutputStream);
+
+		indexDataOutputStream.writeInt(writtenRecords.size());
+		indexDataOutputStream.writeInt(checksumLength);
+
+		for (Record record : writtenRecords) {
+			if (record.checksum.getBytes().length != checksumLength) {
+				throw new IOException("All chunk checksums in a multichunk must have the same length.");
+			}
+
+			indexDataOutputStream.write(record.checksum.getBytes());
+			indexDataOutputStream.writeLong(record.offset);
+			indexDataOutputStream.writeInt(record.length);
+		}
+
+		indexDataOutputStream.close();
+
+		byte[] transformedIndex = transform(indexOutputStream.toByteArray(), 0, indexOutputStream.size());
+
+		multiChunkOutputStream.write(transformedIndex);
+		multiChunkOutputStream.writeLong(writtenSize);
+		multiChunkOutputStream.writeInt(transformedIndex.length);
+		multiChunkOutputStream.writeInt(MAGIC);
+
+		writtenRecords = null;
+	}
+
+	private void loadStream() throws IOException {
+		if (index == null) {
+			multiChunkBytes = IOUtils.toByteArray(multiChunkInputStream);
+			readIndex(multiChunkBytes.length);
+		}
+	}
+
+	private void readIndex(long multiChunkSize) throws IOException {
+		if (multiChunkSize < HEADER_SIZE + TRAILER_SIZE) {
+			throw new IOException("Invalid multichunk: Too small for header and trailer.");
+		}
+
+		ByteBuffer header = ByteBuffer.wrap(readFully(0, HEADER_SIZE));
+		Trailer trailer = readTrailer(readFully(multiChunkSize - TRAILER_SIZE, TRAILER_SIZE));
+
+		if (header.getInt() != MAGIC) {
+			throw new IOException("Invalid multichunk: Magic bytes do not match.");
+		}
+		else if (header.getInt() != VERSION) {
+			throw new IOException("Invalid multichunk: Unsupported version.");
+		}
+		else if (trailer.indexOffset + trailer.indexLength != multiChunkSize - TRAILER_SIZE) {
+			throw new IOException("Invalid multichunk: Inconsistent trailer.");
+		}
+
+		index = readIndex(readFully(trailer.indexOffset, trailer.indexLength), transformer);
+		indexMap = new HashMap<ChunkChecksum, Record>(index.size() * 2);
+
+		for (Record record : index) {
+			if (record.offset + record.length > trailer.indexOffset) {
+				throw new IOException("Invalid multichunk: Record outside of multichunk.");
+			}
+
+			indexMap.put(record.checksum, record);
+		}
+	}
+
+	private byte[] readFully(long position, int length) throws IOException {
+		if (multiChunkChannel == null) {
+			byte[] region = new byte[length];
+			System.arraycopy(multiChunkBytes, (int) position, region, 0, length);
+
+			return region;
+		}
+		else {
+			ByteBuffer region = ByteBuffer.allocate(length);
+
+			while (region.hasRemaining()) {
+				if (multiChunkChannel.read(region, position + region.position()) < 0) {
+					throw new EOFException("Unexpected end of multichunk.");
+				}
+			}
+
+			return region.array();
+		}
+	}
+
+	/**
+	 * Position and length of the (transformed) index, as stored in the trailer.
+	 */
+	public static class Trailer {
+		private long indexOffset;
+		private int indexLength;
+
+		public Trailer(long indexOffset, int indexLength) {
+			this.indexOffset = indexOffset;
+			this.indexLength = indexLength;
+		}
+
+		public long getIndexOffset() {
+			return indexOffset;
+		}
+
+		public int getIndexLength() {
+			return indexLength;
+		}
+	}
+
+	/**
+	 * Position and length of a (transformed) chunk record, as stored in the index.
+	 */
+	public static class Record {
+		private ChunkChecksum checksum;
+		private long offset;
+		private int length;
+
+		public Record(ChunkChecksum checksum, long offset, int length) {
+			this.checksum = checksum;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public ChunkChecksum getChecksum() {
+			return checksum;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.chunk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+
+/**
+ * Multichunker creating {@link SeekableMultiChunk}s, i.e. multichunks in which every
+ * chunk is transformed individually, so that single chunks can be fetched from the remote
+ * storage using range requests.
+ * 
+ * <p>Because the multichunker transforms the chunks itself, the multichunks must not be
+ * transformed again as a whole (see {@link #isSeekable()}). The transformer is set by the
+ * {@link org.syncany.config.Config Config} after the repository's transformers have been
+ * initialized. If no transformer is set, chunks are stored as they are.
+ * 
+ * <p><b>Note:</b> This multichunker is opt-in (multichunker type {@link #TYPE}), because 
+ * its multichunks reveal more to the remote storage than other multichunks: The chunk 
+ * boundaries, the number of chunks and (rounded up to {@link SeekableMultiChunk#RECORD_PADDING_SIZE}) 
+ * the chunk sizes are visible, and range requests show which chunks a client needs. 
+ * The chunk contents and checksums remain encrypted. See {@link SeekableMultiChunk} for details.
+ * 
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class SeekableMultiChunker extends MultiChunker {
+	public static final String TYPE = "seekable";
+
+	private Transformer transformer;
+
+	public SeekableMultiChunker() {
+		this.transformer = new NoTransformer();
+	}
+
+	public SeekableMultiChunker(int minMultiChunkSize) {
+		this(minMultiChunkSize, new NoTransformer());
+	}
+
+	public SeekableMultiChunker(int minMultiChunkSize, Transformer transformer) {
+		super(minMultiChunkSize);
+		this.transformer = transformer;
+	}
+
+	public Transformer getTransformer() {
+		return transformer;
+	}
+
+	public void setTransformer(Transformer transformer) {
+		this.transformer = transformer;
+	}
+
+	@Override
+	public boolean isSeekable() {
+		return true;
+	}
+
+	@Override
+	public MultiChunk createMultiChunk(InputStream is) {
+		return new SeekableMultiChunk(is, transformer);
+	}
+
+	@Override
+	public MultiChunk createMultiChunk(File file) throws IOException {
+		return new SeekableMultiChunk(file, transformer);
+	}
+
+	@Override
+	public MultiChunk createMultiChunk(MultiChunkId id, OutputStream os) throws IOException {
+		return new SeekableMultiChunk(id, minMultiChunkSize, os, transformer);
+	}
+
+	@Override
+	public String toString() {
+		return "Seekable-" + minMultiChunkSize;
+	}
+}
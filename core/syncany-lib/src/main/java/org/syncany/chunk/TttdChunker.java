@@ -18,7 +18,6 @@
 package org.syncany.chunk;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
@@ -116,7 +115,7 @@ public class TttdChunker extends Chunker {
 
 	@Override
 	public ChunkEnumeration createChunks(File file) throws IOException {
-		return new TTTDEnumeration(new FileInputStream(file));
+		return new TTTDEnumeration(openFile(file));
 	}
 
 	@Override
@@ -129,23 +128,45 @@ public class TttdChunker extends Chunker {
 		return name;
 	}
 
+	/**
+	 * The TTTD enumeration emits the chunks of a single input stream.
+	 *
+	 * <p>To keep chunking cheap for large files, the enumeration reads the input in large
+	 * blocks, copies it into the chunk buffer with bulk array copies and rolls the (default)
+	 * Adler-32 fingerprint inline, without calling the {@link Fingerprinter} for every byte.
+	 * The chunk boundaries are identical to the byte-wise algorithm.
+	 *
+	 * <p>Like the {@link FixedChunker}, the enumeration reuses its chunk buffer: the content
+	 * of a returned chunk is only valid until the next call to {@link #nextElement()}.
+	 */
 	public class TTTDEnumeration implements ChunkEnumeration {
+		private static final int READ_BUFFER_SIZE = 64 * 1024;
+
 		private InputStream in;
 		private boolean closed;
 		private byte[] c;
 		private int clen;
 		private int cpos;
+		private byte[] buf;
 
 		private MessageDigest chunkDigest;
 		private MessageDigest fileDigest;
 		private Fingerprinter fingerprinter;
 
+		// Inlined Adler-32 state, see Adler32Fingerprinter#check() and #roll()
+		private boolean inlineAdler32;
+		private byte[] window;
+		private int windowPos;
+		private int a;
+		private int b;
+
 		public TTTDEnumeration(InputStream in) throws IOException {
 			this.in = in;
 			this.closed = false;
-			this.c = new byte[8192];
-			this.clen = -1;
-			this.cpos = -1;
+			this.c = new byte[READ_BUFFER_SIZE];
+			this.clen = 0;
+			this.cpos = 0;
+			this.buf = new byte[Tmax];
 
 			try {
 				fingerprinter = Fingerprinter.getInstance(fingerprintAlgorithm);
@@ -157,6 +178,10 @@ public class TttdChunker extends Chunker {
 			catch (Exception e) {
 				throw new RuntimeException(e);
 			}
+
+			// The inlined loop only matches the default Adler-32 fingerprinter (char offset 0)
+			inlineAdler32 = fingerprinter.getClass() == Adler32Fingerprinter.class && ((Adler32Fingerprinter) fingerprinter).charOffset == 0;
+			window = new byte[windowSize];
 		}
 
 		@Override
@@ -170,96 +195,161 @@ public class TttdChunker extends Chunker {
 				return null;
 			}
 
-			chunkDigest.reset();
-			fingerprinter.reset();
-
 			try {
-				int backupBreak = 0;
-				int breakpoint = -1;
+				int chunkSize = 0;
+				boolean breakpointFound = false;
 
-				byte[] buf = new byte[Tmax];
-				int bufpos = -1;
+				// Note: Chunks are capped at Tmax bytes. Because of that, the backup
+				// divisor D' never comes into play (see original byte-wise implementation).
 
-				while (bufpos < buf.length - 1) {
-					if (cpos == -1 || cpos == clen - 1) {
-						cpos = -1;
-						clen = readFromInputStreamFixed(c, in);//in.read(c);
+				while (chunkSize < Tmax && !breakpointFound) {
+					if (cpos == clen) {
+						cpos = 0;
+						clen = readFromInputStreamFixed(c, in);
 
 						if (clen == -1) {
+							clen = 0;
+
+							in.close();
+							closed = true;
+
 							break;
 						}
 
 						fileDigest.update(c, 0, clen);
 					}
 
-					bufpos++;
-					cpos++;
-					buf[bufpos] = c[cpos];
+					int copyLength = Math.min(Tmax - chunkSize, clen - cpos);
+					System.arraycopy(c, cpos, buf, chunkSize, copyLength);
 
-					if (bufpos < Tmin) {
-						continue;
-					}
-					else if (bufpos == Tmin) {
-						fingerprinter.check(buf, bufpos - windowSize, windowSize);
-					}
-					else {
-						fingerprinter.roll(buf[bufpos]);
+					int breakpoint = findBreakpoint(chunkSize, chunkSize + copyLength);
+
+					if (breakpoint >= 0) {
+						copyLength = breakpoint - chunkSize + 1;
+						breakpointFound = true;
 					}
 
-					int hash = fingerprinter.getValue();
+					cpos += copyLength;
+					chunkSize += copyLength;
+				}
 
-					// The value of r (right side) plays no role! #39  
-					if ((hash % Ddash) == Ddash - 1) {
-						backupBreak = bufpos;
-					}
+				// Create chunk
+				chunkDigest.reset();
+				chunkDigest.update(buf, 0, chunkSize);
 
-					if ((hash % D) == D - 1) {
-						breakpoint = bufpos;
-						break;
-					}
+				byte[] chunkChecksum = chunkDigest.digest();
+				byte[] fileChecksum = (closed) ? fileDigest.digest() : null;
 
-					if (bufpos < Tmax) {
-						continue;
-					}
+				return new Chunk(chunkChecksum, buf, chunkSize, fileChecksum);
+			}
+			catch (IOException ex) {
+				logger.log(Level.SEVERE, "Error while retrieving next chunk.", ex);
+				return null;
+			}
+		}
 
-					if (backupBreak != 0) {
-						breakpoint = backupBreak;
-						break;
-					}
-					else {
-						breakpoint = bufpos;
-						break;
-					}
-				}
+		/**
+		 * Rolls the fingerprint over the chunk buffer positions <tt>from</tt> (inclusive) to
+		 * <tt>to</tt> (exclusive) and returns the first position at which the fingerprint
+		 * indicates a breakpoint, or -1 if there is none.
+		 *
+		 * <p>Fingerprinting starts at position Tmin with the window preceding that position;
+		 * the byte at Tmin itself is never rolled into the window.
+		 */
+		private int findBreakpoint(int from, int to) {
+			int pos = Math.max(from, Tmin);
+
+			if (pos >= to) {
+				return -1;
+			}
 
-				// Close if this was the last bytes
-				if (clen == -1) {
-					in.close();
-					closed = true;
+			if (pos == Tmin) {
+				startWindow();
+
+				if (isBreakpoint(getFingerprint())) {
+					return pos;
 				}
 
-				// EOF as breakpoint
-				if (breakpoint == -1) {
-					breakpoint = bufpos;
+				pos++;
+			}
+
+			if (inlineAdler32) {
+				return rollAdler32(pos, to);
+			}
+			else {
+				for (; pos < to; pos++) {
+					fingerprinter.roll(buf[pos]);
+
+					if (isBreakpoint(fingerprinter.getValue())) {
+						return pos;
+					}
 				}
 
-				// Increase breakpoint
-				breakpoint++;
+				return -1;
+			}
+		}
 
-				// Create chunk
-				chunkDigest.update(buf, 0, breakpoint);
+		private void startWindow() {
+			if (inlineAdler32) {
+				System.arraycopy(buf, Tmin - windowSize, window, 0, windowSize);
 
-				byte[] chunkChecksum = chunkDigest.digest();
-				byte[] chunkContents = buf;
-				int chunkSize = breakpoint;
-				byte[] fileChecksum = (clen == -1) ? fileDigest.digest() : null;
+				windowPos = 0;
+				a = 0;
+				b = 0;
 
-				return new Chunk(chunkChecksum, chunkContents, chunkSize, fileChecksum);
+				for (int i = 0; i < windowSize; i++) {
+					a += window[i];
+					b += a;
+				}
 			}
-			catch (IOException ex) {
-				logger.log(Level.SEVERE, "Error while retrieving next chunk.", ex);
-				return null;
+			else {
+				fingerprinter.reset();
+				fingerprinter.check(buf, Tmin - windowSize, windowSize);
+			}
+		}
+
+		private int getFingerprint() {
+			return (inlineAdler32) ? (a & 0xffff) | (b << 16) : fingerprinter.getValue();
+		}
+
+		private int rollAdler32(int from, int to) {
+			byte[] buf = this.buf;
+			byte[] window = this.window;
+			int windowSize = window.length;
+			int windowPos = this.windowPos;
+			int a = this.a;
+			int b = this.b;
+			int breakpoint = -1;
+
+			for (int pos = from; pos < to; pos++) {
+				byte outByte = window[windowPos];
+				byte inByte = buf[pos];
+
+				b -= windowSize * outByte;
+				a += inByte - outByte;
+				b += a;
+
+				window[windowPos] = inByte;
+
+				if (++windowPos == windowSize) {
+					windowPos = 0;
+				}
+
+				if (isBreakpoint((a & 0xffff) | (b << 16))) {
+					breakpoint = pos;
+					break;
+				}
 			}
+
+			this.windowPos = windowPos;
+			this.a = a;
+			this.b = b;
+
+			return breakpoint;
+		}
+
+		private boolean isBreakpoint(int fingerprint) {
+			return (fingerprint % D) == D - 1;
 		}
 
 		@Override
@@ -274,20 +364,20 @@ public class TttdChunker extends Chunker {
 
 		/**
 		 * Fixes the read errors occurring with Cipher streams in the standard
-		 * Java read implementation.
+		 * Java read implementation: Reads until the buffer is full or the end
+		 * of the stream is reached.
 		 */
 		private int readFromInputStreamFixed(byte[] readToBuffer, InputStream inputStream) throws IOException {
 			int bytesRead = 0;
 
 			while (bytesRead < readToBuffer.length) {
-				int byteRead = inputStream.read();
+				int read = inputStream.read(readToBuffer, bytesRead, readToBuffer.length - bytesRead);
 
-				if (byteRead == -1) {
+				if (read == -1) {
 					return (bytesRead != 0) ? bytesRead : -1;
 				}
 
-				readToBuffer[bytesRead] = (byte) byteRead;
-				bytesRead++;
+				bytesRead += read;
 			}
 
 			return (bytesRead != 0) ? bytesRead : -1;
@@ -17,7 +17,6 @@
  */
 package org.syncany.chunk;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -28,6 +27,7 @@ import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.io.IOUtils;
 import org.syncany.database.MultiChunkEntry.MultiChunkId;
 import org.syncany.util.StringUtil;
 
@@ -90,14 +90,8 @@ public class ZipMultiChunk extends MultiChunk {
             return null;
         }
         
-        int read;
-        ByteArrayOutputStream contentByteArray = new ByteArrayOutputStream();
-        
-        while (-1 != (read = zipIn.read())) {
-        	contentByteArray.write(read);
-        }       
-        
-        return new Chunk(StringUtil.fromHex(entry.getName()), contentByteArray.toByteArray(), contentByteArray.size(), null);
+        byte[] content = IOUtils.toByteArray(zipIn);
+        return new Chunk(StringUtil.fromHex(entry.getName()), content, content.length, null);
     }
    
 
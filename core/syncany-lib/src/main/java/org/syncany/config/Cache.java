@@ -17,69 +17,139 @@
  */
 package org.syncany.config;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.syncany.database.MultiChunkEntry.MultiChunkId;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * The cache class represents the local disk cache. It is used for storing multichunks
  * or other metadata files before upload, and as a download location for the same
  * files. 
  * 
- * <p>The cache implements an LRU strategy based on the last modified date of the 
- * cached files. When files are accessed using the respective getters, the last modified
- * date is updated. Using the {@link #clear()}/{@link #clear(long)} method, the cache
- * can be cleaned.
+ * <p>The cache implements an LRU strategy based on an in-memory index of the cached files
+ * and their sizes. Files handed out by the getters are marked as dirty -- no file system 
+ * access is necessary for that. When the cache is cleaned using the {@link #clear()}/{@link #clear(long)}
+ * or {@link #clearInBackground()} methods, the size of the dirty files is determined (once), and
+ * they are moved to the end of the index in the order in which they were accessed. Files that 
+ * do not exist at that point (e.g. because they were only checked for existence) are not added
+ * to the index. The total cache size is maintained incrementally.
+ * 
+ * <p>The index is persisted in a journal file next to the cache folder whenever the cache is
+ * cleaned. When the journal is loaded, it is reconciled with the names of the files in the cache
+ * folder, so that files that were added or deleted after the journal was written (e.g. because
+ * the application was killed) are detected; only the sizes of added files are determined. 
+ * Temporary files (see {@link #createTempFile(String)}) are never part of the index. If no valid
+ * journal exists, the index is built (once) from the cache folder, using the last modified date 
+ * of the files.
+ * 
+ * <p>Multichunks are kept in their transformed (i.e. compressed/encrypted) form. Decrypted
+ * multichunks are only working copies: If the corresponding encrypted multichunk is in
+ * the cache, they are deleted when the cache is cleaned, unless they have been used since
+ * the cache was last cleaned. They are decrypted again on demand. 
  * 
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  */
 public class Cache {
 	private static final Logger logger = Logger.getLogger(Cache.class.getSimpleName());
 
-    private static long DEFAULT_CACHE_KEEP_BYTES = 500*1024*1024;
+	private static long DEFAULT_CACHE_KEEP_BYTES = 500*1024*1024;
 	private static String FILE_FORMAT_MULTICHUNK_ENCRYPTED = "multichunk-%s";
 	private static String FILE_FORMAT_MULTICHUNK_DECRYPTED = "multichunk-%s-decrypted";
-    private static String FILE_FORMAT_DATABASE_FILE_ENCRYPTED = "%s";
-    
-    private long keepBytes;
-    private File cacheDir;
-    
-    public Cache(File cacheDir) {
-    	this.cacheDir = cacheDir;
-    	this.keepBytes = DEFAULT_CACHE_KEEP_BYTES;
-    }
-    
-    /**
-     * Returns a file path of a decrypted multichunk file, 
-     * given the identifier of a multichunk.
-     */
-    public File getDecryptedMultiChunkFile(MultiChunkId multiChunkId) {
-    	return getFileInCache(FILE_FORMAT_MULTICHUNK_DECRYPTED, multiChunkId.toString());
-    }    
-
-    /**
-     * Returns a file path of a encrypted multichunk file, 
-     * given the identifier of a multichunk.
-     */
-    public File getEncryptedMultiChunkFile(MultiChunkId multiChunkId) {
-    	return getFileInCache(FILE_FORMAT_MULTICHUNK_ENCRYPTED, multiChunkId.toString());
-    }    
-    
-    /**
-     * Returns a file path of a database remote file.
-     */
+	private static String FILE_FORMAT_DATABASE_FILE_ENCRYPTED = "%s";
+	private static String FILE_FORMAT_JOURNAL = "%s.journal";
+	private static String FILE_PREFIX_TEMP = "temp-";
+	private static String FILE_SUFFIX_TEMP = ".tmp";
+	private static String JOURNAL_HEADER = "# Syncany cache journal, eldest file first (<size> <name>)";
+
+	private long keepBytes;
+	private File cacheDir;
+	private File journalFile;
+
+	private LinkedHashMap<String, CacheEntry> index;
+	private Map<String, CacheEntry> dirtyEntries;
+	private long totalSize;
+	private ExecutorService evictionExecutor;
+
+	public Cache(File cacheDir) {
+		this.cacheDir = cacheDir;
+		this.journalFile = new File(cacheDir.getAbsoluteFile().getParentFile(), String.format(FILE_FORMAT_JOURNAL, cacheDir.getName()));
+		this.keepBytes = DEFAULT_CACHE_KEEP_BYTES;
+	}
+
+	/**
+	 * Returns a file path of a decrypted multichunk file, 
+	 * given the identifier of a multichunk.
+	 */
+	public File getDecryptedMultiChunkFile(MultiChunkId multiChunkId) {
+		return getFileInCache(FILE_FORMAT_MULTICHUNK_DECRYPTED, multiChunkId.toString());
+	}
+
+	/**
+	 * Returns a file path of a encrypted multichunk file, 
+	 * given the identifier of a multichunk.
+	 */
+	public File getEncryptedMultiChunkFile(MultiChunkId multiChunkId) {
+		return getFileInCache(FILE_FORMAT_MULTICHUNK_ENCRYPTED, multiChunkId.toString());
+	}
+
+	/**
+	 * Returns a file path of a database remote file.
+	 */
 	public File getDatabaseFile(String name) { // TODO [low] This should be a database file or another key
-		return getFileInCache(FILE_FORMAT_DATABASE_FILE_ENCRYPTED, name);		
-	}    
+		return getFileInCache(FILE_FORMAT_DATABASE_FILE_ENCRYPTED, name);
+	}
+
+	/**
+	 * Returns whether the given multichunk is in the cache, either encrypted 
+	 * or decrypted. Unlike the getters, this method does not mark the multichunk
+	 * files as recently used.
+	 */
+	public boolean containsMultiChunk(MultiChunkId multiChunkId) {
+		return containsDecryptedMultiChunk(multiChunkId) || containsEncryptedMultiChunk(multiChunkId);
+	}
+
+	/**
+	 * Returns whether the given multichunk is in the cache in its decrypted form,
+	 * without marking the file as recently used.
+	 */
+	public boolean containsDecryptedMultiChunk(MultiChunkId multiChunkId) {
+		return getFile(String.format(FILE_FORMAT_MULTICHUNK_DECRYPTED, multiChunkId.toString())).exists();
+	}
+
+	/**
+	 * Returns whether the given multichunk is in the cache in its encrypted form,
+	 * without marking the file as recently used.
+	 */
+	public boolean containsEncryptedMultiChunk(MultiChunkId multiChunkId) {
+		return getFile(String.format(FILE_FORMAT_MULTICHUNK_ENCRYPTED, multiChunkId.toString())).exists();
+	}
 
 	public long getKeepBytes() {
 		return keepBytes;
@@ -99,98 +169,416 @@ public class Cache {
 	public void clear() {
 		clear(keepBytes);
 	}
-	
+
 	/**
 	 * Deletes files in the the cache directory using a LRU-strategy until <tt>keepBytes</tt>
 	 * bytes are left.
 	 * 
 	 * <p>This method should not be run while an operation is executed.
 	 */
-	public void clear(long keepBytes) {		
-		List<File> cacheFiles = getSortedFileList();
-			
-		// Determine total size
-		long totalSize = 0;
-		
-		for (File cacheFile : cacheFiles) {
-			totalSize += cacheFile.length();
+	public void clear(long keepBytes) {
+		deleteFiles(updateIndex(keepBytes));
+		writeJournal();
+	}
+
+	/**
+	 * Determines the files to be deleted like {@link #clear()}, but deletes them
+	 * in a background thread. Files that are requested again (using the getters) before
+	 * they have been deleted are kept. 
+	 * 
+	 * <p>Unlike {@link #clear()}, this method may be called at the end of an operation,
+	 * even if another operation is started right after it.
+	 */
+	public void clearInBackground() {
+		final List<String> obsoleteFileNames = updateIndex(keepBytes);
+
+		if (obsoleteFileNames.size() > 0) {
+			getEvictionExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					deleteFiles(obsoleteFileNames);
+					writeJournal();
+				}
+			});
+		}
+		else {
+			writeJournal();
 		}
-		
+	}
+
+	/**
+	 * Creates temporary file in the local directory cache, typically located at
+	 * .syncany/cache. If not deleted by the application, the returned file is automatically
+	 * deleted on exit by the JVM.
+	 * 
+	 * @return Temporary file in local directory cache
+	 */
+	public File createTempFile(String name) throws IOException {
+		File tempFile = File.createTempFile(FILE_PREFIX_TEMP + name + "-", FILE_SUFFIX_TEMP, cacheDir);
+		tempFile.deleteOnExit();
+
+		return tempFile;
+	}
+
+	/**
+	 * Returns the file using the given format and parameters, and 
+	 * marks the file as recently used (used for LRU strategy). The file
+	 * is only added to the index when the cache is cleaned, and only if 
+	 * it exists at that point.
+	 */
+	private File getFileInCache(String format, Object... params) {
+		String fileName = String.format(format, params);
+
+		synchronized (this) {
+			loadIndex();
+
+			CacheEntry cacheEntry = index.get(fileName);
+
+			if (cacheEntry == null) {
+				cacheEntry = dirtyEntries.get(fileName);
+			}
+
+			if (cacheEntry == null) {
+				cacheEntry = new CacheEntry(0);
+			}
+
+			dirtyEntries.put(fileName, cacheEntry); // Access order
+		}
+
+		return getFile(fileName);
+	}
+
+	private File getFile(String fileName) {
+		return new File(cacheDir.getAbsoluteFile(), fileName);
+	}
+
+	/**
+	 * Determines the size of all dirty files, removes decrypted multichunks that can be
+	 * decrypted again and that have not been used since the last update from the cache, and 
+	 * then removes the least recently used files from the index until <tt>keepBytes</tt> bytes 
+	 * are left. The names of all files to be deleted are returned.
+	 * 
+	 * <p>Decrypted multichunks that have been used since the last update are kept, because 
+	 * they might still be needed, e.g. by a file request that is assembling a file while
+	 * the cache is cleaned at the end of a sync.
+	 */
+	private synchronized List<String> updateIndex(long keepBytes) {
+		loadIndex();
+
+		List<String> obsoleteFileNames = new ArrayList<String>();
+		Set<String> updatedFileNames = new HashSet<String>(updateDirtyEntries());
+
+		// Remove unused decrypted working copies of encrypted multichunks
+		Iterator<Map.Entry<String, CacheEntry>> entries = index.entrySet().iterator();
+
+		while (entries.hasNext()) {
+			Map.Entry<String, CacheEntry> entry = entries.next();
+			String fileName = entry.getKey();
+			String encryptedFileName = getEncryptedMultiChunkFileName(fileName);
+
+			if (encryptedFileName != null && !updatedFileNames.contains(fileName) && index.containsKey(encryptedFileName)) {
+				logger.log(Level.FINE, "- Deleting unused decrypted multichunk from cache (encrypted multichunk is cached): " + fileName);
+
+				totalSize -= entry.getValue().size;
+				entries.remove();
+
+				obsoleteFileNames.add(fileName);
+			}
+		}
+
 		// Delete until total cache size <= keep size
 		if (totalSize > keepBytes) {
 			logger.log(Level.INFO, "Cache too large (" + (totalSize/1024) + " KB), deleting until <= " + (keepBytes/1024/1024) + " MB ...");
+			Iterator<Map.Entry<String, CacheEntry>> eldestEntries = index.entrySet().iterator();
+
+			while (totalSize > keepBytes && eldestEntries.hasNext()) {
+				Map.Entry<String, CacheEntry> eldestEntry = eldestEntries.next();
+				long fileSize = eldestEntry.getValue().size;
+
+				logger.log(Level.INFO, "- Deleting from cache (" + (fileSize/1024) + " KB): " + eldestEntry.getKey());
 
-			while (totalSize > keepBytes && cacheFiles.size() > 0) {
-				File eldestCacheFile = cacheFiles.remove(0);
-				
-				long fileSize = eldestCacheFile.length();
-				long fileLastModified = eldestCacheFile.lastModified();
-				
-				logger.log(Level.INFO, "- Deleting from cache (" + new Date(fileLastModified) + ", " + (fileSize/1024) + " KB): " + eldestCacheFile.getName());
-				
 				totalSize -= fileSize;
-				eldestCacheFile.delete();				
+				eldestEntries.remove();
+
+				obsoleteFileNames.add(eldestEntry.getKey());
 			}
 		}
 		else {
 			logger.log(Level.INFO, "Cache size okay (" + (totalSize/1024) + " KB), no need to clean (keep size is " + (keepBytes/1024/1024) + " MB)");
 		}
+
+		return obsoleteFileNames;
 	}
 
 	/**
-	 * Creates temporary file in the local directory cache, typically located at
-	 * .syncany/cache. If not deleted by the application, the returned file is automatically
-	 * deleted on exit by the JVM.
-	 * 
-	 * @return Temporary file in local directory cache
+	 * Updates the sizes of all files accessed since the last update, moves them to
+	 * the end of the index (in access order), and removes the ones that do not exist 
+	 * (anymore). Returns the names of the updated files.
+	 */
+	private List<String> updateDirtyEntries() {
+		List<String> updatedFileNames = new ArrayList<String>();
+
+		for (Map.Entry<String, CacheEntry> dirtyEntry : dirtyEntries.entrySet()) {
+			String fileName = dirtyEntry.getKey();
+			CacheEntry cacheEntry = dirtyEntry.getValue();
+			File file = getFile(fileName);
+
+			if (file.isFile()) {
+				long fileSize = file.length();
+
+				totalSize += fileSize - cacheEntry.size;
+				cacheEntry.size = fileSize;
+
+				index.remove(fileName);
+				index.put(fileName, cacheEntry);
+
+				updatedFileNames.add(fileName);
+			}
+			else if (index.remove(fileName) != null) {
+				totalSize -= cacheEntry.size;
+			}
+		}
+
+		dirtyEntries.clear();
+		return updatedFileNames;
+	}
+
+	/**
+	 * Deletes the given files, unless they have been requested again since they
+	 * were removed from the index.
+	 */
+	private void deleteFiles(List<String> fileNames) {
+		for (String fileName : fileNames) {
+			synchronized (this) {
+				if (!index.containsKey(fileName) && !dirtyEntries.containsKey(fileName)) {
+					getFile(fileName).delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the file name of the encrypted multichunk, if the given file name
+	 * is the file name of a decrypted multichunk, or <tt>null</tt> otherwise.
+	 */
+	private String getEncryptedMultiChunkFileName(String fileName) {
+		int multiChunkIdPos = FILE_FORMAT_MULTICHUNK_DECRYPTED.indexOf("%s");
+
+		String decryptedPrefix = FILE_FORMAT_MULTICHUNK_DECRYPTED.substring(0, multiChunkIdPos);
+		String decryptedSuffix = FILE_FORMAT_MULTICHUNK_DECRYPTED.substring(multiChunkIdPos + 2);
+
+		if (fileName.length() > decryptedPrefix.length() + decryptedSuffix.length() && fileName.startsWith(decryptedPrefix)
+				&& fileName.endsWith(decryptedSuffix)) {
+
+			String multiChunkId = fileName.substring(decryptedPrefix.length(), fileName.length() - decryptedSuffix.length());
+			return String.format(FILE_FORMAT_MULTICHUNK_ENCRYPTED, multiChunkId);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Loads the index from the journal, or -- if there is no valid journal -- from the 
+	 * cache folder. This is only done once. 
+	 */
+	private void loadIndex() {
+		if (index != null) {
+			return;
+		}
+
+		index = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+		dirtyEntries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+		totalSize = 0;
+
+		if (journalFile.exists()) {
+			try {
+				if (loadIndexFromJournal()) {
+					reconcileIndexWithCacheDir();
+					return;
+				}
+
+				index.clear();
+				totalSize = 0;
+			}
+			catch (IOException | RuntimeException e) {
+				logger.log(Level.WARNING, "Cannot read cache journal " + journalFile + ", reading cache folder instead.", e);
+
+				index.clear();
+				totalSize = 0;
+			}
+		}
+
+		loadIndexFromCacheDir();
+	}
+
+	/**
+	 * Loads the index from the journal. Returns <tt>false</tt> if the journal has
+	 * an unknown format.
+	 */
+	private boolean loadIndexFromJournal() throws IOException {
+		logger.log(Level.INFO, "Loading cache index from journal " + journalFile + " ...");
+
+		try (BufferedReader journalReader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"))) {
+			String line = journalReader.readLine();
+
+			if (line == null || !line.startsWith(JOURNAL_HEADER)) {
+				logger.log(Level.INFO, "Cache journal has an unknown format, ignoring it.");
+				return false;
+			}
+
+			while ((line = journalReader.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				String[] sizeAndFileName = line.split(" ", 2);
+
+				if (sizeAndFileName.length != 2) {
+					throw new IOException("Invalid line in cache journal: " + line);
+				}
+
+				long fileSize = Long.parseLong(sizeAndFileName[0]);
+
+				index.put(sizeAndFileName[1], new CacheEntry(fileSize));
+				totalSize += fileSize;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Removes files from the index that do not exist anymore, and adds files that
+	 * are not in the index yet (eldest first). Only the names of the files in the cache 
+	 * folder are listed; the size is only determined for added files.
+	 */
+	private void reconcileIndexWithCacheDir() {
+		String[] cacheFileNames = cacheDir.list();
+		Set<String> existingFileNames = new HashSet<String>();
+
+		if (cacheFileNames != null) {
+			for (String cacheFileName : cacheFileNames) {
+				if (!isTempFile(cacheFileName)) {
+					existingFileNames.add(cacheFileName);
+				}
+			}
+		}
+
+		Iterator<Map.Entry<String, CacheEntry>> cacheEntries = index.entrySet().iterator();
+
+		while (cacheEntries.hasNext()) {
+			Map.Entry<String, CacheEntry> cacheEntry = cacheEntries.next();
+
+			if (!existingFileNames.remove(cacheEntry.getKey())) {
+				totalSize -= cacheEntry.getValue().size;
+				cacheEntries.remove();
+			}
+		}
+
+		if (existingFileNames.size() > 0) {
+			logger.log(Level.INFO, "Adding " + existingFileNames.size() + " file(s) to the cache index that are not in the journal.");
+
+			List<File> addedFiles = new ArrayList<File>();
+
+			for (String fileName : existingFileNames) {
+				addedFiles.add(getFile(fileName));
+			}
+
+			for (File addedFile : sortByLastModified(addedFiles)) {
+				long fileSize = addedFile.length();
+
+				index.put(addedFile.getName(), new CacheEntry(fileSize));
+				totalSize += fileSize;
+			}
+		}
+	}
+
+	private void loadIndexFromCacheDir() {
+		logger.log(Level.INFO, "Building cache index from cache folder " + cacheDir + " ...");
+
+		for (File cacheFile : getSortedFileList()) {
+			if (!isTempFile(cacheFile.getName())) {
+				long fileSize = cacheFile.length();
+
+				index.put(cacheFile.getName(), new CacheEntry(fileSize));
+				totalSize += fileSize;
+			}
+		}
+	}
+
+	private boolean isTempFile(String fileName) {
+		return fileName.startsWith(FILE_PREFIX_TEMP) && fileName.endsWith(FILE_SUFFIX_TEMP);
+	}
+
+	/**
+	 * Writes the index to the journal, eldest file first.
+	 */
+	private synchronized void writeJournal() {
+		if (index == null || !cacheDir.isDirectory()) {
+			return;
+		}
+
+		File tempJournalFile = new File(journalFile.getParentFile(), journalFile.getName() + ".tmp");
+
+		try {
+			try (PrintWriter journalWriter = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tempJournalFile), "UTF-8"))) {
+				journalWriter.println(JOURNAL_HEADER);
+
+				for (Map.Entry<String, CacheEntry> cacheEntry : index.entrySet()) {
+					journalWriter.println(cacheEntry.getValue().size + " " + cacheEntry.getKey());
+				}
+			}
+
+			Files.move(tempJournalFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot write cache journal " + journalFile + ".", e);
+			tempJournalFile.delete();
+		}
+	}
+
+	private synchronized ExecutorService getEvictionExecutor() {
+		if (evictionExecutor == null) {
+			evictionExecutor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+				.setNameFormat("CacheEviction")
+				.setDaemon(true)
+				.build());
+		}
+
+		return evictionExecutor;
+	}
+
+	/**
+	 * Returns a list of all files in the cache, sorted by the last modified
+	 * date -- eldest first.
 	 */
-    public File createTempFile(String name) throws IOException {
-       File tempFile = File.createTempFile(String.format("temp-%s-", name), ".tmp", cacheDir);
-       tempFile.deleteOnExit();
-       
-       return tempFile;
-    }
-    
-    /**
-     * Returns the file using the given format and parameters, and 
-     * updates the last modified date of the file (used for LRU strategy).
-     */
-    private File getFileInCache(String format, Object... params) {
-        File fileInCache = new File(cacheDir.getAbsoluteFile(), String.format(format, params));
-
-        if (fileInCache.exists()) {
-        	touchFile(fileInCache);
-        }
-        
-        return fileInCache;
-    }
-    
-    /**
-     * Sets the last modified date of the given file to the current date/time.
-     */
-    private void touchFile(File fileInCache) {
-    	fileInCache.setLastModified(System.currentTimeMillis());
-    }
-    
-    /**
-     * Returns a list of all files in the cache, sorted by the last modified
-     * date -- eldest first.
-     */
 	private List<File> getSortedFileList() {
 		File[] cacheFilesList = cacheDir.listFiles();
-		List<File> sortedCacheFiles = new ArrayList<File>();
-		
+		List<File> cacheFiles = new ArrayList<File>();
+
 		if (cacheFilesList != null) {
-			sortedCacheFiles.addAll(Arrays.asList(cacheFilesList));
-			
-			Collections.sort(sortedCacheFiles, new Comparator<File>() {
-				@Override
-				public int compare(File file1, File file2) {				
-					return Long.compare(file1.lastModified(), file2.lastModified());
-				}
-			});
+			cacheFiles.addAll(Arrays.asList(cacheFilesList));
+		}
+
+		return sortByLastModified(cacheFiles);
+	}
+
+	private List<File> sortByLastModified(List<File> files) {
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File file1, File file2) {
+				return Long.compare(file1.lastModified(), file2.lastModified());
+			}
+		});
+
+		return files;
+	}
+
+	private static class CacheEntry {
+		private long size;
+
+		public CacheEntry(long size) {
+			this.size = size;
 		}
-		
-		return sortedCacheFiles;
 	}
 }
@@ -23,18 +23,23 @@ import java.util.List;
 
 import org.syncany.chunk.Chunker;
 import org.syncany.chunk.CipherTransformer;
+import org.syncany.chunk.FastCdcChunker;
 import org.syncany.chunk.FixedChunker;
 import org.syncany.chunk.MultiChunker;
 import org.syncany.chunk.NoTransformer;
+import org.syncany.chunk.SeekableMultiChunker;
 import org.syncany.chunk.Transformer;
 import org.syncany.config.to.ConfigTO;
 import org.syncany.config.to.RepoTO;
+import org.syncany.config.to.RepoTO.ChunkerTO;
 import org.syncany.config.to.RepoTO.MultiChunkerTO;
 import org.syncany.config.to.RepoTO.TransformerTO;
 import org.syncany.crypto.SaltedSecretKey;
 import org.syncany.database.DatabaseConnectionFactory;
+import org.syncany.database.FileChecksumCache;
 import org.syncany.database.VectorClock;
 import org.syncany.plugins.Plugins;
+import org.syncany.plugins.transfer.TransferManagerRegistry;
 import org.syncany.plugins.transfer.TransferPlugin;
 import org.syncany.plugins.transfer.TransferSettings;
 import org.syncany.util.FileUtil;
@@ -67,6 +72,8 @@ public class Config {
 
 	// File in .syncany/db
 	public static final String FILE_DATABASE = "local.db";
+	public static final String FILE_CHUNK_INDEX = "chunk.idx";
+	public static final String FILE_CHUNK_FILTER = "chunk.bloom";
 
 	// Files in .syncany/state
 	public static final String FILE_PORT = "port.xml";
@@ -91,10 +98,12 @@ public class Config {
 	private Cache cache;
 	private TransferPlugin plugin;
 	private TransferSettings transferSettings;
+	private TransferManagerRegistry transferManagerRegistry;
 	private Chunker chunker;
 	private MultiChunker multiChunker;
 	private Transformer transformer;
 	private IgnoredFiles ignoredFiles;
+	private FileChecksumCache fileChecksumCache;
 
 	static {
 		UserConfig.init();
@@ -110,6 +119,7 @@ public class Config {
 		initMasterKey(configTO);
 		initDirectories(aLocalDir);
 		initCache(configTO);
+		initFileChecksumCache();
 		initIgnoredFile();
 		initRepo(repoTO);
 		initConnection(configTO);
@@ -141,6 +151,10 @@ public class Config {
 		}
 	}
 
+	private void initFileChecksumCache() {
+		fileChecksumCache = new FileChecksumCache();
+	}
+
 	private void initIgnoredFile() throws ConfigException {
 		File ignoreFile = new File(localDir, FILE_IGNORE);
 		ignoredFiles = new IgnoredFiles(ignoreFile);
@@ -152,6 +166,7 @@ public class Config {
 			initChunker(repoTO);
 			initMultiChunker(repoTO);
 			initTransformers(repoTO);
+			initMultiChunkerTransformer();
 		}
 		catch (Exception e) {
 			throw new ConfigException("Unable to initialize repository information from config.", e);
@@ -162,11 +177,32 @@ public class Config {
 		repoId = repoTO.getRepoId();
 	}
 
-	private void initChunker(RepoTO repoTO) throws Exception {
+	private void initChunker(RepoTO repoTO) throws ConfigException {
 		// TODO [feature request] make chunking options configurable, something like described in #29
 		// See: https://github.com/syncany/syncany/issues/29#issuecomment-43425647
 
-		chunker = new FixedChunker(512 * 1024, "SHA1");
+		ChunkerTO chunkerTO = repoTO.getChunkerTO();
+
+		if (chunkerTO != null && FastCdcChunker.TYPE.equals(chunkerTO.getType())) {
+			String sizeStr = (chunkerTO.getSettings() != null) ? chunkerTO.getSettings().get(Chunker.PROPERTY_SIZE) : null;
+
+			if (sizeStr == null) {
+				throw new ConfigException("Property " + Chunker.PROPERTY_SIZE + " must be set for chunker type " + FastCdcChunker.TYPE);
+			}
+
+			try {
+				chunker = new FastCdcChunker(Integer.parseInt(sizeStr) * 1024, "SHA1");
+			}
+			catch (IllegalArgumentException e) { // Includes NumberFormatException
+				throw new ConfigException("Invalid average chunk size for chunker type " + FastCdcChunker.TYPE + ": " + sizeStr, e);
+			}
+		}
+		else {
+			// Note: The settings of the fixed chunker are ignored; existing
+			//       repositories have always been chunked with 512 KB chunks.
+
+			chunker = new FixedChunker(512 * 1024, "SHA1");
+		}
 	}
 
 	private void initMultiChunker(RepoTO repoTO) throws ConfigException {
@@ -185,6 +221,12 @@ public class Config {
 		multiChunker.init(multiChunkerTO.getSettings());
 	}
 
+	private void initMultiChunkerTransformer() {
+		if (multiChunker instanceof SeekableMultiChunker) { // Seekable multichunks transform each chunk individually
+			((SeekableMultiChunker) multiChunker).setTransformer(transformer);
+		}
+	}
+
 	private void initTransformers(RepoTO repoTO) throws Exception {
 		if (repoTO.getTransformers() == null || repoTO.getTransformers().size() == 0) {
 			transformer = new NoTransformer();
@@ -284,6 +326,14 @@ public class Config {
 		transferSettings = connection;
 	}
 
+	public TransferManagerRegistry getTransferManagerRegistry() {
+		return transferManagerRegistry;
+	}
+
+	public void setTransferManagerRegistry(TransferManagerRegistry transferManagerRegistry) {
+		this.transferManagerRegistry = transferManagerRegistry;
+	}
+
 	public byte[] getRepoId() {
 		return repoId;
 	}
@@ -296,6 +346,10 @@ public class Config {
 		return cache;
 	}
 
+	public FileChecksumCache getFileChecksumCache() {
+		return fileChecksumCache;
+	}
+
 	public IgnoredFiles getIgnoredFiles() {
 		return ignoredFiles;
 	}
@@ -336,6 +390,14 @@ public class Config {
 		return new File(databaseDir, FILE_DATABASE);
 	}
 
+	public File getChunkIndexFile() {
+		return new File(databaseDir, FILE_CHUNK_INDEX);
+	}
+
+	public File getChunkFilterFile() {
+		return new File(databaseDir, FILE_CHUNK_FILTER);
+	}
+
 	public File getPortFile() {
 		return new File(stateDir, FILE_PORT);
 	}
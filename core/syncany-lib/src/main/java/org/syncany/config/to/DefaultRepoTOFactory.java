@@ -25,10 +25,12 @@ import java.util.Map;
 
 import org.syncany.chunk.Chunker;
 import org.syncany.chunk.CipherTransformer;
+import org.syncany.chunk.FastCdcChunker;
 import org.syncany.chunk.FixedChunker;
 import org.syncany.chunk.GzipTransformer;
 import org.syncany.chunk.MultiChunker;
 import org.syncany.chunk.ZipMultiChunker;
+import org.syncany.config.ConfigException;
 import org.syncany.config.to.RepoTO.ChunkerTO;
 import org.syncany.config.to.RepoTO.MultiChunkerTO;
 import org.syncany.config.to.RepoTO.TransformerTO;
@@ -54,6 +56,12 @@ public class DefaultRepoTOFactory implements RepoTOFactory {
 		transformersTO = getTransformersTO(gzipEnabled, cipherSpecs);
 	}
 
+	public DefaultRepoTOFactory(boolean gzipEnabled, List<CipherSpec> cipherSpecs, String chunkerType) throws ConfigException {
+		chunkerTO = getChunkerTO(chunkerType);
+		multiChunkerTO = getDefaultMultiChunkerTO();
+		transformersTO = getTransformersTO(gzipEnabled, cipherSpecs);
+	}
+
 	public RepoTO createRepoTO() {
 		return createRepoTO(chunkerTO, multiChunkerTO, transformersTO);
 	}
@@ -91,6 +99,19 @@ public class DefaultRepoTOFactory implements RepoTOFactory {
 		return repoTO;
 	}
 
+	public ChunkerTO getChunkerTO(String chunkerType) throws ConfigException {
+		if (FixedChunker.TYPE.equals(chunkerType)) {
+			return getDefaultChunkerTO();
+		}
+		else if (FastCdcChunker.TYPE.equals(chunkerType)) {
+			return getFastCdcChunkerTO();
+		}
+		else {
+			throw new ConfigException("Invalid chunker type: " + chunkerType + ", allowed are " + FixedChunker.TYPE + " and "
+					+ FastCdcChunker.TYPE);
+		}
+	}
+
 	protected ChunkerTO getDefaultChunkerTO() {
 		ChunkerTO chunkerTO = new ChunkerTO();
 
@@ -101,6 +122,16 @@ public class DefaultRepoTOFactory implements RepoTOFactory {
 		return chunkerTO;
 	}
 
+	protected ChunkerTO getFastCdcChunkerTO() {
+		ChunkerTO chunkerTO = new ChunkerTO();
+
+		chunkerTO.setType(FastCdcChunker.TYPE);
+		chunkerTO.setSettings(new HashMap<String, String>());
+		chunkerTO.getSettings().put(Chunker.PROPERTY_SIZE, "64"); // Average chunk size in KB
+
+		return chunkerTO;
+	}
+
 	protected MultiChunkerTO getDefaultMultiChunkerTO() {
 		MultiChunkerTO multichunkerTO = new MultiChunkerTO();
 
@@ -0,0 +1,318 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The chunk Bloom filter is a compact, probabilistic set of chunk checksums. It sits in
+ * front of the {@link ChunkIndex} and answers the question "is this chunk definitely new?"
+ * without loading or probing the index. This is particularly useful when most chunks are
+ * new, e.g. during the initial import of a large folder.
+ *
+ * <p>A negative answer of {@link #mightContain(byte[])} is always correct. A positive
+ * answer may be wrong (false positive) with a probability that depends on the number of
+ * bits per chunk; the filter is sized for a false positive rate of about 1%. The filter
+ * counts its queries and (when reported via {@link #recordFalsePositive()}) its false
+ * positives, so that the observed rate can be compared to the expected rate.
+ *
+ * <p>Chunks cannot be removed from a Bloom filter. After chunks have been deleted
+ * from the database, the filter must be rebuilt.
+ *
+ * <p>Like the {@link ChunkIndex}, the filter stores the highest database version ID it
+ * covers, so that it can be persisted and incrementally updated. This class is not
+ * thread-safe.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class ChunkBloomFilter {
+	private static final Logger logger = Logger.getLogger(ChunkBloomFilter.class.getSimpleName());
+
+	private static final int MAGIC = 0x5359424c; // "SYBL"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 40;
+
+	private static final int BITS_PER_CHUNK = 10;
+	private static final int HASH_FUNCTION_COUNT = 7;
+	private static final long MAX_BIT_COUNT = 64L * Integer.MAX_VALUE;
+
+	private long[] bits;
+	private long bitCount;
+	private int hashFunctionCount;
+	private long expectedChunkCount;
+	private long addedChunkCount;
+	private long lastDatabaseVersionId;
+
+	private long queryCount;
+	private long negativeCount;
+	private long falsePositiveCount;
+
+	/**
+	 * Creates an empty Bloom filter sized for the given number of chunks.
+	 */
+	public ChunkBloomFilter(long expectedChunkCount) {
+		this.expectedChunkCount = Math.max(1, expectedChunkCount);
+		this.bitCount = Math.min(MAX_BIT_COUNT, ((this.expectedChunkCount * BITS_PER_CHUNK + 63) / 64) * 64);
+		this.bits = new long[(int) (bitCount / 64)];
+		this.hashFunctionCount = HASH_FUNCTION_COUNT;
+		this.addedChunkCount = 0;
+		this.lastDatabaseVersionId = -1;
+	}
+
+	private ChunkBloomFilter(long[] bits, int hashFunctionCount, long expectedChunkCount, long addedChunkCount, long lastDatabaseVersionId) {
+		this.bits = bits;
+		this.bitCount = 64L * bits.length;
+		this.hashFunctionCount = hashFunctionCount;
+		this.expectedChunkCount = expectedChunkCount;
+		this.addedChunkCount = addedChunkCount;
+		this.lastDatabaseVersionId = lastDatabaseVersionId;
+	}
+
+	public void put(byte[] checksum) {
+		put(checksum, true);
+	}
+
+	/**
+	 * Adds a chunk to the filter. If <tt>countChunk</tt> is <tt>false</tt>, the chunk does
+	 * not count towards {@link #getAddedChunkCount()}. This must be used for chunks that
+	 * have already been counted, or that will be counted when they are added again later,
+	 * because the filter cannot tell whether a chunk is already present.
+	 */
+	public void put(byte[] checksum, boolean countChunk) {
+		long hash1 = hash(checksum);
+		long hash2 = Long.rotateLeft(hash1, 32) * 0x9e3779b97f4a7c15L;
+
+		for (int i = 1; i <= hashFunctionCount; i++) {
+			long bitIndex = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+			bits[(int) (bitIndex >>> 6)] |= 1L << bitIndex;
+		}
+
+		if (countChunk) {
+			addedChunkCount++;
+		}
+	}
+
+	/**
+	 * Returns <tt>false</tt> if the chunk is definitely not in the filter, and <tt>true</tt>
+	 * if it might be. This method does not allocate.
+	 */
+	public boolean mightContain(byte[] checksum) {
+		long hash1 = hash(checksum);
+		long hash2 = Long.rotateLeft(hash1, 32) * 0x9e3779b97f4a7c15L;
+
+		queryCount++;
+
+		for (int i = 1; i <= hashFunctionCount; i++) {
+			long bitIndex = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+
+			if ((bits[(int) (bitIndex >>> 6)] & (1L << bitIndex)) == 0) {
+				negativeCount++;
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Records that a positive answer of {@link #mightContain(byte[])} turned out
+	 * to be wrong, i.e. the chunk was not found in the chunk index.
+	 */
+	public void recordFalsePositive() {
+		falsePositiveCount++;
+	}
+
+	public long getQueryCount() {
+		return queryCount;
+	}
+
+	public long getNegativeCount() {
+		return negativeCount;
+	}
+
+	public long getFalsePositiveCount() {
+		return falsePositiveCount;
+	}
+
+	/**
+	 * Returns the observed false positive rate, i.e. the fraction of queries for
+	 * new chunks that were not answered with "definitely new".
+	 */
+	public double getFalsePositiveRate() {
+		long newChunkQueryCount = negativeCount + falsePositiveCount;
+		return (newChunkQueryCount > 0) ? (double) falsePositiveCount / newChunkQueryCount : 0;
+	}
+
+	/**
+	 * Returns the expected false positive rate for the number of chunks added
+	 * so far, i.e. (1 - e^(-kn/m))^k.
+	 */
+	public double getExpectedFalsePositiveRate() {
+		return Math.pow(1 - Math.exp(-(double) hashFunctionCount * addedChunkCount / bitCount), hashFunctionCount);
+	}
+
+	public void resetStatistics() {
+		queryCount = 0;
+		negativeCount = 0;
+		falsePositiveCount = 0;
+	}
+
+	/**
+	 * Returns <tt>true</tt> if more chunks were added than the filter was sized for,
+	 * i.e. if the false positive rate is higher than intended.
+	 */
+	public boolean isOverloaded() {
+		return addedChunkCount > expectedChunkCount && bitCount < MAX_BIT_COUNT;
+	}
+
+	public long getAddedChunkCount() {
+		return addedChunkCount;
+	}
+
+	public long getLastDatabaseVersionId() {
+		return lastDatabaseVersionId;
+	}
+
+	public void setLastDatabaseVersionId(long lastDatabaseVersionId) {
+		this.lastDatabaseVersionId = lastDatabaseVersionId;
+	}
+
+	/**
+	 * Writes the filter to the given file, using a temporary file and a move,
+	 * so that readers never see a partially written filter.
+	 */
+	public void save(File file) throws IOException {
+		ByteBuffer saveBuffer = ByteBuffer.allocate(HEADER_SIZE + 8 * bits.length);
+
+		saveBuffer.putInt(MAGIC);
+		saveBuffer.putInt(VERSION);
+		saveBuffer.putInt(hashFunctionCount);
+		saveBuffer.putInt(bits.length);
+		saveBuffer.putLong(expectedChunkCount);
+		saveBuffer.putLong(addedChunkCount);
+		saveBuffer.putLong(lastDatabaseVersionId);
+		saveBuffer.asLongBuffer().put(bits);
+
+		saveBuffer.clear();
+
+		File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile, "rw")) {
+			FileChannel fileChannel = randomAccessFile.getChannel();
+
+			fileChannel.truncate(0);
+
+			while (saveBuffer.hasRemaining()) {
+				fileChannel.write(saveBuffer);
+			}
+		}
+
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads a previously saved filter from the given file.
+	 *
+	 * @return Returns the filter, or <tt>null</tt> if the file does not exist or is invalid
+	 */
+	public static ChunkBloomFilter load(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+			FileChannel fileChannel = randomAccessFile.getChannel();
+			long fileSize = fileChannel.size();
+
+			if (fileSize < HEADER_SIZE || fileSize > HEADER_SIZE + 8L * Integer.MAX_VALUE) {
+				logger.log(Level.WARNING, "Chunk filter " + file + " has invalid size " + fileSize + ". Ignoring.");
+				return null;
+			}
+
+			ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(fileChannel, headerBuffer);
+
+			int magic = headerBuffer.getInt();
+			int version = headerBuffer.getInt();
+			int hashFunctionCount = headerBuffer.getInt();
+			int wordCount = headerBuffer.getInt();
+			long expectedChunkCount = headerBuffer.getLong();
+			long addedChunkCount = headerBuffer.getLong();
+			long lastDatabaseVersionId = headerBuffer.getLong();
+
+			boolean validHeader = magic == MAGIC && version == VERSION && hashFunctionCount > 0 && wordCount > 0
+					&& fileSize == HEADER_SIZE + 8L * wordCount;
+
+			if (!validHeader) {
+				logger.log(Level.WARNING, "Chunk filter " + file + " is invalid. Ignoring.");
+				return null;
+			}
+
+			LongBuffer bitsBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 8L * wordCount).asLongBuffer();
+			long[] bits = new long[wordCount];
+
+			bitsBuffer.get(bits);
+
+			return new ChunkBloomFilter(bits, hashFunctionCount, expectedChunkCount, addedChunkCount, lastDatabaseVersionId);
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot load chunk filter " + file + ". Ignoring.", e);
+			return null;
+		}
+	}
+
+	private static void readFully(FileChannel fileChannel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (fileChannel.read(buffer) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+
+		buffer.flip();
+	}
+
+	/**
+	 * 64-bit FNV-1a over all checksum bytes, followed by the MurmurHash3 finalizer.
+	 * A second hash is derived from the first one for double hashing.
+	 */
+	private static long hash(byte[] checksum) {
+		long hash = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < checksum.length; i++) {
+			hash ^= checksum[i] & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+
+		return hash;
+	}
+}
@@ -0,0 +1,417 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.database;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The chunk index is an off-heap hash table that maps raw chunk checksums to
+ * chunk sizes. It is used by the {@link org.syncany.database.dao.ChunkSqlDao ChunkSqlDao}
+ * to answer the (very frequent) question whether a chunk is already known, without
+ * keeping millions of {@link ChunkEntry} objects and hex strings on the heap.
+ *
+ * <p>The index uses open addressing with linear probing in a single {@link ByteBuffer}.
+ * Each slot consists of the checksum bytes, followed by an int holding the chunk size
+ * plus one (a value of zero marks an empty slot). Lookups via {@link #getSize(byte[])}
+ * do not allocate any objects.
+ *
+ * <p>The buffer layout is identical to the on-disk format, so that a persisted index can be
+ * read into a buffer by {@link #load(File)} instead of being parsed. The header stores the
+ * highest database version ID covered by the index, so that the owner can incrementally
+ * add chunks of newer database versions instead of rebuilding the whole index.
+ *
+ * <p>The index holds at most 2^26 slots (see also {@link #ChunkIndex(int)}). Once it cannot
+ * grow any further, or if the direct memory is exhausted, {@link #put(byte[], int)} rejects 
+ * new chunks, and the owner has to fall back to another lookup method.
+ *
+ * <p>This class is not thread-safe.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class ChunkIndex {
+	private static final Logger logger = Logger.getLogger(ChunkIndex.class.getSimpleName());
+
+	private static final int MAGIC = 0x53594349; // "SYCI"
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 32;
+	private static final int HEADER_OFFSET_MAGIC = 0;
+	private static final int HEADER_OFFSET_VERSION = 4;
+	private static final int HEADER_OFFSET_KEY_LENGTH = 8;
+	private static final int HEADER_OFFSET_CAPACITY = 12;
+	private static final int HEADER_OFFSET_COUNT = 16;
+	private static final int HEADER_OFFSET_LAST_DATABASE_VERSION_ID = 24;
+
+	private static final int INITIAL_CAPACITY = 1 << 12;
+	private static final int MAX_CAPACITY = 1 << 26;
+	private static final double MAX_LOAD_FACTOR = 0.7;
+
+	private int maxCapacity;
+
+	private ByteBuffer buffer;
+	private int keyLength;
+	private int slotSize;
+	private int capacity;
+	private int count;
+	private long lastDatabaseVersionId;
+
+	/**
+	 * Creates a new, empty chunk index. The checksum length is determined
+	 * by the first chunk added via {@link #put(byte[], int)}.
+	 */
+	public ChunkIndex() {
+		this(MAX_CAPACITY);
+	}
+
+	/**
+	 * Creates a new, empty chunk index that holds at most the given number
+	 * of slots (which must be a power of two).
+	 */
+	public ChunkIndex(int maxCapacity) {
+		if (maxCapacity <= 0 || maxCapacity > MAX_CAPACITY || Integer.bitCount(maxCapacity) != 1) {
+			throw new IllegalArgumentException("Invalid maximum capacity " + maxCapacity);
+		}
+
+		this.maxCapacity = maxCapacity;
+		this.buffer = null;
+		this.keyLength = 0;
+		this.slotSize = 0;
+		this.capacity = 0;
+		this.count = 0;
+		this.lastDatabaseVersionId = -1;
+	}
+
+	private ChunkIndex(ByteBuffer buffer) {
+		this.maxCapacity = MAX_CAPACITY;
+		this.buffer = buffer;
+		this.keyLength = buffer.getInt(HEADER_OFFSET_KEY_LENGTH);
+		this.slotSize = keyLength + 4;
+		this.capacity = buffer.getInt(HEADER_OFFSET_CAPACITY);
+		this.count = buffer.getInt(HEADER_OFFSET_COUNT);
+		this.lastDatabaseVersionId = buffer.getLong(HEADER_OFFSET_LAST_DATABASE_VERSION_ID);
+	}
+
+	/**
+	 * Returns the size of the chunk with the given checksum, or <tt>-1</tt>
+	 * if the chunk is not in the index. This method does not allocate.
+	 */
+	public int getSize(byte[] checksum) {
+		if (buffer == null || checksum.length != keyLength) {
+			return -1;
+		}
+
+		int mask = capacity - 1;
+		int slot = hash(checksum) & mask;
+
+		while (true) {
+			int position = HEADER_SIZE + slot * slotSize;
+			int storedSize = buffer.getInt(position + keyLength);
+
+			if (storedSize == 0) {
+				return -1;
+			}
+			else if (keyEquals(position, checksum)) {
+				return storedSize - 1;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public boolean contains(byte[] checksum) {
+		return getSize(checksum) >= 0;
+	}
+
+	/**
+	 * Adds a chunk to the index, or updates its size if it is already present.
+	 *
+	 * @return Returns <tt>false</tt> if the chunk is not in the index and cannot be
+	 *         added, because the index has reached its maximum capacity, or because there
+	 *         is not enough (direct) memory to grow it
+	 * @throws IllegalArgumentException If the checksum length differs from the other checksums in the index
+	 */
+	public boolean put(byte[] checksum, int size) {
+		if (buffer == null) {
+			if (!allocate(checksum.length, Math.min(INITIAL_CAPACITY, maxCapacity))) {
+				return false;
+			}
+		}
+		else if (checksum.length != keyLength) {
+			throw new IllegalArgumentException("Invalid checksum length " + checksum.length + ", expected " + keyLength);
+		}
+
+		if (count + 1 > capacity * MAX_LOAD_FACTOR && !contains(checksum)) {
+			if (!canGrow() || !grow()) {
+				return false;
+			}
+		}
+
+		putInternal(checksum, size);
+		return true;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getLastDatabaseVersionId() {
+		return lastDatabaseVersionId;
+	}
+
+	public void setLastDatabaseVersionId(long lastDatabaseVersionId) {
+		this.lastDatabaseVersionId = lastDatabaseVersionId;
+	}
+
+	/**
+	 * Writes the index to the given file. The index is first written to a temporary
+	 * file, which is then moved to the target location, so that other readers never
+	 * see a partially written index.
+	 */
+	public void save(File file) throws IOException {
+		ByteBuffer saveBuffer = (buffer != null) ? buffer.duplicate() : ByteBuffer.allocate(HEADER_SIZE);
+
+		saveBuffer.putInt(HEADER_OFFSET_MAGIC, MAGIC);
+		saveBuffer.putInt(HEADER_OFFSET_VERSION, VERSION);
+		saveBuffer.putInt(HEADER_OFFSET_KEY_LENGTH, keyLength);
+		saveBuffer.putInt(HEADER_OFFSET_CAPACITY, capacity);
+		saveBuffer.putInt(HEADER_OFFSET_COUNT, count);
+		saveBuffer.putLong(HEADER_OFFSET_LAST_DATABASE_VERSION_ID, lastDatabaseVersionId);
+
+		saveBuffer.clear();
+
+		File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(tempFile, "rw")) {
+			FileChannel fileChannel = randomAccessFile.getChannel();
+
+			fileChannel.truncate(0);
+
+			while (saveBuffer.hasRemaining()) {
+				fileChannel.write(saveBuffer);
+			}
+		}
+
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads a previously saved index into a (direct) buffer. The file is
+	 * closed before this method returns, i.e. it can be replaced or deleted
+	 * while the returned index is in use; use {@link #save(File)} to persist changes.
+	 *
+	 * <p>The file is deliberately not memory-mapped: a mapping stays open until the
+	 * buffer is garbage collected, and on Windows an open mapping prevents the file from
+	 * being replaced by {@link #save(File)} or deleted.
+	 *
+	 * @return Returns the index, or <tt>null</tt> if the file does not exist, is invalid,
+	 *         or if there is not enough direct memory to load it
+	 */
+	public static ChunkIndex load(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+
+		try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long fileSize = fileChannel.size();
+
+			if (fileSize < HEADER_SIZE || fileSize > Integer.MAX_VALUE) {
+				logger.log(Level.WARNING, "Chunk index " + file + " has invalid size " + fileSize + ". Ignoring.");
+				return null;
+			}
+
+			ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(fileChannel, headerBuffer);
+
+			int magic = headerBuffer.getInt(HEADER_OFFSET_MAGIC);
+			int version = headerBuffer.getInt(HEADER_OFFSET_VERSION);
+			int keyLength = headerBuffer.getInt(HEADER_OFFSET_KEY_LENGTH);
+			int capacity = headerBuffer.getInt(HEADER_OFFSET_CAPACITY);
+			int count = headerBuffer.getInt(HEADER_OFFSET_COUNT);
+
+			boolean validHeader = magic == MAGIC && version == VERSION && keyLength >= 0 && capacity >= 0 && capacity <= MAX_CAPACITY
+					&& Integer.bitCount(capacity) <= 1 && count >= 0 && count <= capacity;
+
+			boolean validSize = validHeader && fileSize == HEADER_SIZE + (long) capacity * (keyLength + 4);
+
+			if (!validHeader || !validSize) {
+				logger.log(Level.WARNING, "Chunk index " + file + " is invalid. Ignoring.");
+				return null;
+			}
+
+			if (capacity == 0) {
+				ChunkIndex emptyIndex = new ChunkIndex();
+				emptyIndex.setLastDatabaseVersionId(headerBuffer.getLong(HEADER_OFFSET_LAST_DATABASE_VERSION_ID));
+
+				return emptyIndex;
+			}
+
+			ByteBuffer indexBuffer = allocateDirect((int) fileSize);
+
+			if (indexBuffer == null) {
+				return null;
+			}
+
+			headerBuffer.clear();
+			indexBuffer.put(headerBuffer);
+			readFully(fileChannel, indexBuffer);
+
+			return new ChunkIndex(indexBuffer);
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot load chunk index " + file + ". Ignoring.", e);
+			return null;
+		}
+	}
+
+	private static void readFully(FileChannel fileChannel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (fileChannel.read(buffer) < 0) {
+				throw new IOException("Unexpected end of file.");
+			}
+		}
+	}
+
+	/**
+	 * Allocates an empty buffer for the given capacity. If there is not enough direct memory,
+	 * the current buffer is kept and <tt>false</tt> is returned.
+	 */
+	private boolean allocate(int newKeyLength, int newCapacity) {
+		ByteBuffer newBuffer = allocateDirect(HEADER_SIZE + newCapacity * (newKeyLength + 4));
+
+		if (newBuffer == null) {
+			return false;
+		}
+
+		keyLength = newKeyLength;
+		slotSize = newKeyLength + 4;
+		capacity = newCapacity;
+		count = 0;
+		buffer = newBuffer;
+
+		return true;
+	}
+
+	/**
+	 * Allocates a direct buffer of the given size, or returns <tt>null</tt> if the 
+	 * direct memory (see <tt>-XX:MaxDirectMemorySize</tt>) is exhausted.
+	 */
+	private static ByteBuffer allocateDirect(int size) {
+		try {
+			return ByteBuffer.allocateDirect(size);
+		}
+		catch (OutOfMemoryError e) {
+			logger.log(Level.WARNING, "Cannot allocate " + size + " bytes of direct memory for chunk index.", e);
+			return null;
+		}
+	}
+
+	private boolean canGrow() {
+		return capacity < maxCapacity && HEADER_SIZE + 2L * capacity * slotSize <= Integer.MAX_VALUE;
+	}
+
+	private boolean grow() {
+		ByteBuffer oldBuffer = buffer;
+		int oldCapacity = capacity;
+		byte[] checksum = new byte[keyLength];
+
+		if (!allocate(keyLength, capacity * 2)) {
+			return false;
+		}
+
+		for (int slot = 0; slot < oldCapacity; slot++) {
+			int position = HEADER_SIZE + slot * slotSize;
+			int storedSize = oldBuffer.getInt(position + keyLength);
+
+			if (storedSize != 0) {
+				for (int i = 0; i < keyLength; i++) {
+					checksum[i] = oldBuffer.get(position + i);
+				}
+
+				putInternal(checksum, storedSize - 1);
+			}
+		}
+
+		return true;
+	}
+
+	private void putInternal(byte[] checksum, int size) {
+		int mask = capacity - 1;
+		int slot = hash(checksum) & mask;
+
+		while (true) {
+			int position = HEADER_SIZE + slot * slotSize;
+			int storedSize = buffer.getInt(position + keyLength);
+
+			if (storedSize == 0) {
+				for (int i = 0; i < keyLength; i++) {
+					buffer.put(position + i, checksum[i]);
+				}
+
+				buffer.putInt(position + keyLength, size + 1);
+				count++;
+
+				return;
+			}
+			else if (keyEquals(position, checksum)) {
+				buffer.putInt(position + keyLength, size + 1);
+				return;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean keyEquals(int position, byte[] checksum) {
+		for (int i = 0; i < keyLength; i++) {
+			if (buffer.get(position + i) != checksum[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * FNV-1a over all checksum bytes, followed by a final avalanche step. Checksums
+	 * are usually uniformly distributed anyway, but this makes the index robust
+	 * against unusual checksum algorithms.
+	 */
+	private static int hash(byte[] checksum) {
+		int hash = 0x811C9DC5;
+
+		for (int i = 0; i < checksum.length; i++) {
+			hash ^= checksum[i] & 0xFF;
+			hash *= 0x01000193;
+		}
+
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		hash ^= hash >>> 13;
+
+		return hash;
+	}
+}
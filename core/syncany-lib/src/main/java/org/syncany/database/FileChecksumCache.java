@@ -0,0 +1,118 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.database;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.syncany.database.FileContent.FileChecksum;
+
+/**
+ * The file checksum cache remembers the checksums of local files, so that a file is
+ * not hashed again as long as its size and last modified date do not change. This avoids
+ * hashing the same file several times, e.g. during a status with forced checksums and
+ * the subsequent indexing, or when the down operation compares local files more than once.
+ *
+ * <p>A cached checksum is only trusted if the file's last modified date was at least
+ * {@link #MODIFIED_DATE_GRANULARITY} milliseconds older than the time hashing started.
+ * Otherwise, the file could have been changed during or right after hashing without
+ * changing its last modified date (file systems store it with limited precision).
+ *
+ * <p>The cache is bound to a local directory (paths are relative) and a checksum
+ * algorithm. It is held by the {@link org.syncany.config.Config} and is thread-safe.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class FileChecksumCache {
+	public static final long MODIFIED_DATE_GRANULARITY = 2000;
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+	private Map<String, FileChecksumCacheEntry> entries;
+
+	public FileChecksumCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	public FileChecksumCache(final int maxEntries) {
+		this.entries = new LinkedHashMap<String, FileChecksumCacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, FileChecksumCacheEntry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached checksum of the file at the given relative path, or
+	 * <tt>null</tt> if there is none, or if size or last modified date do not match.
+	 */
+	public synchronized FileChecksum get(String relativePath, long size, long lastModified) {
+		FileChecksumCacheEntry entry = entries.get(relativePath);
+
+		if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+			return entry.checksum;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Adds the checksum of a file to the cache, unless the file was modified too shortly
+	 * before hashing started to rule out undetected changes (see class description).
+	 *
+	 * @param relativePath Path of the file, relative to the local directory
+	 * @param size Size of the file before and after hashing
+	 * @param lastModified Last modified date of the file before and after hashing
+	 * @param checksum File checksum
+	 * @param checksumStartTime Time at which hashing of the file was started (in ms)
+	 */
+	public synchronized void put(String relativePath, long size, long lastModified, FileChecksum checksum, long checksumStartTime) {
+		if (checksum != null && lastModified + MODIFIED_DATE_GRANULARITY < checksumStartTime) {
+			entries.put(relativePath, new FileChecksumCacheEntry(size, lastModified, checksum));
+		}
+		else {
+			entries.remove(relativePath);
+		}
+	}
+
+	public synchronized void remove(String relativePath) {
+		entries.remove(relativePath);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private static class FileChecksumCacheEntry {
+		private long size;
+		private long lastModified;
+		private FileChecksum checksum;
+
+		public FileChecksumCacheEntry(long size, long lastModified, FileChecksum checksum) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.checksum = checksum;
+		}
+	}
+}
@@ -62,6 +62,7 @@ public class FileVersionComparator {
 	private static final Logger logger = Logger.getLogger(FileVersionComparator.class.getSimpleName());
 	private File rootFolder;
 	private String checksumAlgorithm;
+	private FileChecksumCache checksumCache;
 
 	/**
 	 * Creates a new file version comparator helper class.
@@ -74,8 +75,21 @@ public class FileVersionComparator {
 	 * @param checksumAlgorithm Digest algorithm for checksum calculation, e.g. "SHA1" or "MD5"
 	 */
 	public FileVersionComparator(File rootFolder, String checksumAlgorithm) {
+		this(rootFolder, checksumAlgorithm, null);
+	}
+
+	/**
+	 * Creates a new file version comparator helper class that looks up and stores
+	 * calculated file checksums in the given cache (see {@link FileChecksumCache}).
+	 *
+	 * @param rootFolder Base folder to determine a relative path to
+	 * @param checksumAlgorithm Digest algorithm for checksum calculation, e.g. "SHA1" or "MD5"
+	 * @param checksumCache Cache for file checksums, may be <tt>null</tt>
+	 */
+	public FileVersionComparator(File rootFolder, String checksumAlgorithm, FileChecksumCache checksumCache) {
 		this.rootFolder = rootFolder;
 		this.checksumAlgorithm = checksumAlgorithm;
+		this.checksumCache = checksumCache;
 	}
 
 	/**
@@ -462,7 +476,7 @@ public class FileVersionComparator {
 				if (fileProperties.type == FileType.FILE && forceChecksum) {
 					try {
 						if (fileProperties.size > 0) {
-							fileProperties.checksum = new FileChecksum(FileUtil.createChecksum(file, checksumAlgorithm));
+							fileProperties.checksum = createChecksum(file, fileProperties);
 						}
 						else {
 							fileProperties.checksum = null;
@@ -496,6 +510,30 @@ public class FileVersionComparator {
 		}
 	}
 
+	/**
+	 * Returns the checksum of the given file, either from the checksum cache (if size
+	 * and last modified date still match), or by hashing the file.
+	 */
+	private FileChecksum createChecksum(File file, FileProperties fileProperties) throws NoSuchAlgorithmException, IOException {
+		if (checksumCache != null) {
+			FileChecksum cachedChecksum = checksumCache.get(fileProperties.relativePath, fileProperties.size, fileProperties.lastModified);
+
+			if (cachedChecksum != null) {
+				logger.log(Level.FINEST, "- Using cached checksum for file {0}", fileProperties.relativePath);
+				return cachedChecksum;
+			}
+		}
+
+		long checksumStartTime = System.currentTimeMillis();
+		FileChecksum checksum = new FileChecksum(FileUtil.createChecksum(file, checksumAlgorithm));
+
+		if (checksumCache != null && file.length() == fileProperties.size && file.lastModified() == fileProperties.lastModified) {
+			checksumCache.put(fileProperties.relativePath, fileProperties.size, fileProperties.lastModified, checksum, checksumStartTime);
+		}
+
+		return checksum;
+	}
+
 	public FileProperties captureFileProperties(FileVersion fileVersion) {
 		if (fileVersion == null) {
 			return null;
@@ -79,7 +79,7 @@ public class SqlDatabase {
 	public SqlDatabase(Config config, boolean readOnly) {
 		this.connection = config.createDatabaseConnection(readOnly);
 		this.applicationDao = new ApplicationSqlDao(connection);
-		this.chunkDao = new ChunkSqlDao(connection);
+		this.chunkDao = new ChunkSqlDao(connection, config.getChunkIndexFile(), config.getChunkFilterFile());
 		this.fileContentDao = new FileContentSqlDao(connection);
 		this.fileVersionDao = new FileVersionSqlDao(connection);
 		this.fileHistoryDao = new FileHistorySqlDao(connection, fileVersionDao);
@@ -113,6 +113,7 @@ public class SqlDatabase {
 
 	public void rollback() throws SQLException {
 		connection.rollback();
+		chunkDao.clearCache();
 	}
 
 	public void removeUnreferencedDatabaseEntities() {
@@ -165,6 +166,7 @@ public class SqlDatabase {
 
 	public void deleteAll() {
 		applicationDao.deleteAll();
+		chunkDao.deleteCache();
 	}
 
 	public void shutdown() {
@@ -315,6 +317,10 @@ public class SqlDatabase {
 		return multiChunkDao.getMultiChunkIdsByChecksums(chunkChecksums);
 	}
 
+	public Map<MultiChunkId, Long> getMultiChunkSizes(Collection<MultiChunkId> multiChunkIds) {
+		return multiChunkDao.getMultiChunkSizes(multiChunkIds);
+	}
+
 	public List<MultiChunkId> getDirtyMultiChunkIds() {
 		return multiChunkDao.getDirtyMultiChunkIds();
 	}
@@ -353,6 +359,18 @@ public class SqlDatabase {
 		return chunkDao.getChunk(chunkChecksum);
 	}
 
+	public Map<ChunkChecksum, Integer> getChunkSizes(Collection<ChunkChecksum> chunkChecksums) {
+		return chunkDao.getChunkSizes(chunkChecksums);
+	}
+
+	public boolean containsChunk(byte[] chunkChecksum) {
+		return chunkDao.getChunkSize(chunkChecksum) >= 0;
+	}
+
+	public void logChunkFilterStatistics() {
+		chunkDao.logChunkFilterStatistics();
+	}
+
 	private void removeUnreferencedChunks() {
 		chunkDao.removeUnreferencedChunks();
 	}
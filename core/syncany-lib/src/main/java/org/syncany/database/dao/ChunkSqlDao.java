@@ -17,31 +17,71 @@
  */
 package org.syncany.database.dao;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.syncany.database.ChunkEntry;
+import org.syncany.database.ChunkBloomFilter;
 import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.database.ChunkIndex;
+import org.syncany.database.DatabaseVersion.DatabaseVersionStatus;
+import org.syncany.database.ObjectId;
 import org.syncany.database.VectorClock;
+import org.syncany.util.StringUtil;
 
 /**
  * The chunk data access object (DAO) writes and queries the SQL database for information
  * on {@link ChunkEntry}s. It translates the relational data in the "chunk" table to
  * Java objects.
  * 
+ * <p>To quickly determine whether a chunk is already known, the DAO keeps a {@link ChunkIndex}
+ * of all chunk checksums. In front of the index, a {@link ChunkBloomFilter} answers lookups
+ * for chunks that are definitely new without loading or probing the index. If files are given,
+ * index and filter are persisted and only incrementally updated in later runs. If the
+ * index is full, chunks are looked up in the database instead.
+ * 
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  */
 public class ChunkSqlDao extends AbstractSqlDao {
-	private Map<ChunkChecksum, ChunkEntry> chunkCache;
+	protected static final Logger logger = Logger.getLogger(ChunkSqlDao.class.getSimpleName());
+
+	private static final long MIN_CHUNK_FILTER_SIZE = 100000;
+
+	private File chunkIndexFile;
+	private ChunkIndex chunkIndex;
+	private boolean chunkIndexStale;
+	private boolean chunkIndexFull;
+
+	private File chunkFilterFile;
+	private ChunkBloomFilter chunkFilter;
+	private boolean chunkFilterStale;
 
 	public ChunkSqlDao(Connection connection) {
+		this(connection, null, null);
+	}
+
+	public ChunkSqlDao(Connection connection, File chunkIndexFile, File chunkFilterFile) {
 		super(connection);
-		this.chunkCache = null;
+
+		this.chunkIndexFile = chunkIndexFile;
+		this.chunkIndex = null;
+		this.chunkIndexStale = false;
+		this.chunkIndexFull = false;
+
+		this.chunkFilterFile = chunkFilterFile;
+		this.chunkFilter = null;
+		this.chunkFilterStale = false;
 	}
 
 	/**
@@ -68,9 +108,27 @@ public class ChunkSqlDao extends AbstractSqlDao {
 
 			preparedStatement.executeBatch();
 			preparedStatement.close();
+
+			addToChunkFilter(chunks);
 		}
 	}	
 
+	/**
+	 * Adds the given chunks to the chunk filter (if it is loaded), so that they
+	 * are not reported as definitely new. Adding chunks that are later rolled
+	 * back is harmless, because the filter may have false positives.
+	 * 
+	 * <p>The chunks are not counted here, because {@link #updateChunkFilter(ChunkBloomFilter)}
+	 * adds (and counts) them again once their database version is committed.
+	 */
+	private synchronized void addToChunkFilter(Collection<ChunkEntry> chunks) {
+		if (chunkFilter != null) {
+			for (ChunkEntry chunk : chunks) {
+				chunkFilter.put(chunk.getChecksum().getBytes(), false);
+			}
+		}
+	}
+
 	/**
 	 * Removes unreferenced chunks from the database. Unreferenced chunks are chunks
 	 * that are not referenced by any file content or multichunk. 
@@ -88,37 +146,159 @@ public class ChunkSqlDao extends AbstractSqlDao {
 		catch (SQLException e) {
 			throw new RuntimeException(e);
 		}
+		finally {
+			deleteCache();
+		}
 	}
 	
 	/**
 	 * Queries the database of a chunk with the given checksum. 
 	 * 
-	 * <p>Note: When first called, this method loads the <b>chunk cache</b> and keeps
-	 * this cache until it is cleared explicitly with {@link #clearCache()}. 
+	 * <p>Note: When first called, this method loads the <b>chunk index</b> (see
+	 * {@link #getChunkSize(byte[]) getChunkSize()}). 
 	 * 
 	 * <p>Also note that this method will return <tt>null</tt> if the chunk has been
-	 * added after the cache has been filled. 
+	 * added after the index has been loaded or updated. 
 	 * 
 	 * @param chunkChecksum Chunk checksum of the chunk to be selected
 	 * @return Returns the chunk entry, or <tt>null</tt> if the chunk does not exist.
 	 */	
 	public synchronized ChunkEntry getChunk(ChunkChecksum chunkChecksum) {
-		if (chunkCache == null) {
-			loadChunkCache();
+		int chunkSize = getChunkSize(chunkChecksum.getBytes());
+		return (chunkSize >= 0) ? new ChunkEntry(chunkChecksum, chunkSize) : null;
+	}
+
+	/**
+	 * Looks up the size of the chunk with the given raw checksum in the off-heap
+	 * {@link ChunkIndex}. Unlike {@link #getChunk(ChunkChecksum) getChunk()}, this method
+	 * does not allocate any objects (once the index is loaded).
+	 * 
+	 * <p>The {@link ChunkBloomFilter} is asked first. If it reports the chunk as definitely
+	 * new, the index is not touched (and not even loaded).
+	 * 
+	 * <p>When first called, this method loads the chunk filter and index from disk (if they 
+	 * have been persisted before) and adds all chunks of newer database versions. If there is no
+	 * valid filter/index on disk, it is built from the database. After a call to {@link #clearCache()},
+	 * the next call updates them incrementally.
+	 * 
+	 * <p>If the index cannot hold all chunks, the chunk is looked up in the database instead.
+	 * 
+	 * @param chunkChecksum Raw chunk checksum of the chunk to be looked up
+	 * @return Returns the chunk size, or <tt>-1</tt> if the chunk does not exist
+	 */
+	public synchronized int getChunkSize(byte[] chunkChecksum) {
+		if (chunkFilter == null || chunkFilterStale) {
+			loadChunkFilter();
+		}
+
+		if (!chunkFilter.mightContain(chunkChecksum)) {
+			return -1;
+		}
+
+		if (!chunkIndexFull && (chunkIndex == null || chunkIndexStale)) {
+			loadChunkIndex();
 		}
 
-		return chunkCache.get(chunkChecksum);
+		int chunkSize = (chunkIndexFull) ? getChunkSizeFromDatabase(chunkChecksum) : chunkIndex.getSize(chunkChecksum);
+
+		if (chunkSize < 0) {
+			chunkFilter.recordFalsePositive();
+		}
+
+		return chunkSize;
 	}
-	
+
+	/**
+	 * Returns the sizes of the given chunks using a single database query. Unlike 
+	 * {@link #getChunk(ChunkChecksum) getChunk()}, this method does not use the chunk index, 
+	 * and is meant for looking up the chunks of entire files. Chunks that are not known to 
+	 * the database are not contained in the result.
+	 * 
+	 * <p>Note: This method selects also {@link DatabaseVersionStatus#DIRTY DIRTY}.
+	 */
+	public Map<ChunkChecksum, Integer> getChunkSizes(Collection<ChunkChecksum> chunkChecksums) {
+		// Gather a unique array of checksum strings (required for query!)
+		Set<ChunkChecksum> chunkChecksumSet = new HashSet<ChunkChecksum>(chunkChecksums);
+		String[] checksums = new String[chunkChecksumSet.size()];
+		int i = 0;
+		for (ChunkChecksum checksum : chunkChecksumSet) {
+			checksums[i] = checksum.toString();
+			i++;
+		}
+
+		Map<ChunkChecksum, Integer> chunkSizes = new HashMap<ChunkChecksum, Integer>();
+
+		if (checksums.length == 0) {
+			return chunkSizes;
+		}
+
+		try (PreparedStatement preparedStatement = getStatement("chunk.select.all.getChunkSizes.sql")) {
+			preparedStatement.setArray(1, connection.createArrayOf("varchar", checksums));
+
+			try (ResultSet resultSet = preparedStatement.executeQuery()) {
+				while (resultSet.next()) {
+					chunkSizes.put(ChunkChecksum.parseChunkChecksum(resultSet.getString("checksum")), resultSet.getInt("size"));
+				}
+			}
+
+			return chunkSizes;
+		}
+		catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
-	 * Clears the chunk cache loaded by {@link #getChunk(ChunkChecksum) getChunk()}
-	 * and resets the cache. If {@link #getChunk(ChunkChecksum) getChunk()} is called
-	 * after the cache is cleared, it is re-populated.
+	 * Marks the chunk index and filter loaded by {@link #getChunk(ChunkChecksum) getChunk()} as
+	 * outdated. If {@link #getChunk(ChunkChecksum) getChunk()} is called after that,
+	 * chunks of database versions that were written since are added to the index and filter.
+	 * 
+	 * <p>This method also logs (and resets) the chunk filter statistics.
 	 */
 	public synchronized void clearCache() {
-		if (chunkCache != null) {
-			chunkCache.clear();
-			chunkCache = null;
+		chunkIndexStale = true;
+		chunkFilterStale = true;
+
+		logChunkFilterStatistics();
+	}
+
+	/**
+	 * Logs and resets the chunk filter statistics, i.e. the number of lookups, the number
+	 * of chunks that the filter identified as definitely new, and the observed and expected
+	 * false positive rates.
+	 */
+	public synchronized void logChunkFilterStatistics() {
+		if (chunkFilter != null && chunkFilter.getQueryCount() > 0) {
+			logger.log(Level.INFO, String.format("Chunk filter: %d lookup(s), %d definitely new, %d false positive(s) (rate %.4f, expected %.4f)",
+					chunkFilter.getQueryCount(), chunkFilter.getNegativeCount(), chunkFilter.getFalsePositiveCount(),
+					chunkFilter.getFalsePositiveRate(), chunkFilter.getExpectedFalsePositiveRate()));
+
+			chunkFilter.resetStatistics();
+		}
+	}
+
+	/**
+	 * Drops the chunk index and filter entirely (in memory and on disk). This must be called
+	 * whenever chunks are removed from the database, because index and filter can only be
+	 * updated incrementally for added chunks.
+	 */
+	public synchronized void deleteCache() {
+		chunkIndex = null;
+		chunkIndexStale = false;
+		chunkIndexFull = false;
+
+		chunkFilter = null;
+		chunkFilterStale = false;
+
+		deleteCacheFile(chunkIndexFile);
+		deleteCacheFile(chunkFilterFile);
+	}
+
+	private void deleteCacheFile(File cacheFile) {
+		if (cacheFile != null && cacheFile.exists()) {
+			if (!cacheFile.delete()) {
+				logger.log(Level.WARNING, "Cannot delete chunk cache file " + cacheFile + ".");
+			}
 		}
 	}
 
@@ -162,10 +342,212 @@ public class ChunkSqlDao extends AbstractSqlDao {
 		return new ChunkEntry(chunkChecksum, resultSet.getInt("size"));
 	}
 	
-	protected void loadChunkCache() {
-		try (PreparedStatement preparedStatement = getStatement("chunk.select.all.loadChunkCache.sql")) {
+	protected void loadChunkIndex() {
+		boolean chunkIndexModified = false;
+
+		if (chunkIndex == null && chunkIndexFile != null) {
+			chunkIndex = ChunkIndex.load(chunkIndexFile);
+		}
+
+		if (chunkIndex != null) {
+			int addedChunkCount = updateChunkIndex(chunkIndex);
+
+			if (addedChunkCount < 0) {
+				disableChunkIndex();
+				return;
+			}
+
+			long databaseChunkCount = getChunkCount();
+
+			if (chunkIndex.getCount() == databaseChunkCount) {
+				logger.log(Level.FINE, "Updated chunk index with " + addedChunkCount + " chunk(s); index contains " + chunkIndex.getCount() + " chunk(s).");
+				chunkIndexModified = addedChunkCount > 0;
+			}
+			else {
+				logger.log(Level.INFO, "Chunk index is out of sync (" + chunkIndex.getCount() + " chunks in index, " + databaseChunkCount
+						+ " chunks in database). Rebuilding index.");
+				chunkIndex = null;
+			}
+		}
+
+		if (chunkIndex == null) {
+			chunkIndex = createChunkIndex();
+			chunkIndexModified = true;
+
+			if (updateChunkIndex(chunkIndex) < 0) {
+				disableChunkIndex();
+				return;
+			}
+
+			logger.log(Level.FINE, "Built chunk index with " + chunkIndex.getCount() + " chunk(s).");
+		}
+
+		chunkIndexStale = false;
+
+		if (chunkIndexModified && chunkIndexFile != null) {
+			try {
+				chunkIndex.save(chunkIndexFile);
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "Cannot write chunk index to " + chunkIndexFile + ". Ignoring.", e);
+			}
+		}
+	}
+
+	/**
+	 * Creates a new, empty chunk index. This method is only overridden in tests
+	 * to create an index with a smaller maximum capacity.
+	 */
+	protected ChunkIndex createChunkIndex() {
+		return new ChunkIndex();
+	}
+
+	/**
+	 * Drops the chunk index (in memory and on disk), because it cannot hold all
+	 * chunks of the database -- either because it reached its maximum capacity, or
+	 * because there is not enough direct memory. Until the cache is deleted, chunks are 
+	 * looked up in the database instead.
+	 */
+	private void disableChunkIndex() {
+		logger.log(Level.INFO, "Chunk index is full or cannot grow (" + chunkIndex.getCount() + " chunks in index, " + getChunkCount()
+				+ " chunks in database). Looking up chunks in the database instead.");
+
+		chunkIndex = null;
+		chunkIndexStale = false;
+		chunkIndexFull = true;
+
+		deleteCacheFile(chunkIndexFile);
+	}
+
+	/**
+	 * Adds all chunks to the given index that belong to the last database version
+	 * covered by the index, or to a newer one. The last database version is read again,
+	 * because its chunks may have been read while it was still being written.
+	 * 
+	 * @return Returns the number of chunks read from the database, or <tt>-1</tt> if
+	 *         the index is full
+	 */
+	private int updateChunkIndex(ChunkIndex chunkIndex) {
+		try (PreparedStatement preparedStatement = getStatement("chunk.select.all.getChunksSinceDatabaseVersionId.sql")) {
+			preparedStatement.setLong(1, chunkIndex.getLastDatabaseVersionId());
+
+			try (ResultSet resultSet = preparedStatement.executeQuery()) {
+				int chunkCount = 0;
+				long lastDatabaseVersionId = chunkIndex.getLastDatabaseVersionId();
+
+				while (resultSet.next()) {
+					byte[] chunkChecksum = ObjectId.parseObjectId(resultSet.getString("checksum"));
+					if (!chunkIndex.put(chunkChecksum, resultSet.getInt("size"))) {
+						return -1;
+					}
+
+					lastDatabaseVersionId = Math.max(lastDatabaseVersionId, resultSet.getLong("databaseversion_id"));
+					chunkCount++;
+				}
+
+				chunkIndex.setLastDatabaseVersionId(lastDatabaseVersionId);
+				return chunkCount;
+			}
+		}
+		catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected void loadChunkFilter() {
+		boolean chunkFilterModified = false;
+
+		if (chunkFilter == null && chunkFilterFile != null) {
+			chunkFilter = ChunkBloomFilter.load(chunkFilterFile);
+		}
+
+		if (chunkFilter != null) {
+			int addedChunkCount = updateChunkFilter(chunkFilter);
+			chunkFilterModified = addedChunkCount > 0;
+
+			if (chunkFilter.isOverloaded()) {
+				logger.log(Level.INFO, "Chunk filter is overloaded (" + chunkFilter.getAddedChunkCount() + " chunks added). Rebuilding filter.");
+				chunkFilter = null;
+			}
+			else {
+				logger.log(Level.FINE, "Updated chunk filter with " + addedChunkCount + " chunk(s).");
+			}
+		}
+
+		if (chunkFilter == null) {
+			chunkFilter = new ChunkBloomFilter(Math.max(MIN_CHUNK_FILTER_SIZE, 2 * getChunkCount()));
+			chunkFilterModified = true;
+
+			updateChunkFilter(chunkFilter);
+			logger.log(Level.FINE, "Built chunk filter with " + chunkFilter.getAddedChunkCount() + " chunk(s).");
+		}
+
+		chunkFilterStale = false;
+
+		if (chunkFilterModified && chunkFilterFile != null) {
+			try {
+				chunkFilter.save(chunkFilterFile);
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "Cannot write chunk filter to " + chunkFilterFile + ". Ignoring.", e);
+			}
+		}
+	}
+
+	/**
+	 * Adds all chunks to the given filter that belong to the last database version
+	 * covered by the filter, or to a newer one. The last database version is read again,
+	 * because its chunks may have been read while it was still being written.
+	 * 
+	 * <p>Only chunks of database versions newer than the last covered one are counted
+	 * as added, because the chunks of the last database version have been counted before.
+	 * 
+	 * @return Returns the number of chunks read from the database
+	 */
+	private int updateChunkFilter(ChunkBloomFilter chunkFilter) {
+		try (PreparedStatement preparedStatement = getStatement("chunk.select.all.getChunksSinceDatabaseVersionId.sql")) {
+			long previousLastDatabaseVersionId = chunkFilter.getLastDatabaseVersionId();
+			preparedStatement.setLong(1, previousLastDatabaseVersionId);
+
+			try (ResultSet resultSet = preparedStatement.executeQuery()) {
+				int chunkCount = 0;
+				long lastDatabaseVersionId = previousLastDatabaseVersionId;
+
+				while (resultSet.next()) {
+					long databaseVersionId = resultSet.getLong("databaseversion_id");
+					chunkFilter.put(ObjectId.parseObjectId(resultSet.getString("checksum")), databaseVersionId > previousLastDatabaseVersionId);
+
+					lastDatabaseVersionId = Math.max(lastDatabaseVersionId, databaseVersionId);
+					chunkCount++;
+				}
+
+				chunkFilter.setLastDatabaseVersionId(lastDatabaseVersionId);
+				return chunkCount;
+			}
+		}
+		catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private int getChunkSizeFromDatabase(byte[] chunkChecksum) {
+		try (PreparedStatement preparedStatement = getStatement("chunk.select.all.getChunkSize.sql")) {
+			preparedStatement.setString(1, StringUtil.toHex(chunkChecksum));
+
+			try (ResultSet resultSet = preparedStatement.executeQuery()) {
+				return (resultSet.next()) ? resultSet.getInt("size") : -1;
+			}
+		}
+		catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private long getChunkCount() {
+		try (PreparedStatement preparedStatement = getStatement("chunk.select.all.getChunkCount.sql")) {
 			try (ResultSet resultSet = preparedStatement.executeQuery()) {
-				chunkCache = createChunkEntries(resultSet);
+				resultSet.next();
+				return resultSet.getLong("chunkcount");
 			}
 		}
 		catch (SQLException e) {
@@ -26,9 +26,12 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import javax.xml.stream.XMLStreamException;
@@ -37,6 +40,7 @@ import org.syncany.chunk.Transformer;
 import org.syncany.database.DatabaseVersion;
 import org.syncany.database.MemoryDatabase;
 import org.syncany.database.VectorClock;
+import org.xml.sax.SAXException;
 
 /**
  * Serializes a {@link MemoryDatabase} or a list of {@link DatabaseVersion}s to an 
@@ -49,6 +53,10 @@ import org.syncany.database.VectorClock;
  * <p>It uses a {@link DatabaseXmlWriter} to write XML files to disk and 
  * {@link DatabaseXmlParseHandler} to parse them while reading. 
  * 
+ * <p>SAX parsers are expensive to create, so they are kept in a pool that is shared
+ * by all serializers. Databases can be loaded concurrently by multiple threads, 
+ * each of them borrowing a parser from the pool for the duration of the load.
+ * 
  * @see DatabaseXmlParseHandler
  * @see DatabaseXmlWriter
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
@@ -60,6 +68,9 @@ public class DatabaseXmlSerializer {
 		FULL, HEADER_ONLY
 	}
 
+	private static final SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+	private static final Queue<SAXParser> saxParserPool = new ConcurrentLinkedQueue<SAXParser>();
+
 	private Transformer transformer;
 
 	public DatabaseXmlSerializer() {
@@ -98,26 +109,46 @@ public class DatabaseXmlSerializer {
 	public void load(MemoryDatabase db, File databaseFile, VectorClock fromVersion, VectorClock toVersion, DatabaseReadType readType)
 			throws IOException {
 		
-		InputStream is;
+		try (InputStream is = createInputStream(databaseFile)) {
+			logger.log(Level.INFO, "- Loading database ({0}) from file {1} ...", new Object[] { readType, databaseFile });
+
+			SAXParser saxParser = borrowSaxParser();
+			saxParser.parse(is, new DatabaseXmlParseHandler(db, fromVersion, toVersion, readType));
+
+			// Only return the parser if parsing succeeded; a failed parser is discarded 
+			returnSaxParser(saxParser);
+		}
+		catch (IOException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
 
+	private InputStream createInputStream(File databaseFile) throws IOException {
 		if (transformer == null) {
-			is = new FileInputStream(databaseFile);
+			return new FileInputStream(databaseFile);
 		}
 		else {
-			is = transformer.createInputStream(new FileInputStream(databaseFile));
+			return transformer.createInputStream(new FileInputStream(databaseFile));
 		}
+	}
 
-		try {
-			logger.log(Level.INFO, "- Loading database ({0}) from file {1} ...", new Object[] { readType, databaseFile });
-
-			SAXParserFactory factory = SAXParserFactory.newInstance();
-			SAXParser saxParser = factory.newSAXParser();
+	private SAXParser borrowSaxParser() throws ParserConfigurationException, SAXException {
+		SAXParser saxParser = saxParserPool.poll();
 
-			saxParser.parse(is, new DatabaseXmlParseHandler(db, fromVersion, toVersion, readType));
-		}
-		catch (Exception e) {
-			throw new IOException(e);
+		if (saxParser == null) {
+			synchronized (saxParserFactory) {
+				saxParser = saxParserFactory.newSAXParser();
+			}
 		}
+
+		return saxParser;
 	}
 
+	private void returnSaxParser(SAXParser saxParser) {
+		saxParser.reset();
+		saxParserPool.offer(saxParser);
+	}
 }
@@ -236,6 +236,36 @@ public class MultiChunkSqlDao extends AbstractSqlDao {
 		}
 	}
 	
+	/**
+	 * Returns the sizes of the given multichunks, i.e. the sum of the sizes of their chunks.
+	 * Multichunks that are not known to the database are not contained in the result.
+	 * 
+	 * <p>Note: This method selects also {@link DatabaseVersionStatus#DIRTY DIRTY}.
+	 */
+	public Map<MultiChunkId, Long> getMultiChunkSizes(Collection<MultiChunkId> multiChunkIds) {
+		String[] multiChunkIdStrings = new String[multiChunkIds.size()];
+		int i = 0;
+		for (MultiChunkId multiChunkId : multiChunkIds) {
+			multiChunkIdStrings[i] = multiChunkId.toString();
+			i++;
+		}
+		
+		Map<MultiChunkId, Long> result = new HashMap<MultiChunkId, Long>();
+		try (PreparedStatement preparedStatement = getStatement("multichunk.select.all.getMultiChunkSizes.sql")) {
+			preparedStatement.setArray(1, connection.createArrayOf("varchar", multiChunkIdStrings));	
+			try (ResultSet resultSet = preparedStatement.executeQuery()) {
+				while (resultSet.next()) {
+					result.put(MultiChunkId.parseMultiChunkId(resultSet.getString("id")), resultSet.getLong("size"));
+				}
+			}
+
+			return result;
+		}
+		catch (SQLException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	public List<MultiChunkId> getDirtyMultiChunkIds() {
 		List<MultiChunkId> dirtyMultiChunkIds = new ArrayList<MultiChunkId>();		
 		
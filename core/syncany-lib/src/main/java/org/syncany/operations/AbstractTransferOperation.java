@@ -28,6 +28,7 @@ import org.syncany.config.LocalEventBus;
 import org.syncany.plugins.transfer.StorageException;
 import org.syncany.plugins.transfer.TransferManager;
 import org.syncany.plugins.transfer.TransferManagerFactory;
+import org.syncany.plugins.transfer.features.Hedgeable;
 import org.syncany.plugins.transfer.features.ReadAfterWriteConsistent;
 import org.syncany.plugins.transfer.features.PathAware;
 import org.syncany.plugins.transfer.features.Retriable;
@@ -71,15 +72,17 @@ public abstract class AbstractTransferOperation extends Operation {
 
 		try {
 			// Do NOT reuse TransferManager for action file renewal; see #140
+			// The regular transfer manager may be pooled (see TransferManagerRegistry)
 
 			TransferManager actionFileTransferManager = TransferManagerFactory
-					.build(config)
+					.buildUnpooled(config)
 					.withFeature(ReadAfterWriteConsistent.class)
 					.withFeature(Retriable.class)
 					.asDefault();
 
 			TransactionAwareFeatureTransferManager regularFileTransferManager = TransferManagerFactory
 					.build(config)
+					.withFeature(Hedgeable.class)
 					.withFeature(ReadAfterWriteConsistent.class)
 					.withFeature(Retriable.class)
 					.withFeature(PathAware.class)
@@ -215,6 +218,6 @@ public abstract class AbstractTransferOperation extends Operation {
 	}
 
 	private void clearCache() {
-		config.getCache().clear();
+		config.getCache().clearInBackground();
 	}
 }
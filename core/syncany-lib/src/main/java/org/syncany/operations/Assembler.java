@@ -17,12 +17,23 @@
  */
 package org.syncany.operations;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,25 +57,44 @@ import org.syncany.util.StringUtil;
  * multichunker, etc.).
  * 
  * <p>It uses the local {@link SqlDatabase} and an optional {@link MemoryDatabase}
- * to perform file checksum and chunk checksum lookups.   
+ * to perform file checksum and chunk checksum lookups. The multichunks of all chunks
+ * of a file are looked up in one batched query. While a file is assembled, the most
+ * recently used multichunks are kept open (see {@link #MAX_OPEN_MULTICHUNKS}), so that
+ * consecutive chunks from the same multichunk do not re-open and re-parse it.
+ * 
+ * <p>If a {@link LocalChunkSource} is given, chunks available in local files are taken
+ * from there instead of from a multichunk; their multichunks do not need to be downloaded.
+ * 
+ * <p>Using {@link #assembleInPlace(FileVersion, File, FileVersion) assembleInPlace()}, a file
+ * can also be assembled from an existing local version of the file, copying all chunks
+ * that the two versions have in common directly from the local file.
  * 
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  */
 public class Assembler {
 	private static final Logger logger = Logger.getLogger(Assembler.class.getSimpleName());
+
+	private static final int MAX_OPEN_MULTICHUNKS = 16;
+	private static final int CHUNK_BUFFER_SIZE = 64 * 1024;
 	
 	private Config config;
 	private SqlDatabase localDatabase;
 	private MemoryDatabase memoryDatabase;
+	private LocalChunkSource localChunkSource;
 	
 	public Assembler(Config config, SqlDatabase localDatabase) {
 		this(config, localDatabase, null);
 	}
 	
 	public Assembler(Config config, SqlDatabase localDatabase, MemoryDatabase memoryDatabase) {
+		this(config, localDatabase, memoryDatabase, null);
+	}
+
+	public Assembler(Config config, SqlDatabase localDatabase, MemoryDatabase memoryDatabase, LocalChunkSource localChunkSource) {
 		this.config = config;
 		this.localDatabase = localDatabase;
 		this.memoryDatabase = memoryDatabase;
+		this.localChunkSource = localChunkSource;
 	}
 
 	/**
@@ -75,11 +105,7 @@ public class Assembler {
 		File reconstructedFileInCache = config.getCache().createTempFile("reconstructedFileVersion");
 		logger.log(Level.INFO, "     - Creating file " + fileVersion.getPath() + " to " + reconstructedFileInCache + " ...");
 
-		FileContent fileContent = localDatabase.getFileContent(fileVersion.getChecksum(), true);
-
-		if (fileContent == null && memoryDatabase != null) {
-			fileContent = memoryDatabase.getContent(fileVersion.getChecksum());
-		}
+		FileContent fileContent = getFileContent(fileVersion);
 		
 		// Check consistency!
 		if (fileContent == null && fileVersion.getChecksum() != null) {
@@ -96,48 +122,296 @@ public class Assembler {
 		Chunker chunker = config.getChunker();
 		MultiChunker multiChunker = config.getMultiChunker();
 		
-		FileOutputStream reconstructedFileOutputStream = new FileOutputStream(reconstructedFileInCache);		
 		MessageDigest reconstructedFileChecksum = MessageDigest.getInstance(chunker.getChecksumAlgorithm());
 		
-		if (fileContent != null) { // File can be empty!
-			Collection<ChunkChecksum> fileChunks = fileContent.getChunks();
+		// Close failures are added as suppressed exceptions, so they do not mask the original exception
+		try (FileOutputStream reconstructedFileOutputStream = new FileOutputStream(reconstructedFileInCache);
+				OpenMultiChunkCache openMultiChunks = new OpenMultiChunkCache(multiChunker)) {
+			
+			List<ChunkChecksum> fileChunks = fileContent.getChunks();
+			Map<ChunkChecksum, MultiChunkId> multiChunkIdsForChunks = localDatabase.getMultiChunkIdsByChecksums(fileChunks);
 
 			for (ChunkChecksum chunkChecksum : fileChunks) {
-				MultiChunkId multiChunkIdForChunk = localDatabase.getMultiChunkId(chunkChecksum);
+				writeChunk(chunkChecksum, multiChunkIdsForChunks, openMultiChunks, reconstructedFileOutputStream, reconstructedFileChecksum);
+			}
+		}
+
+		// Validate checksum
+		validateChecksum(fileContent, reconstructedFileChecksum.digest());		
+		return reconstructedFileInCache;
+	}	
+
+	/**
+	 * Assembles the given file version to a temporary file in the local cache, and returns a 
+	 * reference to the temporary file after successfully assembling and validating it.
+	 * The base file must match the given base file version.
+	 * 
+	 * <p>All chunks of the file version that are also part of the base file version are copied
+	 * directly from the base file (using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)
+	 * transferTo()}, i.e. without passing them through the JVM if the operating system supports it).
+	 * Only the remaining chunks are taken from the chunk source or from the multichunks. The cache
+	 * is part of the application folder (<tt>.syncany</tt>), so the temporary file is not visible to
+	 * the indexer or the watcher (even if it is left behind after a crash), and it is usually on the same 
+	 * file system as the base file, so that it can be moved over the base file atomically.
+	 */
+	public File assembleInPlace(FileVersion fileVersion, File baseFile, FileVersion baseFileVersion) throws Exception {
+		FileContent fileContent = getFileContent(fileVersion);
+		FileContent baseFileContent = localDatabase.getFileContent(baseFileVersion.getChecksum(), true);
+
+		if (fileContent == null || baseFileContent == null) {
+			throw new Exception("Cannot determine file content for checksum " + fileVersion.getChecksum() + " or " + baseFileVersion.getChecksum());
+		}
+
+		Map<ChunkChecksum, BaseChunkPosition> baseChunks = getBaseChunkPositions(baseFileContent);
+		File patchedFile = config.getCache().createTempFile("patchedFileVersion");
+
+		logger.log(Level.INFO, "     - Creating file " + fileVersion.getPath() + " from local file " + baseFile + " at " + patchedFile + " ...");
+
+		long copiedBytes = 0;
+		int copiedChunks = 0;
+
+		try (RandomAccessFile baseRandomAccessFile = new RandomAccessFile(baseFile, "r");
+				RandomAccessFile patchedRandomAccessFile = new RandomAccessFile(patchedFile, "rw");
+				OpenMultiChunkCache openMultiChunks = new OpenMultiChunkCache(config.getMultiChunker())) {
+
+			FileChannel baseChannel = baseRandomAccessFile.getChannel();
+			FileChannel patchedChannel = patchedRandomAccessFile.getChannel();
+			OutputStream patchedOutputStream = Channels.newOutputStream(patchedChannel);
+
+			List<ChunkChecksum> fileChunks = fileContent.getChunks();
+			Map<ChunkChecksum, MultiChunkId> multiChunkIdsForChunks = localDatabase.getMultiChunkIdsByChecksums(fileChunks);
+
+			// Unchanged chunks are copied from the base file, adjacent ones in one go
+			long copyOffset = 0;
+			long copyLength = 0;
+
+			for (ChunkChecksum chunkChecksum : fileChunks) {
+				BaseChunkPosition baseChunkPosition = baseChunks.get(chunkChecksum);
+
+				if (baseChunkPosition != null) {
+					if (copyLength > 0 && copyOffset + copyLength != baseChunkPosition.offset) {
+						transferFully(baseChannel, copyOffset, copyLength, patchedChannel);
+						copyLength = 0;
+					}
+
+					copyOffset = (copyLength == 0) ? baseChunkPosition.offset : copyOffset;
+					copyLength += baseChunkPosition.size;
+					copiedBytes += baseChunkPosition.size;
+					copiedChunks++;
+				}
+				else {
+					if (copyLength > 0) {
+						transferFully(baseChannel, copyOffset, copyLength, patchedChannel);
+						copyLength = 0;
+					}
+
+					writeChunk(chunkChecksum, multiChunkIdsForChunks, openMultiChunks, patchedOutputStream, null);
+				}
+			}
+
+			if (copyLength > 0) {
+				transferFully(baseChannel, copyOffset, copyLength, patchedChannel);
+			}
+		}
+		catch (Exception e) {
+			patchedFile.delete();
+			throw e;
+		}
+
+		logger.log(Level.INFO, "     - Copied " + copiedChunks + "/" + fileContent.getChunks().size() + " chunk(s) (" + (copiedBytes / 1024)
+				+ " KB) from local file.");
+
+		// Validate checksum (chunks copied from the base file have not been verified)
+		try {
+			validateChecksum(fileContent, getChecksum(patchedFile));
+		}
+		catch (Exception e) {
+			patchedFile.delete();
+			throw e;
+		}
+
+		return patchedFile;
+	}
+
+	private FileContent getFileContent(FileVersion fileVersion) {
+		FileContent fileContent = localDatabase.getFileContent(fileVersion.getChecksum(), true);
+
+		if (fileContent == null && memoryDatabase != null) {
+			fileContent = memoryDatabase.getContent(fileVersion.getChecksum());
+		}
+
+		return fileContent;
+	}
+
+	private Map<ChunkChecksum, BaseChunkPosition> getBaseChunkPositions(FileContent baseFileContent) throws Exception {
+		Map<ChunkChecksum, BaseChunkPosition> baseChunks = new HashMap<ChunkChecksum, BaseChunkPosition>();
+		Map<ChunkChecksum, Integer> chunkSizes = localDatabase.getChunkSizes(baseFileContent.getChunks());
+		long offset = 0;
+
+		for (ChunkChecksum chunkChecksum : baseFileContent.getChunks()) {
+			Integer chunkSize = chunkSizes.get(chunkChecksum);
+
+			if (chunkSize == null) {
+				throw new Exception("Cannot determine size of chunk " + chunkChecksum);
+			}
+
+			if (!baseChunks.containsKey(chunkChecksum)) {
+				baseChunks.put(chunkChecksum, new BaseChunkPosition(offset, chunkSize));
+			}
+
+			offset += chunkSize;
+		}
+
+		return baseChunks;
+	}
+
+	/**
+	 * Writes the given chunk to the output stream, taking it from the local chunk source (if
+	 * available) or from its multichunk. If a digest is given, it is updated with the chunk.
+	 */
+	private void writeChunk(ChunkChecksum chunkChecksum, Map<ChunkChecksum, MultiChunkId> multiChunkIdsForChunks, OpenMultiChunkCache openMultiChunks,
+			OutputStream outputStream, MessageDigest digest) throws Exception {
+
+		byte[] localChunk = (localChunkSource != null) ? localChunkSource.getChunk(chunkChecksum) : null;
+
+		if (localChunk != null) {
+			if (digest != null) {
+				digest.update(localChunk);
+			}
+
+			outputStream.write(localChunk);
+			return;
+		}
+
+		MultiChunkId multiChunkIdForChunk = multiChunkIdsForChunks.get(chunkChecksum);
+
+		if (multiChunkIdForChunk == null && memoryDatabase != null) {
+			multiChunkIdForChunk = memoryDatabase.getMultiChunkIdForChunk(chunkChecksum);
+		}
+
+		if (multiChunkIdForChunk == null) {
+			throw new Exception("Cannot determine multichunk for chunk " + chunkChecksum);
+		}
 
-				if (multiChunkIdForChunk == null && memoryDatabase != null) {
-					multiChunkIdForChunk = memoryDatabase.getMultiChunkIdForChunk(chunkChecksum);
+		MultiChunk multiChunk = openMultiChunks.get(multiChunkIdForChunk);
+
+		byte[] buffer = new byte[CHUNK_BUFFER_SIZE];
+		int read = 0;
+
+		try (InputStream chunkInputStream = multiChunk.getChunkInputStream(chunkChecksum.getBytes())) {
+			while (-1 != (read = chunkInputStream.read(buffer))) {
+				if (digest != null) {
+					digest.update(buffer, 0, read);
 				}
 
-				File decryptedMultiChunkFile = config.getCache().getDecryptedMultiChunkFile(multiChunkIdForChunk);
+				outputStream.write(buffer, 0, read);
+			}
+		}
+	}
+
+	private void transferFully(FileChannel sourceChannel, long offset, long length, FileChannel targetChannel) throws IOException {
+		long transferred = 0;
 
-				MultiChunk multiChunk = multiChunker.createMultiChunk(decryptedMultiChunkFile);
-				InputStream chunkInputStream = multiChunk.getChunkInputStream(chunkChecksum.getBytes());
+		while (transferred < length) {
+			long transferredNow = sourceChannel.transferTo(offset + transferred, length - transferred, targetChannel);
 
-				byte[] buffer = new byte[4096];
-				int read = 0;
+			if (transferredNow <= 0) {
+				throw new IOException("Unexpected end of file at offset " + (offset + transferred));
+			}
 
-				while (-1 != (read = chunkInputStream.read(buffer))) {
-					reconstructedFileChecksum.update(buffer, 0, read);
-					reconstructedFileOutputStream.write(buffer, 0, read);
+			transferred += transferredNow;
+		}
+	}
+
+	private byte[] getChecksum(File file) throws Exception {
+		MessageDigest fileChecksum = MessageDigest.getInstance(config.getChunker().getChecksumAlgorithm());
+		byte[] buffer = new byte[CHUNK_BUFFER_SIZE];
+		int read = 0;
+
+		try (InputStream fileInputStream = new FileInputStream(file)) {
+			while (-1 != (read = fileInputStream.read(buffer))) {
+				fileChecksum.update(buffer, 0, read);
+			}
+		}
+
+		return fileChecksum.digest();
+	}
+
+	private void validateChecksum(FileContent fileContent, byte[] actualChecksum) throws Exception {
+		byte[] expectedChecksum = fileContent.getChecksum().getBytes();
+
+		if (!Arrays.equals(actualChecksum, expectedChecksum)) {
+			throw new Exception("Checksums do not match: expected " + StringUtil.toHex(expectedChecksum) + " != actual "
+					+ StringUtil.toHex(actualChecksum));
+		}
+	}
+
+	/**
+	 * Least recently used cache of open (decrypted) multichunks. Multichunks evicted 
+	 * from the cache are closed; the remaining ones are closed by {@link #close()}.
+	 */
+	private class OpenMultiChunkCache implements Closeable {
+		private MultiChunker multiChunker;
+		private LinkedHashMap<MultiChunkId, MultiChunk> openMultiChunks;
+
+		public OpenMultiChunkCache(MultiChunker multiChunker) {
+			this.multiChunker = multiChunker;
+			this.openMultiChunks = new LinkedHashMap<MultiChunkId, MultiChunk>(MAX_OPEN_MULTICHUNKS, 0.75f, true);
+		}
+
+		public MultiChunk get(MultiChunkId multiChunkId) throws IOException {
+			MultiChunk multiChunk = openMultiChunks.get(multiChunkId);
+
+			if (multiChunk == null) {
+				if (openMultiChunks.size() >= MAX_OPEN_MULTICHUNKS) {
+					Iterator<MultiChunk> eldestMultiChunk = openMultiChunks.values().iterator();
+
+					eldestMultiChunk.next().close();
+					eldestMultiChunk.remove();
 				}
 
-				chunkInputStream.close();
-				multiChunk.close();
+				File decryptedMultiChunkFile = config.getCache().getDecryptedMultiChunkFile(multiChunkId);
+
+				multiChunk = multiChunker.createMultiChunk(decryptedMultiChunkFile);
+				openMultiChunks.put(multiChunkId, multiChunk);
 			}
+
+			return multiChunk;
 		}
 
-		reconstructedFileOutputStream.close();
+		@Override
+		public void close() throws IOException {
+			IOException closeException = null;
 
-		// Validate checksum
-		byte[] reconstructedFileExpectedChecksum = fileContent.getChecksum().getBytes();
-		byte[] reconstructedFileActualChecksum = reconstructedFileChecksum.digest();
-		
-		if (!Arrays.equals(reconstructedFileActualChecksum, reconstructedFileExpectedChecksum)) {
-			throw new Exception("Checksums do not match: expected " + StringUtil.toHex(reconstructedFileExpectedChecksum) + " != actual "
-					+ StringUtil.toHex(reconstructedFileActualChecksum));
+			for (MultiChunk multiChunk : openMultiChunks.values()) {
+				try {
+					multiChunk.close();
+				}
+				catch (IOException e) {
+					if (closeException == null) {
+						closeException = e;
+					}
+					else {
+						closeException.addSuppressed(e);
+					}
+				}
+			}
+
+			openMultiChunks.clear();
+
+			if (closeException != null) {
+				throw closeException;
+			}
 		}
-		
-		return reconstructedFileInCache;
-	}	
+	}
+
+	private static class BaseChunkPosition {
+		private long offset;
+		private int size;
+
+		public BaseChunkPosition(long offset, int size) {
+			this.offset = offset;
+			this.size = size;
+		}
+	}
 }
@@ -22,37 +22,101 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.IOUtils;
+import org.syncany.chunk.MultiChunk;
+import org.syncany.chunk.MultiChunker;
+import org.syncany.chunk.SeekableMultiChunk;
+import org.syncany.chunk.SeekableMultiChunk.Record;
+import org.syncany.chunk.SeekableMultiChunk.Trailer;
 import org.syncany.config.Config;
 import org.syncany.config.LocalEventBus;
+import org.syncany.database.ChunkEntry.ChunkChecksum;
 import org.syncany.database.MultiChunkEntry.MultiChunkId;
 import org.syncany.operations.daemon.messages.DownDownloadFileSyncExternalEvent;
+import org.syncany.plugins.transfer.ConcurrentDownloads;
 import org.syncany.plugins.transfer.StorageException;
 import org.syncany.plugins.transfer.TransferManager;
+import org.syncany.plugins.transfer.TransferPluginUtil;
 import org.syncany.plugins.transfer.files.MultichunkRemoteFile;
+import org.syncany.plugins.transfer.files.RangeRemoteFileAttributes;
+import org.syncany.util.ReflectionUtil;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * The downloader uses a {@link TransferManager} to download a given set of multichunks,
  * decrypt them and store them in the local cache folder. 
  * 
+ * <p>Downloading and decrypting is pipelined: Multichunks are downloaded by a pool of
+ * download threads, and each downloaded multichunk is immediately passed to a pool of
+ * decryption threads, so that network and CPU work overlap. Multiple downloads only run at 
+ * the same time if the plugin's transfer manager is annotated with {@link ConcurrentDownloads}.
+ * 
+ * <p>Encrypted multichunks are kept in the cache after they have been decrypted. If the encrypted
+ * multichunk is still in the cache, it is only decrypted again, and not downloaded.
+ * 
+ * <p>If the multichunker is {@link MultiChunker#isSeekable() seekable}, individual chunks
+ * can also be downloaded using range requests, see {@link #downloadChunks(Map, LocalChunkSource)
+ * downloadChunks()}. A {@link MultiChunkFetchPlanner} decides which multichunks are downloaded
+ * entirely and which are fetched chunk by chunk.
+ * 
+ * <p>If a {@link DownloaderListener} is given, it is notified as soon as a multichunk
+ * is available in the local cache, so that callers can start using multichunks before
+ * all of them have been downloaded.
+ * 
+ * <p>A failure of one multichunk does not affect the others. Once a download or
+ * decryption has failed, however, no new downloads are started, and the first
+ * failure is rethrown after all running downloads/decryptions have finished.
+ * 
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  */
 public class Downloader {
 	private static final Logger logger = Logger.getLogger(Downloader.class.getSimpleName());
 
+	private static final int DEFAULT_DECRYPTION_THREADS = Runtime.getRuntime().availableProcessors();
+	private static final int MULTICHUNK_TAIL_SIZE = 64 * 1024;
+	private static final int MAX_RANGE_GAP = 64 * 1024;
+	private static final int TERMINATION_TIMEOUT_SECONDS = 10;
+
 	private Config config;
 	private TransferManager transferManager;
 	private LocalEventBus eventBus;
+	private int downloadThreads;
+	private int decryptionThreads;
 
 	public Downloader(Config config, TransferManager transferManager) {
+		this(config, transferManager, getMaxConcurrentDownloads(config), DEFAULT_DECRYPTION_THREADS);
+	}
+
+	public Downloader(Config config, TransferManager transferManager, int downloadThreads, int decryptionThreads) {
 		this.config = config;
 		this.transferManager = transferManager;
 		this.eventBus = LocalEventBus.getInstance();
+		this.downloadThreads = Math.max(1, downloadThreads);
+		this.decryptionThreads = Math.max(1, decryptionThreads);
 	}
 
 	/** 
@@ -60,58 +124,665 @@ public class Downloader {
 	 * to the local cache folder. 
 	 */
 	public void downloadAndDecryptMultiChunks(Set<MultiChunkId> unknownMultiChunkIds) throws StorageException, IOException {
-		logger.log(Level.INFO, "Downloading and extracting multichunks ...");
+		downloadAndDecryptMultiChunks(unknownMultiChunkIds, null);
+	}
 
-		int multiChunkNumber = 0;
+	/** 
+	 * Downloads the given multichunks from the remote storage and decrypts them
+	 * to the local cache folder. Downloads are started in the iteration order of the 
+	 * given set. The listener (if any) is called for every multichunk that is available
+	 * locally; it may be called from multiple threads.
+	 */
+	public void downloadAndDecryptMultiChunks(Set<MultiChunkId> unknownMultiChunkIds, DownloaderListener listener) throws StorageException,
+			IOException {
 
-		for (MultiChunkId multiChunkId : unknownMultiChunkIds) {
-			File localEncryptedMultiChunkFile = config.getCache().getEncryptedMultiChunkFile(multiChunkId);
-			File localDecryptedMultiChunkFile = config.getCache().getDecryptedMultiChunkFile(multiChunkId);
-			MultichunkRemoteFile remoteMultiChunkFile = new MultichunkRemoteFile(multiChunkId);
+		logger.log(Level.INFO, "Downloading and extracting multichunks ...");
 
-			multiChunkNumber++;
+		List<MultiChunkId> multiChunksToDownload = new ArrayList<MultiChunkId>();
+		List<MultiChunkId> multiChunksToDecrypt = new ArrayList<MultiChunkId>();
 
-			if (localDecryptedMultiChunkFile.exists()) {
+		for (MultiChunkId multiChunkId : unknownMultiChunkIds) {
+			if (config.getCache().containsDecryptedMultiChunk(multiChunkId)) {
 				logger.log(Level.INFO, "  + Decrypted multichunk exists locally " + multiChunkId + ". No need to download it!");
+
+				// Mark as used, so the working copy is kept when the cache is cleaned before it is read
+				config.getCache().getDecryptedMultiChunkFile(multiChunkId);
+				fireMultiChunkAvailable(listener, multiChunkId);
+			}
+			else if (config.getCache().containsEncryptedMultiChunk(multiChunkId)) {
+				logger.log(Level.INFO, "  + Encrypted multichunk exists locally " + multiChunkId + ". No need to download it, decrypting only.");
+				multiChunksToDecrypt.add(multiChunkId);
 			}
 			else {
-				eventBus.post(new DownDownloadFileSyncExternalEvent(config.getLocalDir().getAbsolutePath(), "multichunk", multiChunkNumber,
-						unknownMultiChunkIds.size()));
+				multiChunksToDownload.add(multiChunkId);
+			}
+		}
+
+		if (multiChunksToDownload.size() > 0) {
+			// Connect once on this thread; transfer managers may lazily initialize on connect()
+			transferManager.connect();
+		}
 
-				logger.log(Level.INFO, "  + Downloading multichunk " + multiChunkId + " ...");
-				transferManager.download(remoteMultiChunkFile, localEncryptedMultiChunkFile);
+		if (multiChunksToDownload.size() > 0 || multiChunksToDecrypt.size() > 0) {
+			int alreadyDownloadedCount = unknownMultiChunkIds.size() - multiChunksToDownload.size();
+			downloadAndDecryptMultiChunks(multiChunksToDownload, multiChunksToDecrypt, alreadyDownloadedCount, unknownMultiChunkIds.size(), listener);
+		}
+	}
+
+	private void downloadAndDecryptMultiChunks(List<MultiChunkId> multiChunksToDownload, List<MultiChunkId> multiChunksToDecrypt,
+			int alreadyDownloadedCount, int totalCount, DownloaderListener listener) throws StorageException, IOException {
+
+		int decryptionCount = multiChunksToDownload.size() + multiChunksToDecrypt.size();
 
+		ExecutorService downloadExecutor = createExecutor("Download/%d", Math.max(1, Math.min(downloadThreads, multiChunksToDownload.size())));
+		ExecutorService decryptionExecutor = createExecutor("Decrypt/%d", Math.min(decryptionThreads, decryptionCount));
+
+		CompletionService<MultiChunkId> downloadCompletionService = new ExecutorCompletionService<MultiChunkId>(downloadExecutor);
+		List<Future<MultiChunkId>> decryptions = new ArrayList<Future<MultiChunkId>>();
+
+		AtomicBoolean failed = new AtomicBoolean(false);
+		DownloadProgress downloadProgress = new DownloadProgress(alreadyDownloadedCount, totalCount);
+		Throwable firstFailure = null;
+
+		try {
+			// Multichunks that are cached in their encrypted form only need to be decrypted
+			for (MultiChunkId multiChunkId : multiChunksToDecrypt) {
+				decryptions.add(decryptionExecutor.submit(new DecryptMultiChunk(multiChunkId, failed, listener)));
+			}
+
+			for (MultiChunkId multiChunkId : multiChunksToDownload) {
+				downloadCompletionService.submit(new DownloadMultiChunk(multiChunkId, downloadProgress, failed));
+			}
+
+			// Decrypt multichunks as soon as their download has finished
+			for (int i = 0; i < multiChunksToDownload.size(); i++) {
+				try {
+					MultiChunkId downloadedMultiChunkId = downloadCompletionService.take().get();
+
+					if (downloadedMultiChunkId != null) {
+						decryptions.add(decryptionExecutor.submit(new DecryptMultiChunk(downloadedMultiChunkId, failed, listener)));
+					}
+				}
+				catch (ExecutionException e) {
+					firstFailure = (firstFailure == null) ? e.getCause() : firstFailure;
+				}
+			}
+
+			for (Future<MultiChunkId> decryption : decryptions) {
 				try {
-					logger.log(Level.INFO, "  + Decrypting multichunk " + multiChunkId + " ...");
-					InputStream multiChunkInputStream = config.getTransformer().createInputStream(new FileInputStream(localEncryptedMultiChunkFile));
-					OutputStream decryptedMultiChunkOutputStream = new FileOutputStream(localDecryptedMultiChunkFile);
+					decryption.get();
+				}
+				catch (ExecutionException e) {
+					firstFailure = (firstFailure == null) ? e.getCause() : firstFailure;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			failed.set(true);
 
-					IOUtils.copy(multiChunkInputStream, decryptedMultiChunkOutputStream);
+			// Stop queued and running tasks, so they do not keep writing to the cache
+			stopExecutors(downloadExecutor, decryptionExecutor);
 
-					decryptedMultiChunkOutputStream.close();
-					multiChunkInputStream.close();
+			throw new InterruptedIOException("Interrupted while downloading multichunks.");
+		}
+		finally {
+			downloadExecutor.shutdown();
+			decryptionExecutor.shutdown();
+		}
 
+		throwFailure(firstFailure);
+	}
+
+	/**
+	 * Downloads the given multichunks to the local cache, but does not decrypt them. Multichunks
+	 * that are already in the cache (encrypted or decrypted) are skipped. A later call to
+	 * {@link #downloadAndDecryptMultiChunks(Set) downloadAndDecryptMultiChunks()} only decrypts
+	 * them. This is used to prefetch multichunks, see {@link MultiChunkPrefetcher}. 
+	 * 
+	 * <p>Unlike the other methods, no download events are posted.
+	 */
+	public void downloadMultiChunks(Set<MultiChunkId> multiChunkIds) throws StorageException, IOException {
+		List<MultiChunkId> multiChunksToDownload = new ArrayList<MultiChunkId>();
+
+		for (MultiChunkId multiChunkId : multiChunkIds) {
+			if (!config.getCache().containsMultiChunk(multiChunkId)) {
+				multiChunksToDownload.add(multiChunkId);
+			}
+		}
+
+		if (multiChunksToDownload.size() == 0) {
+			return;
+		}
+
+		logger.log(Level.INFO, "Downloading " + multiChunksToDownload.size() + " multichunk(s) to the cache ...");
+
+		// Connect once on this thread; transfer managers may lazily initialize on connect()
+		transferManager.connect();
+
+		ExecutorService downloadExecutor = createExecutor("Download/%d", Math.min(downloadThreads, multiChunksToDownload.size()));
+		List<Future<MultiChunkId>> downloads = new ArrayList<Future<MultiChunkId>>();
+
+		AtomicBoolean failed = new AtomicBoolean(false);
+		Throwable firstFailure = null;
+
+		try {
+			for (MultiChunkId multiChunkId : multiChunksToDownload) {
+				downloads.add(downloadExecutor.submit(new DownloadMultiChunk(multiChunkId, null, failed)));
+			}
+
+			for (Future<MultiChunkId> download : downloads) {
+				try {
+					download.get();
 				}
-				catch (IOException e) {
-					// Security: Deleting the multichunk if the decryption/extraction failed is important!
-					//           If it is not deleted, the partially decrypted multichunk will reside in the
-					//           local cache and the next 'down' will try to use it. If this is the only
-					//           multichunk that has been tampered with, other changes might be applied to the 
-					//           file system! See https://github.com/syncany/syncany/issues/59#issuecomment-55154793
-
-					logger.log(Level.FINE, "    -> FAILED: Decryption/extraction of multichunk failed, deleting " + multiChunkId + " ...");
-					localDecryptedMultiChunkFile.delete();
-
-					throw new IOException("Decryption/extraction of multichunk " + multiChunkId
-							+ " failed. The multichunk might have been tampered with!", e);
+				catch (ExecutionException e) {
+					firstFailure = (firstFailure == null) ? e.getCause() : firstFailure;
 				}
-				finally {
-					logger.log(Level.FINE, "  + Locally deleting multichunk " + multiChunkId + " ...");
-					localEncryptedMultiChunkFile.delete();
+			}
+		}
+		catch (InterruptedException e) {
+			failed.set(true);
+
+			// Stop queued and running downloads, so they do not keep writing to the cache
+			stopExecutors(downloadExecutor);
+
+			throw new InterruptedIOException("Interrupted while downloading multichunks.");
+		}
+		finally {
+			downloadExecutor.shutdown();
+		}
+
+		throwFailure(firstFailure);
+	}
+
+	/**
+	 * Downloads only the given chunks of the given multichunks, and adds them to the given
+	 * chunk source. This method must only be used if the multichunker is {@link MultiChunker#isSeekable()
+	 * seekable}. For every multichunk, the trailer and index are fetched first using a range request,
+	 * then the records of the requested chunks (adjacent or nearby records are fetched together).
+	 * Records are decrypted and verified against their chunk checksum before they are added.
+	 * 
+	 * <p>If the transfer manager does not support range requests, the first request returns the
+	 * entire multichunk. In that case, the multichunk is decrypted to the local cache instead, just 
+	 * like in {@link #downloadAndDecryptMultiChunks(Set) downloadAndDecryptMultiChunks()}.
+	 */
+	public void downloadChunks(Map<MultiChunkId, Set<ChunkChecksum>> multiChunkChunks, LocalChunkSource localChunkSource) throws StorageException,
+			IOException {
+
+		if (multiChunkChunks.isEmpty()) {
+			return;
+		}
+
+		logger.log(Level.INFO, "Downloading individual chunks of " + multiChunkChunks.size() + " multichunk(s) ...");
+
+		// Connect once on this thread; transfer managers may lazily initialize on connect()
+		transferManager.connect();
+
+		ExecutorService downloadExecutor = createExecutor("DownloadChunks/%d", Math.min(downloadThreads, multiChunkChunks.size()));
+		List<Future<MultiChunkId>> downloads = new ArrayList<Future<MultiChunkId>>();
+
+		AtomicBoolean failed = new AtomicBoolean(false);
+		DownloadProgress downloadProgress = new DownloadProgress(0, multiChunkChunks.size());
+		Throwable firstFailure = null;
+
+		try {
+			for (Map.Entry<MultiChunkId, Set<ChunkChecksum>> multiChunk : multiChunkChunks.entrySet()) {
+				downloads.add(downloadExecutor.submit(new DownloadChunks(multiChunk.getKey(), multiChunk.getValue(), localChunkSource,
+						downloadProgress, failed)));
+			}
+
+			for (Future<MultiChunkId> download : downloads) {
+				try {
+					download.get();
+				}
+				catch (ExecutionException e) {
+					firstFailure = (firstFailure == null) ? e.getCause() : firstFailure;
 				}
 			}
 		}
+		catch (InterruptedException e) {
+			failed.set(true);
+
+			// Stop queued and running downloads, so they do not keep writing to the cache
+			stopExecutors(downloadExecutor);
+
+			throw new InterruptedIOException("Interrupted while downloading chunks.");
+		}
+		finally {
+			downloadExecutor.shutdown();
+		}
+
+		throwFailure(firstFailure);
+	}
+
+	private void throwFailure(Throwable firstFailure) throws StorageException, IOException {
+		if (firstFailure instanceof StorageException) {
+			throw (StorageException) firstFailure;
+		}
+		else if (firstFailure instanceof IOException) {
+			throw (IOException) firstFailure;
+		}
+		else if (firstFailure != null) {
+			throw new IOException("Downloading/decrypting multichunks failed.", firstFailure);
+		}
+	}
 
-		transferManager.disconnect();
+	private void downloadMultiChunk(MultiChunkId multiChunkId) throws StorageException {
+		File localEncryptedMultiChunkFile = config.getCache().getEncryptedMultiChunkFile(multiChunkId);
+		MultichunkRemoteFile remoteMultiChunkFile = new MultichunkRemoteFile(multiChunkId);
+
+		logger.log(Level.INFO, "  + Downloading multichunk " + multiChunkId + " ...");
+
+		try {
+			transferManager.download(remoteMultiChunkFile, localEncryptedMultiChunkFile);
+		}
+		catch (StorageException | RuntimeException e) {
+			localEncryptedMultiChunkFile.delete();
+			throw e;
+		}
+	}
+
+	private void decryptMultiChunk(MultiChunkId multiChunkId) throws IOException {
+		File localEncryptedMultiChunkFile = config.getCache().getEncryptedMultiChunkFile(multiChunkId);
+		File localDecryptedMultiChunkFile = config.getCache().getDecryptedMultiChunkFile(multiChunkId);
+
+		try {
+			if (config.getMultiChunker().isSeekable()) {
+				// Seekable multichunks are transformed chunk by chunk, and stay transformed in the cache
+				logger.log(Level.INFO, "  + Verifying multichunk " + multiChunkId + " ...");
+
+				verifyMultiChunk(localEncryptedMultiChunkFile);
+				Files.move(localEncryptedMultiChunkFile.toPath(), localDecryptedMultiChunkFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			else {
+				logger.log(Level.INFO, "  + Decrypting multichunk " + multiChunkId + " ...");
+				InputStream multiChunkInputStream = config.getTransformer().createInputStream(new FileInputStream(localEncryptedMultiChunkFile));
+				OutputStream decryptedMultiChunkOutputStream = new FileOutputStream(localDecryptedMultiChunkFile);
+
+				IOUtils.copy(multiChunkInputStream, decryptedMultiChunkOutputStream);
+
+				decryptedMultiChunkOutputStream.close();
+				multiChunkInputStream.close();
+			}
+		}
+		catch (IOException e) {
+			// Security: Deleting the multichunk if the decryption/extraction failed is important!
+			//           If it is not deleted, the partially decrypted multichunk will reside in the
+			//           local cache and the next 'down' will try to use it. If this is the only
+			//           multichunk that has been tampered with, other changes might be applied to the 
+			//           file system! See https://github.com/syncany/syncany/issues/59#issuecomment-55154793
+
+			logger.log(Level.FINE, "    -> FAILED: Decryption/extraction of multichunk failed, deleting " + multiChunkId + " ...");
+			localDecryptedMultiChunkFile.delete();
+			localEncryptedMultiChunkFile.delete();
+
+			throw new IOException("Decryption/extraction of multichunk " + multiChunkId
+					+ " failed. The multichunk might have been tampered with!", e);
+		}
+	}
+
+	private void verifyMultiChunk(File multiChunkFile) throws IOException {
+		MultiChunk multiChunk = config.getMultiChunker().createMultiChunk(multiChunkFile);
+
+		try {
+			while (multiChunk.read() != null) {
+				// Reading all chunks verifies every record
+			}
+		}
+		finally {
+			multiChunk.close();
+		}
+	}
+
+	private void downloadChunks(MultiChunkId multiChunkId, Set<ChunkChecksum> chunkChecksums, LocalChunkSource localChunkSource)
+			throws StorageException, IOException {
+
+		logger.log(Level.INFO, "  + Downloading " + chunkChecksums.size() + " chunk(s) of multichunk " + multiChunkId + " ...");
+
+		// Trailer and index (and possibly the last records)
+		RangeDownload tail = downloadRange(multiChunkId, -1, MULTICHUNK_TAIL_SIZE);
+
+		if (!tail.isRangeApplied()) {
+			logger.log(Level.INFO, "    -> Transfer manager does not support ranges; using entire multichunk " + multiChunkId + " ...");
+
+			Files.move(tail.getFile().toPath(), config.getCache().getEncryptedMultiChunkFile(multiChunkId).toPath(), StandardCopyOption.REPLACE_EXISTING);
+			decryptMultiChunk(multiChunkId);
+
+			return;
+		}
+
+		byte[] tailBytes = tail.readAndDelete();
+		Trailer trailer = SeekableMultiChunk.readTrailer(tailBytes);
+
+		long multiChunkSize = trailer.getIndexOffset() + trailer.getIndexLength() + SeekableMultiChunk.TRAILER_SIZE;
+		long tailOffset = multiChunkSize - tailBytes.length;
+
+		byte[] indexBytes = readRange(multiChunkId, trailer.getIndexOffset(), trailer.getIndexLength(), tailBytes, tailOffset);
+		List<Record> records = SeekableMultiChunk.readIndex(indexBytes, config.getTransformer());
+
+		// Select the records of the requested chunks, and group nearby records
+		List<List<Record>> recordGroups = new ArrayList<List<Record>>();
+		List<Record> currentRecordGroup = null;
+		int foundChunkCount = 0;
+
+		for (Record record : records) {
+			if (!chunkChecksums.contains(record.getChecksum())) {
+				continue;
+			}
+
+			if (currentRecordGroup == null || record.getOffset() - getEndOffset(currentRecordGroup) > MAX_RANGE_GAP) {
+				currentRecordGroup = new ArrayList<Record>();
+				recordGroups.add(currentRecordGroup);
+			}
+
+			currentRecordGroup.add(record);
+			foundChunkCount++;
+		}
+
+		if (foundChunkCount < chunkChecksums.size()) {
+			throw new IOException("Multichunk " + multiChunkId + " does not contain all requested chunks.");
+		}
+
+		// Download, decrypt and verify records
+		MessageDigest chunkDigest = createChunkDigest();
+
+		for (List<Record> recordGroup : recordGroups) {
+			long groupOffset = recordGroup.get(0).getOffset();
+			byte[] groupBytes = readRange(multiChunkId, groupOffset, (int) (getEndOffset(recordGroup) - groupOffset), tailBytes, tailOffset);
+
+			for (Record record : recordGroup) {
+				int recordOffset = (int) (record.getOffset() - groupOffset);
+				byte[] recordBytes = Arrays.copyOfRange(groupBytes, recordOffset, recordOffset + record.getLength());
+				byte[] chunkContent = SeekableMultiChunk.readRecord(recordBytes, config.getTransformer());
+
+				chunkDigest.reset();
+
+				if (!Arrays.equals(chunkDigest.digest(chunkContent), record.getChecksum().getBytes())) {
+					throw new IOException("Chunk " + record.getChecksum() + " of multichunk " + multiChunkId
+							+ " does not match its checksum. The multichunk might have been tampered with!");
+				}
+
+				localChunkSource.addChunk(record.getChecksum(), chunkContent);
+			}
+		}
+	}
+
+	private long getEndOffset(List<Record> recordGroup) {
+		Record lastRecord = recordGroup.get(recordGroup.size() - 1);
+		return lastRecord.getOffset() + lastRecord.getLength();
+	}
+
+	/**
+	 * Returns the given range of a remote multichunk, either from the already downloaded
+	 * tail of the multichunk, or using a range request.
+	 */
+	private byte[] readRange(MultiChunkId multiChunkId, long offset, int length, byte[] tailBytes, long tailOffset) throws StorageException,
+			IOException {
+
+		if (offset >= tailOffset) {
+			int tailPosition = (int) (offset - tailOffset);
+			return Arrays.copyOfRange(tailBytes, tailPosition, tailPosition + length);
+		}
+
+		RangeDownload rangeDownload = downloadRange(multiChunkId, offset, length);
+		byte[] rangeBytes = rangeDownload.readAndDelete();
+
+		if (!rangeDownload.isRangeApplied() || rangeBytes.length != length) {
+			throw new IOException("Invalid range returned for multichunk " + multiChunkId + ", expected " + length + " bytes at offset " + offset);
+		}
+
+		return rangeBytes;
+	}
+
+	private RangeDownload downloadRange(MultiChunkId multiChunkId, long offset, long length) throws StorageException, IOException {
+		MultichunkRemoteFile remoteMultiChunkFile = new MultichunkRemoteFile(multiChunkId);
+		RangeRemoteFileAttributes rangeAttributes = new RangeRemoteFileAttributes(offset, length);
+		File rangeFile = config.getCache().createTempFile("range-" + multiChunkId);
+
+		remoteMultiChunkFile.setAttributes(rangeAttributes);
+
+		try {
+			transferManager.download(remoteMultiChunkFile, rangeFile);
+			return new RangeDownload(rangeFile, rangeAttributes.isApplied());
+		}
+		catch (StorageException | RuntimeException e) {
+			rangeFile.delete();
+			throw e;
+		}
+	}
+
+	private MessageDigest createChunkDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(config.getChunker().getChecksumAlgorithm());
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException("Cannot create chunk digest.", e);
+		}
+	}
+
+	private void fireMultiChunkAvailable(DownloaderListener listener, MultiChunkId multiChunkId) {
+		if (listener != null) {
+			listener.onMultiChunkAvailable(multiChunkId);
+		}
+	}
+
+	private ExecutorService createExecutor(String nameFormat, int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+			.setNameFormat(nameFormat)
+			.setDaemon(true)
+			.build());
+	}
+
+	/**
+	 * Stops the given executors after the calling thread was interrupted: Queued tasks are
+	 * dropped, running tasks are interrupted, and the method waits until they have stopped,
+	 * so that they do not write to the cache after the caller gave up. Waiting is limited to
+	 * {@link #TERMINATION_TIMEOUT_SECONDS} seconds; tasks that do not react to interrupts
+	 * (e.g. transfers blocked in a plugin) may still be running after that.
+	 */
+	private void stopExecutors(ExecutorService... executors) {
+		for (ExecutorService executor : executors) {
+			executor.shutdownNow();
+		}
+
+		try {
+			for (ExecutorService executor : executors) {
+				if (!executor.awaitTermination(TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+					logger.log(Level.WARNING, "Timeout while waiting for interrupted tasks to stop.");
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the number of files that may be downloaded at the same time with the
+	 * configured transfer plugin, as declared by its {@link ConcurrentDownloads} annotation.
+	 */
+	public static int getMaxConcurrentDownloads(Config config) {
+		try {
+			Class<? extends TransferManager> transferManagerClass = TransferPluginUtil.getTransferManagerClass(config.getTransferPlugin().getClass());
+			ConcurrentDownloads concurrentDownloads = ReflectionUtil.getAnnotationInHierarchy(transferManagerClass, ConcurrentDownloads.class);
+
+			return (concurrentDownloads != null) ? concurrentDownloads.maxDownloads() : 1;
+		}
+		catch (RuntimeException e) {
+			logger.log(Level.FINE, "Cannot determine transfer manager class; downloading one multichunk at a time.", e);
+			return 1;
+		}
+	}
+
+	/**
+	 * Listener to be notified when a multichunk has been downloaded and decrypted,
+	 * or when it was already present in the local cache.
+	 */
+	public interface DownloaderListener {
+		public void onMultiChunkAvailable(MultiChunkId multiChunkId);
+	}
+
+	/**
+	 * Posts a download event for every started download. Events are numbered
+	 * in the order in which downloads start, including the multichunks that did 
+	 * not have to be downloaded.
+	 */
+	private class DownloadProgress {
+		private int multiChunkNumber;
+		private int totalCount;
+
+		public DownloadProgress(int alreadyDownloadedCount, int totalCount) {
+			this.multiChunkNumber = alreadyDownloadedCount;
+			this.totalCount = totalCount;
+		}
+
+		public synchronized void onDownloadStart() {
+			multiChunkNumber++;
+			eventBus.post(new DownDownloadFileSyncExternalEvent(config.getLocalDir().getAbsolutePath(), "multichunk", multiChunkNumber, totalCount));
+		}
+	}
+
+	/**
+	 * Downloads a multichunk to the local cache. Returns the multichunk identifier
+	 * if it was downloaded, or <tt>null</tt> if it was skipped due to an earlier failure.
+	 * No download event is posted if no progress is given.
+	 */
+	private class DownloadMultiChunk implements Callable<MultiChunkId> {
+		private MultiChunkId multiChunkId;
+		private DownloadProgress downloadProgress;
+		private AtomicBoolean failed;
+
+		public DownloadMultiChunk(MultiChunkId multiChunkId, DownloadProgress downloadProgress, AtomicBoolean failed) {
+			this.multiChunkId = multiChunkId;
+			this.downloadProgress = downloadProgress;
+			this.failed = failed;
+		}
+
+		@Override
+		public MultiChunkId call() throws Exception {
+			if (failed.get()) {
+				return null;
+			}
+
+			try {
+				if (downloadProgress != null) {
+					downloadProgress.onDownloadStart();
+				}
+
+				downloadMultiChunk(multiChunkId);
+
+				return multiChunkId;
+			}
+			catch (Exception e) {
+				failed.set(true);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Decrypts a downloaded or cached multichunk. The encrypted file is kept in the
+	 * cache. If an earlier multichunk has failed, only the encrypted file is deleted.
+	 */
+	private class DecryptMultiChunk implements Callable<MultiChunkId> {
+		private MultiChunkId multiChunkId;
+		private AtomicBoolean failed;
+		private DownloaderListener listener;
+
+		public DecryptMultiChunk(MultiChunkId multiChunkId, AtomicBoolean failed, DownloaderListener listener) {
+			this.multiChunkId = multiChunkId;
+			this.failed = failed;
+			this.listener = listener;
+		}
+
+		@Override
+		public MultiChunkId call() throws Exception {
+			if (failed.get()) {
+				config.getCache().getEncryptedMultiChunkFile(multiChunkId).delete();
+				return null;
+			}
+
+			try {
+				decryptMultiChunk(multiChunkId);
+				fireMultiChunkAvailable(listener, multiChunkId);
+
+				return multiChunkId;
+			}
+			catch (Exception e) {
+				failed.set(true);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Downloads individual chunks of a multichunk and adds them to the chunk source. 
+	 * Returns the multichunk identifier, or <tt>null</tt> if it was skipped due to an 
+	 * earlier failure.
+	 */
+	private class DownloadChunks implements Callable<MultiChunkId> {
+		private MultiChunkId multiChunkId;
+		private Set<ChunkChecksum> chunkChecksums;
+		private LocalChunkSource localChunkSource;
+		private DownloadProgress downloadProgress;
+		private AtomicBoolean failed;
+
+		public DownloadChunks(MultiChunkId multiChunkId, Set<ChunkChecksum> chunkChecksums, LocalChunkSource localChunkSource,
+				DownloadProgress downloadProgress, AtomicBoolean failed) {
+
+			this.multiChunkId = multiChunkId;
+			this.chunkChecksums = chunkChecksums;
+			this.localChunkSource = localChunkSource;
+			this.downloadProgress = downloadProgress;
+			this.failed = failed;
+		}
+
+		@Override
+		public MultiChunkId call() throws Exception {
+			if (failed.get()) {
+				return null;
+			}
+
+			try {
+				downloadProgress.onDownloadStart();
+				downloadChunks(multiChunkId, chunkChecksums, localChunkSource);
+
+				return multiChunkId;
+			}
+			catch (Exception e) {
+				failed.set(true);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Local file holding the result of a range request. If the transfer manager did not
+	 * apply the range, the file contains the entire remote file.
+	 */
+	private static class RangeDownload {
+		private File file;
+		private boolean rangeApplied;
+
+		public RangeDownload(File file, boolean rangeApplied) {
+			this.file = file;
+			this.rangeApplied = rangeApplied;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public boolean isRangeApplied() {
+			return rangeApplied;
+		}
+
+		public byte[] readAndDelete() throws IOException {
+			try {
+				return Files.readAllBytes(file.toPath());
+			}
+			finally {
+				file.delete();
+			}
+		}
 	}
 }
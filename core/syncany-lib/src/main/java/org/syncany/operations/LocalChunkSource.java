@@ -0,0 +1,357 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com> 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.syncany.config.Cache;
+import org.syncany.config.Config;
+import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.database.FileContent;
+import org.syncany.database.FileVersion;
+import org.syncany.database.FileVersion.FileType;
+import org.syncany.database.SqlDatabase;
+
+/**
+ * The local chunk source provides chunks that are available in unchanged local files, so
+ * that they do not have to be downloaded from the remote storage. It is used by the
+ * {@link Assembler} as an alternative to the (downloaded) multichunks.
+ * 
+ * <p>Local files are added to the source's index using {@link #addLocalFile(FileVersion)}. The
+ * index maps the checksums of the file's chunks (as stored in the file's {@link FileContent}) to
+ * their position (path, offset and size) in the local file. 
+ * 
+ * <p>Because the local files might be changed, moved or deleted while file system actions are
+ * applied, the required chunks are copied to a file in the local cache by
+ * {@link #extractChunks(Collection) extractChunks()} before any action is applied. Chunks are only 
+ * copied if the local file still matches its database version (size and last modified date),
+ * and if the checksum of the chunk's content matches. Chunks that cannot be copied are simply
+ * not available locally and must be taken from a multichunk. To bound the disk usage of the 
+ * extracted chunks, no more than the cache's keep size (see {@link Cache#getKeepBytes()}) is 
+ * extracted from local files; the remaining chunks are taken from their multichunks as well. For files that are patched in place,
+ * the chunks are only verified using {@link #verifyChunks(FileVersion, Collection) verifyChunks()}, 
+ * because they are copied directly from the file when it is patched.
+ * 
+ * <p>Chunks that have been fetched individually from the remote storage (see {@link Downloader})
+ * can be added using {@link #addChunk(ChunkChecksum, byte[]) addChunk()}.
+ * 
+ * <p>After the extraction, {@link #containsChunk(ChunkChecksum) containsChunk()} and
+ * {@link #getChunk(ChunkChecksum) getChunk()} may be called from multiple threads, also
+ * while other threads add chunks. They do not block, because the extracted chunks are
+ * kept in a concurrent map.
+ * 
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class LocalChunkSource {
+	private static final Logger logger = Logger.getLogger(LocalChunkSource.class.getSimpleName());
+	private static final long LAST_MODIFIED_FUZZINESS_MILLIS = 1000;
+
+	private Config config;
+	private SqlDatabase localDatabase;
+
+	private Map<ChunkChecksum, LocalChunkPosition> localChunks;
+	private Map<ChunkChecksum, LocalChunkPosition> extractedChunks;
+	private long extractedLocalChunksBytes;
+	private File extractedChunksFile;
+	private RandomAccessFile extractedChunksRandomAccessFile;
+
+	public LocalChunkSource(Config config, SqlDatabase localDatabase) {
+		this.config = config;
+		this.localDatabase = localDatabase;
+
+		this.localChunks = new HashMap<ChunkChecksum, LocalChunkPosition>();
+		this.extractedChunks = new ConcurrentHashMap<ChunkChecksum, LocalChunkPosition>();
+		this.extractedLocalChunksBytes = 0;
+		this.extractedChunksFile = null;
+		this.extractedChunksRandomAccessFile = null;
+	}
+
+	/**
+	 * Adds the chunks of the given local file version to the index, using the
+	 * chunk list of its file content. Files without content and file versions that are 
+	 * not known to the local database are ignored. 
+	 */
+	public synchronized void addLocalFile(FileVersion localFileVersion) {
+		for (Map.Entry<ChunkChecksum, LocalChunkPosition> localChunk : getChunkPositions(localFileVersion).entrySet()) {
+			if (!localChunks.containsKey(localChunk.getKey())) {
+				localChunks.put(localChunk.getKey(), localChunk.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Returns those of the given chunks that are available in the local file of the given
+	 * file version, without adding them to the index or extracting them. Like in 
+	 * {@link #extractChunks(Collection) extractChunks()}, the local file must still match its
+	 * database version, and the chunks are read and their checksums verified.
+	 */
+	public Set<ChunkChecksum> verifyChunks(FileVersion localFileVersion, Collection<ChunkChecksum> chunkChecksums) throws IOException {
+		Set<ChunkChecksum> verifiedChunks = new HashSet<ChunkChecksum>();
+		File localFile = new File(config.getLocalDir(), localFileVersion.getPath());
+
+		if (!isUnchanged(localFile, localFileVersion, new HashMap<File, Boolean>())) {
+			return verifiedChunks;
+		}
+
+		Map<ChunkChecksum, LocalChunkPosition> localChunkPositions = getChunkPositions(localFileVersion);
+		MessageDigest chunkDigest = createChunkDigest();
+
+		for (ChunkChecksum chunkChecksum : chunkChecksums) {
+			LocalChunkPosition localChunkPosition = localChunkPositions.get(chunkChecksum);
+
+			if (localChunkPosition != null && !verifiedChunks.contains(chunkChecksum)
+					&& readLocalChunk(localFile, localChunkPosition, chunkDigest, chunkChecksum) != null) {
+
+				verifiedChunks.add(chunkChecksum);
+			}
+		}
+
+		return verifiedChunks;
+	}
+
+	/**
+	 * Copies the given chunks from the local files to a file in the local cache, as
+	 * far as they are available in the index. Returns the number of chunks that are
+	 * available locally after the extraction. 
+	 * 
+	 * <p>Once the chunks extracted from local files exceed the cache's keep size, no 
+	 * further chunks are extracted.
+	 */
+	public synchronized int extractChunks(Collection<ChunkChecksum> chunkChecksums) throws IOException {
+		Map<File, Boolean> unchangedLocalFiles = new HashMap<File, Boolean>();
+		MessageDigest chunkDigest = createChunkDigest();
+
+		for (ChunkChecksum chunkChecksum : chunkChecksums) {
+			LocalChunkPosition localChunkPosition = localChunks.get(chunkChecksum);
+
+			if (localChunkPosition == null || extractedChunks.containsKey(chunkChecksum)) {
+				continue;
+			}
+
+			if (extractedLocalChunksBytes + localChunkPosition.size > config.getCache().getKeepBytes()) {
+				logger.log(Level.INFO, "- Extracted chunks reached the cache keep size (" + extractedLocalChunksBytes + " bytes), not extracting any more chunks.");
+				break;
+			}
+
+			File localFile = new File(config.getLocalDir(), localChunkPosition.localFileVersion.getPath());
+
+			if (!isUnchanged(localFile, localChunkPosition.localFileVersion, unchangedLocalFiles)) {
+				continue;
+			}
+
+			byte[] chunkContent = readLocalChunk(localFile, localChunkPosition, chunkDigest, chunkChecksum);
+
+			if (chunkContent != null) {
+				writeExtractedChunk(chunkChecksum, chunkContent);
+				extractedLocalChunksBytes += chunkContent.length;
+			}
+		}
+
+		logger.log(Level.INFO, "- Extracted " + extractedChunks.size() + " chunk(s) from local files.");
+		return extractedChunks.size();
+	}
+
+	/**
+	 * Adds a chunk that was obtained elsewhere, e.g. fetched individually from a
+	 * remote multichunk. The caller must have verified the chunk's content. This method
+	 * may be called from multiple threads.
+	 */
+	public synchronized void addChunk(ChunkChecksum chunkChecksum, byte[] chunkContent) throws IOException {
+		if (!extractedChunks.containsKey(chunkChecksum)) {
+			writeExtractedChunk(chunkChecksum, chunkContent);
+		}
+	}
+
+	public boolean containsChunk(ChunkChecksum chunkChecksum) {
+		return extractedChunks.containsKey(chunkChecksum);
+	}
+
+	public Set<ChunkChecksum> getChunks() {
+		return extractedChunks.keySet();
+	}
+
+	/**
+	 * Returns the content of an extracted chunk, or <tt>null</tt> if the chunk is
+	 * not available locally.
+	 */
+	public byte[] getChunk(ChunkChecksum chunkChecksum) throws IOException {
+		LocalChunkPosition extractedChunkPosition = extractedChunks.get(chunkChecksum);
+
+		if (extractedChunkPosition == null) {
+			return null;
+		}
+
+		return readFully(extractedChunksRandomAccessFile.getChannel(), extractedChunkPosition.offset, extractedChunkPosition.size);
+	}
+
+	/**
+	 * Closes and deletes the file containing the extracted chunks.
+	 */
+	public synchronized void close() throws IOException {
+		if (extractedChunksRandomAccessFile != null) {
+			extractedChunksRandomAccessFile.close();
+			extractedChunksRandomAccessFile = null;
+		}
+
+		if (extractedChunksFile != null) {
+			extractedChunksFile.delete();
+			extractedChunksFile = null;
+		}
+
+		extractedChunks.clear();
+	}
+
+	/**
+	 * Returns the positions of the chunks in the local file of the given file version, or an
+	 * empty map if the file has no content or is not known to the local database. 
+	 */
+	private Map<ChunkChecksum, LocalChunkPosition> getChunkPositions(FileVersion localFileVersion) {
+		Map<ChunkChecksum, LocalChunkPosition> localChunkPositions = new HashMap<ChunkChecksum, LocalChunkPosition>();
+
+		if (localFileVersion.getType() != FileType.FILE || localFileVersion.getChecksum() == null) {
+			return localChunkPositions;
+		}
+
+		FileContent fileContent = localDatabase.getFileContent(localFileVersion.getChecksum(), true);
+
+		if (fileContent == null) {
+			return localChunkPositions;
+		}
+
+		Map<ChunkChecksum, Integer> chunkSizes = localDatabase.getChunkSizes(fileContent.getChunks());
+		long offset = 0;
+
+		for (ChunkChecksum chunkChecksum : fileContent.getChunks()) {
+			Integer chunkSize = chunkSizes.get(chunkChecksum);
+
+			if (chunkSize == null) {
+				return localChunkPositions;
+			}
+
+			if (!localChunkPositions.containsKey(chunkChecksum)) {
+				localChunkPositions.put(chunkChecksum, new LocalChunkPosition(localFileVersion, offset, chunkSize));
+			}
+
+			offset += chunkSize;
+		}
+
+		return localChunkPositions;
+	}
+
+	private boolean isUnchanged(File localFile, FileVersion localFileVersion, Map<File, Boolean> unchangedLocalFiles) {
+		Boolean unchanged = unchangedLocalFiles.get(localFile);
+
+		if (unchanged == null) {
+			// Same fuzziness on last modified dates as in FileVersionComparator, see issue #166
+			unchanged = localFile.isFile() && localFile.length() == localFileVersion.getSize()
+					&& Math.abs(localFile.lastModified() - localFileVersion.getLastModified().getTime()) <= LAST_MODIFIED_FUZZINESS_MILLIS;
+
+			if (!unchanged) {
+				logger.log(Level.FINE, "   + Local file " + localFile + " changed; not using its chunks.");
+			}
+
+			unchangedLocalFiles.put(localFile, unchanged);
+		}
+
+		return unchanged;
+	}
+
+	private byte[] readLocalChunk(File localFile, LocalChunkPosition localChunkPosition, MessageDigest chunkDigest, ChunkChecksum chunkChecksum) {
+		try (RandomAccessFile localRandomAccessFile = new RandomAccessFile(localFile, "r")) {
+			byte[] chunkContent = readFully(localRandomAccessFile.getChannel(), localChunkPosition.offset, localChunkPosition.size);
+
+			chunkDigest.reset();
+			byte[] actualChunkChecksum = chunkDigest.digest(chunkContent);
+
+			if (!Arrays.equals(actualChunkChecksum, chunkChecksum.getBytes())) {
+				logger.log(Level.FINE, "   + Chunk " + chunkChecksum + " in local file " + localFile + " does not match; not using it.");
+				return null;
+			}
+
+			return chunkContent;
+		}
+		catch (IOException e) {
+			logger.log(Level.FINE, "   + Cannot read chunk " + chunkChecksum + " from local file " + localFile + "; not using it.", e);
+			return null;
+		}
+	}
+
+	private void writeExtractedChunk(ChunkChecksum chunkChecksum, byte[] chunkContent) throws IOException {
+		if (extractedChunksRandomAccessFile == null) {
+			extractedChunksFile = config.getCache().createTempFile("localchunks");
+			extractedChunksRandomAccessFile = new RandomAccessFile(extractedChunksFile, "rw");
+		}
+
+		long offset = extractedChunksRandomAccessFile.length();
+
+		extractedChunksRandomAccessFile.seek(offset);
+		extractedChunksRandomAccessFile.write(chunkContent);
+
+		// Published last, so that readers only see chunks that have been written completely
+		extractedChunks.put(chunkChecksum, new LocalChunkPosition(null, offset, chunkContent.length));
+	}
+
+	private byte[] readFully(FileChannel fileChannel, long offset, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+
+		while (buffer.hasRemaining()) {
+			// Positional reads do not change the channel position, and are safe to use concurrently
+			if (fileChannel.read(buffer, offset + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file at offset " + (offset + buffer.position()));
+			}
+		}
+
+		return buffer.array();
+	}
+
+	private MessageDigest createChunkDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(config.getChunker().getChecksumAlgorithm());
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException("Cannot create chunk digest.", e);
+		}
+	}
+
+	private static class LocalChunkPosition {
+		private FileVersion localFileVersion;
+		private long offset;
+		private int size;
+
+		public LocalChunkPosition(FileVersion localFileVersion, long offset, int size) {
+			this.localFileVersion = localFileVersion;
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+}
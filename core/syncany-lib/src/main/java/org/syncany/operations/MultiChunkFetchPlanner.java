@@ -0,0 +1,171 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com> 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.operations;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.syncany.config.Config;
+import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.database.SqlDatabase;
+
+/**
+ * The fetch planner decides how the multichunks containing a given set of chunks
+ * are retrieved from the remote storage: Either the entire multichunk is downloaded
+ * (see {@link Downloader#downloadAndDecryptMultiChunks(Set)}), or only the required chunks
+ * are fetched using range requests (see {@link Downloader#downloadChunks(Map, LocalChunkSource)}).
+ * 
+ * <p>The decision is based on the coverage ratio of a multichunk, i.e. the size of the
+ * required chunks divided by the size of all chunks in the multichunk. Fetching individual
+ * chunks needs additional requests (for the multichunk's index and for non-adjacent chunks),
+ * so it only pays off if a small part of the multichunk is needed, e.g. when restoring a 
+ * single small file.  
+ * 
+ * <p>Multichunks are always downloaded entirely if the multichunker is not seekable, if
+ * they are already in the local cache, or if their size is unknown.
+ * 
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class MultiChunkFetchPlanner {
+	private static final Logger logger = Logger.getLogger(MultiChunkFetchPlanner.class.getSimpleName());
+
+	public static final double DEFAULT_MAX_RANGED_COVERAGE = 0.5;
+
+	private Config config;
+	private SqlDatabase localDatabase;
+	private double maxRangedCoverage;
+
+	public MultiChunkFetchPlanner(Config config, SqlDatabase localDatabase) {
+		this(config, localDatabase, DEFAULT_MAX_RANGED_COVERAGE);
+	}
+
+	public MultiChunkFetchPlanner(Config config, SqlDatabase localDatabase, double maxRangedCoverage) {
+		this.config = config;
+		this.localDatabase = localDatabase;
+		this.maxRangedCoverage = maxRangedCoverage;
+	}
+
+	/**
+	 * Determines the multichunks containing the given chunks, and decides for each
+	 * multichunk whether it is downloaded entirely or chunk by chunk.  
+	 */
+	public FetchPlan plan(Collection<ChunkChecksum> chunkChecksums) {
+		FetchPlan fetchPlan = new FetchPlan();
+
+		if (chunkChecksums.isEmpty()) {
+			return fetchPlan;
+		}
+
+		Map<ChunkChecksum, MultiChunkId> chunkMultiChunkIds = localDatabase.getMultiChunkIdsByChecksums(new ArrayList<ChunkChecksum>(chunkChecksums));
+		Map<MultiChunkId, Set<ChunkChecksum>> multiChunkChunks = new HashMap<MultiChunkId, Set<ChunkChecksum>>();
+
+		for (Map.Entry<ChunkChecksum, MultiChunkId> chunkMultiChunkId : chunkMultiChunkIds.entrySet()) {
+			Set<ChunkChecksum> multiChunkChunkChecksums = multiChunkChunks.get(chunkMultiChunkId.getValue());
+
+			if (multiChunkChunkChecksums == null) {
+				multiChunkChunkChecksums = new HashSet<ChunkChecksum>();
+				multiChunkChunks.put(chunkMultiChunkId.getValue(), multiChunkChunkChecksums);
+			}
+
+			multiChunkChunkChecksums.add(chunkMultiChunkId.getKey());
+		}
+
+		if (!config.getMultiChunker().isSeekable()) {
+			fetchPlan.fullMultiChunkIds.addAll(multiChunkChunks.keySet());
+			return fetchPlan;
+		}
+
+		Map<MultiChunkId, Long> multiChunkSizes = localDatabase.getMultiChunkSizes(multiChunkChunks.keySet());
+		Map<ChunkChecksum, Integer> chunkSizes = localDatabase.getChunkSizes(chunkMultiChunkIds.keySet());
+
+		for (Map.Entry<MultiChunkId, Set<ChunkChecksum>> multiChunk : multiChunkChunks.entrySet()) {
+			MultiChunkId multiChunkId = multiChunk.getKey();
+			Long multiChunkSize = multiChunkSizes.get(multiChunkId);
+			Long requiredSize = getRequiredSize(multiChunk.getValue(), chunkSizes);
+
+			if (multiChunkSize == null || multiChunkSize <= 0 || requiredSize == null) {
+				fetchPlan.fullMultiChunkIds.add(multiChunkId);
+			}
+			else if (config.getCache().containsMultiChunk(multiChunkId)) {
+				fetchPlan.fullMultiChunkIds.add(multiChunkId);
+			}
+			else {
+				double coverage = (double) requiredSize / multiChunkSize;
+
+				if (coverage <= maxRangedCoverage) {
+					logger.log(Level.FINE, "- Multichunk " + multiChunkId + ": coverage " + coverage + ", fetching " + multiChunk.getValue().size() + " chunk(s)");
+					fetchPlan.rangedChunks.put(multiChunkId, multiChunk.getValue());
+				}
+				else {
+					logger.log(Level.FINE, "- Multichunk " + multiChunkId + ": coverage " + coverage + ", fetching entire multichunk");
+					fetchPlan.fullMultiChunkIds.add(multiChunkId);
+				}
+			}
+		}
+
+		logger.log(Level.INFO, "Fetch plan: " + fetchPlan.fullMultiChunkIds.size() + " entire multichunk(s), " + fetchPlan.rangedChunks.size()
+				+ " multichunk(s) chunk by chunk.");
+
+		return fetchPlan;
+	}
+
+	private Long getRequiredSize(Set<ChunkChecksum> chunkChecksums, Map<ChunkChecksum, Integer> chunkSizes) {
+		long requiredSize = 0;
+
+		for (ChunkChecksum chunkChecksum : chunkChecksums) {
+			Integer chunkSize = chunkSizes.get(chunkChecksum);
+
+			if (chunkSize == null) {
+				return null;
+			}
+
+			requiredSize += chunkSize;
+		}
+
+		return requiredSize;
+	}
+
+	/**
+	 * Result of the fetch planner: The multichunks to be downloaded entirely, and the 
+	 * chunks to be fetched individually, grouped by multichunk.
+	 */
+	public static class FetchPlan {
+		private Set<MultiChunkId> fullMultiChunkIds;
+		private Map<MultiChunkId, Set<ChunkChecksum>> rangedChunks;
+
+		public FetchPlan() {
+			this.fullMultiChunkIds = new HashSet<MultiChunkId>();
+			this.rangedChunks = new HashMap<MultiChunkId, Set<ChunkChecksum>>();
+		}
+
+		public Set<MultiChunkId> getFullMultiChunkIds() {
+			return fullMultiChunkIds;
+		}
+
+		public Map<MultiChunkId, Set<ChunkChecksum>> getRangedChunks() {
+			return rangedChunks;
+		}
+	}
+}
@@ -0,0 +1,335 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com> 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.operations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.syncany.config.Config;
+import org.syncany.database.FileContent.FileChecksum;
+import org.syncany.database.FileVersion;
+import org.syncany.database.FileVersion.FileStatus;
+import org.syncany.database.FileVersion.FileType;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.database.PartialFileHistory;
+import org.syncany.database.SqlDatabase;
+import org.syncany.plugins.transfer.StorageException;
+import org.syncany.plugins.transfer.TransferManager;
+import org.syncany.plugins.transfer.TransferManagerFactory;
+
+/**
+ * The prefetcher downloads the multichunks of file versions that are likely to be restored
+ * soon to the local cache, so that a later restore (or a file request to the daemon) finds
+ * them in the cache instead of downloading them on demand.
+ * 
+ * <p>Multichunks are downloaded using a single connection, and are not decrypted: They are 
+ * kept in their encrypted form in the {@link org.syncany.config.Cache Cache}, and only decrypted
+ * when they are needed, see {@link Downloader#downloadMultiChunks(Set)}.
+ * 
+ * <p>Prefetching is limited by a bandwidth budget and by a disk budget, both kept in a
+ * {@link PrefetchBudget} that can be shared by many prefetchers:
+ * 
+ * <ul>
+ *  <li>The bandwidth budget limits the bytes downloaded since the budget was last reset
+ *      (see {@link PrefetchBudget#resetDownloadedBytes()}), e.g. at the end of every sync.</li>
+ *  <li>The disk budget (a fraction of the cache's keep size) limits the size of the prefetched
+ *      multichunks that are still in the cache, so that prefetched multichunks do not evict the
+ *      cache contents they are meant to complement. Prefetched multichunks that have been evicted
+ *      from the cache do not count anymore.</li>
+ * </ul>
+ * 
+ * <p>File versions are prefetched in the given order until one of the budgets is used up.
+ * 
+ * <p>Multichunks are downloaded one by one. Before each download, the given {@link PrefetchListener}
+ * is asked whether to continue, so that a sync does not have to share the connection with the
+ * prefetcher for longer than one multichunk download.
+ * 
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class MultiChunkPrefetcher {
+	private static final Logger logger = Logger.getLogger(MultiChunkPrefetcher.class.getSimpleName());
+	private static final int MAX_FILE_VERSIONS = 1000;
+
+	public static final long DEFAULT_MAX_PREFETCH_BYTES = 50 * 1024 * 1024;
+	public static final double DEFAULT_MAX_CACHE_FRACTION = 0.25;
+
+	private Config config;
+	private SqlDatabase localDatabase;
+	private long maxPrefetchBytes;
+	private double maxCacheFraction;
+	private PrefetchBudget budget;
+
+	public MultiChunkPrefetcher(Config config, SqlDatabase localDatabase) {
+		this(config, localDatabase, new PrefetchBudget());
+	}
+
+	public MultiChunkPrefetcher(Config config, SqlDatabase localDatabase, PrefetchBudget budget) {
+		this(config, localDatabase, DEFAULT_MAX_PREFETCH_BYTES, DEFAULT_MAX_CACHE_FRACTION, budget);
+	}
+
+	public MultiChunkPrefetcher(Config config, SqlDatabase localDatabase, long maxPrefetchBytes, double maxCacheFraction) {
+		this(config, localDatabase, maxPrefetchBytes, maxCacheFraction, new PrefetchBudget());
+	}
+
+	/**
+	 * Creates a prefetcher that keeps track of the prefetched multichunks in the given budget.
+	 * Prefetchers sharing a budget (e.g. the prefetchers of a daemon folder) share the limits.
+	 */
+	public MultiChunkPrefetcher(Config config, SqlDatabase localDatabase, long maxPrefetchBytes, double maxCacheFraction, PrefetchBudget budget) {
+		this.config = config;
+		this.localDatabase = localDatabase;
+		this.maxPrefetchBytes = maxPrefetchBytes;
+		this.maxCacheFraction = maxCacheFraction;
+		this.budget = budget;
+	}
+
+	/**
+	 * Downloads the multichunks of the given file versions to the local cache, 
+	 * within the prefetch budgets. Returns the identifiers of the downloaded multichunks.
+	 */
+	public Set<MultiChunkId> prefetch(List<FileVersion> fileVersions) throws StorageException, IOException {
+		return prefetch(fileVersions, null);
+	}
+
+	/**
+	 * Downloads the multichunks of the given file versions to the local cache, 
+	 * within the prefetch budgets. Prefetching stops before the next multichunk if the 
+	 * given listener (if any) cancels it. Returns the identifiers of the downloaded multichunks.
+	 */
+	public Set<MultiChunkId> prefetch(List<FileVersion> fileVersions, PrefetchListener listener) throws StorageException, IOException {
+		Set<MultiChunkId> multiChunkIds = plan(fileVersions);
+		Set<MultiChunkId> prefetchedMultiChunkIds = new LinkedHashSet<MultiChunkId>();
+
+		if (multiChunkIds.size() > 0) {
+			Map<MultiChunkId, Long> multiChunkSizes = localDatabase.getMultiChunkSizes(new ArrayList<MultiChunkId>(multiChunkIds));
+			TransferManager transferManager = TransferManagerFactory.build(config).asDefault();
+
+			try {
+				Downloader downloader = new Downloader(config, transferManager, 1, 1);
+
+				for (MultiChunkId multiChunkId : multiChunkIds) {
+					if (listener != null && listener.isPrefetchCancelled()) {
+						logger.log(Level.INFO, "Prefetching cancelled after " + prefetchedMultiChunkIds.size() + " multichunk(s).");
+						break;
+					}
+
+					downloader.downloadMultiChunks(Collections.singleton(multiChunkId));
+
+					budget.addPrefetchedMultiChunk(multiChunkId, multiChunkSizes.get(multiChunkId));
+					prefetchedMultiChunkIds.add(multiChunkId);
+				}
+			}
+			finally {
+				transferManager.disconnect();
+			}
+		}
+
+		return prefetchedMultiChunkIds;
+	}
+
+	/**
+	 * Determines the multichunks to prefetch for the given file versions, in the order of the 
+	 * file versions, within what is left of the prefetch budgets. Multichunks that are already 
+	 * in the local cache are not included, and neither are file versions that match the current 
+	 * version of the file (it can be restored from the local file).
+	 */
+	public Set<MultiChunkId> plan(List<FileVersion> fileVersions) {
+		if (fileVersions.isEmpty()) {
+			return new LinkedHashSet<MultiChunkId>();
+		}
+
+		long maxDownloadBytes = maxPrefetchBytes - budget.getDownloadedBytes();
+		long maxCacheBytes = (long) (config.getCache().getKeepBytes() * maxCacheFraction) - getCachedPrefetchedBytes();
+
+		long maxBytes = Math.min(maxDownloadBytes, maxCacheBytes);
+		long plannedBytes = 0;
+
+		Set<MultiChunkId> plannedMultiChunkIds = new LinkedHashSet<MultiChunkId>();
+		Set<FileChecksum> visitedChecksums = new HashSet<FileChecksum>();
+		Map<String, FileVersion> currentFileTree = localDatabase.getCurrentFileTree();
+
+		for (FileVersion fileVersion : fileVersions.subList(0, Math.min(fileVersions.size(), MAX_FILE_VERSIONS))) {
+			if (!isRestorable(fileVersion) || !visitedChecksums.add(fileVersion.getChecksum())) {
+				continue;
+			}
+
+			FileVersion currentFileVersion = currentFileTree.get(fileVersion.getPath());
+
+			if (currentFileVersion != null && fileVersion.getChecksum().equals(currentFileVersion.getChecksum())) {
+				continue;
+			}
+
+			List<MultiChunkId> multiChunkIds = getUncachedMultiChunkIds(fileVersion.getChecksum(), plannedMultiChunkIds);
+
+			if (multiChunkIds.isEmpty()) {
+				continue;
+			}
+
+			Map<MultiChunkId, Long> multiChunkSizes = localDatabase.getMultiChunkSizes(multiChunkIds);
+
+			for (MultiChunkId multiChunkId : multiChunkIds) {
+				Long multiChunkSize = multiChunkSizes.get(multiChunkId);
+
+				if (multiChunkSize == null || plannedBytes + multiChunkSize > maxBytes) {
+					logger.log(Level.INFO, "Prefetch budget reached (" + (plannedBytes / 1024) + " KB), planned " + plannedMultiChunkIds.size()
+							+ " multichunk(s).");
+
+					return plannedMultiChunkIds;
+				}
+
+				plannedBytes += multiChunkSize;
+				plannedMultiChunkIds.add(multiChunkId);
+			}
+		}
+
+		logger.log(Level.INFO, "Planned " + plannedMultiChunkIds.size() + " multichunk(s) for prefetching (" + (plannedBytes / 1024) + " KB).");
+		return plannedMultiChunkIds;
+	}
+
+	/**
+	 * Returns the version before the last version of the file histories currently 
+	 * (or most recently) found at the given paths, if they have such a version. For changed or
+	 * deleted files, these are the versions that are most likely to be restored.
+	 */
+	public List<FileVersion> getPreviousFileVersions(Collection<String> paths) {
+		List<FileVersion> previousFileVersions = new ArrayList<FileVersion>();
+
+		for (String path : paths) {
+			PartialFileHistory fileHistory = localDatabase.getFileHistoriesWithLastVersionByPath(path);
+
+			if (fileHistory != null) {
+				List<FileVersion> fileVersions = localDatabase.getFileHistory(fileHistory.getFileHistoryId());
+
+				for (int i = fileVersions.size() - 2; i >= 0; i--) {
+					if (isRestorable(fileVersions.get(i))) {
+						previousFileVersions.add(fileVersions.get(i));
+						break;
+					}
+				}
+			}
+		}
+
+		return previousFileVersions;
+	}
+
+	private boolean isRestorable(FileVersion fileVersion) {
+		return fileVersion.getType() == FileType.FILE && fileVersion.getStatus() != FileStatus.DELETED && fileVersion.getChecksum() != null;
+	}
+
+	/**
+	 * Returns the total size of the prefetched multichunks that are still in the cache, 
+	 * and forgets about the ones that have been evicted.
+	 */
+	private long getCachedPrefetchedBytes() {
+		List<MultiChunkId> cachedMultiChunkIds = new ArrayList<MultiChunkId>();
+		List<MultiChunkId> evictedMultiChunkIds = new ArrayList<MultiChunkId>();
+
+		for (MultiChunkId multiChunkId : budget.getPrefetchedMultiChunkIds()) {
+			if (config.getCache().containsMultiChunk(multiChunkId)) {
+				cachedMultiChunkIds.add(multiChunkId);
+			}
+			else {
+				evictedMultiChunkIds.add(multiChunkId);
+			}
+		}
+
+		budget.removePrefetchedMultiChunks(evictedMultiChunkIds);
+
+		if (cachedMultiChunkIds.isEmpty()) {
+			return 0;
+		}
+
+		long cachedBytes = 0;
+
+		for (Long multiChunkSize : localDatabase.getMultiChunkSizes(cachedMultiChunkIds).values()) {
+			cachedBytes += multiChunkSize;
+		}
+
+		return cachedBytes;
+	}
+
+	private List<MultiChunkId> getUncachedMultiChunkIds(FileChecksum fileChecksum, Set<MultiChunkId> plannedMultiChunkIds) {
+		List<MultiChunkId> uncachedMultiChunkIds = new ArrayList<MultiChunkId>();
+
+		for (MultiChunkId multiChunkId : localDatabase.getMultiChunkIds(fileChecksum)) {
+			// Checking the cache must not count as an access (LRU order)
+			if (!config.getCache().containsMultiChunk(multiChunkId) && !plannedMultiChunkIds.contains(multiChunkId) && !uncachedMultiChunkIds.contains(multiChunkId)) {
+				uncachedMultiChunkIds.add(multiChunkId);
+			}
+		}
+
+		return uncachedMultiChunkIds;
+	}
+
+	/**
+	 * Keeps track of the bytes downloaded by one or many prefetchers since the budget was
+	 * last reset (bandwidth budget), and of the multichunks they prefetched (disk budget). 
+	 * This class is thread-safe.
+	 */
+	public static class PrefetchBudget {
+		private long downloadedBytes;
+		private Set<MultiChunkId> prefetchedMultiChunkIds;
+
+		public PrefetchBudget() {
+			this.downloadedBytes = 0;
+			this.prefetchedMultiChunkIds = new HashSet<MultiChunkId>();
+		}
+
+		/**
+		 * Resets the bandwidth budget. The prefetched multichunks still
+		 * count against the disk budget as long as they are in the cache.
+		 */
+		public synchronized void resetDownloadedBytes() {
+			downloadedBytes = 0;
+		}
+
+		public synchronized long getDownloadedBytes() {
+			return downloadedBytes;
+		}
+
+		private synchronized void addPrefetchedMultiChunk(MultiChunkId multiChunkId, long multiChunkSize) {
+			downloadedBytes += multiChunkSize;
+			prefetchedMultiChunkIds.add(multiChunkId);
+		}
+
+		private synchronized Set<MultiChunkId> getPrefetchedMultiChunkIds() {
+			return new HashSet<MultiChunkId>(prefetchedMultiChunkIds);
+		}
+
+		private synchronized void removePrefetchedMultiChunks(Collection<MultiChunkId> multiChunkIds) {
+			prefetchedMultiChunkIds.removeAll(multiChunkIds);
+		}
+	}
+
+	/**
+	 * Listener to be asked before every multichunk download whether
+	 * prefetching should be cancelled, e.g. because a sync has started.
+	 */
+	public interface PrefetchListener {
+		public boolean isPrefetchCancelled();
+	}
+}
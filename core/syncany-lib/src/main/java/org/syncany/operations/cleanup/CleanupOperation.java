@@ -382,7 +382,7 @@ public class CleanupOperation extends AbstractTransferOperation {
 	}
 
 	private boolean hasRemoteChanges() throws Exception {
-		LsRemoteOperationResult lsRemoteOperationResult = new LsRemoteOperation(config).execute();
+		LsRemoteOperationResult lsRemoteOperationResult = new LsRemoteOperation(config, transferManager).execute();
 		return lsRemoteOperationResult.getUnknownRemoteDatabases().size() > 0;
 	}
 
@@ -18,6 +18,10 @@
 package org.syncany.operations.daemon;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,21 +30,43 @@ import org.syncany.config.Config;
 import org.syncany.config.ConfigException;
 import org.syncany.config.LocalEventBus;
 import org.syncany.config.to.PortTO;
+import org.syncany.database.FileVersion;
+import org.syncany.database.PartialFileHistory;
+import org.syncany.database.SqlDatabase;
+import org.syncany.operations.ChangeSet;
+import org.syncany.operations.MultiChunkPrefetcher;
+import org.syncany.operations.MultiChunkPrefetcher.PrefetchBudget;
+import org.syncany.operations.MultiChunkPrefetcher.PrefetchListener;
 import org.syncany.operations.daemon.messages.AlreadySyncingResponse;
 import org.syncany.operations.daemon.messages.BadRequestResponse;
+import org.syncany.operations.daemon.messages.DownChangesDetectedSyncExternalEvent;
+import org.syncany.operations.daemon.messages.DownEndSyncExternalEvent;
+import org.syncany.operations.daemon.messages.LogFolderResponse;
+import org.syncany.operations.daemon.messages.LsFolderResponse;
+import org.syncany.operations.daemon.messages.WatchEndSyncExternalEvent;
 import org.syncany.operations.daemon.messages.api.FolderRequest;
 import org.syncany.operations.daemon.messages.api.FolderRequestHandler;
 import org.syncany.operations.daemon.messages.api.Response;
+import org.syncany.operations.log.LightweightDatabaseVersion;
 import org.syncany.operations.watch.WatchOperation;
 import org.syncany.operations.watch.WatchOperationOptions;
 import org.syncany.operations.watch.WatchOperationResult;
+import org.syncany.plugins.transfer.TransferManagerRegistry;
 
 import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * The watch operation thread runs a {@link WatchOperation} in a thread. The
  * underlying thred can be started using the {@link #start()} method, and stopped
  * gracefully using {@link #stop()}.
+ * 
+ * <p>To speed up interactive restores, the runner prefetches multichunks in the
+ * background using a {@link MultiChunkPrefetcher}: After a 'ls' request, the multichunks
+ * of the listed file versions are prefetched; after a 'log' request or when remote changes
+ * have been applied, the multichunks of the previous versions of the changed/deleted files.
+ * All prefetches of the runner share one prefetch budget, whose bandwidth part is reset
+ * at the end of every sync. A prefetch is cancelled as soon as a sync starts.
  *
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  */
@@ -48,17 +74,31 @@ public class WatchRunner {
 	private static final Logger logger = Logger.getLogger(WatchRunner.class.getSimpleName());
 
 	private Config config;
+	private TransferManagerRegistry transferManagerRegistry;
 	private PortTO portTO;
 	private Thread watchThread;
 	private WatchOperation watchOperation;
 	private WatchOperationResult watchOperationResult;
 	private LocalEventBus eventBus;
+	private ExecutorService prefetchExecutor;
+	private PrefetchBudget prefetchBudget;
+	private volatile boolean downChangesDetected;
 
 	public WatchRunner(Config config, WatchOperationOptions watchOperationOptions, PortTO portTO) throws ConfigException {
 		this.config = config;
+		this.transferManagerRegistry = new TransferManagerRegistry();
 		this.portTO = portTO;
+
+		// Reuse transfer managers (and their connections) across sync cycles
+		this.config.setTransferManagerRegistry(transferManagerRegistry);
 		this.watchOperation = new WatchOperation(config, watchOperationOptions);
 
+		this.prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("PF/" + config.getLocalDir().getName())
+			.setDaemon(true)
+			.build());
+		this.prefetchBudget = new PrefetchBudget();
+
 		this.eventBus = LocalEventBus.getInstance();
 		this.eventBus.register(this);
 	}
@@ -95,8 +135,14 @@ public class WatchRunner {
 
 	public void stop() {
 		watchOperation.stop();
+		prefetchExecutor.shutdownNow();
 		config.getPortFile().delete();
 
+		// Detach the registry, so that later operations on this config create their own transfer managers;
+		// transfer managers still in use by the stopping operation are disconnected when released
+		config.setTransferManagerRegistry(null);
+		transferManagerRegistry.close();
+
 		watchThread = null;
 	}
 
@@ -125,6 +171,7 @@ public class WatchRunner {
 
 					if (response != null) {
 						eventBus.post(response);
+						schedulePrefetch(response);
 					}
 
 					watchOperation.resume();
@@ -140,4 +187,124 @@ public class WatchRunner {
 			}
 		}
 	}
+
+	@Subscribe
+	public void onDownChangesDetected(DownChangesDetectedSyncExternalEvent downChangesDetectedEvent) {
+		if (config.getLocalDir().getAbsolutePath().equals(downChangesDetectedEvent.getRoot())) {
+			downChangesDetected = true;
+		}
+	}
+
+	@Subscribe
+	public void onDownEnd(DownEndSyncExternalEvent downEndEvent) {
+		if (downChangesDetected && config.getLocalDir().getAbsolutePath().equals(downEndEvent.getRoot())) {
+			downChangesDetected = false;
+
+			// The changes are only known once they have been applied
+			if (downEndEvent.getChanges() != null) {
+				prefetchExecutor.execute(new PrefetchPreviousVersions(getChangedAndDeletedFiles(downEndEvent.getChanges())));
+			}
+		}
+	}
+
+	@Subscribe
+	public void onWatchEnd(WatchEndSyncExternalEvent watchEndEvent) {
+		if (config.getLocalDir().getAbsolutePath().equals(watchEndEvent.getRoot())) {
+			prefetchBudget.resetDownloadedBytes();
+		}
+	}
+
+	private void schedulePrefetch(Response response) {
+		if (response instanceof LsFolderResponse && ((LsFolderResponse) response).getResult() != null) {
+			prefetchExecutor.execute(new PrefetchFileVersions(getFileVersions((LsFolderResponse) response)));
+		}
+		else if (response instanceof LogFolderResponse && ((LogFolderResponse) response).getResult() != null) {
+			List<String> changedAndDeletedFiles = new ArrayList<String>();
+
+			for (LightweightDatabaseVersion databaseVersion : ((LogFolderResponse) response).getResult().getDatabaseVersions()) {
+				changedAndDeletedFiles.addAll(getChangedAndDeletedFiles(databaseVersion.getChangeSet()));
+			}
+
+			prefetchExecutor.execute(new PrefetchPreviousVersions(changedAndDeletedFiles));
+		}
+	}
+
+	private List<FileVersion> getFileVersions(LsFolderResponse lsResponse) {
+		List<FileVersion> fileVersions = new ArrayList<FileVersion>(lsResponse.getResult().getFileList());
+
+		if (lsResponse.getResult().getFileVersions() != null) {
+			for (PartialFileHistory fileHistory : lsResponse.getResult().getFileVersions().values()) {
+				fileVersions.addAll(fileHistory.getFileVersions().values());
+			}
+		}
+
+		return fileVersions;
+	}
+
+	private List<String> getChangedAndDeletedFiles(ChangeSet changeSet) {
+		List<String> changedAndDeletedFiles = new ArrayList<String>();
+
+		changedAndDeletedFiles.addAll(changeSet.getChangedFiles());
+		changedAndDeletedFiles.addAll(changeSet.getDeletedFiles());
+
+		return changedAndDeletedFiles;
+	}
+
+	/**
+	 * Prefetches the multichunks of the given file versions. Prefetching is skipped
+	 * (or cancelled) if a sync is running, because the sync downloads what it needs itself.
+	 */
+	private class PrefetchFileVersions implements Runnable, PrefetchListener {
+		private List<FileVersion> fileVersions;
+
+		public PrefetchFileVersions(List<FileVersion> fileVersions) {
+			this.fileVersions = fileVersions;
+		}
+
+		@Override
+		public void run() {
+			if (watchOperation.isSyncRunning()) {
+				logger.log(Level.INFO, "Sync running, not prefetching multichunks.");
+				return;
+			}
+
+			SqlDatabase localDatabase = new SqlDatabase(config, true);
+
+			try {
+				new MultiChunkPrefetcher(config, localDatabase, prefetchBudget).prefetch(getFileVersions(localDatabase), this);
+			}
+			catch (Exception e) {
+				logger.log(Level.WARNING, "Prefetching multichunks failed.", e);
+			}
+			finally {
+				localDatabase.finalize();
+			}
+		}
+
+		@Override
+		public boolean isPrefetchCancelled() {
+			return watchOperation.isSyncRunning();
+		}
+
+		protected List<FileVersion> getFileVersions(SqlDatabase localDatabase) {
+			return fileVersions;
+		}
+	}
+
+	/**
+	 * Prefetches the multichunks of the previous versions of the files at the given paths.
+	 */
+	private class PrefetchPreviousVersions extends PrefetchFileVersions {
+		private List<String> paths;
+
+		public PrefetchPreviousVersions(List<String> paths) {
+			super(null);
+			this.paths = paths;
+		}
+
+		@Override
+		protected List<FileVersion> getFileVersions(SqlDatabase localDatabase) {
+			return new MultiChunkPrefetcher(config, localDatabase).getPreviousFileVersions(paths);
+		}
+	}
 }
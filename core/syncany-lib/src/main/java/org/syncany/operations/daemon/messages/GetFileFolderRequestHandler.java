@@ -18,8 +18,6 @@
 package org.syncany.operations.daemon.messages;
 
 import java.io.File;
-import java.util.HashSet;
-import java.util.Map;
 import java.util.logging.Level;
 
 import org.syncany.config.Config;
@@ -27,16 +25,18 @@ import org.syncany.config.LocalEventBus;
 import org.syncany.database.FileContent;
 import org.syncany.database.FileVersion;
 import org.syncany.database.ObjectId;
-import org.syncany.database.ChunkEntry.ChunkChecksum;
-import org.syncany.database.MultiChunkEntry.MultiChunkId;
 import org.syncany.database.PartialFileHistory.FileHistoryId;
 import org.syncany.database.SqlDatabase;
 import org.syncany.operations.Assembler;
 import org.syncany.operations.Downloader;
+import org.syncany.operations.LocalChunkSource;
+import org.syncany.operations.MultiChunkFetchPlanner;
+import org.syncany.operations.MultiChunkFetchPlanner.FetchPlan;
 import org.syncany.operations.daemon.messages.api.FolderRequest;
 import org.syncany.operations.daemon.messages.api.FolderRequestHandler;
 import org.syncany.operations.daemon.messages.api.Response;
 import org.syncany.plugins.transfer.TransferManager;
+import org.syncany.plugins.transfer.TransferManagerFactory;
 import org.syncany.util.StringUtil;
 
 public class GetFileFolderRequestHandler extends FolderRequestHandler {
@@ -60,15 +60,29 @@ public class GetFileFolderRequestHandler extends FolderRequestHandler {
 
 			FileVersion fileVersion = localDatabase.getFileVersion(fileHistoryId, version);
 			FileContent fileContent = localDatabase.getFileContent(fileVersion.getChecksum(), true);
-			Map<ChunkChecksum, MultiChunkId> multiChunks = localDatabase.getMultiChunkIdsByChecksums(fileContent.getChunks());
+			FetchPlan fetchPlan = new MultiChunkFetchPlanner(config, localDatabase).plan(fileContent.getChunks());
 
-			TransferManager transferManager = config.getTransferPlugin().createTransferManager(config.getConnection(), config);
+			TransferManager transferManager = TransferManagerFactory.build(config).asDefault();
 			Downloader downloader = new Downloader(config, transferManager);
-			Assembler assembler = new Assembler(config, localDatabase);
+			LocalChunkSource downloadedChunks = new LocalChunkSource(config, localDatabase);
+			Assembler assembler = new Assembler(config, localDatabase, null, downloadedChunks);
+			File tempFile = null;
 
-			downloader.downloadAndDecryptMultiChunks(new HashSet<MultiChunkId>(multiChunks.values()));
+			try {
+				try {
+					downloader.downloadAndDecryptMultiChunks(fetchPlan.getFullMultiChunkIds());
+					downloader.downloadChunks(fetchPlan.getRangedChunks(), downloadedChunks);
+				}
+				finally {
+					transferManager.disconnect();
+				}
+
+				tempFile = assembler.assembleToCache(fileVersion);
+			}
+			finally {
+				downloadedChunks.close();
+			}
 
-			File tempFile = assembler.assembleToCache(fileVersion);
 			String tempFileToken = StringUtil.toHex(ObjectId.secureRandomBytes(40));
 			
 			GetFileFolderResponse fileResponse = new GetFileFolderResponse(concreteRequest.getId(), concreteRequest.getRoot(), tempFileToken);
@@ -17,11 +17,27 @@
  */
 package org.syncany.operations.down;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,12 +50,19 @@ import org.syncany.database.MultiChunkEntry.MultiChunkId;
 import org.syncany.database.PartialFileHistory;
 import org.syncany.database.SqlDatabase;
 import org.syncany.operations.Downloader;
+import org.syncany.operations.Downloader.DownloaderListener;
+import org.syncany.operations.LocalChunkSource;
 import org.syncany.operations.Operation;
 import org.syncany.operations.OperationResult;
+import org.syncany.operations.down.actions.ChangeFileSystemAction;
 import org.syncany.operations.down.actions.FileCreatingFileSystemAction;
+import org.syncany.operations.down.actions.FileCreatingFileSystemAction.MultiChunkFetcher;
 import org.syncany.operations.down.actions.FileSystemAction;
+import org.syncany.plugins.transfer.StorageException;
 import org.syncany.plugins.transfer.TransferManager;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Applies a given winners database to the local directory.
  * 
@@ -47,38 +70,50 @@ import org.syncany.plugins.transfer.TransferManager;
  * <ul>
  *  <li>Determine whether the local branch needs to be updated (new database versions); if so, determine
  *      local {@link FileSystemAction}s</li>
- *  <li>Determine, download and decrypt required multi chunks from remote storage from file actions
- *      (implemented in {@link #determineMultiChunksToDownload(FileVersion, MemoryDatabase, MemoryDatabase) determineMultiChunksToDownload()},
- *      and {@link #downloadAndDecryptMultiChunks(Set) downloadAndDecryptMultiChunks()})</li>
- *  <li>Apply file system actions locally, creating conflict files where necessary if local file does
- *      not match the expected file (implemented in {@link #applyFileSystemActions(List) applyFileSystemActions()} </li>
+ *  <li>Copy chunks that are available in local files, and determine the remaining required multi chunks of 
+ *      each file action (implemented in {@link #scheduleFileSystemActions(List, MemoryDatabase, LocalChunkSource) scheduleFileSystemActions()})</li>
+ *  <li>Download and decrypt required multi chunks from remote storage, and at the same time apply the file 
+ *      system actions locally, creating conflict files where necessary if local file does not match the expected 
+ *      file (implemented in {@link #applyFileSystemActions(FileSystemActionScheduler) applyFileSystemActions()} </li>
  * </ul>
  * 
+ * <p>Actions are applied as soon as their multichunks are available, instead of waiting for all multichunks
+ * to be downloaded, and independent actions (e.g. new files) are applied in parallel. The 
+ * {@link FileSystemActionScheduler} makes sure that the order defined by the {@link FileSystemActionComparator} 
+ * is still respected.
+ * 
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  */
 public class ApplyChangesOperation extends Operation {
 	private static final Logger logger = Logger.getLogger(DownOperation.class.getSimpleName());
+	private static final int DOWNLOAD_POLL_INTERVAL_MILLIS = 500;
+	private static final int APPLY_POLL_INTERVAL_MILLIS = 50;
+	private static final int APPLY_TERMINATION_TIMEOUT_SECONDS = 60;
 
 	private SqlDatabase localDatabase;
 	private Downloader downloader;
+	private OnDemandMultiChunkFetcher multiChunkFetcher;
 
 	private MemoryDatabase winnersDatabase;
 	private DownOperationResult result;
 	
 	private boolean cleanupOccurred;
 	private List<PartialFileHistory> preDeleteFileHistoriesWithLastVersion;
+	private int applyThreads;
 
 	public ApplyChangesOperation(Config config, SqlDatabase localDatabase, TransferManager transferManager, MemoryDatabase winnersDatabase,
-			DownOperationResult result, boolean cleanupOccurred, List<PartialFileHistory> preDeleteFileHistoriesWithLastVersion) {
+			DownOperationResult result, boolean cleanupOccurred, List<PartialFileHistory> preDeleteFileHistoriesWithLastVersion, int applyThreads) {
 		
 		super(config);
 		
 		this.localDatabase = localDatabase;
 		this.downloader = new Downloader(config, transferManager);
+		this.multiChunkFetcher = new OnDemandMultiChunkFetcher();
 		this.winnersDatabase = winnersDatabase;
 		this.result = result;
 		this.cleanupOccurred = cleanupOccurred;
 		this.preDeleteFileHistoriesWithLastVersion = preDeleteFileHistoriesWithLastVersion;
+		this.applyThreads = applyThreads;
 	}
 
 	@Override
@@ -95,103 +130,357 @@ public class ApplyChangesOperation extends Operation {
 			actions = actionReconciliator.determineFileSystemActions(winnersDatabase);
 		}
 
-		Set<MultiChunkId> unknownMultiChunks = determineRequiredMultiChunks(actions, winnersDatabase);
-		
-		downloader.downloadAndDecryptMultiChunks(unknownMultiChunks);
-		result.getDownloadedMultiChunks().addAll(unknownMultiChunks);
+		LocalChunkSource localChunkSource = new LocalChunkSource(config, localDatabase);
 
-		applyFileSystemActions(actions);
+		try {
+			FileSystemActionScheduler actionScheduler = scheduleFileSystemActions(actions, winnersDatabase, localChunkSource);
+			applyFileSystemActions(actionScheduler);
+		}
+		finally {
+			localChunkSource.close();
+		}
 		
 		return null;
 	}
 	
 	/**
-	 * Finds the multichunks that need to be downloaded to apply the given file system actions.
-	 * The method looks at all {@link FileCreatingFileSystemAction}s and returns their multichunks. 
+	 * Sorts the given file system actions using the {@link FileSystemActionComparator} and adds them
+	 * to a {@link FileSystemActionScheduler}, together with the multichunks they need. The method looks at 
+	 * all {@link FileCreatingFileSystemAction}s to determine the multichunks. 
+	 * 
+	 * <p>Chunks that are available in the previous local version of a file (e.g. the unchanged parts of a 
+	 * changed file) are taken from the local file using the given {@link LocalChunkSource}. Multichunks
+	 * whose chunks are all available locally are not downloaded. If a file is changed in place and
+	 * can be patched (see {@link ChangeFileSystemAction#isPatchable()}), its unchanged chunks are only 
+	 * verified, not extracted: They are copied directly from the local file when the action is applied.
+	 * If that is not possible anymore, the action fetches the missing multichunks itself, see 
+	 * {@link OnDemandMultiChunkFetcher}.
 	 */
-	private Set<MultiChunkId> determineRequiredMultiChunks(List<FileSystemAction> actions, MemoryDatabase winnersDatabase) {
-		Set<MultiChunkId> multiChunksToDownload = new HashSet<MultiChunkId>();
+	private FileSystemActionScheduler scheduleFileSystemActions(List<FileSystemAction> actions, MemoryDatabase winnersDatabase,
+			LocalChunkSource localChunkSource) throws IOException {
+
+		FileSystemActionComparator actionComparator = new FileSystemActionComparator();
+		actionComparator.sort(actions);
+
+		// Find chunks of the files to create, and copy the ones available locally
+		Map<FileSystemAction, List<ChunkChecksum>> actionChunks = new IdentityHashMap<FileSystemAction, List<ChunkChecksum>>();
+		Set<ChunkChecksum> requiredChunks = new HashSet<ChunkChecksum>();
 
 		for (FileSystemAction action : actions) {
-			if (action instanceof FileCreatingFileSystemAction) { // TODO [low] This adds ALL multichunks even though some might be available locally
-				multiChunksToDownload.addAll(determineMultiChunksToDownload(action.getFile2(), winnersDatabase));
+			if (action instanceof FileCreatingFileSystemAction) {
+				List<ChunkChecksum> fileChunks = determineFileChunks(action.getFile2(), winnersDatabase);
+
+				if (isPatchable(action)) {
+					// Only chunks that are verified in the local file are copied from there when it is patched
+					fileChunks = new ArrayList<ChunkChecksum>(fileChunks);
+					fileChunks.removeAll(localChunkSource.verifyChunks(action.getFile1(), fileChunks));
+				}
+				else if (action.getFile1() != null) {
+					localChunkSource.addLocalFile(action.getFile1());
+				}
+
+				actionChunks.put(action, fileChunks);
+				requiredChunks.addAll(fileChunks);
 			}
 		}
 
-		return multiChunksToDownload;
+		localChunkSource.extractChunks(requiredChunks);
+
+		// Schedule actions
+		FileSystemActionScheduler actionScheduler = new FileSystemActionScheduler();
+
+		for (FileSystemAction action : actions) {
+			if (action instanceof FileCreatingFileSystemAction) {
+				((FileCreatingFileSystemAction) action).setLocalChunkSource(localChunkSource);
+				((FileCreatingFileSystemAction) action).setMultiChunkFetcher(multiChunkFetcher);
+				actionScheduler.addAction(action, determineMultiChunksToDownload(actionChunks.get(action), winnersDatabase, localChunkSource));
+			}
+			else {
+				actionScheduler.addAction(action, Collections.<MultiChunkId> emptySet());
+			}
+		}
+
+		return actionScheduler;
+	}
+
+	private boolean isPatchable(FileSystemAction action) {
+		return action instanceof ChangeFileSystemAction && ((ChangeFileSystemAction) action).isPatchable();
+	}
+
+	/**
+	 * Returns the chunks of the given file version -- using the local database and given 
+	 * winners database. Returns an empty list if the file has no content.
+	 */
+	private List<ChunkChecksum> determineFileChunks(FileVersion fileVersion, MemoryDatabase winnersDatabase) {
+		if (fileVersion.getChecksum() == null) {
+			return Collections.<ChunkChecksum> emptyList();
+		}
+
+		// First: Check if we know this file locally!
+		FileContent fileContent = localDatabase.getFileContent(fileVersion.getChecksum(), true);
+
+		// Second: We don't know it locally; must be from the winners database
+		if (fileContent == null) {
+			fileContent = winnersDatabase.getContent(fileVersion.getChecksum());
+		}
+
+		if (fileContent == null) { // File can be empty!
+			return Collections.<ChunkChecksum> emptyList();
+		}
+
+		return fileContent.getChunks();
 	}
 	
 	/**
-	 * Finds the multichunks that need to be downloaded for the given file version -- using the local 
-	 * database and given winners database. Returns a set of multichunk identifiers.
+	 * Finds the multichunks that need to be downloaded for the given chunks of a file -- using the local 
+	 * database and given winners database. Chunks that are available locally are skipped. Returns a set
+	 * of multichunk identifiers.
 	 */
-	private Collection<MultiChunkId> determineMultiChunksToDownload(FileVersion fileVersion, MemoryDatabase winnersDatabase) {
+	private Collection<MultiChunkId> determineMultiChunksToDownload(List<ChunkChecksum> fileChunks, MemoryDatabase winnersDatabase,
+			LocalChunkSource localChunkSource) {
+
 		Set<MultiChunkId> multiChunksToDownload = new HashSet<MultiChunkId>();
+		List<ChunkChecksum> remoteFileChunks = new ArrayList<ChunkChecksum>();
 
-		// First: Check if we know this file locally!
-		List<MultiChunkId> multiChunkIds = localDatabase.getMultiChunkIds(fileVersion.getChecksum());
-		
-		if (multiChunkIds.size() > 0) {
-			multiChunksToDownload.addAll(multiChunkIds);
+		for (ChunkChecksum chunkChecksum : fileChunks) {
+			if (!localChunkSource.containsChunk(chunkChecksum)) {
+				remoteFileChunks.add(chunkChecksum);
+			}
 		}
-		else {
-			// Second: We don't know it locally; must be from the winners database
-			FileContent winningFileContent = winnersDatabase.getContent(fileVersion.getChecksum());			
-			boolean winningFileHasContent = winningFileContent != null;
-
-			if (winningFileHasContent) { // File can be empty!
-				List<ChunkChecksum> fileChunks = winningFileContent.getChunks(); 
-				
-				// TODO [medium] Instead of just looking for multichunks to download here, we should look for chunks in local files as well
-				// and return the chunk positions in the local files ChunkPosition (chunk123 at file12, offset 200, size 250)
-				
-				Map<ChunkChecksum, MultiChunkId> checksumsWithMultiChunkIds = localDatabase.getMultiChunkIdsByChecksums(fileChunks);
-				
-				for (ChunkChecksum chunkChecksum : fileChunks) {
-					MultiChunkId multiChunkIdForChunk = checksumsWithMultiChunkIds.get(chunkChecksum);
-					if (multiChunkIdForChunk == null) {
-						multiChunkIdForChunk = winnersDatabase.getMultiChunkIdForChunk(chunkChecksum);
-						
-						if (multiChunkIdForChunk == null) {
-							throw new RuntimeException("Cannot find multichunk for chunk "+chunkChecksum);	
-						}
-					}
-					
-					if (!multiChunksToDownload.contains(multiChunkIdForChunk)) {
-						logger.log(Level.INFO, "  + Adding multichunk " + multiChunkIdForChunk + " to download list ...");
-						multiChunksToDownload.add(multiChunkIdForChunk);
-					}
+
+		if (remoteFileChunks.isEmpty()) {
+			return multiChunksToDownload;
+		}
+
+		Map<ChunkChecksum, MultiChunkId> checksumsWithMultiChunkIds = localDatabase.getMultiChunkIdsByChecksums(remoteFileChunks);
+
+		for (ChunkChecksum chunkChecksum : remoteFileChunks) {
+			MultiChunkId multiChunkIdForChunk = checksumsWithMultiChunkIds.get(chunkChecksum);
+
+			if (multiChunkIdForChunk == null) {
+				multiChunkIdForChunk = winnersDatabase.getMultiChunkIdForChunk(chunkChecksum);
+
+				if (multiChunkIdForChunk == null) {
+					throw new RuntimeException("Cannot find multichunk for chunk " + chunkChecksum);
 				}
 			}
+
+			if (!multiChunksToDownload.contains(multiChunkIdForChunk)) {
+				logger.log(Level.INFO, "  + Adding multichunk " + multiChunkIdForChunk + " to download list ...");
+				multiChunksToDownload.add(multiChunkIdForChunk);
+			}
 		}
-		
+
 		return multiChunksToDownload;
 	}
 	
 	/**
-	 * Applies the given file system actions in a sensible order. To do that, 
-	 * the given actions are first sorted using the {@link FileSystemActionComparator} and
-	 * then executed individually using {@link FileSystemAction#execute()}.
+	 * Downloads the multichunks required by the scheduled actions in the background, and
+	 * applies the actions as soon as the scheduler allows it. Actions are executed individually
+	 * using {@link FileSystemAction#execute()} by a pool of apply threads; independent actions
+	 * (see {@link FileSystemActionScheduler}) are executed in parallel.
 	 */
-	private void applyFileSystemActions(List<FileSystemAction> actions) throws Exception {
-		// Sort
-		FileSystemActionComparator actionComparator = new FileSystemActionComparator();
-		actionComparator.sort(actions);
+	private void applyFileSystemActions(FileSystemActionScheduler actionScheduler) throws Exception {
+		final Set<MultiChunkId> unknownMultiChunks = actionScheduler.getDownloadOrder();
+		multiChunkFetcher.setScheduledMultiChunks(unknownMultiChunks);
+		final BlockingQueue<MultiChunkId> availableMultiChunks = new LinkedBlockingQueue<MultiChunkId>();
 
-		logger.log(Level.FINER, "- Applying file system actions (sorted!) ...");
+		ExecutorService downloadExecutor = createExecutor("ApplyDownload/%d", 1);
+		ExecutorService applyExecutor = createExecutor("Apply/%d", applyThreads);
+		CompletionService<FileSystemAction> applyCompletionService = new ExecutorCompletionService<FileSystemAction>(applyExecutor);
 
-		// Apply
-		for (FileSystemAction action : actions) {
+		logger.log(Level.FINER, "- Downloading multichunks and applying file system actions (sorted!) ...");
+
+		try {
+			Future<Void> downloadFuture = downloadExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						downloader.downloadAndDecryptMultiChunks(unknownMultiChunks, new DownloaderListener() {
+							@Override
+							public void onMultiChunkAvailable(MultiChunkId multiChunkId) {
+								multiChunkFetcher.setMultiChunkAvailable(multiChunkId);
+								availableMultiChunks.add(multiChunkId);
+							}
+						});
+					}
+					finally {
+						multiChunkFetcher.setScheduledDownloadsDone();
+					}
+
+					return null;
+				}
+			});
+
+			int runningActionCount = 0;
+
+			while (actionScheduler.hasPendingActions()) {
+				// Start all actions that are ready
+				FileSystemAction readyAction = actionScheduler.nextReadyAction();
+
+				while (readyAction != null) {
+					applyCompletionService.submit(new ApplyFileSystemAction(readyAction));
+					runningActionCount++;
+
+					readyAction = actionScheduler.nextReadyAction();
+				}
+
+				// Wait for running actions and/or downloaded multichunks
+				if (runningActionCount > 0) {
+					Future<FileSystemAction> appliedActionFuture = applyCompletionService.poll(APPLY_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+					if (appliedActionFuture != null) {
+						actionScheduler.setActionApplied(waitFor(appliedActionFuture));
+						runningActionCount--;
+					}
+
+					setMultiChunksAvailable(actionScheduler, availableMultiChunks);
+				}
+				else {
+					MultiChunkId availableMultiChunkId = availableMultiChunks.poll(DOWNLOAD_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+					if (availableMultiChunkId != null) {
+						actionScheduler.setMultiChunkAvailable(availableMultiChunkId);
+						setMultiChunksAvailable(actionScheduler, availableMultiChunks);
+					}
+					else if (downloadFuture.isDone() && availableMultiChunks.isEmpty()) {
+						waitFor(downloadFuture); // Throws exception if download failed
+						throw new IllegalStateException("All multichunks downloaded, but file system actions are still waiting.");
+					}
+				}
+			}
+
+			waitFor(downloadFuture);
+
+			result.getDownloadedMultiChunks().addAll(unknownMultiChunks);
+			result.getDownloadedMultiChunks().addAll(multiChunkFetcher.getFetchedMultiChunks());
+		}
+		finally {
+			downloadExecutor.shutdownNow();
+			applyExecutor.shutdown();
+
+			// Do not leave actions running in the background if an action failed
+			if (!applyExecutor.awaitTermination(APPLY_TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				logger.log(Level.WARNING, "Timeout while waiting for running file system actions to finish.");
+			}
+		}
+	}
+
+	private void setMultiChunksAvailable(FileSystemActionScheduler actionScheduler, BlockingQueue<MultiChunkId> availableMultiChunks) {
+		MultiChunkId availableMultiChunkId = availableMultiChunks.poll();
+
+		while (availableMultiChunkId != null) {
+			actionScheduler.setMultiChunkAvailable(availableMultiChunkId);
+			availableMultiChunkId = availableMultiChunks.poll();
+		}
+	}
+
+	private ExecutorService createExecutor(String nameFormat, int threads) {
+		return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactoryBuilder()
+			.setNameFormat(nameFormat)
+			.setDaemon(true)
+			.build());
+	}
+
+	private <T> T waitFor(Future<T> future) throws Exception {
+		try {
+			return future.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			else {
+				throw new RuntimeException("Downloading multichunks or applying file system actions failed.", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Downloads multichunks that were not scheduled for a file system action, but that the action
+	 * needs when it is applied, e.g. if a file cannot be patched because it was changed locally in 
+	 * the meantime. Multichunks that are scheduled for download anyway are not downloaded twice; 
+	 * the action waits for the background download instead. All other multichunks are downloaded 
+	 * and decrypted on the action's thread, one action at a time.
+	 */
+	private class OnDemandMultiChunkFetcher implements MultiChunkFetcher {
+		private Set<MultiChunkId> scheduledMultiChunkIds = Collections.emptySet();
+		private Set<MultiChunkId> availableMultiChunkIds = Collections.newSetFromMap(new ConcurrentHashMap<MultiChunkId, Boolean>());
+		private Set<MultiChunkId> fetchedMultiChunkIds = new HashSet<MultiChunkId>();
+		private volatile boolean scheduledDownloadsDone;
+
+		public void setScheduledMultiChunks(Set<MultiChunkId> scheduledMultiChunkIds) {
+			this.scheduledMultiChunkIds = scheduledMultiChunkIds;
+		}
+
+		public void setMultiChunkAvailable(MultiChunkId multiChunkId) {
+			availableMultiChunkIds.add(multiChunkId);
+		}
+
+		public void setScheduledDownloadsDone() {
+			scheduledDownloadsDone = true;
+		}
+
+		public synchronized Set<MultiChunkId> getFetchedMultiChunks() {
+			return new HashSet<MultiChunkId>(fetchedMultiChunkIds);
+		}
+
+		@Override
+		public synchronized void fetchMultiChunks(Set<MultiChunkId> multiChunkIds) throws StorageException, IOException {
+			Set<MultiChunkId> unscheduledMultiChunkIds = new HashSet<MultiChunkId>();
+
+			for (MultiChunkId multiChunkId : multiChunkIds) {
+				if (scheduledMultiChunkIds.contains(multiChunkId)) {
+					waitForScheduledMultiChunk(multiChunkId);
+				}
+				else {
+					unscheduledMultiChunkIds.add(multiChunkId);
+				}
+			}
+
+			if (unscheduledMultiChunkIds.size() > 0) {
+				downloader.downloadAndDecryptMultiChunks(unscheduledMultiChunkIds);
+				fetchedMultiChunkIds.addAll(unscheduledMultiChunkIds);
+			}
+		}
+
+		private void waitForScheduledMultiChunk(MultiChunkId multiChunkId) throws IOException {
+			try {
+				while (!availableMultiChunkIds.contains(multiChunkId)) {
+					if (scheduledDownloadsDone && !availableMultiChunkIds.contains(multiChunkId)) {
+						throw new IOException("Multichunk " + multiChunkId + " was not downloaded.");
+					}
+
+					Thread.sleep(APPLY_POLL_INTERVAL_MILLIS);
+				}
+			}
+			catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for multichunk " + multiChunkId);
+			}
+		}
+	}
+
+	/**
+	 * Executes a single file system action on an apply thread.
+	 */
+	private static class ApplyFileSystemAction implements Callable<FileSystemAction> {
+		private FileSystemAction action;
+
+		public ApplyFileSystemAction(FileSystemAction action) {
+			this.action = action;
+		}
+
+		@Override
+		public FileSystemAction call() throws Exception {
 			if (logger.isLoggable(Level.FINER)) {
 				logger.log(Level.FINER, "   +  {0}", action);
 			}
 
-			// Execute the file system action
-			
 			// Note that exceptions are not caught here, to prevent 
 			// apply-failed-delete-on-up situations.
-			
-			action.execute(); 
+
+			action.execute();
+			return action;
 		}
 	}
 }
@@ -43,9 +43,9 @@ import org.syncany.database.VectorClock;
 import org.syncany.database.dao.DatabaseXmlSerializer;
 import org.syncany.database.dao.DatabaseXmlSerializer.DatabaseReadType;
 import org.syncany.operations.AbstractTransferOperation;
+import org.syncany.operations.Downloader;
 import org.syncany.operations.cleanup.CleanupOperation;
 import org.syncany.operations.daemon.messages.DownChangesDetectedSyncExternalEvent;
-import org.syncany.operations.daemon.messages.DownDownloadFileSyncExternalEvent;
 import org.syncany.operations.daemon.messages.DownEndSyncExternalEvent;
 import org.syncany.operations.daemon.messages.DownStartSyncExternalEvent;
 import org.syncany.operations.down.DownOperationOptions.DownConflictStrategy;
@@ -72,7 +72,7 @@ import com.google.common.collect.Sets.SetView;
  *  <li>List all database versions on the remote storage using the {@link LsRemoteOperation}
  *      (implemented in {@link #listUnknownRemoteDatabases(MemoryDatabase, TransferManager) listUnknownRemoteDatabases()}</li>
  *  <li>Download unknown databases using a {@link TransferManager} (if any), skip the rest down otherwise
- *      (implemented in {@link #downloadUnknownRemoteDatabases(TransferManager, List) downloadUnknownRemoteDatabases()}</li>
+ *      (implemented in parallel by the {@link RemoteDatabaseLoader})</li>
  *  <li>Load remote database headers (branches) and compare them to the local database to determine a winner
  *      using several methods of the {@link DatabaseReconciliator}</li>
  *  <li>Determine whether the local branch conflicts with the winner branch; if so, prune conflicting
@@ -91,6 +91,7 @@ public class DownOperation extends AbstractTransferOperation {
 	private static final Logger logger = Logger.getLogger(DownOperation.class.getSimpleName());
 
 	public static final String ACTION_ID = "down";
+	private static final int DEFAULT_PARSER_THREADS = Runtime.getRuntime().availableProcessors();
 
 	private DownOperationOptions options;
 	private DownOperationResult result;
@@ -149,8 +150,8 @@ public class DownOperation extends AbstractTransferOperation {
 		DatabaseBranch localBranch = localDatabase.getLocalDatabaseBranch();
 		List<DatabaseRemoteFile> newRemoteDatabases = result.getLsRemoteResult().getUnknownRemoteDatabases();
 
-		SortedMap<File, DatabaseRemoteFile> unknownRemoteDatabasesInCache = downloadUnknownRemoteDatabases(newRemoteDatabases);
-		SortedMap<DatabaseRemoteFile, List<DatabaseVersion>> remoteDatabaseHeaders = readUnknownDatabaseVersionHeaders(unknownRemoteDatabasesInCache);
+		SortedMap<File, DatabaseRemoteFile> unknownRemoteDatabasesInCache = getUnknownRemoteDatabasesInCache(newRemoteDatabases);
+		SortedMap<DatabaseRemoteFile, List<DatabaseVersion>> remoteDatabaseHeaders = downloadAndReadUnknownDatabaseVersionHeaders(unknownRemoteDatabasesInCache);
 		Map<DatabaseVersionHeader, File> databaseVersionLocations = findDatabaseVersionLocations(remoteDatabaseHeaders, unknownRemoteDatabasesInCache);
 
 		Map<String, CleanupRemoteFile> remoteCleanupFiles = getRemoteCleanupFiles();
@@ -273,59 +274,41 @@ public class DownOperation extends AbstractTransferOperation {
 	}
 
 	/**
-	 * Downloads the previously identified new/unknown remote databases to the local cache
-	 * and returns a map with the local cache files mapped to the given remote database
-	 * files. The method additionally fires events for every database it downloads.
+	 * Determines the local cache files for the previously identified new/unknown remote databases
+	 * and returns a map with the local cache files mapped to the given remote database files.
 	 */
-	private SortedMap<File, DatabaseRemoteFile> downloadUnknownRemoteDatabases(List<DatabaseRemoteFile> unknownRemoteDatabases)
+	private SortedMap<File, DatabaseRemoteFile> getUnknownRemoteDatabasesInCache(List<DatabaseRemoteFile> unknownRemoteDatabases)
 			throws StorageException {
 
-		logger.log(Level.INFO, "Downloading unknown databases.");
-
 		SortedMap<File, DatabaseRemoteFile> unknownRemoteDatabasesInCache = new TreeMap<File, DatabaseRemoteFile>();
-		int downloadFileIndex = 0;
 
 		for (DatabaseRemoteFile remoteFile : unknownRemoteDatabases) {
 			File unknownRemoteDatabaseFileInCache = config.getCache().getDatabaseFile(remoteFile.getName());
-			DatabaseRemoteFile unknownDatabaseRemoteFile = new DatabaseRemoteFile(remoteFile.getName());
-
-			logger.log(Level.INFO, "- Downloading {0} to local cache at {1}", new Object[] { remoteFile.getName(), unknownRemoteDatabaseFileInCache });
-			eventBus.post(new DownDownloadFileSyncExternalEvent(config.getLocalDir().getAbsolutePath(), "database", ++downloadFileIndex,
-					unknownRemoteDatabases.size()));
-
-			transferManager.download(unknownDatabaseRemoteFile, unknownRemoteDatabaseFileInCache);
-
-			unknownRemoteDatabasesInCache.put(unknownRemoteDatabaseFileInCache, unknownDatabaseRemoteFile);
-			result.getDownloadedUnknownDatabases().add(remoteFile.getName());
+			unknownRemoteDatabasesInCache.put(unknownRemoteDatabaseFileInCache, new DatabaseRemoteFile(remoteFile.getName()));
 		}
 
 		return unknownRemoteDatabasesInCache;
 	}
 
 	/**
-	 * Read the given database files into individual per-user {@link DatabaseBranch}es. This method only
-	 * reads the headers from the local database files, and not the entire databases into memory.
+	 * Downloads the given database files to the local cache and reads them into individual per-user 
+	 * {@link DatabaseBranch}es, using a {@link RemoteDatabaseLoader}. This method only reads the headers 
+	 * from the local database files, and not the entire databases into memory. Downloads and parsing
+	 * run in parallel; the method fires events for every database it downloads.
 	 *
 	 * <p>The returned database branches contain only the per-client {@link DatabaseVersionHeader}s, and not
 	 * the entire stitched branches, i.e. A's database branch will only contain database version headers from A.
 	 */
-	private SortedMap<DatabaseRemoteFile, List<DatabaseVersion>> readUnknownDatabaseVersionHeaders(SortedMap<File, DatabaseRemoteFile> remoteDatabases)
-			throws IOException,
-			StorageException {
-		logger.log(Level.INFO, "Loading database headers, creating branches ...");
-
-		// Read database files
-		SortedMap<DatabaseRemoteFile, List<DatabaseVersion>> remoteDatabaseHeaders = new TreeMap<DatabaseRemoteFile, List<DatabaseVersion>>();
-
-		for (Map.Entry<File, DatabaseRemoteFile> remoteDatabaseFileEntry : remoteDatabases.entrySet()) {
-			MemoryDatabase remoteDatabase = new MemoryDatabase(); // Database cannot be reused, since these might be different clients
+	private SortedMap<DatabaseRemoteFile, List<DatabaseVersion>> downloadAndReadUnknownDatabaseVersionHeaders(
+			SortedMap<File, DatabaseRemoteFile> remoteDatabases) throws IOException, StorageException {
 
-			File remoteDatabaseFileInCache = remoteDatabaseFileEntry.getKey();
-			DatabaseRemoteFile remoteDatabaseFile = remoteDatabaseFileEntry.getValue();
+		logger.log(Level.INFO, "Downloading unknown databases, loading database headers ...");
 
-			databaseSerializer.load(remoteDatabase, remoteDatabaseFileInCache, null, null, DatabaseReadType.HEADER_ONLY); // only load headers!
+		SortedMap<DatabaseRemoteFile, List<DatabaseVersion>> remoteDatabaseHeaders = new RemoteDatabaseLoader(config, transferManager,
+				databaseSerializer, Downloader.getMaxConcurrentDownloads(config), DEFAULT_PARSER_THREADS).downloadAndReadHeaders(remoteDatabases);
 
-			remoteDatabaseHeaders.put(remoteDatabaseFile, remoteDatabase.getDatabaseVersions());
+		for (DatabaseRemoteFile remoteDatabaseFile : remoteDatabases.values()) {
+			result.getDownloadedUnknownDatabases().add(remoteDatabaseFile.getName());
 		}
 
 		return remoteDatabaseHeaders;
@@ -461,7 +444,7 @@ public class DownOperation extends AbstractTransferOperation {
 
 			if (options.isApplyChanges()) {
 				new ApplyChangesOperation(config, localDatabase, transferManager, winnersDatabase, result, cleanupOccurred,
-						preDeleteFileHistoriesWithLastVersion).execute();
+						preDeleteFileHistoriesWithLastVersion, options.getApplyThreads()).execute();
 			}
 			else {
 				logger.log(Level.INFO, "Doing nothing on the file system, because --no-apply switched on");
@@ -21,6 +21,8 @@ import org.simpleframework.xml.Element;
 import org.syncany.operations.OperationOptions;
 
 public class DownOperationOptions implements OperationOptions {
+	public static final int DEFAULT_APPLY_THREADS = Runtime.getRuntime().availableProcessors();
+
 	public enum DownConflictStrategy {
 		RENAME, ASK
 	}
@@ -31,6 +33,9 @@ public class DownOperationOptions implements OperationOptions {
 	@Element(required = false)
 	private boolean applyChanges = true;
 
+	@Element(required = false)
+	private int applyThreads = DEFAULT_APPLY_THREADS;
+
 	public DownConflictStrategy getConflictStrategy() {
 		return conflictStrategy;
 	}
@@ -45,5 +50,13 @@ public class DownOperationOptions implements OperationOptions {
 
 	public void setApplyChanges(boolean applyChanges) {
 		this.applyChanges = applyChanges;
-	}		
+	}
+
+	public int getApplyThreads() {
+		return applyThreads;
+	}
+
+	public void setApplyThreads(int applyThreads) {
+		this.applyThreads = applyThreads;
+	}
 }
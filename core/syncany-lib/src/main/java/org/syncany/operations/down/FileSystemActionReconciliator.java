@@ -137,7 +137,8 @@ public class FileSystemActionReconciliator {
 		this.config = config; 
 		this.changeSet = changeSet;
 		this.localDatabase = new SqlDatabase(config);
-		this.fileVersionComparator = new FileVersionComparator(config.getLocalDir(), config.getChunker().getChecksumAlgorithm());
+		this.fileVersionComparator = new FileVersionComparator(config.getLocalDir(), config.getChunker().getChecksumAlgorithm(),
+				config.getFileChecksumCache());
 	}
 	
 	public List<FileSystemAction> determineFileSystemActions(MemoryDatabase winnersDatabase) throws Exception {
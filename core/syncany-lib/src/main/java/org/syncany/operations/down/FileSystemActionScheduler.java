@@ -0,0 +1,372 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com> 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.operations.down;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.syncany.database.FileVersion.FileType;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.operations.down.actions.FileCreatingFileSystemAction;
+import org.syncany.operations.down.actions.FileSystemAction;
+
+/**
+ * Schedules {@link FileSystemAction}s so that they can be applied while the multichunks
+ * they depend on are still being downloaded, and so that independent actions can be applied
+ * in parallel. Actions must be added in the order produced by the {@link FileSystemActionComparator}. 
+ * 
+ * <p>The scheduler keeps the ordering constraints of the comparator, i.e. it treats the actions
+ * as a dependency graph: Actions that create a file with content (new/changed files) do not depend 
+ * on each other and may be applied in any order (or at the same time), as soon as all of their 
+ * multichunks are available. All other actions (deletions, folders, symlinks, renames, attribute 
+ * changes) act as barriers: They depend on all actions before them, and all actions after them
+ * depend on them. This guarantees, for instance, that parent folders are created before the files 
+ * in them, and that folders are deleted after the files in them have been moved. In addition, an 
+ * action depends on all earlier actions touching the same path. Paths are compared case-insensitively, 
+ * so that this also holds on case-insensitive file systems.
+ * 
+ * <p>An action returned by {@link #nextReadyAction()} is considered running until it is
+ * marked as applied using {@link #setActionApplied(FileSystemAction)}.
+ * 
+ * <p>The scheduler also determines the order in which the multichunks should be downloaded:
+ * Following the barriers, multichunks that complete the most actions are downloaded first
+ * (see {@link #getDownloadOrder()}).
+ * 
+ * <p>This class is not thread-safe.
+ * 
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class FileSystemActionScheduler {
+	private List<ScheduledAction> actions;
+	private Map<FileSystemAction, ScheduledAction> scheduledActions;
+	private List<List<ScheduledAction>> segments;
+	private List<Integer> segmentPendingCounts;
+	private Map<MultiChunkId, List<ScheduledAction>> waitingActions;
+	private Map<String, Queue<ScheduledAction>> pathQueues;
+
+	private Set<MultiChunkId> availableMultiChunks;
+	private TreeSet<ScheduledAction> readyActions;
+	private boolean started;
+	private int currentSegment;
+	private int pendingActionCount;
+
+	public FileSystemActionScheduler() {
+		this.actions = new ArrayList<ScheduledAction>();
+		this.scheduledActions = new IdentityHashMap<FileSystemAction, ScheduledAction>();
+		this.segments = new ArrayList<List<ScheduledAction>>();
+		this.segmentPendingCounts = new ArrayList<Integer>();
+		this.waitingActions = new HashMap<MultiChunkId, List<ScheduledAction>>();
+		this.pathQueues = new HashMap<String, Queue<ScheduledAction>>();
+
+		this.availableMultiChunks = new HashSet<MultiChunkId>();
+		this.readyActions = new TreeSet<ScheduledAction>();
+		this.started = false;
+		this.currentSegment = 0;
+		this.pendingActionCount = 0;
+	}
+
+	/**
+	 * Adds an action to the scheduler. Actions must be added in the order
+	 * in which they would be applied sequentially.
+	 * 
+	 * @param action File system action to schedule
+	 * @param requiredMultiChunkIds Multichunks that must be available before the action can be applied
+	 */
+	public void addAction(FileSystemAction action, Collection<MultiChunkId> requiredMultiChunkIds) {
+		if (started) {
+			throw new IllegalStateException("Cannot add actions after scheduling has started.");
+		}
+
+		boolean reorderable = isReorderable(action);
+		boolean newSegment = segments.isEmpty() || !reorderable || !actions.get(actions.size() - 1).reorderable;
+
+		if (newSegment) {
+			segments.add(new ArrayList<ScheduledAction>());
+			segmentPendingCounts.add(0);
+		}
+
+		ScheduledAction scheduledAction = new ScheduledAction(action, actions.size(), segments.size() - 1, reorderable);
+		
+		for (MultiChunkId multiChunkId : requiredMultiChunkIds) {
+			if (!availableMultiChunks.contains(multiChunkId) && scheduledAction.missingMultiChunks.add(multiChunkId)) {
+				getOrCreateWaitingActions(multiChunkId).add(scheduledAction);
+			}
+		}
+
+		for (String path : scheduledAction.paths) {
+			getOrCreatePathQueue(path).add(scheduledAction);
+		}
+
+		actions.add(scheduledAction);
+		scheduledActions.put(action, scheduledAction);
+		segments.get(scheduledAction.segment).add(scheduledAction);
+		segmentPendingCounts.set(scheduledAction.segment, segmentPendingCounts.get(scheduledAction.segment) + 1);
+		pendingActionCount++;
+	}
+
+	/**
+	 * Returns the multichunks required by the scheduled actions, in the order in
+	 * which they should be downloaded.
+	 * 
+	 * <p>Segments (see {@link FileSystemActionScheduler}) are handled in order. Within a
+	 * segment, the action that needs the fewest additional multichunks is picked first
+	 * (greedy), so that every downloaded multichunk unblocks as many actions as possible.
+	 */
+	public Set<MultiChunkId> getDownloadOrder() {
+		Set<MultiChunkId> downloadOrder = new LinkedHashSet<MultiChunkId>();
+
+		for (List<ScheduledAction> segment : segments) {
+			PriorityQueue<DownloadCandidate> candidates = new PriorityQueue<DownloadCandidate>();
+
+			for (ScheduledAction action : segment) {
+				if (action.missingMultiChunks.size() > 0) {
+					candidates.add(new DownloadCandidate(action, action.missingMultiChunks.size()));
+				}
+			}
+
+			while (!candidates.isEmpty()) {
+				DownloadCandidate candidate = candidates.poll();
+				int missingCount = countMissing(candidate.action, downloadOrder);
+
+				// Counts only decrease, so a candidate whose count has not changed is the best choice
+				if (missingCount < candidate.missingCount) {
+					if (missingCount > 0) {
+						candidates.add(new DownloadCandidate(candidate.action, missingCount));
+					}
+				}
+				else {
+					downloadOrder.addAll(candidate.action.missingMultiChunks);
+				}
+			}
+		}
+
+		return downloadOrder;
+	}
+
+	/**
+	 * Marks the given multichunk as available, i.e. downloaded and decrypted
+	 * to the local cache.
+	 */
+	public void setMultiChunkAvailable(MultiChunkId multiChunkId) {
+		if (!availableMultiChunks.add(multiChunkId)) {
+			return;
+		}
+
+		List<ScheduledAction> actionsWaitingForMultiChunk = waitingActions.remove(multiChunkId);
+
+		if (actionsWaitingForMultiChunk != null) {
+			for (ScheduledAction action : actionsWaitingForMultiChunk) {
+				action.missingMultiChunks.remove(multiChunkId);
+				updateReady(action);
+			}
+		}
+	}
+
+	/**
+	 * Returns the next action that can be applied, or <tt>null</tt> if all pending actions
+	 * are either running or still waiting for multichunks or other actions. The returned 
+	 * action is considered running until {@link #setActionApplied(FileSystemAction)} is called.
+	 */
+	public FileSystemAction nextReadyAction() {
+		if (!started) {
+			started = true;
+			startSegment(0);
+		}
+
+		ScheduledAction nextAction = readyActions.pollFirst();
+
+		if (nextAction == null) {
+			return null;
+		}
+
+		nextAction.running = true;
+		return nextAction.action;
+	}
+
+	/**
+	 * Marks a running action (as returned by {@link #nextReadyAction()}) as applied, and 
+	 * thereby possibly unblocks other actions.
+	 */
+	public void setActionApplied(FileSystemAction action) {
+		ScheduledAction scheduledAction = scheduledActions.get(action);
+
+		if (scheduledAction == null || !scheduledAction.running) {
+			throw new IllegalStateException("Action is not running: " + action);
+		}
+
+		scheduledAction.running = false;
+		markApplied(scheduledAction);
+	}
+
+	public boolean hasPendingActions() {
+		return pendingActionCount > 0;
+	}
+
+	private void markApplied(ScheduledAction action) {
+		action.applied = true;
+		pendingActionCount--;
+
+		for (String path : action.paths) {
+			Queue<ScheduledAction> pathQueue = pathQueues.get(path);
+			pathQueue.remove();
+
+			if (pathQueue.isEmpty()) {
+				pathQueues.remove(path);
+			}
+			else {
+				updateReady(pathQueue.peek());
+			}
+		}
+
+		int segmentPendingCount = segmentPendingCounts.get(action.segment) - 1;
+		segmentPendingCounts.set(action.segment, segmentPendingCount);
+
+		if (segmentPendingCount == 0) {
+			startSegment(currentSegment + 1);
+		}
+	}
+
+	private void startSegment(int segmentIndex) {
+		currentSegment = segmentIndex;
+
+		if (segmentIndex < segments.size()) {
+			for (ScheduledAction action : segments.get(segmentIndex)) {
+				updateReady(action);
+			}
+		}
+	}
+
+	private void updateReady(ScheduledAction action) {
+		boolean ready = started && !action.applied && !action.running && action.segment == currentSegment && action.missingMultiChunks.isEmpty() && isFirstForAllPaths(action);
+
+		if (ready) {
+			readyActions.add(action);
+		}
+	}
+
+	private boolean isFirstForAllPaths(ScheduledAction action) {
+		for (String path : action.paths) {
+			if (pathQueues.get(path).peek() != action) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private int countMissing(ScheduledAction action, Set<MultiChunkId> downloadOrder) {
+		int missingCount = 0;
+
+		for (MultiChunkId multiChunkId : action.missingMultiChunks) {
+			if (!downloadOrder.contains(multiChunkId)) {
+				missingCount++;
+			}
+		}
+
+		return missingCount;
+	}
+
+	private boolean isReorderable(FileSystemAction action) {
+		return action instanceof FileCreatingFileSystemAction && action.getType() == FileType.FILE;
+	}
+
+	private List<ScheduledAction> getOrCreateWaitingActions(MultiChunkId multiChunkId) {
+		List<ScheduledAction> actionsWaitingForMultiChunk = waitingActions.get(multiChunkId);
+
+		if (actionsWaitingForMultiChunk == null) {
+			actionsWaitingForMultiChunk = new ArrayList<ScheduledAction>();
+			waitingActions.put(multiChunkId, actionsWaitingForMultiChunk);
+		}
+
+		return actionsWaitingForMultiChunk;
+	}
+
+	private Queue<ScheduledAction> getOrCreatePathQueue(String path) {
+		Queue<ScheduledAction> pathQueue = pathQueues.get(path);
+
+		if (pathQueue == null) {
+			pathQueue = new ArrayDeque<ScheduledAction>();
+			pathQueues.put(path, pathQueue);
+		}
+
+		return pathQueue;
+	}
+
+	private static class ScheduledAction implements Comparable<ScheduledAction> {
+		private FileSystemAction action;
+		private int index;
+		private int segment;
+		private boolean reorderable;
+		private Set<String> paths;
+		private Set<MultiChunkId> missingMultiChunks;
+		private boolean running;
+		private boolean applied;
+
+		public ScheduledAction(FileSystemAction action, int index, int segment, boolean reorderable) {
+			this.action = action;
+			this.index = index;
+			this.segment = segment;
+			this.reorderable = reorderable;
+			this.paths = new HashSet<String>();
+			this.missingMultiChunks = new HashSet<MultiChunkId>();
+			this.running = false;
+			this.applied = false;
+
+			if (action.getFile1() != null) {
+				paths.add(action.getFile1().getPath().toLowerCase(Locale.ROOT));
+			}
+
+			if (action.getFile2() != null) {
+				paths.add(action.getFile2().getPath().toLowerCase(Locale.ROOT));
+			}
+		}
+
+		@Override
+		public int compareTo(ScheduledAction other) {
+			return Integer.compare(index, other.index);
+		}
+	}
+
+	private static class DownloadCandidate implements Comparable<DownloadCandidate> {
+		private ScheduledAction action;
+		private int missingCount;
+
+		public DownloadCandidate(ScheduledAction action, int missingCount) {
+			this.action = action;
+			this.missingCount = missingCount;
+		}
+
+		@Override
+		public int compareTo(DownloadCandidate other) {
+			int missingCountCompare = Integer.compare(missingCount, other.missingCount);
+			return (missingCountCompare != 0) ? missingCountCompare : action.compareTo(other.action);
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.operations.down;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.syncany.config.Config;
+import org.syncany.config.LocalEventBus;
+import org.syncany.database.DatabaseVersion;
+import org.syncany.database.MemoryDatabase;
+import org.syncany.database.dao.DatabaseXmlSerializer;
+import org.syncany.database.dao.DatabaseXmlSerializer.DatabaseReadType;
+import org.syncany.operations.daemon.messages.DownDownloadFileSyncExternalEvent;
+import org.syncany.plugins.transfer.StorageException;
+import org.syncany.plugins.transfer.TransferManager;
+import org.syncany.plugins.transfer.files.DatabaseRemoteFile;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Downloads unknown remote database files to the local cache and reads their 
+ * database version headers. This is the first step of the {@link DownOperation}.
+ * 
+ * <p>Downloading and parsing is pipelined: Database files are downloaded by a pool of
+ * download threads, and each downloaded file is immediately passed to a pool of parser
+ * threads, so that network and CPU work overlap. The parsers themselves are reused
+ * by the {@link DatabaseXmlSerializer}. 
+ * 
+ * <p>Regardless of the order in which downloads and parsers finish, the result is a
+ * sorted map, so that the database branches are always populated in the same order.
+ * If one of the files fails to download or parse, no new downloads are started, and
+ * the first failure is rethrown after all running tasks have finished.
+ * 
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class RemoteDatabaseLoader {
+	private static final Logger logger = Logger.getLogger(RemoteDatabaseLoader.class.getSimpleName());
+	private static final int TERMINATION_TIMEOUT_SECONDS = 10;
+
+	private Config config;
+	private TransferManager transferManager;
+	private DatabaseXmlSerializer databaseSerializer;
+	private LocalEventBus eventBus;
+	private int downloadThreads;
+	private int parserThreads;
+
+	public RemoteDatabaseLoader(Config config, TransferManager transferManager, DatabaseXmlSerializer databaseSerializer, int downloadThreads,
+			int parserThreads) {
+
+		this.config = config;
+		this.transferManager = transferManager;
+		this.databaseSerializer = databaseSerializer;
+		this.eventBus = LocalEventBus.getInstance();
+		this.downloadThreads = Math.max(1, downloadThreads);
+		this.parserThreads = Math.max(1, parserThreads);
+	}
+
+	/**
+	 * Downloads the given remote database files to the given local cache files, and reads
+	 * their database version headers. The method fires an event for every database it
+	 * starts to download.
+	 * 
+	 * <p>The returned database versions only contain the headers, and not the entire databases.
+	 */
+	public SortedMap<DatabaseRemoteFile, List<DatabaseVersion>> downloadAndReadHeaders(SortedMap<File, DatabaseRemoteFile> remoteDatabases)
+			throws StorageException, IOException {
+
+		SortedMap<DatabaseRemoteFile, List<DatabaseVersion>> remoteDatabaseHeaders = new TreeMap<DatabaseRemoteFile, List<DatabaseVersion>>();
+
+		if (remoteDatabases.isEmpty()) {
+			return remoteDatabaseHeaders;
+		}
+
+		// Connect once on this thread; transfer managers may lazily initialize on connect()
+		transferManager.connect();
+
+		ExecutorService downloadExecutor = createExecutor("DownloadDB/%d", Math.min(downloadThreads, remoteDatabases.size()));
+		ExecutorService parserExecutor = createExecutor("ParseDB/%d", Math.min(parserThreads, remoteDatabases.size()));
+
+		CompletionService<File> downloadCompletionService = new ExecutorCompletionService<File>(downloadExecutor);
+		List<Future<?>> parsers = new ArrayList<Future<?>>();
+
+		DownloadProgress downloadProgress = new DownloadProgress(remoteDatabases.size());
+		AtomicBoolean failed = new AtomicBoolean(false);
+		Throwable firstFailure = null;
+
+		try {
+			for (Map.Entry<File, DatabaseRemoteFile> remoteDatabase : remoteDatabases.entrySet()) {
+				downloadCompletionService.submit(new DownloadDatabase(remoteDatabase.getKey(), remoteDatabase.getValue(), downloadProgress, failed));
+			}
+
+			for (int i = 0; i < remoteDatabases.size(); i++) {
+				try {
+					File databaseFileInCache = downloadCompletionService.take().get();
+
+					if (databaseFileInCache != null) {
+						DatabaseRemoteFile remoteDatabaseFile = remoteDatabases.get(databaseFileInCache);
+						parsers.add(parserExecutor.submit(new ReadDatabaseHeaders(databaseFileInCache, remoteDatabaseFile, remoteDatabaseHeaders, failed)));
+					}
+				}
+				catch (ExecutionException e) {
+					failed.set(true);
+					firstFailure = (firstFailure == null) ? e.getCause() : firstFailure;
+				}
+			}
+
+			for (Future<?> parser : parsers) {
+				try {
+					parser.get();
+				}
+				catch (ExecutionException e) {
+					firstFailure = (firstFailure == null) ? e.getCause() : firstFailure;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			failed.set(true);
+
+			// Stop queued and running tasks, so they do not keep writing to the cache
+			stopExecutors(downloadExecutor, parserExecutor);
+
+			throw new InterruptedIOException("Interrupted while downloading databases.");
+		}
+		finally {
+			downloadExecutor.shutdown();
+			parserExecutor.shutdown();
+		}
+
+		throwFailure(firstFailure);
+		return remoteDatabaseHeaders;
+	}
+
+	private void throwFailure(Throwable firstFailure) throws StorageException, IOException {
+		if (firstFailure instanceof StorageException) {
+			throw (StorageException) firstFailure;
+		}
+		else if (firstFailure instanceof IOException) {
+			throw (IOException) firstFailure;
+		}
+		else if (firstFailure != null) {
+			throw new IOException("Downloading/reading databases failed.", firstFailure);
+		}
+	}
+
+	private ExecutorService createExecutor(String nameFormat, int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+			.setNameFormat(nameFormat)
+			.setDaemon(true)
+			.build());
+	}
+
+	/**
+	 * Stops the given executors after the calling thread was interrupted: Queued tasks are
+	 * dropped, running tasks are interrupted, and the method waits until they have stopped,
+	 * so that they do not write to the cache after the caller gave up. Waiting is limited to
+	 * {@link #TERMINATION_TIMEOUT_SECONDS} seconds; tasks that do not react to interrupts
+	 * (e.g. transfers blocked in a plugin) may still be running after that.
+	 */
+	private void stopExecutors(ExecutorService... executors) {
+		for (ExecutorService executor : executors) {
+			executor.shutdownNow();
+		}
+
+		try {
+			for (ExecutorService executor : executors) {
+				if (!executor.awaitTermination(TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+					logger.log(Level.WARNING, "Timeout while waiting for interrupted tasks to stop.");
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Posts a download event for every started download. Events are numbered
+	 * in the order in which downloads start.
+	 */
+	private class DownloadProgress {
+		private int databaseNumber;
+		private int totalCount;
+
+		public DownloadProgress(int totalCount) {
+			this.databaseNumber = 0;
+			this.totalCount = totalCount;
+		}
+
+		public synchronized void onDownloadStart() {
+			databaseNumber++;
+			eventBus.post(new DownDownloadFileSyncExternalEvent(config.getLocalDir().getAbsolutePath(), "database", databaseNumber, totalCount));
+		}
+	}
+
+	/**
+	 * Downloads a database file to the local cache. Returns the local file if it was
+	 * downloaded, or <tt>null</tt> if it was skipped due to an earlier failure.
+	 */
+	private class DownloadDatabase implements Callable<File> {
+		private File databaseFileInCache;
+		private DatabaseRemoteFile remoteDatabaseFile;
+		private DownloadProgress downloadProgress;
+		private AtomicBoolean failed;
+
+		public DownloadDatabase(File databaseFileInCache, DatabaseRemoteFile remoteDatabaseFile, DownloadProgress downloadProgress,
+				AtomicBoolean failed) {
+
+			this.databaseFileInCache = databaseFileInCache;
+			this.remoteDatabaseFile = remoteDatabaseFile;
+			this.downloadProgress = downloadProgress;
+			this.failed = failed;
+		}
+
+		@Override
+		public File call() throws Exception {
+			if (failed.get()) {
+				return null;
+			}
+
+			logger.log(Level.INFO, "- Downloading {0} to local cache at {1}", new Object[] { remoteDatabaseFile.getName(), databaseFileInCache });
+			downloadProgress.onDownloadStart();
+
+			try {
+				transferManager.download(remoteDatabaseFile, databaseFileInCache);
+				return databaseFileInCache;
+			}
+			catch (StorageException | RuntimeException e) {
+				failed.set(true);
+				databaseFileInCache.delete();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Reads the database version headers of a downloaded database file and adds 
+	 * them to the shared result map.
+	 */
+	private class ReadDatabaseHeaders implements Callable<Void> {
+		private File databaseFileInCache;
+		private DatabaseRemoteFile remoteDatabaseFile;
+		private Map<DatabaseRemoteFile, List<DatabaseVersion>> remoteDatabaseHeaders;
+		private AtomicBoolean failed;
+
+		public ReadDatabaseHeaders(File databaseFileInCache, DatabaseRemoteFile remoteDatabaseFile,
+				Map<DatabaseRemoteFile, List<DatabaseVersion>> remoteDatabaseHeaders, AtomicBoolean failed) {
+
+			this.databaseFileInCache = databaseFileInCache;
+			this.remoteDatabaseFile = remoteDatabaseFile;
+			this.remoteDatabaseHeaders = remoteDatabaseHeaders;
+			this.failed = failed;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			if (failed.get()) {
+				return null;
+			}
+
+			try {
+				MemoryDatabase remoteDatabase = new MemoryDatabase(); // Database cannot be reused, since these might be different clients
+				databaseSerializer.load(remoteDatabase, databaseFileInCache, null, null, DatabaseReadType.HEADER_ONLY); // only load headers!
+
+				synchronized (remoteDatabaseHeaders) {
+					remoteDatabaseHeaders.put(remoteDatabaseFile, remoteDatabase.getDatabaseVersions());
+				}
+
+				return null;
+			}
+			catch (Exception e) {
+				failed.set(true);
+				throw e;
+			}
+		}
+	}
+}
@@ -28,6 +28,14 @@ public class ChangeFileSystemAction extends FileCreatingFileSystemAction {
 	public ChangeFileSystemAction(Config config, FileVersion fromFileVersion, FileVersion toFileVersion, MemoryDatabase winningDatabase) {
 		super(config, winningDatabase, fromFileVersion, toFileVersion);
 	}
+
+	/**
+	 * Returns whether this action patches the original file to the target file, 
+	 * if the original file matches its expected version when the action is executed.
+	 */
+	public boolean isPatchable() {
+		return fileVersion1.getPath().equals(fileVersion2.getPath()) && canPatchFile(fileVersion1, fileVersion2);
+	}
 	
 	@Override
 	public FileSystemActionResult execute() throws Exception {
@@ -38,8 +46,17 @@ public class ChangeFileSystemAction extends FileCreatingFileSystemAction {
 		boolean toFileMatches = toFileExists && fileAsExpected(fileVersion2);
 		
 		boolean filesAtSameLocation = fileVersion1.getPath().equals(fileVersion2.getPath());
+		boolean filePatched = fromFileMatches && !toFileMatches && filesAtSameLocation && patchFile(fileVersion1, fileVersion2);
 
-		if (fromFileMatches && !toFileMatches) { // Normal case	
+		if (!filePatched && !toFileMatches && isPatchable()) {
+			// Before the original file is touched; its chunks are needed to create the target file
+			fetchChunks(fileVersion1, fileVersion2);
+		}
+
+		if (filePatched) {
+			logger.log(Level.INFO, "     - (0) Original file matches, target file at the same location: patched original file to target file at: "+fileVersion2);
+		}
+		else if (fromFileMatches && !toFileMatches) { // Normal case	
 			// Original file matches, so we can delete it
 			// Create conflict file for winning file, if it exists
 			if (!toFileExists) {
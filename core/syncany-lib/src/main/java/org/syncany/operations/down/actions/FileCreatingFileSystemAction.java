@@ -18,21 +18,55 @@
 package org.syncany.operations.down.actions;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 
 import org.syncany.config.Config;
+import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.database.FileContent;
 import org.syncany.database.FileVersion;
+import org.syncany.database.FileVersion.FileStatus;
 import org.syncany.database.FileVersion.FileType;
 import org.syncany.database.MemoryDatabase;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
 import org.syncany.database.SqlDatabase;
 import org.syncany.operations.Assembler;
+import org.syncany.operations.LocalChunkSource;
+import org.syncany.plugins.transfer.StorageException;
 import org.syncany.util.NormalizedPath;
 
 public abstract class FileCreatingFileSystemAction extends FileSystemAction {
+	private LocalChunkSource localChunkSource;
+	private MultiChunkFetcher multiChunkFetcher;
+
 	public FileCreatingFileSystemAction(Config config, MemoryDatabase winningDatabase, FileVersion file1, FileVersion file2) {
 		super(config, winningDatabase, file1, file2);				
 	}
 
+	/**
+	 * Sets a source for chunks that are available in local files. If set, the 
+	 * {@link Assembler} takes these chunks from there instead of from the multichunks. 
+	 */
+	public void setLocalChunkSource(LocalChunkSource localChunkSource) {
+		this.localChunkSource = localChunkSource;
+	}
+
+	/**
+	 * Sets a fetcher for multichunks that were not scheduled for this action, but that 
+	 * are needed if a file cannot be patched as planned (see {@link #fetchChunks(FileVersion, FileVersion)}).
+	 */
+	public void setMultiChunkFetcher(MultiChunkFetcher multiChunkFetcher) {
+		this.multiChunkFetcher = multiChunkFetcher;
+	}
+
 	protected void createFileFolderOrSymlink(FileVersion reconstructedFileVersion) throws Exception {
 		if (reconstructedFileVersion.getType() == FileType.FILE) {
 			createFile(reconstructedFileVersion);
@@ -77,7 +111,7 @@ public abstract class FileCreatingFileSystemAction extends FileSystemAction {
 	
 	protected File assembleFileToCache(FileVersion reconstructedFileVersion) throws Exception {
 		SqlDatabase localDatabase = new SqlDatabase(config);
-		Assembler assembler = new Assembler(config, localDatabase, winningDatabase);
+		Assembler assembler = new Assembler(config, localDatabase, winningDatabase, localChunkSource);
 
 		File reconstructedFileInCache = assembler.assembleToCache(reconstructedFileVersion);
 		 
@@ -86,4 +120,137 @@ public abstract class FileCreatingFileSystemAction extends FileSystemAction {
 		
 		return reconstructedFileInCache;
 	}	
+
+	/**
+	 * Patches the local file of the given local file version, so that it matches the given target
+	 * file version. The local file must match the local file version. 
+	 * 
+	 * <p>Instead of assembling the entire file from the multichunks, the target version is assembled
+	 * by copying all unchanged chunks from the local file (see
+	 * {@link Assembler#assembleInPlace(FileVersion, File, FileVersion) assembleInPlace()}). The
+	 * patched file's checksum is verified, and then the file is atomically moved over the local file.
+	 * 
+	 * @return Returns <tt>true</tt> if the file was patched, or <tt>false</tt> if it could not be 
+	 *         patched. In the latter case, the local file is left untouched.
+	 */
+	protected boolean patchFile(FileVersion localFileVersion, FileVersion targetFileVersion) {
+		if (!canPatchFile(localFileVersion, targetFileVersion)) {
+			return false;
+		}
+
+		File localFile = getAbsolutePathFile(localFileVersion.getPath());
+		File patchedFile = null;
+
+		try {
+			SqlDatabase localDatabase = new SqlDatabase(config);
+			Assembler assembler = new Assembler(config, localDatabase, winningDatabase, localChunkSource);
+
+			patchedFile = assembler.assembleInPlace(targetFileVersion, localFile, localFileVersion);
+
+			setFileAttributes(targetFileVersion, patchedFile);
+			setLastModified(targetFileVersion, patchedFile);
+
+			try {
+				Files.move(patchedFile.toPath(), localFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(patchedFile.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			return true;
+		}
+		catch (Exception e) {
+			logger.log(Level.INFO, "     - Cannot patch file " + localFile + ", creating it instead.", e);
+
+			if (patchedFile != null) {
+				patchedFile.delete();
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * Returns whether the local file of the given local file version can be patched to the 
+	 * given target file version, see {@link #patchFile(FileVersion, FileVersion) patchFile()}.
+	 */
+	protected boolean canPatchFile(FileVersion localFileVersion, FileVersion targetFileVersion) {
+		return localFileVersion.getType() == FileType.FILE && targetFileVersion.getType() == FileType.FILE
+				&& targetFileVersion.getStatus() != FileStatus.DELETED && localFileVersion.getChecksum() != null
+				&& targetFileVersion.getChecksum() != null;
+	}
+
+	/**
+	 * Makes the chunks of the target file version available to the {@link Assembler}. This is only 
+	 * necessary if the file was meant to be patched, but could not be: The chunks of files to be patched 
+	 * are not extracted before the actions are applied, and their multichunks are not downloaded.
+	 * 
+	 * <p>Chunks that are still available in the local file of the given local file version are added
+	 * to the local chunk source. If the local file has changed since the actions were scheduled 
+	 * (e.g. in case of a conflict), the multichunks of the remaining chunks are fetched using the 
+	 * {@link MultiChunkFetcher}.
+	 */
+	protected void fetchChunks(FileVersion localFileVersion, FileVersion targetFileVersion) throws StorageException, IOException {
+		if (localChunkSource == null || !canPatchFile(localFileVersion, targetFileVersion)) {
+			return;
+		}
+
+		SqlDatabase localDatabase = new SqlDatabase(config);
+		FileContent targetFileContent = localDatabase.getFileContent(targetFileVersion.getChecksum(), true);
+
+		if (targetFileContent == null) {
+			targetFileContent = winningDatabase.getContent(targetFileVersion.getChecksum());
+		}
+
+		if (targetFileContent != null) {
+			localChunkSource.addLocalFile(localFileVersion);
+			localChunkSource.extractChunks(targetFileContent.getChunks());
+
+			if (multiChunkFetcher != null) {
+				fetchMultiChunks(localDatabase, targetFileContent);
+			}
+		}
+	}
+
+	private void fetchMultiChunks(SqlDatabase localDatabase, FileContent targetFileContent) throws StorageException, IOException {
+		List<ChunkChecksum> missingChunks = new ArrayList<ChunkChecksum>();
+
+		for (ChunkChecksum chunkChecksum : targetFileContent.getChunks()) {
+			if (!localChunkSource.containsChunk(chunkChecksum)) {
+				missingChunks.add(chunkChecksum);
+			}
+		}
+
+		if (missingChunks.isEmpty()) {
+			return;
+		}
+
+		Map<ChunkChecksum, MultiChunkId> checksumsWithMultiChunkIds = localDatabase.getMultiChunkIdsByChecksums(missingChunks);
+		Set<MultiChunkId> multiChunkIds = new HashSet<MultiChunkId>();
+
+		for (ChunkChecksum chunkChecksum : missingChunks) {
+			MultiChunkId multiChunkId = checksumsWithMultiChunkIds.get(chunkChecksum);
+
+			if (multiChunkId == null) {
+				multiChunkId = winningDatabase.getMultiChunkIdForChunk(chunkChecksum);
+
+				if (multiChunkId == null) {
+					throw new IOException("Cannot find multichunk for chunk " + chunkChecksum);
+				}
+			}
+
+			multiChunkIds.add(multiChunkId);
+		}
+
+		logger.log(Level.INFO, "     - Local chunks not available, fetching " + multiChunkIds.size() + " multichunk(s) for " + targetFileContent);
+		multiChunkFetcher.fetchMultiChunks(multiChunkIds);
+	}
+
+	/**
+	 * Fetches multichunks on demand, i.e. while the file system actions are applied.
+	 * Fetched multichunks must be decrypted in the local cache when the method returns.
+	 */
+	public interface MultiChunkFetcher {
+		public void fetchMultiChunks(Set<MultiChunkId> multiChunkIds) throws StorageException, IOException;
+	}
 }
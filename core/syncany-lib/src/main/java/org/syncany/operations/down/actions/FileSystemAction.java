@@ -71,7 +71,8 @@ public abstract class FileSystemAction {
 		this.winningDatabase = winningDatabase;
 		this.fileVersion1 = file1;
 		this.fileVersion2 = file2;
-		this.fileVersionHelper = new FileVersionComparator(config.getLocalDir(), config.getChunker().getChecksumAlgorithm());
+		this.fileVersionHelper = new FileVersionComparator(config.getLocalDir(), config.getChunker().getChecksumAlgorithm(),
+				config.getFileChecksumCache());
 	}
 
 	public FileVersion getFile1() {
@@ -212,7 +213,8 @@ public abstract class FileSystemAction {
 			logger.log(Level.INFO, "     - Creating folder at " + targetDir.toFile() + " ...");
 			boolean targetDirCreated = targetDir.toFile().mkdirs();
 
-			if (!targetDirCreated) {
+			// Folder might have been created concurrently by another action
+			if (!targetDirCreated && !FileUtil.isDirectory(targetDir.toFile())) {
 				throw new Exception("Cannot create target dir: " + targetDir);
 			}
 		}
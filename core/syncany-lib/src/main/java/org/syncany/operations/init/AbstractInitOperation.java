@@ -127,10 +127,11 @@ public abstract class AbstractInitOperation extends Operation {
 		TransferManager transferManager = plugin.createTransferManager(transferSettings, config);
 
 		// constructor is not visible and config seems to be null at this point, hence we cannot use the build method here
-		Constructor<TransferManagerBuilder> tmbConstructor = TransferManagerBuilder.class.getDeclaredConstructor(Config.class, TransferManager.class);
+		Constructor<TransferManagerBuilder> tmbConstructor = TransferManagerBuilder.class.getDeclaredConstructor(Config.class, TransferManager.class,
+				TransferManager.class);
 		tmbConstructor.setAccessible(true);
 
-		return tmbConstructor.newInstance(config, transferManager)
+		return tmbConstructor.newInstance(config, transferManager, transferManager)
 						.withFeature(ReadAfterWriteConsistent.class)
 						.asDefault();
 	}
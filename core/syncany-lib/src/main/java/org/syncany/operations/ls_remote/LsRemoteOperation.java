@@ -77,7 +77,10 @@ public class LsRemoteOperation extends Operation {
 		List<DatabaseRemoteFile> knownDatabases = localDatabase.getKnownDatabases();
 		List<DatabaseRemoteFile> unknownRemoteDatabases = listUnknownRemoteDatabases(transferManager, knownDatabases);
 
-		transferManager.disconnect();
+		// Only disconnect if we created the transfer manager ourselves
+		if (loadedTransferManager == null) {
+			transferManager.disconnect();
+		}
 
 		boolean hasChanges = unknownRemoteDatabases.size() > 0;
 		eventBus.post(new LsRemoteEndSyncExternalEvent(config.getLocalDir().getAbsolutePath(), hasChanges));
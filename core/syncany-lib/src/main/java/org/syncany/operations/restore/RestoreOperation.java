@@ -18,21 +18,22 @@
 package org.syncany.operations.restore;
 
 import java.io.IOException;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.syncany.config.Config;
+import org.syncany.database.FileContent;
 import org.syncany.database.FileContent.FileChecksum;
 import org.syncany.database.FileVersion;
 import org.syncany.database.FileVersion.FileType;
-import org.syncany.database.MultiChunkEntry.MultiChunkId;
 import org.syncany.database.PartialFileHistory.FileHistoryId;
 import org.syncany.database.SqlDatabase;
 import org.syncany.operations.AbstractTransferOperation;
 import org.syncany.operations.Downloader;
+import org.syncany.operations.LocalChunkSource;
+import org.syncany.operations.MultiChunkFetchPlanner;
+import org.syncany.operations.MultiChunkFetchPlanner.FetchPlan;
 import org.syncany.operations.restore.RestoreOperationResult.RestoreResultCode;
 import org.syncany.plugins.transfer.StorageException;
 
@@ -82,16 +83,25 @@ public class RestoreOperation extends AbstractTransferOperation {
 
 		logger.log(Level.INFO, "Restore file identified: " + restoreFileVersion);
 		
-		// Download multichunks
-		downloadMultiChunks(restoreFileVersion);
-		
-		// Restore file
-		logger.log(Level.INFO, "- Restoring: " + restoreFileVersion);
-
-		RestoreFileSystemAction restoreAction = new RestoreFileSystemAction(config, restoreFileVersion, options.getRelativeTargetPath());
-		RestoreFileSystemActionResult restoreResult = restoreAction.execute();
+		LocalChunkSource downloadedChunks = new LocalChunkSource(config, localDatabase);
 
-		return new RestoreOperationResult(RestoreResultCode.ACK, restoreResult.getTargetFile());
+		try {
+			// Download multichunks (or only the required chunks)
+			downloadMultiChunks(restoreFileVersion, downloadedChunks);
+			
+			// Restore file
+			logger.log(Level.INFO, "- Restoring: " + restoreFileVersion);
+	
+			RestoreFileSystemAction restoreAction = new RestoreFileSystemAction(config, restoreFileVersion, options.getRelativeTargetPath());
+			restoreAction.setLocalChunkSource(downloadedChunks);
+			
+			RestoreFileSystemActionResult restoreResult = restoreAction.execute();
+	
+			return new RestoreOperationResult(RestoreResultCode.ACK, restoreResult.getTargetFile());
+		}
+		finally {
+			downloadedChunks.close();
+		}
 	}
 
 	private FileHistoryId findFileHistoryId() {
@@ -114,15 +124,18 @@ public class RestoreOperation extends AbstractTransferOperation {
 		}
 	}
 
-	private void downloadMultiChunks(FileVersion restoreFileVersion) throws StorageException, IOException {
-		Set<MultiChunkId> multiChunksToDownload = new HashSet<MultiChunkId>();
+	private void downloadMultiChunks(FileVersion restoreFileVersion, LocalChunkSource downloadedChunks) throws StorageException, IOException {
 		FileChecksum restoreFileChecksum = restoreFileVersion.getChecksum();
 			
 		if (restoreFileChecksum != null) {
-			multiChunksToDownload.addAll(localDatabase.getMultiChunkIds(restoreFileChecksum));
+			FileContent restoreFileContent = localDatabase.getFileContent(restoreFileChecksum, true);
+			FetchPlan fetchPlan = new MultiChunkFetchPlanner(config, localDatabase).plan(restoreFileContent.getChunks());
+
+			logger.log(Level.INFO, "Downloading " + (fetchPlan.getFullMultiChunkIds().size() + fetchPlan.getRangedChunks().size())
+					+ " multichunk(s) to restore file ...");
 
-			logger.log(Level.INFO, "Downloading " + multiChunksToDownload.size() + " multichunk(s) to restore file ...");
-			downloader.downloadAndDecryptMultiChunks(multiChunksToDownload);
+			downloader.downloadAndDecryptMultiChunks(fetchPlan.getFullMultiChunkIds());
+			downloader.downloadChunks(fetchPlan.getRangedChunks(), downloadedChunks);
 		}
 	}
 }
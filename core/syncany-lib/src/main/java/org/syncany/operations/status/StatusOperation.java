@@ -34,6 +34,7 @@ import org.syncany.config.Config;
 import org.syncany.config.LocalEventBus;
 import org.syncany.database.FileVersion;
 import org.syncany.database.FileVersion.FileStatus;
+import org.syncany.database.FileChecksumCache;
 import org.syncany.database.FileVersionComparator;
 import org.syncany.database.FileVersionComparator.FileVersionComparison;
 import org.syncany.database.SqlDatabase;
@@ -66,7 +67,11 @@ public class StatusOperation extends Operation {
 	public StatusOperation(Config config, StatusOperationOptions options) {
 		super(config);		
 		
-		this.fileVersionComparator = new FileVersionComparator(config.getLocalDir(), config.getChunker().getChecksumAlgorithm());
+		// Forced checksums must not be answered from the checksum cache
+		boolean forceChecksum = options != null && options.isForceChecksum();
+		FileChecksumCache fileChecksumCache = (forceChecksum) ? null : config.getFileChecksumCache();
+
+		this.fileVersionComparator = new FileVersionComparator(config.getLocalDir(), config.getChunker().getChecksumAlgorithm(), fileChecksumCache);
 		this.localDatabase = new SqlDatabase(config);
 		this.options = options;		
 		
@@ -119,6 +119,7 @@ public class Indexer {
 			indexWithoutNewFiles(files, deletedFiles, databaseVersionQueue);
 		}
 
+		localDatabase.logChunkFilterStatistics();
 		localDatabase.finalize();
 	}
 
@@ -241,10 +242,12 @@ public class Indexer {
 
 		private FileProperties startFileProperties;
 		private FileProperties endFileProperties;
+		private long startFileTime;
 
 		public IndexerDeduperListener(DatabaseVersion newDatabaseVersion) {
 
-			this.fileVersionComparator = new FileVersionComparator(config.getLocalDir(), config.getChunker().getChecksumAlgorithm());
+			this.fileVersionComparator = new FileVersionComparator(config.getLocalDir(), config.getChunker().getChecksumAlgorithm(),
+					config.getFileChecksumCache());
 			this.secureRandom = new SecureRandom();
 			this.newDatabaseVersion = newDatabaseVersion;
 		}
@@ -253,6 +256,7 @@ public class Indexer {
 		public boolean onFileFilter(File file) {
 			logger.log(Level.FINER, "- +File {0}", file);
 
+			startFileTime = System.currentTimeMillis();
 			startFileProperties = fileVersionComparator.captureFileProperties(file, null, false);
 
 			// Check if file has vanished
@@ -309,6 +313,12 @@ public class Indexer {
 				return;
 			}
 
+			// Remember checksum, so that status/down do not have to hash the file again
+			if (endFileProperties.getType() == FileType.FILE) {
+				config.getFileChecksumCache().put(endFileProperties.getRelativePath(), endFileProperties.getSize(),
+						endFileProperties.getLastModified(), endFileProperties.getChecksum(), startFileTime);
+			}
+
 			// If it's still there, add it to the database
 			addFileVersion(endFileProperties);
 
@@ -659,10 +669,9 @@ public class Indexer {
 		 */
 		@Override
 		public boolean onChunk(Chunk chunk) {
-			ChunkChecksum chunkChecksum = new ChunkChecksum(chunk.getChecksum());
-			chunkEntry = localDatabase.getChunk(chunkChecksum);
-
-			if (chunkEntry == null) {
+			// Probe local chunk filter and index first (does not allocate)
+			if (!localDatabase.containsChunk(chunk.getChecksum())) {
+				ChunkChecksum chunkChecksum = new ChunkChecksum(chunk.getChecksum());
 				chunkEntry = newDatabaseVersion.getChunk(chunkChecksum);
 
 				if (chunkEntry == null) {
@@ -675,7 +684,10 @@ public class Indexer {
 				}
 			}
 
-			logger.log(Level.FINER, "- Chunk exists: {0}", StringUtil.toHex(chunk.getChecksum()));
+			if (logger.isLoggable(Level.FINER)) {
+				logger.log(Level.FINER, "- Chunk exists: {0}", StringUtil.toHex(chunk.getChecksum()));
+			}
+
 			return false;
 		}
 	}
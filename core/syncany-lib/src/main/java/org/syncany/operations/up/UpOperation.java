@@ -27,8 +27,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
@@ -178,7 +180,7 @@ public class UpOperation extends AbstractTransferOperation {
 			List<File> locallyDeletedFiles = extractLocallyDeletedFiles(localChanges);
 			// Iterate over the changes, deduplicate, and feed DatabaseVersions into an iterator
 			Deduper deduper = new Deduper(config.getChunker(), config.getMultiChunker(), config.getTransformer(), options.getTransactionSizeLimit(),
-					options.getTransactionFileLimit());
+					options.getTransactionFileLimit(), options.getIndexerThreads(), options.getTransformerThreads());
 			
 			AsyncIndexer asyncIndexer = new AsyncIndexer(config, deduper, locallyUpdatedFiles, locallyDeletedFiles, databaseVersionQueue);
 			new Thread(asyncIndexer).start();
@@ -653,7 +655,7 @@ public class UpOperation extends AbstractTransferOperation {
 	 */
 	private void addMultiChunksToTransaction(RemoteTransaction remoteTransaction, Collection<MultiChunkEntry> multiChunksEntries)
 			throws InterruptedException, StorageException {
-		List<MultiChunkId> dirtyMultiChunkIds = localDatabase.getDirtyMultiChunkIds();
+		Set<MultiChunkId> dirtyMultiChunkIds = new HashSet<MultiChunkId>(localDatabase.getDirtyMultiChunkIds());
 
 		for (MultiChunkEntry multiChunkEntry : multiChunksEntries) {
 			if (dirtyMultiChunkIds.contains(multiChunkEntry.getId())) {
@@ -747,6 +749,10 @@ public class UpOperation extends AbstractTransferOperation {
 							// Unstarted upload has no cached local copy, abort
 							return null;
 						}
+
+						if (action.getPartialUpload() != null && action.getPartialUpload().isResumable(action.getLocalTempLocation())) {
+							logger.log(Level.INFO, "- Upload of " + action.getLocalTempLocation() + " was interrupted, can resume: " + action.getPartialUpload());
+						}
 					}
 				}
 			}
@@ -31,6 +31,14 @@ public class UpOperationOptions implements OperationOptions {
 	public static final long DEFAULT_TRANSACTION_SIZE_LIMIT = 50 * 1024 * 1024;
 	public static final long DEFAULT_TRANSACTION_FILE_LIMIT = 10000;
 
+	// Number of threads used to read, chunk and hash files in parallel during indexing;
+	// chunks are always written to multichunks in order, by a single thread.
+	public static final int DEFAULT_INDEXER_THREADS = Runtime.getRuntime().availableProcessors();
+
+	// Number of threads used to compress/encrypt and write closed multichunks, so that the Deduper
+	// can fill the next multichunk in the meantime; 0 transforms multichunks on the Deduper thread.
+	public static final int DEFAULT_TRANSFORMER_THREADS = Runtime.getRuntime().availableProcessors();
+
 	@Element(name = "status", required = false)
 	private StatusOperationOptions statusOptions = new StatusOperationOptions();
 
@@ -46,6 +54,12 @@ public class UpOperationOptions implements OperationOptions {
 	@Element(required = false)
 	private long transactionFileLimit = DEFAULT_TRANSACTION_FILE_LIMIT;
 
+	@Element(required = false)
+	private int indexerThreads = DEFAULT_INDEXER_THREADS;
+
+	@Element(required = false)
+	private int transformerThreads = DEFAULT_TRANSFORMER_THREADS;
+
 	public StatusOperationOptions getStatusOptions() {
 		return statusOptions;
 	}
@@ -85,4 +99,20 @@ public class UpOperationOptions implements OperationOptions {
 	public void setTransactionFileLimit(long transactionFileLimit) {
 		this.transactionFileLimit = transactionFileLimit;
 	}
-}
\ No newline at end of file
+
+	public int getIndexerThreads() {
+		return indexerThreads;
+	}
+
+	public void setIndexerThreads(int indexerThreads) {
+		this.indexerThreads = indexerThreads;
+	}
+
+	public int getTransformerThreads() {
+		return transformerThreads;
+	}
+
+	public void setTransformerThreads(int transformerThreads) {
+		this.transformerThreads = transformerThreads;
+	}
+}
@@ -18,18 +18,24 @@
 package org.syncany.plugins.local;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.commons.io.FileUtils;
 import org.syncany.config.Config;
 import org.syncany.plugins.transfer.AbstractTransferManager;
+import org.syncany.plugins.transfer.ConcurrentDownloads;
 import org.syncany.plugins.transfer.StorageException;
 import org.syncany.plugins.transfer.StorageFileNotFoundException;
 import org.syncany.plugins.transfer.StorageMoveException;
@@ -38,10 +44,14 @@ import org.syncany.plugins.transfer.files.ActionRemoteFile;
 import org.syncany.plugins.transfer.files.CleanupRemoteFile;
 import org.syncany.plugins.transfer.files.DatabaseRemoteFile;
 import org.syncany.plugins.transfer.files.MultichunkRemoteFile;
+import org.syncany.plugins.transfer.files.RangeRemoteFileAttributes;
 import org.syncany.plugins.transfer.files.RemoteFile;
+import org.syncany.plugins.transfer.files.ResumableRemoteFileAttributes;
 import org.syncany.plugins.transfer.files.SyncanyRemoteFile;
 import org.syncany.plugins.transfer.files.TempRemoteFile;
 import org.syncany.plugins.transfer.files.TransactionRemoteFile;
+import org.syncany.plugins.transfer.to.PartialUploadTO;
+import org.syncany.util.StringUtil;
 
 import com.google.common.collect.Maps;
 
@@ -63,10 +73,25 @@ import com.google.common.collect.Maps;
  * on a mounted remote device or network storage such as an NFS or a
  * Samba/NetBIOS share.
  *
+ * <p>Uploads marked with {@link ResumableRemoteFileAttributes} are appended to
+ * a partial file part by part, so that an interrupted upload can be resumed
+ * where it stopped. Downloads marked with {@link RangeRemoteFileAttributes} only
+ * copy the requested byte range.
+ *
+ * <p>Files are copied with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel) transferTo()},
+ * which lets the operating system copy the data without passing it through the JVM. If the
+ * local files and the repository are on the same file system, multichunks are hard-linked instead of
+ * copied (see {@link #isLinkable(RemoteFile)}). Temporary files are moved to their final location with 
+ * an atomic rename wherever the file system supports it.
+ *
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  */
+@ConcurrentDownloads
 public class LocalTransferManager extends AbstractTransferManager {
 	private static final Logger logger = Logger.getLogger(LocalTransferManager.class.getSimpleName());
+	private static final long PARTIAL_UPLOAD_PART_SIZE = 1024 * 1024;
+
+	private volatile boolean hardLinksSupported;
 
 	private Path repoPath;
 	private Path multichunksPath;
@@ -76,8 +101,17 @@ public class LocalTransferManager extends AbstractTransferManager {
 	private Path temporaryPath;
 
 	public LocalTransferManager(LocalTransferSettings connection, Config config) {
+		this(connection, config, true);
+	}
+
+	/**
+	 * Creates a new local transfer manager. If <tt>hardLinks</tt> is <tt>false</tt>, files
+	 * are always copied, even if they could be hard-linked.
+	 */
+	public LocalTransferManager(LocalTransferSettings connection, Config config, boolean hardLinks) {
 		super(connection, config);
 
+		this.hardLinksSupported = hardLinks;
 		this.repoPath = Paths.get(connection.getPath().toURI()); // absolute file to get abs. path!
 		this.multichunksPath = repoPath.resolve("multichunks");
 		this.databasesPath = repoPath.resolve("databases");
@@ -144,15 +178,20 @@ public class LocalTransferManager extends AbstractTransferManager {
 			throw new StorageFileNotFoundException("No such file in local repository: " + repoFile);
 		}
 
+		RangeRemoteFileAttributes rangeAttributes = remoteFile.getAttributes(RangeRemoteFileAttributes.class);
+
 		try {
 			File tempLocalFile = createTempFile("local-tm-download");
 			tempLocalFile.deleteOnExit();
 
-			FileUtils.copyFile(repoFile, tempLocalFile);
+			if (rangeAttributes != null) {
+				copyFileRange(repoFile, tempLocalFile, rangeAttributes);
+			}
+			else if (!isLinkable(remoteFile) || !linkFile(repoFile, tempLocalFile)) {
+				copyFile(repoFile, tempLocalFile);
+			}
 
-			localFile.delete();
-			FileUtils.moveFile(tempLocalFile, localFile);
-			tempLocalFile.delete();
+			moveFile(tempLocalFile, localFile);
 		}
 		catch (IOException ex) {
 			throw new StorageException("Unable to copy file " + repoFile + " from local repository to " + localFile, ex);
@@ -171,7 +210,7 @@ public class LocalTransferManager extends AbstractTransferManager {
 		}
 
 		try {
-			FileUtils.moveFile(sourceRemoteFile, targetRemoteFile);
+			moveFile(sourceRemoteFile, targetRemoteFile);
 		}
 		catch (IOException ex) {
 			throw new StorageException("Unable to move file " + sourceRemoteFile + " to destination " + targetRemoteFile, ex);
@@ -196,14 +235,166 @@ public class LocalTransferManager extends AbstractTransferManager {
 		}
 
 		try {
-			FileUtils.copyFile(localFile, tempRepoFile);
-			FileUtils.moveFile(tempRepoFile, repoFile);
+			ResumableRemoteFileAttributes resumableAttributes = remoteFile.getAttributes(ResumableRemoteFileAttributes.class);
+			PartialUploadTO partialUpload = (resumableAttributes != null) ? resumableAttributes.getPartialUpload() : null;
+
+			// Continue interrupted uploads, otherwise prefer a hard link over copying
+			boolean continuePartialUpload = partialUpload != null && partialUpload.isResumable(localFile);
+
+			if (!continuePartialUpload && isLinkable(remoteFile) && linkFile(localFile, tempRepoFile)) {
+				logger.log(Level.FINE, "Hard-linked " + localFile + " to " + tempRepoFile);
+			}
+			else if (partialUpload != null) {
+				appendToPartialFile(localFile, tempRepoFile, partialUpload);
+			}
+			else {
+				copyFile(localFile, tempRepoFile);
+			}
+
+			moveFile(tempRepoFile, repoFile);
 		}
 		catch (IOException ex) {
 			throw new StorageException("Unable to copy file " + localFile + " to local repository " + repoFile, ex);
 		}
 	}
 
+	/**
+	 * Copies the local file to the partial repository file in parts of {@link #PARTIAL_UPLOAD_PART_SIZE}
+	 * bytes, and records each completed part in the given {@link PartialUploadTO}. If a previous upload
+	 * of the same file was interrupted, the partial file is truncated to the last completed part and the
+	 * upload continues from there.
+	 */
+	private void appendToPartialFile(File localFile, File tempRepoFile, PartialUploadTO partialUpload) throws IOException {
+		boolean canResume = partialUpload.isResumable(localFile) && tempRepoFile.getName().equals(partialUpload.getUploadId())
+				&& tempRepoFile.length() >= partialUpload.getUploadedBytes();
+
+		if (canResume) {
+			logger.log(Level.INFO, "Resuming upload of " + localFile + " at byte " + partialUpload.getUploadedBytes() + " ...");
+		}
+		else {
+			partialUpload.start(tempRepoFile.getName(), localFile);
+		}
+
+		try (FileChannel localFileChannel = new FileInputStream(localFile).getChannel();
+				FileChannel tempRepoFileChannel = new RandomAccessFile(tempRepoFile, "rw").getChannel()) {
+
+			long localFileSize = localFileChannel.size();
+			long offset = partialUpload.getUploadedBytes();
+			int partNumber = partialUpload.getParts().size() + 1;
+
+			tempRepoFileChannel.truncate(offset);
+			tempRepoFileChannel.position(offset);
+
+			while (offset < localFileSize) {
+				long partSize = Math.min(PARTIAL_UPLOAD_PART_SIZE, localFileSize - offset);
+				long partBytesWritten = 0;
+
+				while (partBytesWritten < partSize) {
+					partBytesWritten += localFileChannel.transferTo(offset + partBytesWritten, partSize - partBytesWritten, tempRepoFileChannel);
+				}
+
+				tempRepoFileChannel.force(false);
+				partialUpload.addPart(partNumber++, offset, partSize, null);
+
+				offset += partSize;
+			}
+		}
+
+		partialUpload.clear();
+	}
+
+	/**
+	 * Returns whether the given remote file may be hard-linked to or from a local file. A linked
+	 * repository file shares its content with the local file, so changing one changes the other.
+	 * Only multichunks are linked: They are named after their content, and neither the repository nor 
+	 * the local cache modifies them in place -- they are written once, then only read, renamed or deleted. 
+	 * All other files are copied; database files, for instance, are overwritten in the local cache if an
+	 * upload is retried.
+	 */
+	private boolean isLinkable(RemoteFile remoteFile) {
+		if (remoteFile instanceof TempRemoteFile) {
+			remoteFile = ((TempRemoteFile) remoteFile).getTargetRemoteFile();
+		}
+
+		return remoteFile instanceof MultichunkRemoteFile;
+	}
+
+	/**
+	 * Creates a hard link at the target location pointing to the source file, replacing
+	 * the target if it exists. Hard links are only possible if both files are on the same
+	 * file system. If creating the link fails once, this transfer manager does not attempt
+	 * it again and always copies files instead.
+	 *
+	 * @return <tt>true</tt> if the link was created, <tt>false</tt> if the file must be copied
+	 */
+	private boolean linkFile(File sourceFile, File targetFile) {
+		if (!hardLinksSupported) {
+			return false;
+		}
+
+		try {
+			Files.deleteIfExists(targetFile.toPath());
+			Files.createLink(targetFile.toPath(), sourceFile.toPath());
+
+			return true;
+		}
+		catch (IOException | UnsupportedOperationException | SecurityException e) {
+			logger.log(Level.INFO, "Cannot create hard link from " + sourceFile + " to " + targetFile + ". Copying files from now on.", e);
+			hardLinksSupported = false;
+
+			return false;
+		}
+	}
+
+	/**
+	 * Copies the source file to the target file using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel) transferTo()},
+	 * so that the data does not have to be copied through a buffer in the JVM.
+	 */
+	private void copyFile(File sourceFile, File targetFile) throws IOException {
+		try (FileChannel sourceFileChannel = new FileInputStream(sourceFile).getChannel();
+				FileChannel targetFileChannel = new FileOutputStream(targetFile).getChannel()) {
+
+			long sourceFileSize = sourceFileChannel.size();
+			long bytesWritten = 0;
+
+			while (bytesWritten < sourceFileSize) {
+				bytesWritten += sourceFileChannel.transferTo(bytesWritten, sourceFileSize - bytesWritten, targetFileChannel);
+			}
+		}
+	}
+
+	private void copyFileRange(File sourceFile, File targetFile, RangeRemoteFileAttributes rangeAttributes) throws IOException {
+		try (FileChannel sourceFileChannel = new FileInputStream(sourceFile).getChannel();
+				FileChannel targetFileChannel = new FileOutputStream(targetFile).getChannel()) {
+
+			long sourceFileSize = sourceFileChannel.size();
+			long rangeOffset = (rangeAttributes.isSuffix()) ? Math.max(0, sourceFileSize - rangeAttributes.getLength()) : rangeAttributes.getOffset();
+			long rangeEnd = Math.min(sourceFileSize, rangeOffset + rangeAttributes.getLength());
+			long bytesWritten = 0;
+
+			while (rangeOffset + bytesWritten < rangeEnd) {
+				bytesWritten += sourceFileChannel.transferTo(rangeOffset + bytesWritten, rangeEnd - rangeOffset - bytesWritten, targetFileChannel);
+			}
+		}
+
+		rangeAttributes.setApplied(true);
+	}
+
+	/**
+	 * Moves the source file to the target location, replacing the target if it exists. The move
+	 * is performed as an atomic rename if the file system supports it, so that other clients never
+	 * see a partially written file.
+	 */
+	private void moveFile(File sourceFile, File targetFile) throws IOException {
+		try {
+			Files.move(sourceFile.toPath(), targetFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			logger.log(Level.FINE, "Atomic move not supported, moving " + sourceFile + " to " + targetFile + " non-atomically.");
+			Files.move(sourceFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
 	@Override
 	public boolean delete(RemoteFile remoteFile) throws StorageException {
 		connect();
@@ -221,7 +412,7 @@ public class LocalTransferManager extends AbstractTransferManager {
 		Path folder = Paths.get(getRemoteFilePath(remoteFileClass));
 		Map<String, T> files = Maps.newHashMap();
 
-		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(folder)) {
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(folder, getRemoteFileGlob(remoteFileClass))) {
 			for (Path path : directoryStream) {
 				try {
 					T remoteFile = RemoteFile.createRemoteFile(path.getFileName().toString(), remoteFileClass);
@@ -262,6 +453,24 @@ public class LocalTransferManager extends AbstractTransferManager {
 		}
 	}
 
+	/**
+	 * Returns a glob matching the names of the given remote file type, e.g. <tt>multichunk-*</tt>
+	 * for a {@link MultichunkRemoteFile}. Since different file types can share a folder, this
+	 * avoids creating (and failing to create) remote files for non-matching file names.
+	 */
+	private String getRemoteFileGlob(Class<? extends RemoteFile> remoteFileClass) {
+		String remoteFileClassName = remoteFileClass.getSimpleName();
+		String remoteFileSuffix = RemoteFile.class.getSimpleName();
+
+		if (remoteFileClassName.endsWith(remoteFileSuffix) && remoteFileClassName.length() > remoteFileSuffix.length()) {
+			String prefix = remoteFileClassName.substring(0, remoteFileClassName.length() - remoteFileSuffix.length());
+			return StringUtil.toSnakeCase(prefix) + "*";
+		}
+		else {
+			return "*";
+		}
+	}
+
 	private File getRemoteFile(RemoteFile remoteFile) {
 		String rootPath = getRemoteFilePath(remoteFile.getClass());
 		return Paths.get(rootPath, remoteFile.getName()).toFile();
@@ -0,0 +1,45 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.transfer;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import org.syncany.plugins.transfer.files.RemoteFile;
+
+/**
+ * Marks a {@link TransferManager} whose {@link TransferManager#download(RemoteFile, java.io.File) download()}
+ * method can safely be called by multiple threads at the same time, once the transfer manager 
+ * is connected.
+ * 
+ * <p>If a transfer manager is annotated, multichunks are downloaded in parallel by the
+ * {@link org.syncany.operations.Downloader Downloader}, with at most {@link #maxDownloads()}
+ * downloads at a time. Otherwise, they are downloaded one after the other.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ConcurrentDownloads {
+	/**
+	 * Defines the maximum number of concurrent downloads.
+	 */
+	int maxDownloads() default 4;
+}
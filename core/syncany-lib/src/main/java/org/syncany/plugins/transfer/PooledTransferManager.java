@@ -0,0 +1,120 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.transfer;
+
+import java.io.File;
+import java.util.Map;
+
+import org.syncany.plugins.transfer.files.RemoteFile;
+
+/**
+ * Handle for a transfer manager borrowed from a {@link TransferManagerRegistry}. All
+ * calls are passed on to the pooled transfer manager, except {@link #disconnect()}: Instead
+ * of closing the connection, it releases the handle's reference, so that the connection
+ * can be reused by the next operation.
+ *
+ * <p>The handle is used as the innermost transfer manager by the {@link TransferManagerFactory};
+ * feature transfer managers are wrapped around it, whereas features and their extensions are
+ * still determined by the original transfer manager.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+class PooledTransferManager implements TransferManager {
+	private final TransferManagerRegistry registry;
+	private final TransferManager pooledTransferManager;
+	private boolean released;
+
+	public PooledTransferManager(TransferManagerRegistry registry, TransferManager pooledTransferManager) {
+		this.registry = registry;
+		this.pooledTransferManager = pooledTransferManager;
+		this.released = false;
+	}
+
+	@Override
+	public void connect() throws StorageException {
+		pooledTransferManager.connect();
+	}
+
+	@Override
+	public synchronized void disconnect() throws StorageException {
+		if (!released) {
+			registry.release(pooledTransferManager);
+			released = true;
+		}
+	}
+
+	@Override
+	public void init(boolean createIfRequired) throws StorageException {
+		pooledTransferManager.init(createIfRequired);
+	}
+
+	@Override
+	public void download(RemoteFile remoteFile, File localFile) throws StorageException {
+		pooledTransferManager.download(remoteFile, localFile);
+	}
+
+	@Override
+	public void upload(File localFile, RemoteFile remoteFile) throws StorageException {
+		pooledTransferManager.upload(localFile, remoteFile);
+	}
+
+	@Override
+	public void move(RemoteFile sourceFile, RemoteFile targetFile) throws StorageException {
+		pooledTransferManager.move(sourceFile, targetFile);
+	}
+
+	@Override
+	public boolean delete(RemoteFile remoteFile) throws StorageException {
+		return pooledTransferManager.delete(remoteFile);
+	}
+
+	@Override
+	public <T extends RemoteFile> Map<String, T> list(Class<T> remoteFileClass) throws StorageException {
+		return pooledTransferManager.list(remoteFileClass);
+	}
+
+	@Override
+	public StorageTestResult test(boolean testCreateTarget) {
+		return pooledTransferManager.test(testCreateTarget);
+	}
+
+	@Override
+	public boolean testTargetExists() throws StorageException {
+		return pooledTransferManager.testTargetExists();
+	}
+
+	@Override
+	public boolean testTargetCanWrite() throws StorageException {
+		return pooledTransferManager.testTargetCanWrite();
+	}
+
+	@Override
+	public boolean testTargetCanCreate() throws StorageException {
+		return pooledTransferManager.testTargetCanCreate();
+	}
+
+	@Override
+	public boolean testRepoFileExists() throws StorageException {
+		return pooledTransferManager.testRepoFileExists();
+	}
+
+	@Override
+	public String getRemoteFilePath(Class<? extends RemoteFile> remoteFileClass) {
+		return pooledTransferManager.getRemoteFilePath(remoteFileClass);
+	}
+}
@@ -18,6 +18,7 @@
 package org.syncany.plugins.transfer;
 
 import java.io.File;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,11 +28,13 @@ import org.syncany.config.LocalEventBus;
 import org.syncany.operations.daemon.messages.UpUploadFileInTransactionSyncExternalEvent;
 import org.syncany.operations.daemon.messages.UpUploadFileSyncExternalEvent;
 import org.syncany.plugins.transfer.files.RemoteFile;
+import org.syncany.plugins.transfer.files.ResumableRemoteFileAttributes;
 import org.syncany.plugins.transfer.files.TempRemoteFile;
 import org.syncany.plugins.transfer.files.TransactionRemoteFile;
 import org.syncany.plugins.transfer.to.ActionTO;
 import org.syncany.plugins.transfer.to.ActionTO.ActionStatus;
 import org.syncany.plugins.transfer.to.ActionTO.ActionType;
+import org.syncany.plugins.transfer.to.PartialUploadTO;
 import org.syncany.plugins.transfer.to.TransactionTO;
 
 /**
@@ -128,15 +131,26 @@ public class RemoteTransaction {
 		File localTransactionFile = writeLocalTransactionFile();
 		TransactionRemoteFile remoteTransactionFile = uploadTransactionFile(localTransactionFile);
 
-		commit(localTransactionFile, remoteTransactionFile);
+		commitActions(localTransactionFile, remoteTransactionFile);
 	}
 
 	/**
 	 * Does exactly the same as the parameterless version, except it does not create and upload the transactionfile. Instead
 	 * it uses the files that are passed. Used for resuming existing transactions. Only call this function if resuming
 	 * cannot cause invalid states.
+	 *
+	 * <p>Before uploading anything, the transaction is reconciled with the remote storage (see
+	 * {@link #reconcileUploadsWithRemote()}), so that files that have already been completely
+	 * uploaded by the interrupted attempt are not uploaded again.
 	 */
 	public void commit(File localTransactionFile, TransactionRemoteFile remoteTransactionFile) throws StorageException {
+		logger.log(Level.INFO, "- Resuming transaction {0} ...", remoteTransactionFile);
+
+		reconcileUploadsWithRemote();
+		commitActions(localTransactionFile, remoteTransactionFile);
+	}
+
+	private void commitActions(File localTransactionFile, TransactionRemoteFile remoteTransactionFile) throws StorageException {
 		logger.log(Level.INFO, "- Starting to upload data in commit.");
 
 		uploadAndMoveToTempLocation();
@@ -191,6 +205,42 @@ public class RemoteTransaction {
 		return remoteTransactionFile;
 	}
 
+	/**
+	 * This method checks which of the not yet started uploads of a resumed transaction have
+	 * already been uploaded to their temporary remote location, and marks these actions as
+	 * {@link ActionStatus#STARTED STARTED}. This happens if the previous attempt was interrupted
+	 * after the upload finished, but before the new action status was persisted.
+	 *
+	 * <p>All temporary files are retrieved with a single list request, instead of checking
+	 * each file individually. Since transfer managers only list complete files (see
+	 * {@link TransferManager#list(Class) list()}), an existing temporary file is known to be
+	 * fully uploaded.
+	 */
+	private void reconcileUploadsWithRemote() throws StorageException {
+		if (gatherTransactionStats().totalUploadFileCount == 0) {
+			return;
+		}
+
+		Map<String, TempRemoteFile> remoteTempFiles = transferManager.list(TempRemoteFile.class);
+		int skippedUploadCount = 0;
+
+		for (ActionTO action : transactionTO.getActions()) {
+			boolean unstartedUpload = action.getType().equals(ActionType.UPLOAD) && action.getStatus().equals(ActionStatus.UNSTARTED);
+
+			if (unstartedUpload && remoteTempFiles.containsKey(action.getTempRemoteFile().getName())) {
+				logger.log(Level.INFO, "- Temp. file {0} already exists remotely. Skipping upload of {1}.", new Object[] {
+						action.getTempRemoteFile(), action.getLocalTempLocation() });
+
+				action.setPartialUpload(null);
+				action.setStatus(ActionStatus.STARTED);
+
+				skippedUploadCount++;
+			}
+		}
+
+		logger.log(Level.INFO, "- Reconciled transaction with remote storage: {0} upload(s) already completed.", skippedUploadCount);
+	}
+
 	/**
 	 * This method performs the first step for all files in the committing process. 
 	 * For UPLOADs, this is uploading the file to the temporary remote location.
@@ -199,7 +249,9 @@ public class RemoteTransaction {
 	 * already been done. In this case, we do not repeat it.
 	 * 
 	 * This is the expensive part of the committing process, when we are talking about I/O. Hence this is also
-	 * the most likely part to be interrupted on weak connections.
+	 * the most likely part to be interrupted on weak connections. Uploads are therefore marked as resumable
+	 * (see {@link ResumableRemoteFileAttributes}), so that supporting transfer managers can record their progress
+	 * in the action's {@link PartialUploadTO} and continue where they stopped.
 	 */
 	private void uploadAndMoveToTempLocation() throws StorageException {
 		TransactionStats stats = gatherTransactionStats();
@@ -218,8 +270,20 @@ public class RemoteTransaction {
 					eventBus.post(new UpUploadFileInTransactionSyncExternalEvent(config.getLocalDir().getAbsolutePath(), ++uploadFileIndex,
 							stats.totalUploadFileCount, localFileSize, stats.totalUploadSize));
 
+					// Allow transfer managers to resume the upload on byte-level (if they support it)
+					if (action.getPartialUpload() == null) {
+						action.setPartialUpload(new PartialUploadTO());
+					}
+					else if (action.getPartialUpload().isResumable(localFile)) {
+						logger.log(Level.INFO, "- Resuming partial upload of {0}: {1}", new Object[] { localFile, action.getPartialUpload() });
+					}
+
+					tempRemoteFile.setAttributes(new ResumableRemoteFileAttributes(action.getPartialUpload()));
+
 					logger.log(Level.INFO, "- Uploading {0} to temp. file {1} ...", new Object[] { localFile, tempRemoteFile });
 					transferManager.upload(localFile, tempRemoteFile);
+
+					action.setPartialUpload(null);
 					action.setStatus(ActionStatus.STARTED);
 				}
 				else if (action.getType().equals(ActionType.DELETE)) {
@@ -261,11 +325,12 @@ public class RemoteTransaction {
 
 	/**
 	 * This method constitutes the second step in the committing process. All files have been uploaded, and they are
-	 * now moved to their final location.
+	 * now moved to their final location. Files that have already been moved by an interrupted attempt of this
+	 * transaction are not moved again.
 	 */
 	private void moveToFinalLocation() throws StorageException {
 		for (ActionTO action : transactionTO.getActions()) {
-			if (action.getType().equals(ActionType.UPLOAD)) {
+			if (action.getType().equals(ActionType.UPLOAD) && !action.getStatus().equals(ActionStatus.DONE)) {
 				RemoteFile tempRemoteFile = action.getTempRemoteFile();
 				RemoteFile finalRemoteFile = action.getRemoteFile();
 
@@ -29,6 +29,7 @@ import org.syncany.config.Config;
 import org.syncany.plugins.transfer.features.ReadAfterWriteConsistent;
 import org.syncany.plugins.transfer.features.Feature;
 import org.syncany.plugins.transfer.features.FeatureTransferManager;
+import org.syncany.plugins.transfer.features.Hedgeable;
 import org.syncany.plugins.transfer.features.PathAware;
 import org.syncany.plugins.transfer.features.Retriable;
 import org.syncany.plugins.transfer.features.TransactionAware;
@@ -70,6 +71,7 @@ public class TransferManagerFactory {
 			.add(Retriable.class)
 			.add(PathAware.class)
 			.add(ReadAfterWriteConsistent.class)
+			.add(Hedgeable.class)
 			.build();
 
 	/**
@@ -77,15 +79,44 @@ public class TransferManagerFactory {
 	 * using the configured {@link TransferPlugin}. Using this builder, the
 	 * feature-wrapped transfer manager can be built.
 	 *
+	 * <p>If a {@link TransferManagerRegistry} is attached to the config, the
+	 * original transfer manager is taken from the registry and reused across
+	 * operations. In this case, calling {@link TransferManager#disconnect() disconnect()}
+	 * on the built transfer manager only releases it back to the registry.
+	 *
 	 * @see TransferManagerBuilder
 	 * @param config Local folder configuration with transfer plugin settings
 	 * @return Transfer manager builder
 	 */
 	public static TransferManagerBuilder build(Config config) throws StorageException {
+		TransferManagerRegistry registry = config.getTransferManagerRegistry();
+
+		if (registry != null) {
+			TransferManager transferManager = registry.acquire(config);
+			logger.log(Level.INFO, "Building pooled " + transferManager.getClass().getSimpleName() + " from config '" + config.getLocalDir().getName() + "' ...");
+
+			return new TransferManagerBuilder(config, transferManager, new PooledTransferManager(registry, transferManager));
+		}
+		else {
+			return buildUnpooled(config);
+		}
+	}
+
+	/**
+	 * Creates the transfer manager factory builder from the {@link Config} like
+	 * {@link #build(Config)}, but always creates a new transfer manager, even if
+	 * a {@link TransferManagerRegistry} is attached to the config. This should be used
+	 * for transfer managers that must not be shared with other operations.
+	 *
+	 * @see TransferManagerBuilder
+	 * @param config Local folder configuration with transfer plugin settings
+	 * @return Transfer manager builder
+	 */
+	public static TransferManagerBuilder buildUnpooled(Config config) throws StorageException {
 		TransferManager transferManager = config.getTransferPlugin().createTransferManager(config.getConnection(), config);
 		logger.log(Level.INFO, "Building " + transferManager.getClass().getSimpleName() + " from config '" + config.getLocalDir().getName() + "' ...");
 
-		return new TransferManagerBuilder(config, transferManager);
+		return new TransferManagerBuilder(config, transferManager, transferManager);
 	}
 
 	/**
@@ -106,10 +137,10 @@ public class TransferManagerFactory {
 		private TransferManager originalTransferManager;
 		private TransferManager wrappedTransferManager;
 
-		private TransferManagerBuilder(Config config, TransferManager transferManager) {
+		private TransferManagerBuilder(Config config, TransferManager originalTransferManager, TransferManager innermostTransferManager) {
 			this.config = config;
-			this.originalTransferManager = transferManager;
-			this.wrappedTransferManager = transferManager;
+			this.originalTransferManager = originalTransferManager;
+			this.wrappedTransferManager = innermostTransferManager;
 			this.features = new ArrayList<>();
 		}
 
@@ -0,0 +1,175 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.transfer;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.syncany.config.Config;
+
+/**
+ * The transfer manager registry keeps plugin-specific {@link TransferManager}s alive
+ * between operations, so that authenticated connections and warmed up connection pools
+ * can be reused by consecutive up/down/cleanup runs.
+ *
+ * <p>Transfer managers are keyed by their {@link TransferSettings} and reference-counted:
+ * Each call to {@link #acquire(Config)} must be followed by a call to {@link #release(TransferManager)}.
+ * Settings are compared by identity, not by their values, because they do not implement
+ * <tt>equals()</tt> and may be modified via {@link TransferSettings#setField(String, Object) setField()}.
+ * Operations therefore only share a transfer manager if they use the same settings instance,
+ * i.e. the same {@link Config}.
+ * A pooled transfer manager is only disconnected when the registry is closed and no
+ * operation uses it anymore.
+ *
+ * <p>The registry is typically owned by a long-running component (such as the daemon's
+ * {@link org.syncany.operations.daemon.WatchRunner WatchRunner}) and attached to the
+ * {@link Config} via {@link Config#setTransferManagerRegistry(TransferManagerRegistry)}.
+ * If a registry is attached, the {@link TransferManagerFactory} takes its transfer managers
+ * from the registry instead of creating new ones.
+ *
+ * <p>Note that a pooled transfer manager may be used by more than one operation at a time.
+ * Operations that must not share their transfer manager (such as the action file renewal)
+ * should use {@link TransferManagerFactory#buildUnpooled(Config)}.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class TransferManagerRegistry {
+	private static final Logger logger = Logger.getLogger(TransferManagerRegistry.class.getSimpleName());
+
+	private Map<TransferSettings, PooledTransferManagerEntry> transferManagers;
+	private boolean closed;
+
+	public TransferManagerRegistry() {
+		this.transferManagers = new IdentityHashMap<TransferSettings, PooledTransferManagerEntry>();
+		this.closed = false;
+	}
+
+	/**
+	 * Returns the pooled transfer manager for the connection settings of the given {@link Config},
+	 * or creates (and pools) a new one if there is none. The reference count of the transfer
+	 * manager is increased.
+	 *
+	 * @param config Local folder configuration with transfer plugin settings
+	 * @return The original (unwrapped) plugin-specific transfer manager
+	 */
+	public synchronized TransferManager acquire(Config config) throws StorageException {
+		if (closed) {
+			throw new StorageException("Unable to acquire transfer manager: Registry is already closed.");
+		}
+
+		TransferSettings transferSettings = config.getConnection();
+		PooledTransferManagerEntry entry = transferManagers.get(transferSettings);
+
+		if (entry == null) {
+			TransferManager transferManager = config.getTransferPlugin().createTransferManager(transferSettings, config);
+			logger.log(Level.INFO, "Pooling new " + transferManager.getClass().getSimpleName() + " for config '" + config.getLocalDir().getName() + "' ...");
+
+			entry = new PooledTransferManagerEntry(transferManager);
+			transferManagers.put(transferSettings, entry);
+		}
+		else {
+			logger.log(Level.INFO, "Reusing pooled " + entry.transferManager.getClass().getSimpleName() + " for config '" + config.getLocalDir().getName()
+					+ "' (" + entry.referenceCount + " reference(s)) ...");
+		}
+
+		entry.referenceCount++;
+		return entry.transferManager;
+	}
+
+	/**
+	 * Releases a transfer manager previously returned by {@link #acquire(Config)}. The transfer
+	 * manager stays connected for later operations, unless the registry has been closed in the
+	 * meantime and this was the last reference.
+	 *
+	 * @param transferManager The original transfer manager returned by {@link #acquire(Config)}
+	 */
+	public synchronized void release(TransferManager transferManager) {
+		for (Map.Entry<TransferSettings, PooledTransferManagerEntry> settingsEntry : transferManagers.entrySet()) {
+			PooledTransferManagerEntry entry = settingsEntry.getValue();
+
+			if (entry.transferManager == transferManager) {
+				entry.referenceCount = Math.max(0, entry.referenceCount - 1);
+
+				if (closed && entry.referenceCount == 0) {
+					transferManagers.remove(settingsEntry.getKey());
+					disconnect(transferManager);
+				}
+
+				return;
+			}
+		}
+
+		logger.log(Level.WARNING, "Cannot release transfer manager " + transferManager + ", not in registry.");
+	}
+
+	/**
+	 * Returns the number of operations currently using the pooled transfer manager
+	 * for the given settings, or <tt>0</tt> if no transfer manager is pooled for them.
+	 */
+	public synchronized int getReferenceCount(TransferSettings transferSettings) {
+		PooledTransferManagerEntry entry = transferManagers.get(transferSettings);
+		return (entry != null) ? entry.referenceCount : 0;
+	}
+
+	/**
+	 * Closes the registry and disconnects all unused transfer managers. Transfer managers
+	 * that are still in use are disconnected as soon as they are released.
+	 */
+	public synchronized void close() {
+		logger.log(Level.INFO, "Closing transfer manager registry (" + transferManagers.size() + " transfer manager(s)) ...");
+		closed = true;
+
+		Iterator<PooledTransferManagerEntry> entryIterator = transferManagers.values().iterator();
+
+		while (entryIterator.hasNext()) {
+			PooledTransferManagerEntry entry = entryIterator.next();
+
+			if (entry.referenceCount == 0) {
+				entryIterator.remove();
+				disconnect(entry.transferManager);
+			}
+			else {
+				logger.log(Level.INFO, "- Transfer manager " + entry.transferManager.getClass().getSimpleName() + " still in use ("
+						+ entry.referenceCount + " reference(s)); disconnecting when released.");
+			}
+		}
+	}
+
+	private void disconnect(TransferManager transferManager) {
+		try {
+			logger.log(Level.INFO, "- Disconnecting pooled transfer manager " + transferManager.getClass().getSimpleName() + " ...");
+			transferManager.disconnect();
+		}
+		catch (StorageException e) {
+			logger.log(Level.FINE, "Could not disconnect the transfer manager", e);
+		}
+	}
+
+	private static class PooledTransferManagerEntry {
+		private TransferManager transferManager;
+		private int referenceCount;
+
+		public PooledTransferManagerEntry(TransferManager transferManager) {
+			this.transferManager = transferManager;
+			this.referenceCount = 0;
+		}
+	}
+}
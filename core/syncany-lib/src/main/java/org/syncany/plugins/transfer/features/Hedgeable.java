@@ -0,0 +1,62 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.transfer.features;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Feature annotation to reduce the tail latency of downloads by hedging
+ * slow requests.
+ *
+ * <p>If a download takes longer than a certain percentile of the download latencies
+ * previously observed for the plugin, a second (duplicate) download of the same file is
+ * started. The first download to complete wins, the other one is cancelled. To limit
+ * the additional load, only a certain share of all downloads may be hedged.
+ *
+ * <p>This annotation is only recognized if used on a transfer manager whose
+ * {@link org.syncany.plugins.transfer.TransferManager#download(org.syncany.plugins.transfer.files.RemoteFile, java.io.File) download()}
+ * method can safely be called by multiple threads at the same time. If applied, it wraps
+ * the original transfer manager in a {@link HedgeableFeatureTransferManager}.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+@Feature(required = false)
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Hedgeable {
+	/**
+	 * Defines the latency percentile (of the previous downloads) after which
+	 * a download is hedged.
+	 */
+	int percentile() default 95;
+
+	/**
+	 * Defines the maximum share of downloads that may be hedged (hedge budget),
+	 * e.g. 0.05 for at most one hedged request per 20 downloads.
+	 */
+	double maxHedgeRatio() default 0.05;
+
+	/**
+	 * Defines the minimum time (in milliseconds) to wait before a download is
+	 * hedged, regardless of the observed latencies.
+	 */
+	int minHedgeDelay() default 1000;
+}
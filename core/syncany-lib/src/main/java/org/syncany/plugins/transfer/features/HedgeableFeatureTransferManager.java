@@ -0,0 +1,434 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.transfer.features;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.syncany.config.Config;
+import org.syncany.plugins.transfer.StorageException;
+import org.syncany.plugins.transfer.StorageTestResult;
+import org.syncany.plugins.transfer.TransferManager;
+import org.syncany.plugins.transfer.files.RangeRemoteFileAttributes;
+import org.syncany.plugins.transfer.files.RemoteFile;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The hedgeable transfer manager reduces the tail latency of downloads by issuing
+ * a second, duplicate request if a download takes unusually long (see {@link Hedgeable}).
+ *
+ * <p>The download latencies are tracked per plugin (i.e. per original transfer manager
+ * class) in a {@link DownloadLatencyTracker}. If a download has not finished after the
+ * configured percentile of the recent latencies, a hedge request for the same file is
+ * started. Both requests download to their own temporary file (using their own copy of the
+ * remote file and its {@link RangeRemoteFileAttributes}); the first one to complete
+ * successfully is moved to the target file, the other one is cancelled and its result
+ * discarded. If one of the requests fails, the other one is still awaited. Only the latency
+ * of the winning request is recorded.
+ *
+ * <p>Hedging is only attempted once enough latencies have been observed, and only as long
+ * as the share of hedged downloads stays below the configured budget. All methods other than
+ * {@link #download(RemoteFile, File) download()} are passed on to the underlying transfer manager.
+ *
+ * @see Hedgeable
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class HedgeableFeatureTransferManager implements FeatureTransferManager {
+	private static final Logger logger = Logger.getLogger(HedgeableFeatureTransferManager.class.getSimpleName());
+
+	private static final Map<Class<? extends TransferManager>, DownloadLatencyTracker> latencyTrackers = new HashMap<>();
+	private static final ExecutorService downloadExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+			.setNameFormat("HedgedDl/%d").setDaemon(true).build());
+
+	private final TransferManager underlyingTransferManager;
+	private final DownloadLatencyTracker latencyTracker;
+
+	private final int percentile;
+	private final double maxHedgeRatio;
+	private final int minHedgeDelay;
+
+	public HedgeableFeatureTransferManager(TransferManager originalTransferManager, TransferManager underlyingTransferManager, Config config,
+			Hedgeable hedgeableAnnotation) {
+
+		this.underlyingTransferManager = underlyingTransferManager;
+		this.latencyTracker = getLatencyTracker(originalTransferManager.getClass());
+
+		this.percentile = hedgeableAnnotation.percentile();
+		this.maxHedgeRatio = hedgeableAnnotation.maxHedgeRatio();
+		this.minHedgeDelay = hedgeableAnnotation.minHedgeDelay();
+	}
+
+	/**
+	 * Returns the download latency tracker of the given plugin's transfer manager class,
+	 * i.e. latencies are shared between all transfer managers of the same plugin.
+	 */
+	public static DownloadLatencyTracker getLatencyTracker(Class<? extends TransferManager> transferManagerClass) {
+		synchronized (latencyTrackers) {
+			DownloadLatencyTracker latencyTracker = latencyTrackers.get(transferManagerClass);
+
+			if (latencyTracker == null) {
+				latencyTracker = new DownloadLatencyTracker();
+				latencyTrackers.put(transferManagerClass, latencyTracker);
+			}
+
+			return latencyTracker;
+		}
+	}
+
+	@Override
+	public void download(RemoteFile remoteFile, File localFile) throws StorageException {
+		long hedgeDelay = latencyTracker.getHedgeDelay(percentile, minHedgeDelay);
+
+		if (hedgeDelay < 0) {
+			logger.log(Level.FINE, "- Not enough download latencies known, downloading " + remoteFile + " without hedging ...");
+			downloadAndTrackLatency(remoteFile, localFile);
+		}
+		else {
+			downloadHedged(remoteFile, localFile, hedgeDelay);
+		}
+	}
+
+	private void downloadAndTrackLatency(RemoteFile remoteFile, File localFile) throws StorageException {
+		long startTime = System.currentTimeMillis();
+
+		latencyTracker.recordRequest(false);
+		underlyingTransferManager.download(remoteFile, localFile);
+		latencyTracker.recordLatency(System.currentTimeMillis() - startTime);
+	}
+
+	private void downloadHedged(RemoteFile remoteFile, File localFile, long hedgeDelay) throws StorageException {
+		AtomicBoolean completed = new AtomicBoolean(false);
+		CompletionService<File> completionService = new ExecutorCompletionService<>(downloadExecutor);
+
+		HedgedDownloadRequest primaryDownloadRequest = new HedgedDownloadRequest(remoteFile, localFile, completed);
+		HedgedDownloadRequest hedgeDownloadRequest = null;
+
+		latencyTracker.recordRequest(false);
+		Future<File> primaryRequest = completionService.submit(primaryDownloadRequest);
+		Future<File> hedgeRequest = null;
+
+		try {
+			Future<File> completedRequest = completionService.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+			int runningRequests = 1;
+
+			if (completedRequest == null && latencyTracker.tryRecordHedge(maxHedgeRatio)) {
+				logger.log(Level.INFO, "- Download of " + remoteFile + " takes longer than " + hedgeDelay + " ms (p" + percentile
+						+ "), starting hedge request ...");
+
+				hedgeDownloadRequest = new HedgedDownloadRequest(remoteFile, localFile, completed);
+				hedgeRequest = completionService.submit(hedgeDownloadRequest);
+				runningRequests++;
+			}
+
+			StorageException lastException = null;
+
+			while (runningRequests > 0) {
+				if (completedRequest == null) {
+					completedRequest = completionService.take();
+				}
+
+				runningRequests--;
+
+				try {
+					File winningTempFile = completedRequest.get();
+					HedgedDownloadRequest winningDownloadRequest = (completedRequest == hedgeRequest) ? hedgeDownloadRequest : primaryDownloadRequest;
+
+					moveToLocalFile(winningTempFile, localFile);
+					copyRangeApplied(winningDownloadRequest.getRemoteFile(), remoteFile);
+
+					if (hedgeRequest != null) {
+						logger.log(Level.INFO, "- Download of " + remoteFile + " completed by " + ((completedRequest == hedgeRequest) ? "hedge" : "primary")
+								+ " request.");
+					}
+
+					return;
+				}
+				catch (ExecutionException e) {
+					lastException = toStorageException(remoteFile, e.getCause());
+					logger.log(Level.INFO, "- Request for " + remoteFile + " failed" + ((runningRequests > 0) ? ", waiting for other request" : ""), e);
+				}
+
+				completedRequest = null;
+			}
+
+			throw lastException;
+		}
+		catch (InterruptedException e) {
+			throw new StorageException("Interrupted while downloading " + remoteFile, e);
+		}
+		finally {
+			primaryRequest.cancel(true);
+
+			if (hedgeRequest != null) {
+				hedgeRequest.cancel(true);
+			}
+		}
+	}
+
+	private void moveToLocalFile(File tempFile, File localFile) throws StorageException {
+		try {
+			Files.move(tempFile.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e) {
+			tempFile.delete();
+			throw new StorageException("Unable to move downloaded file " + tempFile + " to " + localFile, e);
+		}
+	}
+
+	/**
+	 * Creates a copy of the given remote file for a single request, so that requests do not
+	 * share (and overwrite) each other's {@link RangeRemoteFileAttributes}. Other attributes
+	 * are not relevant for downloads and are not copied.
+	 */
+	private RemoteFile copyRemoteFile(RemoteFile remoteFile) throws StorageException {
+		RemoteFile remoteFileCopy = RemoteFile.createRemoteFile(remoteFile.getName(), remoteFile.getClass());
+		RangeRemoteFileAttributes rangeAttributes = remoteFile.getAttributes(RangeRemoteFileAttributes.class);
+
+		if (rangeAttributes != null) {
+			remoteFileCopy.setAttributes(new RangeRemoteFileAttributes(rangeAttributes.getOffset(), rangeAttributes.getLength()));
+		}
+
+		return remoteFileCopy;
+	}
+
+	private void copyRangeApplied(RemoteFile sourceRemoteFile, RemoteFile targetRemoteFile) {
+		RangeRemoteFileAttributes sourceRangeAttributes = sourceRemoteFile.getAttributes(RangeRemoteFileAttributes.class);
+		RangeRemoteFileAttributes targetRangeAttributes = targetRemoteFile.getAttributes(RangeRemoteFileAttributes.class);
+
+		if (sourceRangeAttributes != null && targetRangeAttributes != null) {
+			targetRangeAttributes.setApplied(sourceRangeAttributes.isApplied());
+		}
+	}
+
+	private StorageException toStorageException(RemoteFile remoteFile, Throwable cause) {
+		if (cause instanceof StorageException) {
+			return (StorageException) cause;
+		}
+		else {
+			return new StorageException("Unable to download " + remoteFile, cause);
+		}
+	}
+
+	@Override
+	public void connect() throws StorageException {
+		underlyingTransferManager.connect();
+	}
+
+	@Override
+	public void disconnect() throws StorageException {
+		underlyingTransferManager.disconnect();
+	}
+
+	@Override
+	public void init(boolean createIfRequired) throws StorageException {
+		underlyingTransferManager.init(createIfRequired);
+	}
+
+	@Override
+	public void upload(File localFile, RemoteFile remoteFile) throws StorageException {
+		underlyingTransferManager.upload(localFile, remoteFile);
+	}
+
+	@Override
+	public void move(RemoteFile sourceFile, RemoteFile targetFile) throws StorageException {
+		underlyingTransferManager.move(sourceFile, targetFile);
+	}
+
+	@Override
+	public boolean delete(RemoteFile remoteFile) throws StorageException {
+		return underlyingTransferManager.delete(remoteFile);
+	}
+
+	@Override
+	public <T extends RemoteFile> Map<String, T> list(Class<T> remoteFileClass) throws StorageException {
+		return underlyingTransferManager.list(remoteFileClass);
+	}
+
+	@Override
+	public String getRemoteFilePath(Class<? extends RemoteFile> remoteFileClass) {
+		return underlyingTransferManager.getRemoteFilePath(remoteFileClass);
+	}
+
+	@Override
+	public StorageTestResult test(boolean testCreateTarget) {
+		return underlyingTransferManager.test(testCreateTarget);
+	}
+
+	@Override
+	public boolean testTargetExists() throws StorageException {
+		return underlyingTransferManager.testTargetExists();
+	}
+
+	@Override
+	public boolean testTargetCanWrite() throws StorageException {
+		return underlyingTransferManager.testTargetCanWrite();
+	}
+
+	@Override
+	public boolean testTargetCanCreate() throws StorageException {
+		return underlyingTransferManager.testTargetCanCreate();
+	}
+
+	@Override
+	public boolean testRepoFileExists() throws StorageException {
+		return underlyingTransferManager.testRepoFileExists();
+	}
+
+	/**
+	 * A single (primary or hedge) download request. Each request downloads a copy of the
+	 * remote file to its own temporary file next to the target file. Only the first request
+	 * to complete returns its temporary file and records its latency; requests completing
+	 * later delete their file.
+	 */
+	private class HedgedDownloadRequest implements Callable<File> {
+		private final RemoteFile remoteFile;
+		private final File localFile;
+		private final AtomicBoolean completed;
+
+		public HedgedDownloadRequest(RemoteFile remoteFile, File localFile, AtomicBoolean completed) throws StorageException {
+			this.remoteFile = copyRemoteFile(remoteFile);
+			this.localFile = localFile;
+			this.completed = completed;
+		}
+
+		public RemoteFile getRemoteFile() {
+			return remoteFile;
+		}
+
+		@Override
+		public File call() throws Exception {
+			File localDir = localFile.getAbsoluteFile().getParentFile();
+			File tempFile = File.createTempFile(localFile.getName() + "-", ".hedge", localDir);
+
+			try {
+				long startTime = System.currentTimeMillis();
+
+				underlyingTransferManager.download(remoteFile, tempFile);
+
+				if (completed.compareAndSet(false, true)) {
+					latencyTracker.recordLatency(System.currentTimeMillis() - startTime);
+					return tempFile;
+				}
+				else {
+					tempFile.delete();
+					throw new StorageException("Other request for " + remoteFile + " completed first; discarding result.");
+				}
+			}
+			catch (Exception e) {
+				tempFile.delete();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Keeps track of the latencies of the most recent downloads of a plugin, as
+	 * well as of the number of regular and hedged requests (for the hedge budget).
+	 */
+	public static class DownloadLatencyTracker {
+		private static final int MAX_SAMPLES = 200;
+		private static final int MIN_SAMPLES = 20;
+
+		private final long[] latencies;
+		private int latencyCount;
+		private int latencyIndex;
+
+		private long requestCount;
+		private long hedgeCount;
+
+		public DownloadLatencyTracker() {
+			this.latencies = new long[MAX_SAMPLES];
+			this.latencyCount = 0;
+			this.latencyIndex = 0;
+
+			this.requestCount = 0;
+			this.hedgeCount = 0;
+		}
+
+		public synchronized void recordLatency(long latency) {
+			latencies[latencyIndex] = latency;
+			latencyIndex = (latencyIndex + 1) % MAX_SAMPLES;
+			latencyCount = Math.min(latencyCount + 1, MAX_SAMPLES);
+		}
+
+		public synchronized void recordRequest(boolean hedge) {
+			requestCount++;
+
+			if (hedge) {
+				hedgeCount++;
+			}
+		}
+
+		/**
+		 * Records a hedge request if this does not exceed the given share of all
+		 * requests.
+		 *
+		 * @return <tt>true</tt> if the hedge request may be sent, <tt>false</tt> otherwise
+		 */
+		public synchronized boolean tryRecordHedge(double maxHedgeRatio) {
+			if (hedgeCount + 1 > maxHedgeRatio * requestCount) {
+				return false;
+			}
+
+			recordRequest(true);
+			return true;
+		}
+
+		/**
+		 * Returns the time (in milliseconds) after which a download should be hedged,
+		 * i.e. the given percentile of the recent latencies, but at least the given minimum.
+		 * If not enough latencies are known, <tt>-1</tt> is returned.
+		 */
+		public synchronized long getHedgeDelay(int percentile, long minHedgeDelay) {
+			if (latencyCount < MIN_SAMPLES) {
+				return -1;
+			}
+
+			long[] sortedLatencies = Arrays.copyOf(latencies, latencyCount);
+			Arrays.sort(sortedLatencies);
+
+			int percentileIndex = Math.min(latencyCount - 1, (int) Math.ceil(percentile / 100.0 * latencyCount) - 1);
+			return Math.max(minHedgeDelay, sortedLatencies[Math.max(0, percentileIndex)]);
+		}
+
+		public synchronized long getRequestCount() {
+			return requestCount;
+		}
+
+		public synchronized long getHedgeCount() {
+			return hedgeCount;
+		}
+	}
+}
@@ -51,14 +51,10 @@ public class RetriableFeatureTransferManager implements FeatureTransferManager {
 	private int retryMaxCount;
 	private int retrySleepMillis;
 
-	private int tryCount;
-
 	public RetriableFeatureTransferManager(TransferManager originalTransferManager, TransferManager underlyingTransferManager, Config config, Retriable retriableAnnotation) {
 		this.underlyingTransferManager = underlyingTransferManager;
 		this.retryMaxCount = retriableAnnotation.numberRetries();
 		this.retrySleepMillis = retriableAnnotation.sleepInterval();
-
-		this.tryCount = 0;
 	}
 
 	@Override
@@ -199,7 +195,7 @@ public class RetriableFeatureTransferManager implements FeatureTransferManager {
 	}
 
 	private Object retryMethod(RetriableMethod retryableMethod) throws StorageException {
-		tryCount = 0;
+		int tryCount = 0; // Local, so that concurrent calls do not share retries
 
 		while (true) {
 			try {
@@ -207,10 +203,7 @@ public class RetriableFeatureTransferManager implements FeatureTransferManager {
 					logger.log(Level.WARNING, "Retrying method: " + tryCount + "/" + retryMaxCount + " ...");
 				}
 
-				Object result = retryableMethod.execute();
-
-				tryCount = 0;
-				return result;
+				return retryableMethod.execute();
 			}
 			catch (StorageMoveException e) {
 				// StorageFileNotFoundException used to be caught here. It no longer is,
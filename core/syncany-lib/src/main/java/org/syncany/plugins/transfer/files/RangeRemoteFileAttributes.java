@@ -0,0 +1,69 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.transfer.files;
+
+import java.io.File;
+
+import org.syncany.plugins.transfer.TransferManager;
+
+/**
+ * Remote file attributes to request only a byte range of a file. If a {@link RemoteFile}
+ * passed to {@link TransferManager#download(RemoteFile, File) download()} carries these
+ * attributes, transfer managers that support ranged downloads only write the requested
+ * bytes to the local file, and mark the range as {@link #setApplied(boolean) applied}.
+ *
+ * <p>A negative offset requests the last <tt>length</tt> bytes of the file (suffix range).
+ * If the requested range exceeds the end of the file, the range is truncated.
+ *
+ * <p>Transfer managers that do not support ranged downloads simply ignore these attributes
+ * and download the entire file. Callers must therefore check {@link #isApplied()} after the
+ * download, and extract the range themselves if it was not applied.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class RangeRemoteFileAttributes extends RemoteFileAttributes {
+	private long offset;
+	private long length;
+	private boolean applied;
+
+	public RangeRemoteFileAttributes(long offset, long length) {
+		this.offset = offset;
+		this.length = length;
+		this.applied = false;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public boolean isSuffix() {
+		return offset < 0;
+	}
+
+	public boolean isApplied() {
+		return applied;
+	}
+
+	public void setApplied(boolean applied) {
+		this.applied = applied;
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.transfer.files;
+
+import org.syncany.plugins.transfer.TransferManager;
+import org.syncany.plugins.transfer.to.PartialUploadTO;
+
+/**
+ * Remote file attributes to mark an upload as resumable. If a {@link RemoteFile}
+ * passed to {@link TransferManager#upload(java.io.File, RemoteFile) upload()} carries
+ * these attributes, transfer managers that support byte-level resuming may continue
+ * a previously interrupted upload using the given {@link PartialUploadTO}.
+ *
+ * <p>Transfer managers must record every completed part in the {@link PartialUploadTO}
+ * as soon as it is written, and clear it once the upload is complete. Transfer managers
+ * that do not support resuming simply ignore these attributes.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class ResumableRemoteFileAttributes extends RemoteFileAttributes {
+	private PartialUploadTO partialUpload;
+
+	public ResumableRemoteFileAttributes(PartialUploadTO partialUpload) {
+		this.partialUpload = partialUpload;
+	}
+
+	public PartialUploadTO getPartialUpload() {
+		return partialUpload;
+	}
+}
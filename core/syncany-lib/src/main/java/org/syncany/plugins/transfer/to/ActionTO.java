@@ -60,6 +60,9 @@ public class ActionTO {
 	@Element(name = "localTempLocation", required = false)
 	private String localTempLocation;
 
+	@Element(name = "partialUpload", required = false)
+	private PartialUploadTO partialUpload;
+
 	public ActionType getType() {
 		return type;
 	}
@@ -106,9 +109,17 @@ public class ActionTO {
 		return new File(localTempLocation);
 	}
 
+	public PartialUploadTO getPartialUpload() {
+		return partialUpload;
+	}
+
+	public void setPartialUpload(PartialUploadTO partialUpload) {
+		this.partialUpload = partialUpload;
+	}
+
 	@Override
 	public String toString() {
 		return "ActionTO [type=" + type + ", remoteLocation=" + remoteLocation + ", remoteTempLocation=" + remoteTempLocation
-				+ ", localTempLocation=" + localTempLocation + "]";
+				+ ", localTempLocation=" + localTempLocation + ", partialUpload=" + partialUpload + "]";
 	}
 }
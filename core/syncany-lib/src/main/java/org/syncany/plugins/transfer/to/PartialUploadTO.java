@@ -0,0 +1,178 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.transfer.to;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.simpleframework.xml.Attribute;
+import org.simpleframework.xml.Element;
+import org.simpleframework.xml.ElementList;
+import org.simpleframework.xml.Root;
+import org.syncany.plugins.transfer.files.ResumableRemoteFileAttributes;
+
+/**
+ * The partial upload transfer object describes the byte-level progress of a single
+ * upload within a {@link TransactionTO}. It is stored as part of an {@link ActionTO}, and
+ * is therefore persisted in the local transaction file if an upload is interrupted.
+ *
+ * <p>Transfer managers that support resuming uploads (e.g. via multipart uploads, or by
+ * appending to a partially written file) store a plugin-specific upload identifier and
+ * the list of already completed parts in this object. If the transaction is resumed, the
+ * upload continues after the last completed part instead of starting from zero.
+ *
+ * <p>The parts list is a copy-on-write list, because it may be serialized by the resume
+ * shutdown hook while an upload is still in progress.
+ *
+ * @see ResumableRemoteFileAttributes
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+@Root(name = "partialUpload", strict = false)
+public class PartialUploadTO {
+	@Element(name = "uploadId", required = false)
+	private String uploadId;
+
+	@Element(name = "localFileSize", required = false)
+	private long localFileSize;
+
+	@ElementList(name = "parts", entry = "part", required = false)
+	private CopyOnWriteArrayList<PartTO> parts;
+
+	public PartialUploadTO() {
+		this.parts = new CopyOnWriteArrayList<PartTO>();
+	}
+
+	/**
+	 * Returns the plugin-specific upload identifier, e.g. the S3 multipart
+	 * upload ID, or <tt>null</tt> if no upload has been started.
+	 */
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	/**
+	 * Returns the size of the local file at the time the upload was started.
+	 * Used to detect if the local file has changed in the meantime.
+	 */
+	public long getLocalFileSize() {
+		return localFileSize;
+	}
+
+	public List<PartTO> getParts() {
+		return parts;
+	}
+
+	/**
+	 * Returns the total number of bytes of all completed parts.
+	 */
+	public long getUploadedBytes() {
+		long uploadedBytes = 0;
+
+		for (PartTO part : parts) {
+			uploadedBytes += part.getLength();
+		}
+
+		return uploadedBytes;
+	}
+
+	/**
+	 * Returns whether this partial upload was started for the given local file,
+	 * i.e. whether there is an upload identifier and the file size has not changed
+	 * since the upload was started.
+	 */
+	public boolean isResumable(File localFile) {
+		return uploadId != null && localFileSize == localFile.length();
+	}
+
+	/**
+	 * Starts a new partial upload and discards any previously completed parts.
+	 */
+	public void start(String uploadId, File localFile) {
+		this.uploadId = uploadId;
+		this.localFileSize = localFile.length();
+		this.parts.clear();
+	}
+
+	/**
+	 * Adds a completed part to this partial upload. Parts must be added in order.
+	 */
+	public void addPart(int number, long offset, long length, String etag) {
+		parts.add(new PartTO(number, offset, length, etag));
+	}
+
+	/**
+	 * Resets this partial upload, e.g. after the upload has been completed.
+	 */
+	public void clear() {
+		this.uploadId = null;
+		this.localFileSize = 0;
+		this.parts.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "PartialUploadTO [uploadId=" + uploadId + ", localFileSize=" + localFileSize + ", parts=" + parts.size() + ", uploadedBytes="
+				+ getUploadedBytes() + "]";
+	}
+
+	/**
+	 * A single completed part of a {@link PartialUploadTO}.
+	 */
+	@Root(name = "part", strict = false)
+	public static class PartTO {
+		@Attribute(name = "number")
+		private int number;
+
+		@Attribute(name = "offset")
+		private long offset;
+
+		@Attribute(name = "length")
+		private long length;
+
+		@Attribute(name = "etag", required = false)
+		private String etag;
+
+		public PartTO() {
+			// Required for Simple XML
+		}
+
+		public PartTO(int number, long offset, long length, String etag) {
+			this.number = number;
+			this.offset = offset;
+			this.length = length;
+			this.etag = etag;
+		}
+
+		public int getNumber() {
+			return number;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+	}
+}
@@ -0,0 +1 @@
+select count(*) as chunkcount from chunk
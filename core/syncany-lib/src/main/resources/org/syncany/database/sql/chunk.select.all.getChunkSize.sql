@@ -0,0 +1,5 @@
+-- Select the size of a single chunk. This is only used if the chunk index is full.
+
+select size
+from chunk
+where checksum = ?
@@ -0,0 +1,5 @@
+-- Select the sizes of the given chunks, see ChunkSqlDao.getChunkSizes().
+
+select checksum, size
+from chunk
+where checksum in ( unnest(?) )
\ No newline at end of file
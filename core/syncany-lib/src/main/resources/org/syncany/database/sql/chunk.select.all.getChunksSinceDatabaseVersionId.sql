@@ -0,0 +1,7 @@
+-- Select all chunks that were added in the database version with the given ID, or in a newer one.
+-- This is used to incrementally update the chunk index and filter. The given database version itself
+-- is included, because its chunks may have been read while it was still being written.
+
+select checksum, size, databaseversion_id
+from chunk
+where databaseversion_id >= ?
@@ -0,0 +1 @@
+select id, size from multichunk where id in ( unnest(?) )
\ No newline at end of file
@@ -20,13 +20,19 @@ package org.syncany.tests;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
+import org.syncany.tests.integration.scenarios.longrunning.LongRunningCompressionBenchmarkTest;
+import org.syncany.tests.integration.scenarios.longrunning.LongRunningDeduperScalingBenchmarkTest;
 import org.syncany.tests.integration.scenarios.longrunning.LongRunningLargeFileScenarioTest;
+import org.syncany.tests.integration.scenarios.longrunning.LongRunningLocalTransferManagerBenchmarkTest;
 import org.syncany.tests.integration.scenarios.longrunning.LongRunningLotsOfSmallFilesScenarioTest;
 import org.syncany.tests.integration.scenarios.longrunning.LongRunningNewAndDeleteScenarioTest;
 
 @RunWith(Suite.class)
 @SuiteClasses({
+		LongRunningCompressionBenchmarkTest.class,
+		LongRunningDeduperScalingBenchmarkTest.class,
 		LongRunningLargeFileScenarioTest.class,
+		LongRunningLocalTransferManagerBenchmarkTest.class,
 		LongRunningLotsOfSmallFilesScenarioTest.class,
 		LongRunningNewAndDeleteScenarioTest.class
 })
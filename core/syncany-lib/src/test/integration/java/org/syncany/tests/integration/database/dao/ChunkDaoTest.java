@@ -18,16 +18,23 @@
 package org.syncany.tests.integration.database.dao;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Arrays;
 import java.util.Map;
 
 import org.junit.Test;
 import org.syncany.config.Config;
+import org.syncany.database.ChunkBloomFilter;
 import org.syncany.database.ChunkEntry;
 import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.database.ChunkIndex;
 import org.syncany.database.dao.ChunkSqlDao;
 import org.syncany.tests.util.TestConfigUtil;
 import org.syncany.tests.util.TestDatabaseUtil;
@@ -65,6 +72,36 @@ public class ChunkDaoTest {
 		TestConfigUtil.deleteTestLocalConfigAndData(testConfig);
 	}
 	
+	@Test
+	public void testGetChunkSizes() throws Exception {
+		// Setup
+		Config testConfig = TestConfigUtil.createTestLocalConfig();
+		Connection databaseConnection = testConfig.createDatabaseConnection();
+
+		// Run
+		TestSqlUtil.runSqlFromResource(databaseConnection, "test.insert.set3.sql");
+		
+		ChunkSqlDao chunkDao = new ChunkSqlDao(databaseConnection);
+		
+		Map<ChunkChecksum, Integer> chunkSizes = chunkDao.getChunkSizes(Arrays.asList(new ChunkChecksum[] {
+				ChunkChecksum.parseChunkChecksum("615fba8c2281d5bee891eb092a252d235c237457"),
+				ChunkChecksum.parseChunkChecksum("ab85720d3f31bd08ca1cd25dcd8a490e5f00783b"),
+				ChunkChecksum.parseChunkChecksum("615fba8c2281d5bee891eb092a252d235c237457"),
+				ChunkChecksum.parseChunkChecksum("beefbeefbeefbeefbeefbeefbeefbeefbeefbeef") }));
+		
+		// Test
+		assertEquals(2, chunkSizes.size());
+		assertEquals(8387, (int) chunkSizes.get(ChunkChecksum.parseChunkChecksum("615fba8c2281d5bee891eb092a252d235c237457")));
+		assertEquals(5176, (int) chunkSizes.get(ChunkChecksum.parseChunkChecksum("ab85720d3f31bd08ca1cd25dcd8a490e5f00783b")));
+		assertNull(chunkSizes.get(ChunkChecksum.parseChunkChecksum("beefbeefbeefbeefbeefbeefbeefbeefbeefbeef")));
+		
+		assertEquals(0, chunkDao.getChunkSizes(Arrays.<ChunkChecksum> asList()).size());
+		
+		// Tear down
+		databaseConnection.close();
+		TestConfigUtil.deleteTestLocalConfigAndData(testConfig);
+	}
+	
 	@Test
 	public void testGetChunksForDatabaseVersion() throws Exception {
 		// Setup
@@ -105,4 +142,148 @@ public class ChunkDaoTest {
 		databaseConnection.close();
 		TestConfigUtil.deleteTestLocalConfigAndData(testConfig);
 	}	
+
+	@Test
+	public void testGetChunkWithPersistedChunkIndex() throws Exception {
+		// Setup
+		Config testConfig = TestConfigUtil.createTestLocalConfig();
+		Connection databaseConnection = testConfig.createDatabaseConnection();
+		File chunkIndexFile = testConfig.getChunkIndexFile();
+		File chunkFilterFile = testConfig.getChunkFilterFile();
+
+		// Run
+		TestSqlUtil.runSqlFromResource(databaseConnection, "test.insert.set3.sql");
+		
+		ChunkSqlDao chunkDao = new ChunkSqlDao(databaseConnection, chunkIndexFile, chunkFilterFile);
+		ChunkChecksum newChunkChecksum = ChunkChecksum.parseChunkChecksum("beefbeefbeefbeefbeefbeefbeefbeefbeefbeef");
+
+		// Test 1: Filter and index are built and persisted
+		assertNotNull(chunkDao.getChunk(ChunkChecksum.parseChunkChecksum("615fba8c2281d5bee891eb092a252d235c237457")));
+		assertNull(chunkDao.getChunk(newChunkChecksum));
+		assertTrue(chunkIndexFile.exists());
+		assertTrue(chunkFilterFile.exists());
+		
+		// Test 2: Newly written chunks are added after clearing the cache
+		try (Statement statement = databaseConnection.createStatement()) {
+			statement.executeUpdate("INSERT INTO DATABASEVERSION VALUES(1000,'MASTER',TIMESTAMP_WITH_ZONE(1389977999),'A','(A1000)')");
+		}
+		
+		chunkDao.writeChunks(databaseConnection, 1000, Arrays.asList(new ChunkEntry(newChunkChecksum, 1234)));
+		databaseConnection.commit();
+		
+		assertNull(chunkDao.getChunk(newChunkChecksum));
+
+		chunkDao.clearCache();
+		
+		assertNotNull(chunkDao.getChunk(newChunkChecksum));
+		assertEquals(1234, chunkDao.getChunkSize(newChunkChecksum.getBytes()));
+		
+		// Test 3: Index is loaded from disk by a new DAO
+		ChunkSqlDao otherChunkDao = new ChunkSqlDao(databaseConnection, chunkIndexFile, chunkFilterFile);
+		
+		assertEquals(1234, otherChunkDao.getChunkSize(newChunkChecksum.getBytes()));
+		assertEquals(8387, otherChunkDao.getChunkSize(ChunkChecksum.parseChunkChecksum("615fba8c2281d5bee891eb092a252d235c237457").getBytes()));
+		
+		// Test 4: Index and filter are deleted when chunks are removed
+		otherChunkDao.removeUnreferencedChunks();
+		assertFalse(chunkIndexFile.exists());
+		assertFalse(chunkFilterFile.exists());
+		
+		// Tear down
+		databaseConnection.close();
+		TestConfigUtil.deleteTestLocalConfigAndData(testConfig);
+	}
+
+	@Test
+	public void testChunkFilterCountsChunksOnce() throws Exception {
+		// Setup
+		Config testConfig = TestConfigUtil.createTestLocalConfig();
+		Connection databaseConnection = testConfig.createDatabaseConnection();
+		File chunkIndexFile = testConfig.getChunkIndexFile();
+		File chunkFilterFile = testConfig.getChunkFilterFile();
+
+		// Run
+		TestSqlUtil.runSqlFromResource(databaseConnection, "test.insert.set3.sql");
+		
+		ChunkSqlDao chunkDao = new ChunkSqlDao(databaseConnection, chunkIndexFile, chunkFilterFile);
+		ChunkChecksum newChunkChecksum = ChunkChecksum.parseChunkChecksum("beefbeefbeefbeefbeefbeefbeefbeefbeefbeef");
+
+		assertEquals(-1, chunkDao.getChunkSize(newChunkChecksum.getBytes()));
+		assertEquals(18, ChunkBloomFilter.load(chunkFilterFile).getAddedChunkCount());
+
+		try (Statement statement = databaseConnection.createStatement()) {
+			statement.executeUpdate("INSERT INTO DATABASEVERSION VALUES(1000,'MASTER',TIMESTAMP_WITH_ZONE(1389977999),'A','(A1000)')");
+		}
+		
+		chunkDao.writeChunks(databaseConnection, 1000, Arrays.asList(new ChunkEntry(newChunkChecksum, 1234)));
+		databaseConnection.commit();
+
+		// Test: Chunks added by writeChunks() and the re-read last database version are not counted twice
+		chunkDao.clearCache();
+		assertEquals(1234, chunkDao.getChunkSize(newChunkChecksum.getBytes()));
+		assertEquals(19, ChunkBloomFilter.load(chunkFilterFile).getAddedChunkCount());
+
+		chunkDao.clearCache();
+		assertEquals(1234, chunkDao.getChunkSize(newChunkChecksum.getBytes()));
+		assertEquals(19, ChunkBloomFilter.load(chunkFilterFile).getAddedChunkCount());
+		
+		// Tear down
+		databaseConnection.close();
+		TestConfigUtil.deleteTestLocalConfigAndData(testConfig);
+	}
+
+	@Test
+	public void testGetChunkDefinitelyNewDoesNotLoadChunkIndex() throws Exception {
+		// Setup
+		Config testConfig = TestConfigUtil.createTestLocalConfig();
+		Connection databaseConnection = testConfig.createDatabaseConnection();
+		File chunkIndexFile = testConfig.getChunkIndexFile();
+		File chunkFilterFile = testConfig.getChunkFilterFile();
+
+		// Run
+		TestSqlUtil.runSqlFromResource(databaseConnection, "test.insert.set3.sql");
+		
+		ChunkSqlDao chunkDao = new ChunkSqlDao(databaseConnection, chunkIndexFile, chunkFilterFile);
+		
+		// Test
+		assertEquals(-1, chunkDao.getChunkSize(ChunkChecksum.parseChunkChecksum("beefbeefbeefbeefbeefbeefbeefbeefbeefbeef").getBytes()));
+		assertTrue(chunkFilterFile.exists());
+		assertFalse(chunkIndexFile.exists());
+		
+		assertEquals(8387, chunkDao.getChunkSize(ChunkChecksum.parseChunkChecksum("615fba8c2281d5bee891eb092a252d235c237457").getBytes()));
+		assertTrue(chunkIndexFile.exists());
+		
+		// Tear down
+		databaseConnection.close();
+		TestConfigUtil.deleteTestLocalConfigAndData(testConfig);
+	}
+
+	@Test
+	public void testGetChunkWithFullChunkIndex() throws Exception {
+		// Setup
+		Config testConfig = TestConfigUtil.createTestLocalConfig();
+		Connection databaseConnection = testConfig.createDatabaseConnection();
+		File chunkIndexFile = testConfig.getChunkIndexFile();
+		File chunkFilterFile = testConfig.getChunkFilterFile();
+
+		// Run
+		TestSqlUtil.runSqlFromResource(databaseConnection, "test.insert.set3.sql");
+		
+		ChunkSqlDao chunkDao = new ChunkSqlDao(databaseConnection, chunkIndexFile, chunkFilterFile) {
+			@Override
+			protected ChunkIndex createChunkIndex() {
+				return new ChunkIndex(16); // Holds 11 chunks, set 3 has 18 chunks
+			}
+		};
+		
+		// Test
+		assertEquals(8387, chunkDao.getChunkSize(ChunkChecksum.parseChunkChecksum("615fba8c2281d5bee891eb092a252d235c237457").getBytes()));
+		assertEquals(5176, chunkDao.getChunkSize(ChunkChecksum.parseChunkChecksum("ab85720d3f31bd08ca1cd25dcd8a490e5f00783b").getBytes()));
+		assertEquals(-1, chunkDao.getChunkSize(ChunkChecksum.parseChunkChecksum("beefbeefbeefbeefbeefbeefbeefbeefbeefbeef").getBytes()));
+		assertFalse(chunkIndexFile.exists());
+		
+		// Tear down
+		databaseConnection.close();
+		TestConfigUtil.deleteTestLocalConfigAndData(testConfig);
+	}
 }
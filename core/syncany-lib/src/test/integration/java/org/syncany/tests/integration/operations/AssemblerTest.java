@@ -22,12 +22,25 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 import org.syncany.chunk.Chunk;
 import org.syncany.chunk.MultiChunk;
+import org.syncany.database.FileVersion;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.database.PartialFileHistory;
+import org.syncany.database.SqlDatabase;
+import org.syncany.operations.Assembler;
+import org.syncany.operations.Downloader;
 import org.syncany.plugins.local.LocalTransferSettings;
+import org.syncany.plugins.transfer.TransferManagerFactory;
+import org.syncany.tests.util.TestAssertUtil;
 import org.syncany.tests.util.TestClient;
 import org.syncany.tests.util.TestConfigUtil;
 
@@ -80,5 +93,88 @@ public class AssemblerTest {
 		
 		clientA.deleteTestData();
 		clientB.deleteTestData();
-	}	
+	}
+
+	@Test
+	public void testAssembleFileWithChunksFromMultipleMultiChunks() throws Exception {
+		LocalTransferSettings testConnection = (LocalTransferSettings) TestConfigUtil.createTestLocalConnection();
+
+		TestClient clientA = new TestClient("A", testConnection);
+		TestClient clientB = new TestClient("B", testConnection);
+
+		// Large file spanning multiple multichunks, and a file with the same chunks in reverse order
+		File originalFile = clientA.createNewFile("file1", 12 * 1024 * 1024);
+		byte[] originalContent = FileUtils.readFileToByteArray(originalFile);
+		byte[] reversedContent = new byte[originalContent.length];
+
+		int blockSize = 1024 * 1024;
+
+		for (int offset = 0; offset < originalContent.length; offset += blockSize) {
+			byte[] block = Arrays.copyOfRange(originalContent, offset, offset + blockSize);
+			System.arraycopy(block, 0, reversedContent, originalContent.length - offset - blockSize, blockSize);
+		}
+
+		FileUtils.writeByteArrayToFile(clientA.getLocalFile("file2"), reversedContent);
+		clientA.up();
+
+		File repoMultiChunksFolder = new File(testConnection.getPath(), "multichunks");
+		assertTrue(repoMultiChunksFolder.listFiles().length > 1);
+
+		clientB.down();
+		TestAssertUtil.assertFileListEquals(clientA.getLocalFiles(), clientB.getLocalFiles());
+
+		clientA.deleteTestData();
+		clientB.deleteTestData();
+	}
+
+	@Test
+	public void testChangedFilePatchedInPlace() throws Exception {
+		LocalTransferSettings testConnection = (LocalTransferSettings) TestConfigUtil.createTestLocalConnection();
+
+		TestClient clientA = new TestClient("A", testConnection);
+		TestClient clientB = new TestClient("B", testConnection);
+
+		clientA.createNewFile("file1", 3 * 1024 * 1024);
+		clientA.upWithForceChecksum();
+		clientB.down();
+
+		byte[] originalContent = FileUtils.readFileToByteArray(clientA.getLocalFile("file1"));
+
+		// Change a few bytes in the middle of the file, i.e. in a single chunk
+		try (RandomAccessFile changedFile = new RandomAccessFile(clientA.getLocalFile("file1"), "rw")) {
+			changedFile.seek(1536 * 1024);
+			changedFile.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+		}
+
+		clientA.upWithForceChecksum();
+		clientB.down();
+
+		TestAssertUtil.assertFileListEquals(clientA.getLocalFiles(), clientB.getLocalFiles());
+		assertEquals(1, clientB.getConfig().getLocalDir().list().length - 1); // Only file1 and .syncany
+
+		// Assemble the original version next to the changed file
+		SqlDatabase localDatabaseB = new SqlDatabase(clientB.getConfig());
+		PartialFileHistory fileHistory = localDatabaseB.getFileHistoriesWithLastVersionByPath("file1");
+		List<FileVersion> fileVersions = localDatabaseB.getFileHistory(fileHistory.getFileHistoryId());
+
+		assertEquals(2, fileVersions.size());
+
+		Set<MultiChunkId> multiChunkIds = new HashSet<MultiChunkId>();
+
+		for (File multiChunkFile : new File(testConnection.getPath(), "multichunks").listFiles()) {
+			multiChunkIds.add(MultiChunkId.parseMultiChunkId(multiChunkFile.getName().substring("multichunk-".length())));
+		}
+
+		new Downloader(clientB.getConfig(), TransferManagerFactory.build(clientB.getConfig()).asDefault()).downloadAndDecryptMultiChunks(multiChunkIds);
+
+		File changedFile = clientB.getLocalFile("file1");
+		File patchedFile = new Assembler(clientB.getConfig(), localDatabaseB).assembleInPlace(fileVersions.get(0), changedFile, fileVersions.get(1));
+
+		assertEquals(clientB.getConfig().getCacheDir(), patchedFile.getParentFile());
+		assertArrayEquals(originalContent, FileUtils.readFileToByteArray(patchedFile));
+		assertTrue(patchedFile.delete());
+
+		clientA.deleteTestData();
+		clientB.deleteTestData();
+	}
 }
@@ -0,0 +1,189 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com> 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.integration.operations;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.syncany.config.Config;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.operations.Downloader;
+import org.syncany.plugins.local.LocalTransferSettings;
+import org.syncany.plugins.transfer.StorageException;
+import org.syncany.plugins.transfer.TransferManager;
+import org.syncany.plugins.transfer.TransferManagerFactory;
+import org.syncany.plugins.transfer.features.TransactionAware;
+import org.syncany.tests.util.TestClient;
+import org.syncany.tests.util.TestConfigUtil;
+
+public class DownloaderTest {
+	@Test
+	public void testDownloadMultiChunksInParallel() throws Exception {
+		LocalTransferSettings testConnection = (LocalTransferSettings) TestConfigUtil.createTestLocalConnection();
+
+		TestClient clientA = new TestClient("A", testConnection);
+		TestClient clientB = new TestClient("B", testConnection);
+
+		for (int i = 0; i < 5; i++) {
+			clientA.createNewFile("file" + i, 5 * 1024 * 1024);
+		}
+
+		clientA.up();
+
+		File repoMultiChunksFolder = new File(testConnection.getPath(), "multichunks");
+		Set<MultiChunkId> multiChunkIds = getMultiChunkIds(repoMultiChunksFolder);
+
+		assertTrue(multiChunkIds.size() > 4);
+
+		Config configB = clientB.getConfig();
+		TransferManager transferManagerB = TransferManagerFactory.build(configB).withFeature(TransactionAware.class).asDefault();
+
+		new Downloader(configB, transferManagerB, 4, 2).downloadAndDecryptMultiChunks(multiChunkIds);
+
+		for (MultiChunkId multiChunkId : multiChunkIds) {
+			File repoMultiChunkFile = new File(repoMultiChunksFolder, "multichunk-" + multiChunkId);
+			File decryptedMultiChunkFile = configB.getCache().getDecryptedMultiChunkFile(multiChunkId);
+
+			// Tests run without transformers by default, so decrypted and remote multichunks are identical
+			assertTrue(decryptedMultiChunkFile.exists());
+			assertArrayEquals(FileUtils.readFileToByteArray(repoMultiChunkFile), FileUtils.readFileToByteArray(decryptedMultiChunkFile));
+
+			// Encrypted multichunks are kept in the cache
+			File encryptedMultiChunkFile = configB.getCache().getEncryptedMultiChunkFile(multiChunkId);
+
+			assertTrue(encryptedMultiChunkFile.exists());
+			assertArrayEquals(FileUtils.readFileToByteArray(repoMultiChunkFile), FileUtils.readFileToByteArray(encryptedMultiChunkFile));
+		}
+
+		clientA.deleteTestData();
+		clientB.deleteTestData();
+	}
+
+	@Test
+	public void testDecryptCachedEncryptedMultiChunksWithoutDownload() throws Exception {
+		LocalTransferSettings testConnection = (LocalTransferSettings) TestConfigUtil.createTestLocalConnection();
+
+		TestClient clientA = new TestClient("A", testConnection);
+		TestClient clientB = new TestClient("B", testConnection);
+
+		for (int i = 0; i < 5; i++) {
+			clientA.createNewFile("file" + i, 5 * 1024 * 1024);
+		}
+
+		clientA.up();
+
+		File repoMultiChunksFolder = new File(testConnection.getPath(), "multichunks");
+		Set<MultiChunkId> multiChunkIds = getMultiChunkIds(repoMultiChunksFolder);
+		Map<MultiChunkId, byte[]> repoMultiChunks = new HashMap<MultiChunkId, byte[]>();
+
+		Config configB = clientB.getConfig();
+		TransferManager transferManagerB = TransferManagerFactory.build(configB).withFeature(TransactionAware.class).asDefault();
+
+		new Downloader(configB, transferManagerB, 4, 2).downloadAndDecryptMultiChunks(multiChunkIds);
+
+		// Remove decrypted multichunks from the cache, and multichunks from the repository
+		for (MultiChunkId multiChunkId : multiChunkIds) {
+			File repoMultiChunkFile = new File(repoMultiChunksFolder, "multichunk-" + multiChunkId);
+
+			repoMultiChunks.put(multiChunkId, FileUtils.readFileToByteArray(repoMultiChunkFile));
+
+			assertTrue(repoMultiChunkFile.delete());
+			assertTrue(configB.getCache().getDecryptedMultiChunkFile(multiChunkId).delete());
+		}
+
+		new Downloader(configB, transferManagerB, 4, 2).downloadAndDecryptMultiChunks(multiChunkIds);
+
+		for (MultiChunkId multiChunkId : multiChunkIds) {
+			File decryptedMultiChunkFile = configB.getCache().getDecryptedMultiChunkFile(multiChunkId);
+			assertArrayEquals(repoMultiChunks.get(multiChunkId), FileUtils.readFileToByteArray(decryptedMultiChunkFile));
+		}
+
+		clientA.deleteTestData();
+		clientB.deleteTestData();
+	}
+
+	@Test
+	public void testDownloadMultiChunksWithMissingMultiChunk() throws Exception {
+		LocalTransferSettings testConnection = (LocalTransferSettings) TestConfigUtil.createTestLocalConnection();
+
+		TestClient clientA = new TestClient("A", testConnection);
+		TestClient clientB = new TestClient("B", testConnection);
+
+		for (int i = 0; i < 5; i++) {
+			clientA.createNewFile("file" + i, 5 * 1024 * 1024);
+		}
+
+		clientA.up();
+
+		File repoMultiChunksFolder = new File(testConnection.getPath(), "multichunks");
+		Set<MultiChunkId> multiChunkIds = getMultiChunkIds(repoMultiChunksFolder);
+
+		// Delete one multichunk from the repository
+		MultiChunkId missingMultiChunkId = multiChunkIds.iterator().next();
+		assertTrue(new File(repoMultiChunksFolder, "multichunk-" + missingMultiChunkId).delete());
+
+		Config configB = clientB.getConfig();
+		TransferManager transferManagerB = TransferManagerFactory.build(configB).withFeature(TransactionAware.class).asDefault();
+
+		try {
+			new Downloader(configB, transferManagerB, 4, 2).downloadAndDecryptMultiChunks(multiChunkIds);
+			fail("Download should have failed, because a multichunk is missing.");
+		}
+		catch (StorageException e) {
+			// Expected
+		}
+
+		// No partial multichunks must be left behind; complete encrypted multichunks may be cached
+		assertFalse(configB.getCache().getDecryptedMultiChunkFile(missingMultiChunkId).exists());
+		assertFalse(configB.getCache().getEncryptedMultiChunkFile(missingMultiChunkId).exists());
+
+		for (MultiChunkId multiChunkId : multiChunkIds) {
+			File encryptedMultiChunkFile = configB.getCache().getEncryptedMultiChunkFile(multiChunkId);
+
+			if (encryptedMultiChunkFile.exists()) {
+				File repoMultiChunkFile = new File(repoMultiChunksFolder, "multichunk-" + multiChunkId);
+				assertArrayEquals(FileUtils.readFileToByteArray(repoMultiChunkFile), FileUtils.readFileToByteArray(encryptedMultiChunkFile));
+			}
+		}
+
+		clientA.deleteTestData();
+		clientB.deleteTestData();
+	}
+
+	private Set<MultiChunkId> getMultiChunkIds(File repoMultiChunksFolder) {
+		Set<MultiChunkId> multiChunkIds = new HashSet<MultiChunkId>();
+
+		for (File multiChunkFile : repoMultiChunksFolder.listFiles()) {
+			multiChunkIds.add(MultiChunkId.parseMultiChunkId(multiChunkFile.getName().substring("multichunk-".length())));
+		}
+
+		assertEquals(repoMultiChunksFolder.listFiles().length, multiChunkIds.size());
+		return multiChunkIds;
+	}
+}
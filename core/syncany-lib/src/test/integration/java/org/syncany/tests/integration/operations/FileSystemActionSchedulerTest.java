@@ -0,0 +1,247 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com> 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.integration.operations;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.syncany.config.Config;
+import org.syncany.database.FileVersion;
+import org.syncany.database.FileVersion.FileType;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.operations.down.FileSystemActionScheduler;
+import org.syncany.operations.down.actions.DeleteFileSystemAction;
+import org.syncany.operations.down.actions.FileSystemAction;
+import org.syncany.operations.down.actions.NewFileSystemAction;
+import org.syncany.tests.util.TestConfigUtil;
+
+public class FileSystemActionSchedulerTest {
+	private static final MultiChunkId MULTICHUNK_1 = MultiChunkId.parseMultiChunkId("1111111111111111111111111111111111111111");
+	private static final MultiChunkId MULTICHUNK_2 = MultiChunkId.parseMultiChunkId("2222222222222222222222222222222222222222");
+	private static final MultiChunkId MULTICHUNK_3 = MultiChunkId.parseMultiChunkId("3333333333333333333333333333333333333333");
+
+	@Test
+	public void testActionsAppliedWhenMultiChunksAvailable() throws Exception {
+		FileSystemActionScheduler scheduler = new FileSystemActionScheduler();
+
+		scheduler.addAction(createNewFileSystemAction("file1", FileType.FILE), Arrays.asList(MULTICHUNK_1));
+		scheduler.addAction(createNewFileSystemAction("file2", FileType.FILE), Arrays.asList(MULTICHUNK_2));
+		scheduler.addAction(createNewFileSystemAction("file3", FileType.FILE), Arrays.asList(MULTICHUNK_1, MULTICHUNK_2));
+
+		assertNull(scheduler.nextReadyAction());
+
+		scheduler.setMultiChunkAvailable(MULTICHUNK_2);
+		assertEquals("file2", applyNextAction(scheduler).getFile2().getPath());
+		assertNull(scheduler.nextReadyAction());
+
+		scheduler.setMultiChunkAvailable(MULTICHUNK_1);
+		assertEquals("file1", applyNextAction(scheduler).getFile2().getPath());
+		assertEquals("file3", applyNextAction(scheduler).getFile2().getPath());
+
+		assertNull(scheduler.nextReadyAction());
+		assertFalse(scheduler.hasPendingActions());
+	}
+
+	@Test
+	public void testBarrierActionsKeepOrder() throws Exception {
+		FileSystemActionScheduler scheduler = new FileSystemActionScheduler();
+
+		scheduler.addAction(createDeleteFileSystemAction("deletedfile", FileType.FILE), noMultiChunks());
+		scheduler.addAction(createNewFileSystemAction("folder", FileType.FOLDER), noMultiChunks());
+		scheduler.addAction(createNewFileSystemAction("folder/file1", FileType.FILE), Arrays.asList(MULTICHUNK_1));
+		scheduler.addAction(createNewFileSystemAction("folder/file2", FileType.FILE), noMultiChunks());
+		scheduler.addAction(createDeleteFileSystemAction("deletedfolder", FileType.FOLDER), noMultiChunks());
+		scheduler.addAction(createNewFileSystemAction("deletedfolder", FileType.FILE), noMultiChunks());
+
+		assertEquals("deletedfile", applyNextAction(scheduler).getFile2().getPath());
+		assertEquals("folder", applyNextAction(scheduler).getFile2().getPath());
+		assertEquals("folder/file2", applyNextAction(scheduler).getFile2().getPath());
+
+		// Folder deletion must wait for file1, even though it does not need any multichunks
+		assertNull(scheduler.nextReadyAction());
+		assertTrue(scheduler.hasPendingActions());
+
+		scheduler.setMultiChunkAvailable(MULTICHUNK_1);
+
+		assertEquals("folder/file1", applyNextAction(scheduler).getFile2().getPath());
+
+		FileSystemAction deleteFolderAction = applyNextAction(scheduler);
+		assertEquals(DeleteFileSystemAction.class, deleteFolderAction.getClass());
+		assertEquals("deletedfolder", deleteFolderAction.getFile2().getPath());
+
+		FileSystemAction newFileAction = applyNextAction(scheduler);
+		assertEquals(NewFileSystemAction.class, newFileAction.getClass());
+		assertEquals("deletedfolder", newFileAction.getFile2().getPath());
+
+		assertFalse(scheduler.hasPendingActions());
+	}
+
+	@Test
+	public void testActionsOnSamePathKeepOrder() throws Exception {
+		FileSystemActionScheduler scheduler = new FileSystemActionScheduler();
+
+		FileSystemAction firstAction = createNewFileSystemAction("file1", FileType.FILE);
+		FileSystemAction secondAction = createNewFileSystemAction("file1", FileType.FILE);
+
+		scheduler.addAction(firstAction, Arrays.asList(MULTICHUNK_1));
+		scheduler.addAction(secondAction, noMultiChunks());
+
+		assertNull(scheduler.nextReadyAction());
+
+		scheduler.setMultiChunkAvailable(MULTICHUNK_1);
+
+		assertTrue(firstAction == applyNextAction(scheduler));
+		assertTrue(secondAction == applyNextAction(scheduler));
+	}
+
+	@Test
+	public void testIndependentActionsRunInParallel() throws Exception {
+		FileSystemActionScheduler scheduler = new FileSystemActionScheduler();
+
+		scheduler.addAction(createNewFileSystemAction("folder", FileType.FOLDER), noMultiChunks());
+		scheduler.addAction(createNewFileSystemAction("folder/file1", FileType.FILE), noMultiChunks());
+		scheduler.addAction(createNewFileSystemAction("folder/file2", FileType.FILE), noMultiChunks());
+		scheduler.addAction(createNewFileSystemAction("folder/FILE2", FileType.FILE), noMultiChunks());
+		scheduler.addAction(createDeleteFileSystemAction("deletedfolder", FileType.FOLDER), noMultiChunks());
+
+		// Parent folder must be created first
+		FileSystemAction folderAction = scheduler.nextReadyAction();
+		assertEquals("folder", folderAction.getFile2().getPath());
+		assertNull(scheduler.nextReadyAction());
+
+		scheduler.setActionApplied(folderAction);
+
+		// Files can be created at the same time, except for paths differing only in case
+		FileSystemAction file1Action = scheduler.nextReadyAction();
+		FileSystemAction file2Action = scheduler.nextReadyAction();
+
+		assertEquals("folder/file1", file1Action.getFile2().getPath());
+		assertEquals("folder/file2", file2Action.getFile2().getPath());
+		assertNull(scheduler.nextReadyAction());
+
+		scheduler.setActionApplied(file2Action);
+		FileSystemAction upperCaseFile2Action = scheduler.nextReadyAction();
+
+		assertEquals("folder/FILE2", upperCaseFile2Action.getFile2().getPath());
+		assertNull(scheduler.nextReadyAction());
+
+		// Barrier waits for all running actions
+		scheduler.setActionApplied(upperCaseFile2Action);
+		assertNull(scheduler.nextReadyAction());
+
+		scheduler.setActionApplied(file1Action);
+		assertEquals("deletedfolder", applyNextAction(scheduler).getFile2().getPath());
+
+		assertFalse(scheduler.hasPendingActions());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testSetActionAppliedFailsIfNotRunning() throws Exception {
+		FileSystemActionScheduler scheduler = new FileSystemActionScheduler();
+		FileSystemAction action = createNewFileSystemAction("file1", FileType.FILE);
+
+		scheduler.addAction(action, Arrays.asList(MULTICHUNK_1));
+		scheduler.setActionApplied(action);
+	}
+
+	@Test
+	public void testDownloadOrderUnblocksMostActionsFirst() throws Exception {
+		FileSystemActionScheduler scheduler = new FileSystemActionScheduler();
+
+		scheduler.addAction(createNewFileSystemAction("file1", FileType.FILE), Arrays.asList(MULTICHUNK_1, MULTICHUNK_2));
+		scheduler.addAction(createNewFileSystemAction("file2", FileType.FILE), Arrays.asList(MULTICHUNK_2));
+		scheduler.addAction(createNewFileSystemAction("file3", FileType.FILE), Arrays.asList(MULTICHUNK_3));
+
+		// Multichunks 2 and 3 complete one action each, multichunk 1 is only needed after 2 is there
+		assertArrayEquals(new MultiChunkId[] { MULTICHUNK_2, MULTICHUNK_3, MULTICHUNK_1 },
+				scheduler.getDownloadOrder().toArray(new MultiChunkId[0]));
+	}
+
+	@Test
+	public void testDownloadOrderFollowsBarriers() throws Exception {
+		FileSystemActionScheduler scheduler = new FileSystemActionScheduler();
+
+		scheduler.addAction(createNewFileSystemAction("file1", FileType.FILE), Arrays.asList(MULTICHUNK_1, MULTICHUNK_2));
+		scheduler.addAction(createNewFileSystemAction("folder", FileType.FOLDER), noMultiChunks());
+		scheduler.addAction(createNewFileSystemAction("folder/file2", FileType.FILE), Arrays.asList(MULTICHUNK_3));
+
+		// Multichunk 3 is only needed after the folder is created, so it comes last
+		MultiChunkId[] downloadOrder = scheduler.getDownloadOrder().toArray(new MultiChunkId[0]);
+
+		assertEquals(3, downloadOrder.length);
+		assertEquals(MULTICHUNK_3, downloadOrder[2]);
+	}
+
+	private FileSystemAction applyNextAction(FileSystemActionScheduler scheduler) {
+		FileSystemAction action = scheduler.nextReadyAction();
+		scheduler.setActionApplied(action);
+
+		return action;
+	}
+
+	private List<MultiChunkId> noMultiChunks() {
+		return Collections.emptyList();
+	}
+
+	private DeleteFileSystemAction createDeleteFileSystemAction(String path, FileType type) throws Exception {
+		FileVersion firstFileVersion = createFileVersion(path, type);
+		FileVersion secondFileVersion = createFileVersion(path, type, firstFileVersion);
+
+		return new DeleteFileSystemAction(createDummyConfig(), firstFileVersion, secondFileVersion, null);
+	}
+
+	private NewFileSystemAction createNewFileSystemAction(String path, FileType type) throws Exception {
+		FileVersion firstFileVersion = createFileVersion(path, type);
+		return new NewFileSystemAction(createDummyConfig(), firstFileVersion, null);
+	}
+
+	private FileVersion createFileVersion(String path, FileType type) {
+		return createFileVersion(path, type, null);
+	}
+
+	private FileVersion createFileVersion(String path, FileType type, FileVersion basedOnFileVersion) {
+		if (basedOnFileVersion == null) {
+			FileVersion fileVersion = new FileVersion();
+			fileVersion.setPath(path);
+			fileVersion.setType(type);
+			fileVersion.setVersion(1L);
+
+			return fileVersion;
+		}
+		else {
+			FileVersion fileVersion = basedOnFileVersion.clone();
+			fileVersion.setPath(path);
+			fileVersion.setType(type);
+			fileVersion.setVersion(basedOnFileVersion.getVersion() + 1);
+
+			return fileVersion;
+		}
+	}
+
+	private Config createDummyConfig() throws Exception {
+		return TestConfigUtil.createDummyConfig();
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com> 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.integration.operations;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.syncany.database.FileVersion;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.database.SqlDatabase;
+import org.syncany.operations.MultiChunkPrefetcher;
+import org.syncany.operations.MultiChunkPrefetcher.PrefetchBudget;
+import org.syncany.operations.MultiChunkPrefetcher.PrefetchListener;
+import org.syncany.operations.restore.RestoreOperationOptions;
+import org.syncany.plugins.local.LocalTransferSettings;
+import org.syncany.tests.util.TestClient;
+import org.syncany.tests.util.TestConfigUtil;
+
+public class MultiChunkPrefetcherTest {
+	@Test
+	public void testPrefetchPreviousVersionAndRestoreFromCache() throws Exception {
+		LocalTransferSettings testConnection = (LocalTransferSettings) TestConfigUtil.createTestLocalConnection();
+		TestClient clientA = new TestClient("A", testConnection);
+
+		clientA.createNewFile("A-file", 1024 * 1024);
+		clientA.upWithForceChecksum();
+
+		byte[] originalFileContent = FileUtils.readFileToByteArray(clientA.getLocalFile("A-file"));
+
+		clientA.changeFile("A-file");
+		clientA.upWithForceChecksum();
+		clientA.getConfig().getCache().clear(0);
+
+		// Prefetch the previous version
+		SqlDatabase localDatabase = new SqlDatabase(clientA.getConfig());
+		MultiChunkPrefetcher prefetcher = new MultiChunkPrefetcher(clientA.getConfig(), localDatabase);
+
+		List<FileVersion> previousFileVersions = prefetcher.getPreviousFileVersions(Arrays.asList("A-file"));
+
+		assertEquals(1, previousFileVersions.size());
+		assertEquals(1, (long) previousFileVersions.get(0).getVersion());
+
+		Set<MultiChunkId> prefetchedMultiChunkIds = prefetcher.prefetch(previousFileVersions);
+		assertFalse(prefetchedMultiChunkIds.isEmpty());
+
+		// Multichunks are cached encrypted; remove them from the repository to make sure they are not downloaded again
+		for (MultiChunkId multiChunkId : prefetchedMultiChunkIds) {
+			assertTrue(clientA.getConfig().getCache().getEncryptedMultiChunkFile(multiChunkId).exists());
+			assertFalse(clientA.getConfig().getCache().getDecryptedMultiChunkFile(multiChunkId).exists());
+			assertTrue(new File(testConnection.getPath(), "multichunks/multichunk-" + multiChunkId).delete());
+		}
+
+		// Nothing left to prefetch
+		assertTrue(prefetcher.plan(previousFileVersions).isEmpty());
+
+		RestoreOperationOptions restoreOptions = new RestoreOperationOptions();
+
+		restoreOptions.setFileHistoryId(previousFileVersions.get(0).getFileHistoryId());
+		restoreOptions.setFileVersion(1);
+
+		clientA.restore(restoreOptions);
+
+		File restoredFile = clientA.getLocalFile("A-file (restored version 1)");
+
+		assertTrue(restoredFile.exists());
+		assertArrayEquals(originalFileContent, FileUtils.readFileToByteArray(restoredFile));
+
+		clientA.deleteTestData();
+	}
+
+	@Test
+	public void testPrefetchWithinBudget() throws Exception {
+		LocalTransferSettings testConnection = (LocalTransferSettings) TestConfigUtil.createTestLocalConnection();
+		TestClient clientA = new TestClient("A", testConnection);
+
+		// One multichunk per file version
+		for (int i = 0; i < 3; i++) {
+			clientA.createNewFile("A-file" + i, 1024 * 1024);
+			clientA.upWithForceChecksum();
+		}
+
+		for (int i = 0; i < 3; i++) {
+			clientA.changeFile("A-file" + i);
+		}
+
+		clientA.upWithForceChecksum();
+		clientA.getConfig().getCache().clear(0);
+
+		SqlDatabase localDatabase = new SqlDatabase(clientA.getConfig());
+
+		// Current versions are restored from the local files
+		MultiChunkPrefetcher prefetcher = new MultiChunkPrefetcher(clientA.getConfig(), localDatabase);
+		assertTrue(prefetcher.plan(new ArrayList<FileVersion>(localDatabase.getCurrentFileTree().values())).isEmpty());
+
+		// Bandwidth budget: 1.5 MB allows only one of the previous versions
+		List<FileVersion> previousFileVersions = prefetcher.getPreviousFileVersions(Arrays.asList("A-file0", "A-file1", "A-file2"));
+		assertEquals(3, previousFileVersions.size());
+
+		MultiChunkPrefetcher limitedPrefetcher = new MultiChunkPrefetcher(clientA.getConfig(), localDatabase, 1536 * 1024, 1.0);
+		assertEquals(1, limitedPrefetcher.plan(previousFileVersions).size());
+
+		// Disk budget: 3 MB of the cache's keep size allows only one as well
+		clientA.getConfig().getCache().setKeepBytes(3 * 1024 * 1024);
+
+		MultiChunkPrefetcher cacheLimitedPrefetcher = new MultiChunkPrefetcher(clientA.getConfig(), localDatabase, Long.MAX_VALUE, 0.5);
+		assertEquals(1, cacheLimitedPrefetcher.plan(previousFileVersions).size());
+
+		clientA.deleteTestData();
+	}
+
+	@Test
+	public void testPrefetchBudgetAcrossPrefetchRounds() throws Exception {
+		LocalTransferSettings testConnection = (LocalTransferSettings) TestConfigUtil.createTestLocalConnection();
+		TestClient clientA = new TestClient("A", testConnection);
+
+		// One multichunk per file version
+		for (int i = 0; i < 5; i++) {
+			clientA.createNewFile("A-file" + i, 1024 * 1024);
+			clientA.upWithForceChecksum();
+		}
+
+		for (int i = 0; i < 5; i++) {
+			clientA.changeFile("A-file" + i);
+		}
+
+		clientA.upWithForceChecksum();
+		clientA.getConfig().getCache().clear(0);
+
+		SqlDatabase localDatabase = new SqlDatabase(clientA.getConfig());
+		PrefetchBudget budget = new PrefetchBudget();
+
+		List<FileVersion> previousFileVersions = new MultiChunkPrefetcher(clientA.getConfig(), localDatabase).getPreviousFileVersions(Arrays.asList(
+				"A-file0", "A-file1", "A-file2", "A-file3", "A-file4"));
+
+		assertEquals(5, previousFileVersions.size());
+
+		// Cancelled prefetches do not download anything
+		Set<MultiChunkId> cancelledMultiChunkIds = new MultiChunkPrefetcher(clientA.getConfig(), localDatabase, 2560 * 1024, 1.0, budget).prefetch(
+				previousFileVersions, new PrefetchListener() {
+					@Override
+					public boolean isPrefetchCancelled() {
+						return true;
+					}
+				});
+
+		assertTrue(cancelledMultiChunkIds.isEmpty());
+		assertEquals(0, budget.getDownloadedBytes());
+
+		// Round 1: 2.5 MB bandwidth budget, one previous version prefetched, only one more allowed
+		Set<MultiChunkId> prefetchedMultiChunkIds = new HashSet<MultiChunkId>();
+		prefetchedMultiChunkIds.addAll(new MultiChunkPrefetcher(clientA.getConfig(), localDatabase, 2560 * 1024, 1.0, budget).prefetch(
+				previousFileVersions.subList(0, 1)));
+
+		assertEquals(1, prefetchedMultiChunkIds.size());
+		assertTrue(budget.getDownloadedBytes() > 0);
+		assertEquals(1, new MultiChunkPrefetcher(clientA.getConfig(), localDatabase, 2560 * 1024, 1.0, budget).plan(previousFileVersions.subList(1, 3))
+				.size());
+
+		// Round 2: after the bandwidth budget is reset (e.g. after a sync), the budget is available again
+		budget.resetDownloadedBytes();
+
+		prefetchedMultiChunkIds.addAll(new MultiChunkPrefetcher(clientA.getConfig(), localDatabase, 2560 * 1024, 1.0, budget).prefetch(
+				previousFileVersions.subList(1, 3)));
+
+		assertEquals(3, prefetchedMultiChunkIds.size());
+
+		// Disk budget: the cached prefetched multichunks count, so only one more fits
+		Map<MultiChunkId, Long> multiChunkSizes = localDatabase.getMultiChunkSizes(new ArrayList<MultiChunkId>(prefetchedMultiChunkIds));
+		long prefetchedBytes = 0;
+
+		for (Long multiChunkSize : multiChunkSizes.values()) {
+			prefetchedBytes += multiChunkSize;
+		}
+
+		clientA.getConfig().getCache().setKeepBytes(prefetchedBytes + (long) (1.5 * Collections.max(multiChunkSizes.values())));
+		budget.resetDownloadedBytes();
+
+		MultiChunkPrefetcher cacheLimitedPrefetcher = new MultiChunkPrefetcher(clientA.getConfig(), localDatabase, 2560 * 1024, 1.0, budget);
+		assertEquals(1, cacheLimitedPrefetcher.plan(previousFileVersions.subList(3, 5)).size());
+
+		// Evicted multichunks do not count anymore
+		clientA.getConfig().getCache().clear(0);
+
+		for (MultiChunkId multiChunkId : prefetchedMultiChunkIds) {
+			assertFalse(clientA.getConfig().getCache().containsMultiChunk(multiChunkId));
+		}
+
+		assertEquals(2, cacheLimitedPrefetcher.plan(previousFileVersions.subList(3, 5)).size());
+
+		clientA.deleteTestData();
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com> 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.integration.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.syncany.database.DatabaseVersion;
+import org.syncany.database.DatabaseVersionHeader;
+import org.syncany.database.dao.DatabaseXmlSerializer;
+import org.syncany.operations.down.RemoteDatabaseLoader;
+import org.syncany.plugins.local.LocalTransferSettings;
+import org.syncany.plugins.transfer.TransferManager;
+import org.syncany.plugins.transfer.TransferManagerFactory;
+import org.syncany.plugins.transfer.files.DatabaseRemoteFile;
+import org.syncany.tests.util.TestClient;
+import org.syncany.tests.util.TestConfigUtil;
+
+public class RemoteDatabaseLoaderTest {
+	@Test
+	public void testParallelLoadEqualsSequentialLoad() throws Exception {
+		LocalTransferSettings testConnection = (LocalTransferSettings) TestConfigUtil.createTestLocalConnection();
+
+		TestClient clientA = new TestClient("A", testConnection);
+		TestClient clientB = new TestClient("B", testConnection);
+
+		for (int i = 0; i < 10; i++) {
+			clientA.down();
+			clientA.createNewFile("A-file" + i);
+			clientA.upWithForceChecksum();
+
+			clientB.down();
+			clientB.createNewFile("B-file" + i);
+			clientB.upWithForceChecksum();
+		}
+
+		SortedMap<DatabaseRemoteFile, List<DatabaseVersion>> sequentialHeaders = loadHeaders(clientB, testConnection, 1, 1);
+		SortedMap<DatabaseRemoteFile, List<DatabaseVersion>> parallelHeaders = loadHeaders(clientB, testConnection, 4, 4);
+
+		assertEquals(20, sequentialHeaders.size());
+		assertEquals(new ArrayList<DatabaseRemoteFile>(sequentialHeaders.keySet()), new ArrayList<DatabaseRemoteFile>(parallelHeaders.keySet()));
+
+		for (DatabaseRemoteFile remoteDatabaseFile : sequentialHeaders.keySet()) {
+			assertEquals(getHeaders(sequentialHeaders.get(remoteDatabaseFile)), getHeaders(parallelHeaders.get(remoteDatabaseFile)));
+		}
+
+		clientA.deleteTestData();
+		clientB.deleteTestData();
+	}
+
+	@Test
+	public void testLoadFailsIfDatabaseIsCorrupt() throws Exception {
+		LocalTransferSettings testConnection = (LocalTransferSettings) TestConfigUtil.createTestLocalConnection();
+		TestClient clientA = new TestClient("A", testConnection);
+
+		for (int i = 0; i < 5; i++) {
+			clientA.createNewFile("A-file" + i);
+			clientA.upWithForceChecksum();
+		}
+
+		FileUtils.writeStringToFile(new File(testConnection.getPath(), "databases/database-A-0000000003"), "not a database");
+
+		try {
+			loadHeaders(clientA, testConnection, 4, 4);
+			fail("Loading a corrupt database should fail.");
+		}
+		catch (IOException e) {
+			// Expected
+		}
+
+		clientA.deleteTestData();
+	}
+
+	private SortedMap<DatabaseRemoteFile, List<DatabaseVersion>> loadHeaders(TestClient client, LocalTransferSettings testConnection,
+			int downloadThreads, int parserThreads) throws Exception {
+
+		SortedMap<File, DatabaseRemoteFile> remoteDatabases = new TreeMap<File, DatabaseRemoteFile>();
+
+		for (File databaseFile : new File(testConnection.getPath(), "databases").listFiles()) {
+			File databaseFileInCache = new File(client.getConfig().getCacheDir(), downloadThreads + "-" + databaseFile.getName());
+			remoteDatabases.put(databaseFileInCache, new DatabaseRemoteFile(databaseFile.getName()));
+		}
+
+		TransferManager transferManager = TransferManagerFactory.build(client.getConfig()).asDefault();
+		DatabaseXmlSerializer databaseSerializer = new DatabaseXmlSerializer(client.getConfig().getTransformer());
+
+		return new RemoteDatabaseLoader(client.getConfig(), transferManager, databaseSerializer, downloadThreads, parserThreads)
+				.downloadAndReadHeaders(remoteDatabases);
+	}
+
+	private List<DatabaseVersionHeader> getHeaders(List<DatabaseVersion> databaseVersions) {
+		List<DatabaseVersionHeader> headers = new ArrayList<DatabaseVersionHeader>();
+
+		for (DatabaseVersion databaseVersion : databaseVersions) {
+			headers.add(databaseVersion.getHeader());
+		}
+
+		return headers;
+	}
+}
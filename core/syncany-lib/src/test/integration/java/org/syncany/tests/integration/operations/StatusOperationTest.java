@@ -22,6 +22,7 @@ import static org.junit.Assert.assertEquals;
 import java.io.File;
 import java.util.List;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.Test;
 import org.syncany.config.Config;
 import org.syncany.operations.ChangeSet;
@@ -135,6 +136,36 @@ public class StatusOperationTest {
 		TestConfigUtil.deleteTestLocalConfigAndData(config);
 	}
 	
+	@Test
+	public void testForceChecksumIgnoresChecksumCache() throws Exception {
+		// Setup
+		Config config = TestConfigUtil.createTestLocalConfig();
+		File testFile = TestFileUtil.createRandomFileInDirectory(config.getLocalDir(), 40);
+		long lastModified = System.currentTimeMillis() - 60 * 1000;
+
+		testFile.setLastModified(lastModified);
+
+		// Perform 'up'; the indexer caches the file checksum
+		new UpOperation(config).execute();
+
+		// Change test file without changing size or modified date
+		byte[] testFileContent = FileUtils.readFileToByteArray(testFile);
+		testFileContent[0] ^= 0xff;
+
+		FileUtils.writeByteArrayToFile(testFile, testFileContent);
+		testFile.setLastModified(lastModified);
+
+		// Run 'status' with forced checksums, this must not use the cached checksum
+		StatusOperationOptions statusOptions = new StatusOperationOptions();
+		statusOptions.setForceChecksum(true);
+
+		ChangeSet changeSet = (new StatusOperation(config, statusOptions).execute()).getChangeSet();
+		assertEquals(1, changeSet.getChangedFiles().size());
+
+		// Cleanup
+		TestConfigUtil.deleteTestLocalConfigAndData(config);
+	}
+
 	@Test
 	public void testCreateFolderAndRunStatus() throws Exception {
 		// Setup
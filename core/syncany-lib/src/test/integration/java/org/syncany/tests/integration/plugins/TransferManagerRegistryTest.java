@@ -0,0 +1,128 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.integration.plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.syncany.config.Config;
+import org.syncany.operations.down.DownOperation;
+import org.syncany.operations.up.UpOperation;
+import org.syncany.plugins.transfer.TransferManager;
+import org.syncany.plugins.transfer.TransferManagerFactory;
+import org.syncany.plugins.transfer.TransferManagerRegistry;
+import org.syncany.plugins.transfer.TransferSettings;
+import org.syncany.tests.unit.util.TestFileUtil;
+import org.syncany.tests.util.TestConfigUtil;
+
+public class TransferManagerRegistryTest {
+	@Test
+	public void testAcquireReleaseAndClose() throws Exception {
+		// Setup
+		TransferSettings testConnection = TestConfigUtil.createTestLocalConnection();
+		Config config = TestConfigUtil.createTestLocalConfig("A", testConnection);
+
+		TransferManagerRegistry registry = new TransferManagerRegistry();
+
+		// Run
+		TransferManager transferManager1 = registry.acquire(config);
+		TransferManager transferManager2 = registry.acquire(config);
+
+		// Test
+		assertSame(transferManager1, transferManager2);
+		assertEquals(2, registry.getReferenceCount(config.getConnection()));
+
+		registry.release(transferManager1);
+		registry.close();
+
+		assertEquals(1, registry.getReferenceCount(config.getConnection())); // Still in use, not removed
+
+		registry.release(transferManager2);
+		assertEquals(0, registry.getReferenceCount(config.getConnection()));
+
+		// Tear down
+		TestConfigUtil.deleteTestLocalConfigAndData(config);
+	}
+
+	@Test
+	public void testFactoryReusesPooledTransferManager() throws Exception {
+		// Setup
+		TransferSettings testConnection = TestConfigUtil.createTestLocalConnection();
+		Config config = TestConfigUtil.createTestLocalConfig("A", testConnection);
+
+		TransferManagerRegistry registry = new TransferManagerRegistry();
+		config.setTransferManagerRegistry(registry);
+
+		// Run
+		TransferManager pooledTransferManager = TransferManagerFactory.build(config).asDefault();
+		TransferManager unpooledTransferManager = TransferManagerFactory.buildUnpooled(config).asDefault();
+
+		// Test
+		assertEquals(1, registry.getReferenceCount(config.getConnection()));
+		assertNotSame(pooledTransferManager, unpooledTransferManager);
+
+		pooledTransferManager.disconnect();
+		pooledTransferManager.disconnect(); // Releasing twice must not decrease the count twice
+
+		assertEquals(0, registry.getReferenceCount(config.getConnection()));
+
+		// Tear down
+		registry.close();
+		TestConfigUtil.deleteTestLocalConfigAndData(config);
+	}
+
+	@Test
+	public void testOperationsReleasePooledTransferManager() throws Exception {
+		// Setup
+		TransferSettings testConnection = TestConfigUtil.createTestLocalConnection();
+
+		Config configA = TestConfigUtil.createTestLocalConfig("A", testConnection);
+		Config configB = TestConfigUtil.createTestLocalConfig("B", testConnection);
+
+		TransferManagerRegistry registryA = new TransferManagerRegistry();
+		TransferManagerRegistry registryB = new TransferManagerRegistry();
+
+		configA.setTransferManagerRegistry(registryA);
+		configB.setTransferManagerRegistry(registryB);
+
+		TestFileUtil.createRandomFilesInDirectory(configA.getLocalDir(), 50 * 1024, 5);
+
+		// Run
+		new UpOperation(configA).execute();
+		new DownOperation(configB).execute();
+
+		TestFileUtil.createRandomFilesInDirectory(configA.getLocalDir(), 50 * 1024, 5);
+
+		new UpOperation(configA).execute();
+		new DownOperation(configB).execute();
+
+		// Test
+		assertEquals(0, registryA.getReferenceCount(configA.getConnection()));
+		assertEquals(0, registryB.getReferenceCount(configB.getConnection()));
+		assertEquals(10, configB.getLocalDir().listFiles().length - 1); // Minus .syncany folder
+
+		// Tear down
+		registryA.close();
+		registryB.close();
+
+		TestConfigUtil.deleteTestLocalConfigAndData(configA);
+		TestConfigUtil.deleteTestLocalConfigAndData(configB);
+	}
+}
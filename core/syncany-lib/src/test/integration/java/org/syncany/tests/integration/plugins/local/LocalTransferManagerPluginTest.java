@@ -17,12 +17,27 @@
  */
 package org.syncany.tests.integration.plugins.local;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.syncany.plugins.local.LocalTransferManager;
+import org.syncany.plugins.local.LocalTransferSettings;
+import org.syncany.plugins.transfer.files.MultichunkRemoteFile;
+import org.syncany.plugins.transfer.files.ResumableRemoteFileAttributes;
+import org.syncany.plugins.transfer.files.TempRemoteFile;
+import org.syncany.plugins.transfer.to.PartialUploadTO;
 import org.syncany.tests.integration.plugins.AbstractTransferManagerTest;
 import org.syncany.tests.unit.util.TestFileUtil;
+import org.syncany.util.StringUtil;
 
 /**
  * @author Vincent Wiencek <vwiencek@gmail.com>
@@ -57,4 +72,42 @@ public class LocalTransferManagerPluginTest extends AbstractTransferManagerTest
 	public String getPluginId() {
 		return "local";
 	}
+
+	@Test
+	public void testResumeInterruptedUpload() throws Exception {
+		// Setup
+		LocalTransferSettings settings = new LocalTransferSettings();
+		settings.setPath(tempRepoPath);
+
+		LocalTransferManager transferManager = new LocalTransferManager(settings, null);
+		transferManager.init(false);
+
+		File localFile = TestFileUtil.createRandomFileInDirectory(tempRepoPath, 3 * 1024 * 1024 + 1234);
+		TempRemoteFile tempRemoteFile = new TempRemoteFile(new MultichunkRemoteFile("multichunk-84f7e2b31440aaef9b73de3cadcf4e449aeb55a1"));
+
+		// Simulate an upload interrupted after the first part (plus some garbage)
+		File partialRepoFile = new File(tempRepoPath, "temporary/.temp-" + tempRemoteFile.getName());
+		PartialUploadTO partialUpload = new PartialUploadTO();
+
+		partialUpload.start(partialRepoFile.getName(), localFile);
+		partialUpload.addPart(1, 0, 1024 * 1024, null);
+
+		try (FileInputStream localFileInputStream = new FileInputStream(localFile);
+				FileOutputStream partialRepoFileOutputStream = new FileOutputStream(partialRepoFile)) {
+
+			IOUtils.copyLarge(localFileInputStream, partialRepoFileOutputStream, 0, 1024 * 1024 + 500);
+		}
+
+		// Run
+		tempRemoteFile.setAttributes(new ResumableRemoteFileAttributes(partialUpload));
+		transferManager.upload(localFile, tempRemoteFile);
+
+		// Test
+		File repoFile = new File(tempRepoPath, "temporary/" + tempRemoteFile.getName());
+
+		assertFalse(partialRepoFile.exists());
+		assertEquals(localFile.length(), repoFile.length());
+		assertEquals(StringUtil.toHex(TestFileUtil.createChecksum(localFile)), StringUtil.toHex(TestFileUtil.createChecksum(repoFile)));
+		assertNull(partialUpload.getUploadId());
+	}
 }
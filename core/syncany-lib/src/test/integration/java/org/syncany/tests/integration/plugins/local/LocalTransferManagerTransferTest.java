@@ -0,0 +1,168 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.integration.plugins.local;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.plugins.local.LocalTransferManager;
+import org.syncany.plugins.local.LocalTransferSettings;
+import org.syncany.plugins.transfer.files.DatabaseRemoteFile;
+import org.syncany.plugins.transfer.files.MultichunkRemoteFile;
+import org.syncany.tests.unit.util.TestFileUtil;
+import org.syncany.util.StringUtil;
+
+public class LocalTransferManagerTransferTest {
+	private static final int FILE_COUNT = 10;
+	private static final int FILE_SIZE = 1024 * 1024;
+
+	private File tempDir;
+	private File localDir;
+	private File repoDir;
+	private File downloadDir;
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+		tempDir.mkdir();
+
+		localDir = new File(tempDir, "local");
+		localDir.mkdir();
+
+		repoDir = new File(tempDir, "repo");
+		repoDir.mkdir();
+
+		downloadDir = new File(tempDir, "download");
+		downloadDir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testUploadDownloadWithHardLinks() throws Exception {
+		LocalTransferManager transferManager = createTransferManager(true);
+		List<File> localFiles = uploadAndDownloadFiles(transferManager);
+
+		// Local files and repository are on the same file system, so files are linked
+		if (isLinkCountSupported() && isHardLinksSupported()) {
+			for (File localFile : localFiles) {
+				assertTrue(getLinkCount(localFile) > 1);
+			}
+		}
+	}
+
+	@Test
+	public void testUploadDownloadWithCopies() throws Exception {
+		LocalTransferManager transferManager = createTransferManager(false);
+		List<File> localFiles = uploadAndDownloadFiles(transferManager);
+
+		// Files were copied with transferTo(), not linked
+		if (isLinkCountSupported()) {
+			for (File localFile : localFiles) {
+				assertEquals(1, getLinkCount(localFile));
+			}
+		}
+	}
+
+	@Test
+	public void testUploadDownloadDatabaseFilesAreCopied() throws Exception {
+		LocalTransferManager transferManager = createTransferManager(true);
+
+		File localDatabaseFile = new File(localDir, "database-A-0000000001");
+		File downloadedDatabaseFile = new File(downloadDir, "database-A-0000000001");
+		DatabaseRemoteFile remoteDatabaseFile = new DatabaseRemoteFile("database-A-0000000001");
+
+		TestFileUtil.createRandomFile(localDatabaseFile, 1024);
+
+		transferManager.upload(localDatabaseFile, remoteDatabaseFile);
+		transferManager.download(remoteDatabaseFile, downloadedDatabaseFile);
+
+		// Database files may be overwritten locally, so they are never linked
+		if (isLinkCountSupported()) {
+			assertEquals(1, getLinkCount(localDatabaseFile));
+			assertEquals(1, getLinkCount(downloadedDatabaseFile));
+		}
+
+		assertArrayEquals(FileUtils.readFileToByteArray(localDatabaseFile), FileUtils.readFileToByteArray(downloadedDatabaseFile));
+	}
+
+	private LocalTransferManager createTransferManager(boolean hardLinks) throws Exception {
+		LocalTransferSettings settings = new LocalTransferSettings();
+		settings.setPath(repoDir);
+
+		LocalTransferManager transferManager = new LocalTransferManager(settings, null, hardLinks);
+		transferManager.init(false);
+
+		return transferManager;
+	}
+
+	private List<File> uploadAndDownloadFiles(LocalTransferManager transferManager) throws Exception {
+		List<File> localFiles = TestFileUtil.createRandomFilesInDirectory(localDir, FILE_SIZE, FILE_COUNT);
+
+		for (int i = 0; i < localFiles.size(); i++) {
+			MultichunkRemoteFile remoteFile = new MultichunkRemoteFile(String.format("multichunk-%040x", i));
+			File downloadedFile = new File(downloadDir, localFiles.get(i).getName());
+
+			transferManager.upload(localFiles.get(i), remoteFile);
+			transferManager.download(remoteFile, downloadedFile);
+
+			String checksumLocalFile = StringUtil.toHex(TestFileUtil.createChecksum(localFiles.get(i)));
+			String checksumDownloadedFile = StringUtil.toHex(TestFileUtil.createChecksum(downloadedFile));
+
+			assertEquals(checksumLocalFile, checksumDownloadedFile);
+		}
+
+		assertEquals(FILE_COUNT, transferManager.list(MultichunkRemoteFile.class).size());
+		return localFiles;
+	}
+
+	private boolean isLinkCountSupported() {
+		return FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+	}
+
+	private int getLinkCount(File file) throws Exception {
+		return (Integer) Files.getAttribute(file.toPath(), "unix:nlink");
+	}
+
+	private boolean isHardLinksSupported() {
+		try {
+			File probeFile = new File(localDir, "link-probe");
+			probeFile.createNewFile();
+
+			Files.createLink(new File(downloadDir, "link-probe").toPath(), probeFile.toPath());
+			return true;
+		}
+		catch (Exception e) {
+			return false;
+		}
+	}
+}
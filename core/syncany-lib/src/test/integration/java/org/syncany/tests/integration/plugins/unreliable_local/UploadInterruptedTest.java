@@ -602,4 +602,76 @@ public class UploadInterruptedTest {
 		clientA.deleteTestData();
 		clientB.deleteTestData();
 	}
+
+	@Test
+	public void testUnreliableUpload_FailAtSecondMultiChunkMoveThenResume() throws Exception {
+		/*
+		 * First run "Client A": Fails when moving the second multichunk. The first multichunk has
+		 * already been moved to its final location, the other files are still in the temp. location.
+		 *
+		 * Second run "Client A": Resumes the transaction. The first multichunk must not be moved again,
+		 * and none of the (already uploaded) temp. files must be uploaded again.
+		 *
+		 * 1. upload(action-up-987, actions/action-up-987)
+		 * 2. upload(transaction-123, transactions/transaction-123)
+		 * 3. upload(multichunk-1, temp-1)
+		 * 4. upload(multichunk-2, temp-2)
+		 * 5. upload(database-123, temp-3)
+		 * 6. move(temp-1, multichunks/multichunk-1)
+		 * 7. move(temp-2, multichunks/multichunk-2) <<< FAILS HERE (first run)
+		 * 8. move(temp-3, databases/database-123)
+		 */
+
+		// Setup
+		UnreliableLocalTransferSettings testConnection = TestConfigUtil.createTestUnreliableLocalConnection(
+				Arrays.asList(new String[] {
+						// List of failing operations (regex)
+						// Format: abs=<count> rel=<count> op=<connect|init|upload|...> <operation description>
+
+						"rel=[234].+move.+multichunk",
+
+						// Uploads in the second run would fail, i.e. they must not happen
+						"rel=([6-9]|[1-9][0-9]) .+upload.+(multichunk|database)",
+				}
+						));
+
+		TestClient clientA = new TestClient("A", testConnection);
+
+		clientA.createNewFile("A-original", 5 * 1024 * 1024); // << larger than one multichunk!
+
+		boolean firstUpFailed = false;
+
+		try {
+			clientA.up();
+		}
+		catch (StorageException e) {
+			firstUpFailed = true;
+			logger.log(Level.INFO, e.getMessage());
+		}
+
+		assertTrue(firstUpFailed);
+		assertEquals(1, new File(testConnection.getPath() + "/multichunks/").listFiles().length);
+		assertEquals(2, new File(testConnection.getPath() + "/temporary/").listFiles().length);
+
+		// Second run resumes the transaction
+		UpOperationOptions upOptions = new UpOperationOptions();
+		upOptions.setResume(true);
+
+		clientA.up(upOptions);
+
+		assertEquals(1, new File(testConnection.getPath() + "/databases/").listFiles().length);
+		assertEquals(2, new File(testConnection.getPath() + "/multichunks/").listFiles().length);
+		assertEquals(0, new File(testConnection.getPath() + "/transactions/").listFiles().length);
+		assertEquals(0, new File(testConnection.getPath() + "/temporary/").listFiles().length);
+
+		TestClient clientB = new TestClient("B", testConnection);
+		clientB.down();
+
+		assertEquals(1, clientB.getLocalFiles().size());
+		assertEquals(clientA.getLocalFile("A-original").length(), clientB.getLocalFile("A-original").length());
+
+		// Tear down
+		clientA.deleteTestData();
+		clientB.deleteTestData();
+	}
 }
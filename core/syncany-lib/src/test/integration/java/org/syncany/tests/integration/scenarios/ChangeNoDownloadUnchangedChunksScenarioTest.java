@@ -0,0 +1,177 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com> 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.integration.scenarios;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.syncany.tests.util.TestAssertUtil.assertConflictingFileExists;
+import static org.syncany.tests.util.TestAssertUtil.assertFileListEquals;
+import static org.syncany.tests.util.TestAssertUtil.assertSqlDatabaseEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.syncany.config.LocalEventBus;
+import org.syncany.operations.daemon.messages.DownDownloadFileSyncExternalEvent;
+import org.syncany.operations.down.DownOperationResult;
+import org.syncany.plugins.transfer.TransferSettings;
+import org.syncany.tests.util.TestClient;
+import org.syncany.tests.util.TestConfigUtil;
+
+import com.google.common.eventbus.Subscribe;
+
+public class ChangeNoDownloadUnchangedChunksScenarioTest {
+	private File fileToModifyOnDownload;
+
+	@Test
+	public void testChangeAndCheckIfOnlyChangedChunksAreDownloaded() throws Exception {
+		// Setup 
+		TransferSettings testConnection = TestConfigUtil.createTestLocalConnection();		
+		TestClient clientA = new TestClient("A", testConnection);
+		TestClient clientB = new TestClient("B", testConnection);
+
+		// Run 
+		
+		// Prepare, create large file at A (several multichunks), sync it to B
+		clientA.createNewFile("A-file1", 10 * 1024 * 1024);
+		clientA.sync();		
+		clientB.sync();
+
+		// Make sure B cannot take the old chunks from its cache
+		clientB.getConfig().getCache().clear(0);
+
+		// Now change the first bytes of the file, and sync
+		changeFirstBytes(clientA.getLocalFile("A-file1"));
+		clientA.up();
+		
+		DownOperationResult downOperationResult = clientB.down();		
+		assertEquals("Only the multichunk with the changed chunk should have been downloaded.", 1, downOperationResult.getDownloadedMultiChunks().size());
+		assertFileListEquals(clientA.getLocalFilesExcludeLockedAndNoRead(), clientB.getLocalFilesExcludeLockedAndNoRead());
+		assertSqlDatabaseEquals(clientA.getDatabaseFile(), clientB.getDatabaseFile());
+		
+		// Tear down
+		clientA.deleteTestData();
+		clientB.deleteTestData();
+	}	
+
+	@Test
+	public void testChangeWithLocallyModifiedFile() throws Exception {
+		// Setup 
+		TransferSettings testConnection = TestConfigUtil.createTestLocalConnection();		
+		TestClient clientA = new TestClient("A", testConnection);
+		TestClient clientB = new TestClient("B", testConnection);
+
+		// Run 
+		clientA.createNewFile("A-file1", 10 * 1024 * 1024);
+		clientA.sync();		
+		clientB.sync();
+
+		clientB.getConfig().getCache().clear(0);
+
+		// Change file at A and B; B's local chunks must not be used
+		changeFirstBytes(clientA.getLocalFile("A-file1"));
+		clientA.up();
+
+		File fileAtB = clientB.getLocalFile("A-file1");
+		long lastModifiedAtB = fileAtB.lastModified();
+
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(fileAtB, "rw")) {
+			randomAccessFile.seek(5 * 1024 * 1024);
+			randomAccessFile.write(new byte[] { 1, 2, 3, 4 });
+		}
+
+		fileAtB.setLastModified(lastModifiedAtB); // Same size and date, only the content differs
+
+		clientB.down();
+
+		assertArrayEquals(FileUtils.readFileToByteArray(clientA.getLocalFile("A-file1")), FileUtils.readFileToByteArray(fileAtB));
+		
+		// Tear down
+		clientA.deleteTestData();
+		clientB.deleteTestData();
+	}	
+
+	@Test
+	public void testChangeWithFileModifiedWhileDownloading() throws Exception {
+		// Setup 
+		TransferSettings testConnection = TestConfigUtil.createTestLocalConnection();		
+		TestClient clientA = new TestClient("A", testConnection);
+		TestClient clientB = new TestClient("B", testConnection);
+
+		// Run 
+		clientA.createNewFile("A-file1", 10 * 1024 * 1024);
+		clientA.sync();		
+		clientB.sync();
+
+		clientB.getConfig().getCache().clear(0);
+
+		// Change file at A; B's unchanged chunks are verified, and only the changed multichunk is scheduled
+		changeFirstBytes(clientA.getLocalFile("A-file1"));
+		clientA.up();
+
+		// Change file at B after the actions are scheduled, but before they are applied
+		fileToModifyOnDownload = clientB.getLocalFile("A-file1");
+		LocalEventBus.getInstance().register(this);
+
+		try {
+			clientB.down();
+		}
+		finally {
+			LocalEventBus.getInstance().unregister(this);
+		}
+
+		assertArrayEquals(FileUtils.readFileToByteArray(clientA.getLocalFile("A-file1")), FileUtils.readFileToByteArray(clientB.getLocalFile("A-file1")));
+		assertConflictingFileExists("A-file1", clientB.getLocalFiles());
+		
+		// Tear down
+		clientA.deleteTestData();
+		clientB.deleteTestData();
+	}	
+
+	@Subscribe
+	public void onDownloadStarted(DownDownloadFileSyncExternalEvent downloadEvent) throws Exception {
+		if (fileToModifyOnDownload != null && "multichunk".equals(downloadEvent.getFileDescription())) {
+			try (RandomAccessFile randomAccessFile = new RandomAccessFile(fileToModifyOnDownload, "rw")) {
+				randomAccessFile.seek(5 * 1024 * 1024);
+				randomAccessFile.write(new byte[] { 1, 2, 3, 4 });
+			}
+
+			fileToModifyOnDownload.setLastModified(fileToModifyOnDownload.lastModified() + 5000);
+			fileToModifyOnDownload = null;
+		}
+	}
+
+	private void changeFirstBytes(File file) throws Exception {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+			byte[] firstBytes = new byte[16];
+
+			randomAccessFile.readFully(firstBytes);
+
+			for (int i = 0; i < firstBytes.length; i++) {
+				firstBytes[i] ^= 0xFF;
+			}
+
+			randomAccessFile.seek(0);
+			randomAccessFile.write(firstBytes);
+		}
+
+		file.setLastModified(file.lastModified() + 5000);
+	}
+}
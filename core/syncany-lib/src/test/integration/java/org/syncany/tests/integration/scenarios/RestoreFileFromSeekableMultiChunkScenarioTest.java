@@ -0,0 +1,140 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com> 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.integration.scenarios;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.database.DatabaseConnectionFactory;
+import org.syncany.database.FileVersion;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.database.PartialFileHistory.FileHistoryId;
+import org.syncany.database.SqlDatabase;
+import org.syncany.operations.MultiChunkFetchPlanner;
+import org.syncany.operations.MultiChunkFetchPlanner.FetchPlan;
+import org.syncany.operations.restore.RestoreOperationOptions;
+import org.syncany.plugins.transfer.TransferSettings;
+import org.syncany.tests.util.TestClient;
+import org.syncany.tests.util.TestConfigUtil;
+import org.syncany.tests.util.TestSqlUtil;
+
+public class RestoreFileFromSeekableMultiChunkScenarioTest {
+	@Test
+	public void testRestoreSmallFileFetchesOnlyItsChunks() throws Exception {
+		// Setup 
+		TransferSettings testConnection = TestConfigUtil.createTestLocalConnection();		
+		TestClient clientA = new TestClient("A", testConnection, TestConfigUtil.createSeekableMultiChunkerTO());
+		java.sql.Connection databaseConnectionA = DatabaseConnectionFactory.createConnection(clientA.getDatabaseFile(), false);
+
+		// A new/up, large and small file end up in the same multichunk
+		clientA.createNewFile("A-large", 3 * 1024 * 1024);
+		clientA.createNewFile("A-small", 20 * 1024);
+		clientA.upWithForceChecksum();
+
+		byte[] originalSmallFileContent = FileUtils.readFileToByteArray(clientA.getLocalFile("A-small"));
+		FileHistoryId smallFileHistoryId = FileHistoryId.parseFileId(TestSqlUtil.runSqlSelect(
+				"select filehistory_id from fileversion where path='A-small'", databaseConnectionA));
+
+		// A change small file, and make sure no multichunks are left in the cache
+		clientA.changeFile("A-small");
+		clientA.upWithForceChecksum();		
+		clientA.getConfig().getCache().clear(0);
+
+		// Only the small file's chunk must be fetched individually
+		SqlDatabase localDatabase = new SqlDatabase(clientA.getConfig());
+		MultiChunkFetchPlanner fetchPlanner = new MultiChunkFetchPlanner(clientA.getConfig(), localDatabase);
+
+		FetchPlan smallFileFetchPlan = fetchPlanner.plan(getChunks(localDatabase, smallFileHistoryId, 1));
+		assertEquals(0, smallFileFetchPlan.getFullMultiChunkIds().size());
+		assertEquals(1, smallFileFetchPlan.getRangedChunks().size());
+
+		MultiChunkId multiChunkId = smallFileFetchPlan.getRangedChunks().keySet().iterator().next();
+
+		// A restore
+		RestoreOperationOptions operationOptions = new RestoreOperationOptions();
+
+		operationOptions.setFileHistoryId(smallFileHistoryId);
+		operationOptions.setFileVersion(1);
+
+		clientA.restore(operationOptions);
+
+		File restoredFile = clientA.getLocalFile("A-small (restored version 1)");
+
+		assertTrue(restoredFile.exists());
+		assertArrayEquals(originalSmallFileContent, FileUtils.readFileToByteArray(restoredFile));
+		assertFalse("Multichunk must not have been downloaded entirely.", clientA.getConfig().getCache().getDecryptedMultiChunkFile(multiChunkId).exists());
+
+		// Tear down
+		clientA.deleteTestData();
+	}
+
+	@Test
+	public void testRestoreLargeFileFetchesEntireMultiChunk() throws Exception {
+		// Setup 
+		TransferSettings testConnection = TestConfigUtil.createTestLocalConnection();		
+		TestClient clientA = new TestClient("A", testConnection, TestConfigUtil.createSeekableMultiChunkerTO());
+		java.sql.Connection databaseConnectionA = DatabaseConnectionFactory.createConnection(clientA.getDatabaseFile(), false);
+
+		// A new/up
+		clientA.createNewFile("A-large", 3 * 1024 * 1024);
+		clientA.createNewFile("A-small", 20 * 1024);
+		clientA.upWithForceChecksum();
+
+		byte[] originalLargeFileContent = FileUtils.readFileToByteArray(clientA.getLocalFile("A-large"));
+		FileHistoryId largeFileHistoryId = FileHistoryId.parseFileId(TestSqlUtil.runSqlSelect(
+				"select filehistory_id from fileversion where path='A-large'", databaseConnectionA));
+
+		// A change large file
+		clientA.changeFile("A-large");
+		clientA.upWithForceChecksum();		
+		clientA.getConfig().getCache().clear(0);
+
+		// Most of the multichunk is needed, so it is downloaded entirely
+		SqlDatabase localDatabase = new SqlDatabase(clientA.getConfig());
+		FetchPlan largeFileFetchPlan = new MultiChunkFetchPlanner(clientA.getConfig(), localDatabase).plan(getChunks(localDatabase, largeFileHistoryId, 1));
+
+		assertEquals(1, largeFileFetchPlan.getFullMultiChunkIds().size());
+		assertEquals(0, largeFileFetchPlan.getRangedChunks().size());
+
+		// A restore
+		RestoreOperationOptions operationOptions = new RestoreOperationOptions();
+
+		operationOptions.setFileHistoryId(largeFileHistoryId);
+		operationOptions.setFileVersion(1);
+
+		clientA.restore(operationOptions);
+
+		assertArrayEquals(originalLargeFileContent, FileUtils.readFileToByteArray(clientA.getLocalFile("A-large (restored version 1)")));
+
+		// Tear down
+		clientA.deleteTestData();
+	}
+
+	private List<ChunkChecksum> getChunks(SqlDatabase localDatabase, FileHistoryId fileHistoryId, long version) {
+		FileVersion fileVersion = localDatabase.getFileVersion(fileHistoryId, version);
+		return localDatabase.getFileContent(fileVersion.getChecksum(), true).getChunks();
+	}
+}
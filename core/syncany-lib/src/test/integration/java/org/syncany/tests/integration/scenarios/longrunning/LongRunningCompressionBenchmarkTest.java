@@ -0,0 +1,117 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.integration.scenarios.longrunning;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.syncany.chunk.AdaptiveTransformer;
+import org.syncany.chunk.GzipTransformer;
+import org.syncany.chunk.Transformer;
+import org.syncany.config.Logging;
+import org.syncany.tests.unit.util.TestFileUtil;
+
+public class LongRunningCompressionBenchmarkTest {
+	private static final Logger logger = Logger.getLogger(LongRunningCompressionBenchmarkTest.class.getSimpleName());
+
+	static {
+		Logging.init();
+	}
+
+	@Test
+	public void testCompressionBenchmark() throws Exception {
+		Random random = new Random(3);
+		byte[][] dataSets = new byte[][] {
+				createTextData(4 * 1024 * 1024, random),
+				TestFileUtil.createRandomArray(4 * 1024 * 1024),
+				createMixedData(8, 512 * 1024, random)
+		};
+
+		String[] dataSetNames = new String[] { "text", "random", "mixed" };
+		Transformer[] transformers = new Transformer[] { new GzipTransformer(), new AdaptiveTransformer(), new AdaptiveTransformer(6, null) };
+		String[] transformerNames = new String[] { "gzip", "adaptive-1", "adaptive-6" };
+
+		for (int i = 0; i < dataSets.length; i++) {
+			for (int j = 0; j < transformers.length; j++) {
+				long cpuTime = getCpuTime();
+				byte[] transformedData = transform(transformers[j], dataSets[i]);
+				cpuTime = getCpuTime() - cpuTime;
+
+				assertArrayEquals(dataSets[i], untransform(transformers[j], transformedData));
+
+				logger.log(Level.INFO, "{0} / {1}: ratio {2}, {3} CPU-seconds per GB", new Object[] { dataSetNames[i], transformerNames[j],
+						String.format("%.3f", (double) transformedData.length / dataSets[i].length),
+						String.format("%.2f", cpuTime / 1e9 * (1024 * 1024 * 1024) / dataSets[i].length) });
+			}
+		}
+	}
+
+	private byte[] transform(Transformer transformer, byte[] data) throws IOException {
+		ByteArrayOutputStream transformedData = new ByteArrayOutputStream();
+
+		try (OutputStream outputStream = transformer.createOutputStream(transformedData)) {
+			outputStream.write(data);
+		}
+
+		return transformedData.toByteArray();
+	}
+
+	private byte[] untransform(Transformer transformer, byte[] transformedData) throws IOException {
+		try (InputStream inputStream = transformer.createInputStream(new ByteArrayInputStream(transformedData))) {
+			return IOUtils.toByteArray(inputStream);
+		}
+	}
+
+	private byte[] createTextData(int size, Random random) {
+		String[] words = new String[] { "syncany", "chunk", "multichunk", "database", "version", "file", "the", "a", "sync", "\n" };
+		StringBuilder text = new StringBuilder();
+
+		while (text.length() < size) {
+			text.append(words[random.nextInt(words.length)]).append(' ');
+		}
+
+		return text.substring(0, size).getBytes();
+	}
+
+	private byte[] createMixedData(int parts, int partSize, Random random) throws IOException {
+		ByteArrayOutputStream mixedData = new ByteArrayOutputStream();
+
+		for (int i = 0; i < parts; i++) {
+			mixedData.write((i % 2 == 0) ? createTextData(partSize, random) : TestFileUtil.createRandomArray(partSize));
+		}
+
+		return mixedData.toByteArray();
+	}
+
+	private long getCpuTime() {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.integration.scenarios.longrunning;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.chunk.Chunk;
+import org.syncany.chunk.Deduper;
+import org.syncany.chunk.DeduperListener;
+import org.syncany.chunk.MultiChunk;
+import org.syncany.chunk.NoTransformer;
+import org.syncany.chunk.TttdChunker;
+import org.syncany.chunk.ZipMultiChunker;
+import org.syncany.config.Logging;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.tests.unit.util.TestFileUtil;
+import org.syncany.util.StringUtil;
+
+public class LongRunningDeduperScalingBenchmarkTest {
+	private static final Logger logger = Logger.getLogger(LongRunningDeduperScalingBenchmarkTest.class.getSimpleName());
+
+	private File tempDir;
+	private File multiChunkDir;
+
+	static {
+		Logging.init();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+		multiChunkDir = new File(tempDir, "multichunks");
+		multiChunkDir.mkdir();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testParallelDeduplicationScaling() throws Exception {
+		List<File> inputFiles = TestFileUtil.createRandomFilesInDirectory(tempDir, 256 * 1024, 32);
+		int[] threadCounts = new int[] { 1, 4, 16 };
+		List<String> sequentialTrace = null;
+
+		logger.log(Level.INFO, "Deduplicating {0} files on {1} available processors ...",
+				new Object[] { inputFiles.size(), Runtime.getRuntime().availableProcessors() });
+
+		for (int threads : threadCounts) {
+			TracingDeduperListener listener = new TracingDeduperListener();
+			Deduper deduper = new Deduper(new TttdChunker(16 * 1024), new ZipMultiChunker(128 * 1024), new NoTransformer(), Long.MAX_VALUE,
+					Long.MAX_VALUE, threads);
+
+			long startTime = System.currentTimeMillis();
+			deduper.deduplicate(new ArrayList<File>(inputFiles), listener);
+			long duration = System.currentTimeMillis() - startTime;
+
+			logger.log(Level.INFO, " - {0} indexer thread(s): {1} ms", new Object[] { threads, duration });
+
+			if (sequentialTrace == null) {
+				sequentialTrace = listener.trace;
+			}
+			else {
+				assertEquals("Output with " + threads + " threads differs from sequential output", sequentialTrace, listener.trace);
+			}
+		}
+	}
+
+	private class TracingDeduperListener implements DeduperListener {
+		private List<String> trace = new ArrayList<String>();
+		private Set<String> knownChunks = new HashSet<String>();
+		private int multiChunkCount = 0;
+
+		@Override
+		public boolean onFileFilter(File file) {
+			return true;
+		}
+
+		@Override
+		public boolean onFileStart(File file) {
+			return file.isFile();
+		}
+
+		@Override
+		public void onFileAddChunk(File file, Chunk chunk) {
+			trace.add("onFileAddChunk " + file.getName() + " " + StringUtil.toHex(chunk.getChecksum()));
+		}
+
+		@Override
+		public void onFileEnd(File file, byte[] checksum) {
+			trace.add("onFileEnd " + file.getName() + " " + ((checksum != null) ? StringUtil.toHex(checksum) : "-"));
+		}
+
+		@Override
+		public boolean onChunk(Chunk chunk) {
+			return knownChunks.add(StringUtil.toHex(chunk.getChecksum()));
+		}
+
+		@Override
+		public void onMultiChunkOpen(MultiChunk multiChunk) {
+			trace.add("onMultiChunkOpen " + multiChunk.getId());
+		}
+
+		@Override
+		public MultiChunkId createNewMultiChunkId(Chunk firstChunk) {
+			return new MultiChunkId(new byte[] { (byte) multiChunkCount++ });
+		}
+
+		@Override
+		public File getMultiChunkFile(MultiChunkId multiChunkId) {
+			return new File(multiChunkDir, "multichunk-" + multiChunkId);
+		}
+
+		@Override
+		public void onMultiChunkWrite(MultiChunk multiChunk, Chunk chunk) {
+			trace.add("onMultiChunkWrite " + multiChunk.getId() + " " + StringUtil.toHex(chunk.getChecksum()));
+		}
+
+		@Override
+		public void onMultiChunkClose(MultiChunk multiChunk) {
+			trace.add("onMultiChunkClose " + multiChunk.getId());
+		}
+
+		@Override
+		public void onStart(int fileCount) {
+			trace.add("onStart " + fileCount);
+		}
+
+		@Override
+		public void onFinish() {
+			trace.add("onFinish");
+		}
+	}
+}
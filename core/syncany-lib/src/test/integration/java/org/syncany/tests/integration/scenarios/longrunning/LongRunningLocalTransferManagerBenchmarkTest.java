@@ -0,0 +1,135 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.integration.scenarios.longrunning;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.config.Logging;
+import org.syncany.plugins.local.LocalTransferManager;
+import org.syncany.plugins.local.LocalTransferSettings;
+import org.syncany.plugins.transfer.files.MultichunkRemoteFile;
+import org.syncany.tests.unit.util.TestFileUtil;
+import org.syncany.util.StringUtil;
+
+public class LongRunningLocalTransferManagerBenchmarkTest {
+	private static final Logger logger = Logger.getLogger(LongRunningLocalTransferManagerBenchmarkTest.class.getSimpleName());
+
+	private static final int FILE_COUNT = 50;
+	private static final int FILE_SIZE = 1024 * 1024;
+
+	private File tempDir;
+	private File localDir;
+
+	static {
+		Logging.init();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+		tempDir.mkdir();
+
+		localDir = new File(tempDir, "local");
+		localDir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testUploadDownloadBenchmark() throws Exception {
+		List<File> localFiles = TestFileUtil.createRandomFilesInDirectory(localDir, FILE_SIZE, FILE_COUNT);
+
+		// Previous implementation: Copy through a stream to a temp. file, then move
+		File baselineRepoDir = new File(tempDir, "baseline-repo");
+		File baselineDownloadDir = new File(tempDir, "baseline-download");
+
+		long startTime = System.currentTimeMillis();
+
+		for (File localFile : localFiles) {
+			File tempRepoFile = new File(baselineRepoDir, ".temp-" + localFile.getName());
+			File repoFile = new File(baselineRepoDir, localFile.getName());
+			File tempDownloadFile = new File(baselineDownloadDir, ".temp-" + localFile.getName());
+			File downloadFile = new File(baselineDownloadDir, localFile.getName());
+
+			FileUtils.copyFile(localFile, tempRepoFile);
+			FileUtils.moveFile(tempRepoFile, repoFile);
+
+			FileUtils.copyFile(repoFile, tempDownloadFile);
+			FileUtils.moveFile(tempDownloadFile, downloadFile);
+		}
+
+		logger.log(Level.INFO, "Upload/download of {0} files, previous implementation: {1} ms",
+				new Object[] { FILE_COUNT, System.currentTimeMillis() - startTime });
+
+		// Transfer manager, with copies (transferTo) and hard links
+		uploadAndDownload(localFiles, "copy", false);
+		uploadAndDownload(localFiles, "link", true);
+	}
+
+	private void uploadAndDownload(List<File> localFiles, String name, boolean hardLinks) throws Exception {
+		File repoDir = new File(tempDir, name + "-repo");
+		File downloadDir = new File(tempDir, name + "-download");
+
+		repoDir.mkdir();
+		downloadDir.mkdir();
+
+		LocalTransferSettings settings = new LocalTransferSettings();
+		settings.setPath(repoDir);
+
+		LocalTransferManager transferManager = new LocalTransferManager(settings, null, hardLinks);
+		transferManager.init(false);
+
+		List<File> downloadedFiles = new ArrayList<File>();
+		long startTime = System.currentTimeMillis();
+
+		for (int i = 0; i < localFiles.size(); i++) {
+			MultichunkRemoteFile remoteFile = new MultichunkRemoteFile(String.format("multichunk-%040x", i));
+			File downloadedFile = new File(downloadDir, localFiles.get(i).getName());
+
+			transferManager.upload(localFiles.get(i), remoteFile);
+			transferManager.download(remoteFile, downloadedFile);
+
+			downloadedFiles.add(downloadedFile);
+		}
+
+		logger.log(Level.INFO, "Upload/download of {0} files, transfer manager ({1}): {2} ms",
+				new Object[] { FILE_COUNT, name, System.currentTimeMillis() - startTime });
+
+		assertEquals(FILE_COUNT, transferManager.list(MultichunkRemoteFile.class).size());
+
+		for (int i = 0; i < localFiles.size(); i++) {
+			String checksumLocalFile = StringUtil.toHex(TestFileUtil.createChecksum(localFiles.get(i)));
+			String checksumDownloadedFile = StringUtil.toHex(TestFileUtil.createChecksum(downloadedFiles.get(i)));
+
+			assertEquals(checksumLocalFile, checksumDownloadedFile);
+		}
+	}
+}
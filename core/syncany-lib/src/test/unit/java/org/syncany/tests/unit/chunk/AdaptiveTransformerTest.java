@@ -0,0 +1,163 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.chunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.syncany.chunk.AdaptiveTransformer;
+import org.syncany.chunk.GzipTransformer;
+import org.syncany.chunk.Transformer;
+import org.syncany.config.Logging;
+import org.syncany.tests.unit.util.TestFileUtil;
+
+public class AdaptiveTransformerTest {
+	static {
+		Logging.init();
+	}
+
+	@Test
+	public void testCompressibleDataIsDeflated() throws Exception {
+		byte[] data = createTextData(1024 * 1024, new Random(1));
+		byte[] transformedData = transform(new AdaptiveTransformer(), data);
+
+		assertEquals(AdaptiveTransformer.FORMAT_DEFLATED, transformedData[0]);
+		assertTrue(transformedData.length < data.length / 2);
+		assertArrayEquals(data, untransform(new AdaptiveTransformer(), transformedData));
+	}
+
+	@Test
+	public void testIncompressibleDataIsStored() throws Exception {
+		byte[] data = TestFileUtil.createRandomArray(1024 * 1024);
+		byte[] transformedData = transform(new AdaptiveTransformer(), data);
+
+		assertEquals(AdaptiveTransformer.FORMAT_STORED, transformedData[0]);
+		assertEquals(data.length + 1, transformedData.length);
+		assertArrayEquals(data, untransform(new AdaptiveTransformer(), transformedData));
+	}
+
+	@Test
+	public void testSmallAndEmptyStreams() throws Exception {
+		for (int size : new int[] { 0, 1, 100, AdaptiveTransformer.SAMPLE_SIZE - 1, AdaptiveTransformer.SAMPLE_SIZE,
+				AdaptiveTransformer.SAMPLE_SIZE + 1 }) {
+
+			byte[] textData = createTextData(size, new Random(size));
+			byte[] randomData = TestFileUtil.createRandomArray(size);
+
+			assertArrayEquals(textData, untransform(new AdaptiveTransformer(), transform(new AdaptiveTransformer(), textData)));
+			assertArrayEquals(randomData, untransform(new AdaptiveTransformer(), transform(new AdaptiveTransformer(), randomData)));
+		}
+	}
+
+	@Test
+	public void testSingleByteWritesAndChaining() throws Exception {
+		byte[] data = createTextData(200 * 1024, new Random(2));
+		Transformer transformer = new AdaptiveTransformer(9, new GzipTransformer());
+
+		ByteArrayOutputStream transformedData = new ByteArrayOutputStream();
+
+		try (OutputStream outputStream = transformer.createOutputStream(transformedData)) {
+			for (byte b : data) {
+				outputStream.write(b);
+			}
+		}
+
+		assertArrayEquals(data, untransform(transformer, transformedData.toByteArray()));
+	}
+
+	@Test
+	public void testInitFromSettings() throws Exception {
+		Map<String, String> settings = new HashMap<String, String>();
+		settings.put(AdaptiveTransformer.PROPERTY_LEVEL, "6");
+
+		Transformer transformer = Transformer.getInstance(AdaptiveTransformer.TYPE);
+		transformer.init(settings);
+
+		assertTrue(transformer instanceof AdaptiveTransformer);
+		assertEquals("Adaptive", transformer.toString());
+
+		// No settings at all
+		transformer.init(null);
+	}
+
+	@Test(expected = Exception.class)
+	public void testInitWithInvalidLevel() throws Exception {
+		Map<String, String> settings = new HashMap<String, String>();
+		settings.put(AdaptiveTransformer.PROPERTY_LEVEL, "10");
+
+		new AdaptiveTransformer().init(settings);
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidStreamFormat() throws Exception {
+		untransform(new AdaptiveTransformer(), new byte[] { 7, 1, 2, 3 });
+	}
+
+	@Test
+	public void testEstimateEntropy() {
+		byte[] uniformData = new byte[1000];
+		byte[] twoValueData = new byte[1000];
+
+		for (int i = 0; i < twoValueData.length; i++) {
+			twoValueData[i] = (byte) (i % 2);
+		}
+
+		assertEquals(0, AdaptiveTransformer.estimateEntropy(uniformData, 0, uniformData.length), 0.001);
+		assertEquals(1, AdaptiveTransformer.estimateEntropy(twoValueData, 0, twoValueData.length), 0.001);
+		assertTrue(AdaptiveTransformer.estimateEntropy(TestFileUtil.createRandomArray(100000), 0, 100000) > 7.9);
+	}
+
+	private byte[] transform(Transformer transformer, byte[] data) throws IOException {
+		ByteArrayOutputStream transformedData = new ByteArrayOutputStream();
+
+		try (OutputStream outputStream = transformer.createOutputStream(transformedData)) {
+			outputStream.write(data);
+		}
+
+		return transformedData.toByteArray();
+	}
+
+	private byte[] untransform(Transformer transformer, byte[] transformedData) throws IOException {
+		try (InputStream inputStream = transformer.createInputStream(new ByteArrayInputStream(transformedData))) {
+			return IOUtils.toByteArray(inputStream);
+		}
+	}
+
+	private byte[] createTextData(int size, Random random) {
+		String[] words = new String[] { "syncany", "chunk", "multichunk", "database", "version", "file", "the", "a", "sync", "\n" };
+		StringBuilder text = new StringBuilder();
+
+		while (text.length() < size) {
+			text.append(words[random.nextInt(words.length)]).append(' ');
+		}
+
+		return text.substring(0, size).getBytes();
+	}
+}
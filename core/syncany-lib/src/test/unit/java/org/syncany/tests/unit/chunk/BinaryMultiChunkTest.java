@@ -0,0 +1,179 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.chunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.chunk.BinaryMultiChunker;
+import org.syncany.chunk.Chunk;
+import org.syncany.chunk.Chunker.ChunkEnumeration;
+import org.syncany.chunk.FixedChunker;
+import org.syncany.chunk.MultiChunk;
+import org.syncany.chunk.MultiChunker;
+import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.tests.unit.util.TestFileUtil;
+
+public class BinaryMultiChunkTest {
+	private File tempDir;
+	private MultiChunker multiChunker;
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+		multiChunker = new BinaryMultiChunker(512);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testRandomAccessFromFile() throws Exception {
+		File multiChunkFile = new File(tempDir, "multichunk");
+		Map<ChunkChecksum, byte[]> chunks = writeMultiChunk(multiChunkFile, 300 * 1024);
+
+		List<ChunkChecksum> shuffledChecksums = new ArrayList<ChunkChecksum>(chunks.keySet());
+		Collections.shuffle(shuffledChecksums, new Random(1));
+
+		MultiChunk multiChunk = multiChunker.createMultiChunk(multiChunkFile);
+
+		for (ChunkChecksum checksum : shuffledChecksums) {
+			try (InputStream chunkInputStream = multiChunk.getChunkInputStream(checksum.getBytes())) {
+				assertArrayEquals(chunks.get(checksum), IOUtils.toByteArray(chunkInputStream));
+			}
+		}
+
+		assertNull(multiChunk.getChunkInputStream(new byte[20]));
+		multiChunk.close();
+	}
+
+	@Test
+	public void testSequentialReadFromFileAndStream() throws Exception {
+		File multiChunkFile = new File(tempDir, "multichunk");
+		Map<ChunkChecksum, byte[]> chunks = writeMultiChunk(multiChunkFile, 100 * 1024);
+
+		assertSequentialRead(chunks, multiChunker.createMultiChunk(multiChunkFile));
+		assertSequentialRead(chunks, multiChunker.createMultiChunk(new FileInputStream(multiChunkFile)));
+	}
+
+	@Test
+	public void testRandomAccessFromStream() throws Exception {
+		File multiChunkFile = new File(tempDir, "multichunk");
+		Map<ChunkChecksum, byte[]> chunks = writeMultiChunk(multiChunkFile, 100 * 1024);
+
+		MultiChunk multiChunk = multiChunker.createMultiChunk(new FileInputStream(multiChunkFile));
+
+		for (Map.Entry<ChunkChecksum, byte[]> chunk : chunks.entrySet()) {
+			try (InputStream chunkInputStream = multiChunk.getChunkInputStream(chunk.getKey().getBytes())) {
+				assertArrayEquals(chunk.getValue(), IOUtils.toByteArray(chunkInputStream));
+			}
+		}
+
+		multiChunk.close();
+	}
+
+	@Test
+	public void testEmptyMultiChunk() throws Exception {
+		File multiChunkFile = new File(tempDir, "multichunk");
+		writeMultiChunk(multiChunkFile, 0);
+
+		MultiChunk multiChunk = multiChunker.createMultiChunk(multiChunkFile);
+
+		assertNull(multiChunk.read());
+		multiChunk.close();
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedMultiChunk() throws Exception {
+		File multiChunkFile = new File(tempDir, "multichunk");
+		writeMultiChunk(multiChunkFile, 100 * 1024);
+
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(multiChunkFile, "rw")) {
+			randomAccessFile.setLength(randomAccessFile.length() - 1);
+		}
+
+		multiChunker.createMultiChunk(multiChunkFile);
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidMultiChunk() throws Exception {
+		File multiChunkFile = new File(tempDir, "multichunk");
+		TestFileUtil.createRandomFile(multiChunkFile, 100 * 1024);
+
+		multiChunker.createMultiChunk(multiChunkFile);
+	}
+
+	private Map<ChunkChecksum, byte[]> writeMultiChunk(File multiChunkFile, int inputFileSize) throws IOException {
+		File inputFile = new File(tempDir, "input");
+		TestFileUtil.createRandomFile(inputFile, inputFileSize);
+
+		Map<ChunkChecksum, byte[]> chunks = new LinkedHashMap<ChunkChecksum, byte[]>();
+		MultiChunk multiChunk = multiChunker.createMultiChunk(MultiChunkId.secureRandomMultiChunkId(), new FileOutputStream(multiChunkFile));
+		ChunkEnumeration chunkEnumeration = new FixedChunker(8 * 1024).createChunks(inputFile);
+
+		while (chunkEnumeration.hasMoreElements()) {
+			Chunk chunk = chunkEnumeration.nextElement();
+
+			multiChunk.write(chunk);
+			chunks.put(new ChunkChecksum(chunk.getChecksum()), Arrays.copyOf(chunk.getContent(), chunk.getSize()));
+		}
+
+		chunkEnumeration.close();
+		multiChunk.close();
+
+		return chunks;
+	}
+
+	private void assertSequentialRead(Map<ChunkChecksum, byte[]> expectedChunks, MultiChunk multiChunk) throws IOException {
+		List<ChunkChecksum> expectedChecksums = new ArrayList<ChunkChecksum>(expectedChunks.keySet());
+		Chunk chunk = null;
+		int chunkCount = 0;
+
+		while (null != (chunk = multiChunk.read())) {
+			ChunkChecksum expectedChecksum = expectedChecksums.get(chunkCount++);
+
+			assertEquals(expectedChecksum, new ChunkChecksum(chunk.getChecksum()));
+			assertArrayEquals(expectedChunks.get(expectedChecksum), chunk.getContent());
+		}
+
+		assertEquals(expectedChunks.size(), chunkCount);
+		multiChunk.close();
+	}
+}
@@ -0,0 +1,395 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.chunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.chunk.Chunk;
+import org.syncany.chunk.Chunker;
+import org.syncany.chunk.CipherTransformer;
+import org.syncany.chunk.Deduper;
+import org.syncany.chunk.DeduperListener;
+import org.syncany.chunk.FixedChunker;
+import org.syncany.chunk.GzipTransformer;
+import org.syncany.chunk.MultiChunk;
+import org.syncany.chunk.NoTransformer;
+import org.syncany.chunk.Transformer;
+import org.syncany.chunk.TttdChunker;
+import org.syncany.chunk.ZipMultiChunker;
+import org.syncany.config.Logging;
+import org.syncany.crypto.CipherSpecs;
+import org.syncany.crypto.CipherUtil;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.tests.unit.util.TestFileUtil;
+import org.syncany.util.FileUtil;
+import org.syncany.util.StringUtil;
+
+public class DeduperTest {
+	private File tempDir;
+	private File multiChunkDir;
+
+	static {
+		Logging.init();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+		multiChunkDir = new File(tempDir, "multichunks");
+		multiChunkDir.mkdir();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testParallelDeduplicationMatchesSequential() throws Exception {
+		List<File> inputFiles = createInputFiles();
+
+		List<String> sequentialTrace = deduplicate(new ArrayList<File>(inputFiles), 1, Long.MAX_VALUE, Long.MAX_VALUE);
+		List<String> parallelTrace4 = deduplicate(new ArrayList<File>(inputFiles), 4, Long.MAX_VALUE, Long.MAX_VALUE);
+		List<String> parallelTrace16 = deduplicate(new ArrayList<File>(inputFiles), 16, Long.MAX_VALUE, Long.MAX_VALUE);
+
+		assertTrue(sequentialTrace.contains("onFinish"));
+		assertEquals(sequentialTrace, parallelTrace4);
+		assertEquals(sequentialTrace, parallelTrace16);
+	}
+
+	@Test
+	public void testParallelDeduplicationWithBufferReusingChunker() throws Exception {
+		List<File> inputFiles = createInputFiles();
+
+		// The fixed chunker reuses its buffer for all chunks of a file
+		List<String> sequentialTrace = deduplicate(new ArrayList<File>(inputFiles), new FixedChunker(8 * 1024), 1, Long.MAX_VALUE, Long.MAX_VALUE);
+		List<String> parallelTrace = deduplicate(new ArrayList<File>(inputFiles), new FixedChunker(8 * 1024), 4, Long.MAX_VALUE, Long.MAX_VALUE);
+
+		assertEquals(sequentialTrace, parallelTrace);
+	}
+
+	@Test
+	public void testParallelDeduplicationStopsAtTransactionLimits() throws Exception {
+		List<File> inputFiles = createInputFiles();
+
+		List<File> sequentialRemainingFiles = new ArrayList<File>(inputFiles);
+		List<File> parallelRemainingFiles = new ArrayList<File>(inputFiles);
+
+		List<String> sequentialTrace = deduplicate(sequentialRemainingFiles, 1, Long.MAX_VALUE, 7);
+		List<String> parallelTrace = deduplicate(parallelRemainingFiles, 4, Long.MAX_VALUE, 7);
+
+		assertEquals(sequentialTrace, parallelTrace);
+		assertEquals(inputFiles.size() - 7, parallelRemainingFiles.size());
+		assertEquals(sequentialRemainingFiles, parallelRemainingFiles);
+
+		sequentialRemainingFiles = new ArrayList<File>(inputFiles);
+		parallelRemainingFiles = new ArrayList<File>(inputFiles);
+
+		sequentialTrace = deduplicate(sequentialRemainingFiles, 1, 300 * 1024, Long.MAX_VALUE);
+		parallelTrace = deduplicate(parallelRemainingFiles, 4, 300 * 1024, Long.MAX_VALUE);
+
+		assertEquals(sequentialTrace, parallelTrace);
+		assertEquals(sequentialRemainingFiles, parallelRemainingFiles);
+	}
+
+	@Test
+	public void testParallelDeduplicationRechunksFileChangedAfterPrefetch() throws Exception {
+		final List<File> inputFiles = TestFileUtil.createRandomFilesInDirectory(tempDir, 100 * 1024, 5);
+		final File changedFile = inputFiles.get(3);
+		final List<byte[]> fileChecksums = new ArrayList<byte[]>();
+
+		TracingDeduperListener listener = new TracingDeduperListener() {
+			@Override
+			public boolean onFileFilter(File file) {
+				// Change file after the workers have (likely) prefetched it
+				if (file.equals(inputFiles.get(1))) {
+					try {
+						Thread.sleep(200);
+
+						changedFile.delete();
+						TestFileUtil.createRandomFile(changedFile, 150 * 1024);
+						changedFile.setLastModified(changedFile.lastModified() - 10000);
+					}
+					catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+
+				return super.onFileFilter(file);
+			}
+
+			@Override
+			public void onFileEnd(File file, byte[] checksum) {
+				super.onFileEnd(file, checksum);
+				fileChecksums.add(checksum);
+			}
+		};
+
+		Deduper deduper = new Deduper(new TttdChunker(16 * 1024), new ZipMultiChunker(128 * 1024), new NoTransformer(), Long.MAX_VALUE,
+				Long.MAX_VALUE, 4);
+
+		deduper.deduplicate(new ArrayList<File>(inputFiles), listener);
+
+		assertEquals(5, fileChecksums.size());
+
+		for (int i = 0; i < inputFiles.size(); i++) {
+			assertArrayEquals("Checksum mismatch for file " + inputFiles.get(i), sha1(inputFiles.get(i)), fileChecksums.get(i));
+		}
+	}
+
+	@Test
+	public void testAsyncMultiChunkWritesMatchInline() throws Exception {
+		List<File> inputFiles = createInputFiles();
+		Transformer transformer = new GzipTransformer(new CipherTransformer(CipherSpecs.getDefaultCipherSpecs(),
+				CipherUtil.createMasterKey("some password")));
+
+		File inlineMultiChunkDir = new File(tempDir, "multichunks-inline");
+		File asyncMultiChunkDir = new File(tempDir, "multichunks-async");
+
+		multiChunkDir = inlineMultiChunkDir;
+		multiChunkDir.mkdir();
+
+		List<String> inlineTrace = deduplicate(new ArrayList<File>(inputFiles), transformer, 4, 0, Long.MAX_VALUE, Long.MAX_VALUE);
+
+		multiChunkDir = asyncMultiChunkDir;
+		multiChunkDir.mkdir();
+
+		List<String> asyncTrace = deduplicate(new ArrayList<File>(inputFiles), transformer, 4, 3, Long.MAX_VALUE, Long.MAX_VALUE);
+
+		assertEquals(inlineTrace, asyncTrace);
+		assertTrue(inlineMultiChunkDir.list().length > 3);
+		assertEquals(inlineMultiChunkDir.list().length, asyncMultiChunkDir.list().length);
+
+		for (File inlineMultiChunkFile : inlineMultiChunkDir.listFiles()) {
+			File asyncMultiChunkFile = new File(asyncMultiChunkDir, inlineMultiChunkFile.getName());
+			assertEquals("Multichunk mismatch: " + inlineMultiChunkFile.getName(), readChunks(inlineMultiChunkFile, transformer),
+					readChunks(asyncMultiChunkFile, transformer));
+		}
+	}
+
+	@Test
+	public void testAsyncMultiChunkWritesStopAtTransactionLimits() throws Exception {
+		List<File> inputFiles = createInputFiles();
+		List<File> remainingFiles = new ArrayList<File>(inputFiles);
+
+		List<String> inlineTrace = deduplicate(new ArrayList<File>(inputFiles), new NoTransformer(), 1, 0, 300 * 1024, Long.MAX_VALUE);
+		List<String> asyncTrace = deduplicate(remainingFiles, new NoTransformer(), 1, 2, 300 * 1024, Long.MAX_VALUE);
+
+		assertEquals(inlineTrace, asyncTrace);
+
+		// All multichunk files must be complete when the deduper returns
+		for (File multiChunkFile : multiChunkDir.listFiles()) {
+			new ZipMultiChunker(64).createMultiChunk(multiChunkFile).close();
+		}
+	}
+
+	@Test
+	public void testAsyncMultiChunkWriteFailureIsRethrown() throws Exception {
+		List<File> inputFiles = createInputFiles();
+		multiChunkDir = new File(tempDir, "non-existent");
+
+		try {
+			deduplicate(new ArrayList<File>(inputFiles), new NoTransformer(), 1, 2, Long.MAX_VALUE, Long.MAX_VALUE);
+			fail("Deduper should fail if a multichunk cannot be written.");
+		}
+		catch (IOException e) {
+			// Expected
+		}
+	}
+
+	private List<String> readChunks(File file, Transformer transformer) throws IOException {
+		// Compare chunks rather than raw bytes; ZIP entries carry a modification timestamp
+		List<String> chunks = new ArrayList<String>();
+		MultiChunk multiChunk = new ZipMultiChunker(64).createMultiChunk(new ByteArrayInputStream(readTransformed(file, transformer)));
+		Chunk chunk = null;
+
+		try {
+			while (null != (chunk = multiChunk.read())) {
+				chunks.add(StringUtil.toHex(chunk.getChecksum()) + ":" + StringUtil.toHex(Arrays.copyOf(chunk.getContent(), chunk.getSize())));
+			}
+		}
+		finally {
+			multiChunk.close();
+		}
+
+		return chunks;
+	}
+
+	private byte[] readTransformed(File file, Transformer transformer) throws IOException {
+		try (InputStream inputStream = transformer.createInputStream(new FileInputStream(file))) {
+			return IOUtils.toByteArray(inputStream);
+		}
+	}
+
+	private List<File> createInputFiles() throws IOException {
+		List<File> inputFiles = new LinkedList<File>();
+
+		// Regular files of different sizes, duplicate contents, an empty file and a folder
+		inputFiles.addAll(TestFileUtil.createRandomFilesInDirectory(tempDir, 10 * 1024, 10));
+		inputFiles.addAll(TestFileUtil.createRandomFilesInDirectory(tempDir, 200 * 1024, 5));
+
+		File duplicateFile = new File(tempDir, "duplicate");
+		FileUtils.copyFile(inputFiles.get(11), duplicateFile);
+		inputFiles.add(3, duplicateFile);
+
+		File emptyFile = new File(tempDir, "empty");
+		emptyFile.createNewFile();
+		inputFiles.add(6, emptyFile);
+
+		File folder = new File(tempDir, "folder");
+		folder.mkdir();
+		inputFiles.add(8, folder);
+
+		File ignoredFile = new File(tempDir, "ignored");
+		FileUtils.copyFile(inputFiles.get(0), ignoredFile);
+		inputFiles.add(9, ignoredFile);
+
+		return inputFiles;
+	}
+
+	private List<String> deduplicate(List<File> files, int threads, long maxTotalSize, long maxNumberOfFiles) throws IOException {
+		return deduplicate(files, new TttdChunker(16 * 1024), threads, maxTotalSize, maxNumberOfFiles);
+	}
+
+	private List<String> deduplicate(List<File> files, Chunker chunker, int threads, long maxTotalSize, long maxNumberOfFiles) throws IOException {
+		TracingDeduperListener listener = new TracingDeduperListener();
+		Deduper deduper = new Deduper(chunker, new ZipMultiChunker(128 * 1024), new NoTransformer(), maxTotalSize, maxNumberOfFiles, threads);
+
+		deduper.deduplicate(files, listener);
+
+		return listener.trace;
+	}
+
+	private List<String> deduplicate(List<File> files, Transformer transformer, int threads, int transformerThreads, long maxTotalSize,
+			long maxNumberOfFiles) throws IOException {
+
+		TracingDeduperListener listener = new TracingDeduperListener();
+		Deduper deduper = new Deduper(new TttdChunker(16 * 1024), new ZipMultiChunker(64), transformer, maxTotalSize, maxNumberOfFiles,
+				threads, transformerThreads);
+
+		deduper.deduplicate(files, listener);
+
+		return listener.trace;
+	}
+
+	private byte[] sha1(File file) throws Exception {
+		return MessageDigest.getInstance("SHA1").digest(FileUtils.readFileToByteArray(file));
+	}
+
+	private String sha1(Chunk chunk) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA1");
+			digest.update(chunk.getContent(), 0, chunk.getSize());
+
+			return StringUtil.toHex(digest.digest());
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private class TracingDeduperListener implements DeduperListener {
+		private List<String> trace = new ArrayList<String>();
+		private Set<String> knownChunks = new HashSet<String>();
+		private int multiChunkCount = 0;
+
+		@Override
+		public boolean onFileFilter(File file) {
+			trace.add("onFileFilter " + file.getName());
+			return !file.getName().equals("ignored");
+		}
+
+		@Override
+		public boolean onFileStart(File file) {
+			trace.add("onFileStart " + file.getName());
+			return file.isFile() && !FileUtil.isSymlink(file);
+		}
+
+		@Override
+		public void onFileAddChunk(File file, Chunk chunk) {
+			trace.add("onFileAddChunk " + file.getName() + " " + StringUtil.toHex(chunk.getChecksum()));
+		}
+
+		@Override
+		public void onFileEnd(File file, byte[] checksum) {
+			trace.add("onFileEnd " + file.getName() + " " + ((checksum != null) ? StringUtil.toHex(checksum) : "-"));
+		}
+
+		@Override
+		public boolean onChunk(Chunk chunk) {
+			trace.add("onChunk " + StringUtil.toHex(chunk.getChecksum()) + " " + chunk.getSize());
+			return knownChunks.add(StringUtil.toHex(chunk.getChecksum()));
+		}
+
+		@Override
+		public void onMultiChunkOpen(MultiChunk multiChunk) {
+			trace.add("onMultiChunkOpen " + multiChunk.getId());
+		}
+
+		@Override
+		public MultiChunkId createNewMultiChunkId(Chunk firstChunk) {
+			return new MultiChunkId(new byte[] { (byte) multiChunkCount++ });
+		}
+
+		@Override
+		public File getMultiChunkFile(MultiChunkId multiChunkId) {
+			return new File(multiChunkDir, "multichunk-" + multiChunkId);
+		}
+
+		@Override
+		public void onMultiChunkWrite(MultiChunk multiChunk, Chunk chunk) {
+			trace.add("onMultiChunkWrite " + multiChunk.getId() + " " + StringUtil.toHex(chunk.getChecksum()) + " " + sha1(chunk));
+		}
+
+		@Override
+		public void onMultiChunkClose(MultiChunk multiChunk) {
+			trace.add("onMultiChunkClose " + multiChunk.getId());
+		}
+
+		@Override
+		public void onStart(int fileCount) {
+			trace.add("onStart " + fileCount);
+		}
+
+		@Override
+		public void onFinish() {
+			trace.add("onFinish");
+		}
+	}
+}
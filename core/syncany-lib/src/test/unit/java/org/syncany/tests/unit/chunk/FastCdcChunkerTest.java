@@ -0,0 +1,278 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.chunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.chunk.Chunk;
+import org.syncany.chunk.Chunker;
+import org.syncany.chunk.Chunker.ChunkEnumeration;
+import org.syncany.chunk.FastCdcChunker;
+import org.syncany.chunk.FixedChunker;
+import org.syncany.chunk.TttdChunker;
+import org.syncany.config.Logging;
+import org.syncany.tests.unit.util.TestFileUtil;
+import org.syncany.util.FileUtil;
+import org.syncany.util.StringUtil;
+
+public class FastCdcChunkerTest {
+	private static final Logger logger = Logger.getLogger(FastCdcChunkerTest.class.getSimpleName());
+
+	// Chunk sizes of 256 KB of data from new Random(4711), with an average chunk size of 8 KB
+	private static final String EXPECTED_STABLE_CHUNK_SIZES = "[9815, 4163, 8424, 6493, 5411, 8434, 8534, 11621, 4602, 9936, 9528, 8807, 9011, "
+			+ "8311, 9580, 12562, 8558, 8654, 13186, 8768, 6843, 9175, 15780, 8262, 10583, 3675, 8358, 4355, 8414, 5259, 7042]";
+
+	private File tempDir;
+
+	static {
+		Logging.init();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testStringSerialization() {
+		assertEquals("FastCDC-8192-SHA1", new FastCdcChunker(8192).toString());
+	}
+
+	@Test
+	public void testCreateChunksAndReassembleFile() throws Exception {
+		final int AVG_CHUNK_SIZE = 8 * 1024;
+
+		File inputFile = TestFileUtil.createRandomFileInDirectory(tempDir, 5 * 1024 * 1024 + 123);
+		Chunker chunker = new FastCdcChunker(AVG_CHUNK_SIZE);
+
+		ByteArrayOutputStream reassembledFile = new ByteArrayOutputStream();
+		ChunkEnumeration chunkEnumeration = chunker.createChunks(inputFile);
+		Chunk lastChunk = null;
+		int chunkCount = 0;
+
+		while (chunkEnumeration.hasMoreElements()) {
+			lastChunk = chunkEnumeration.nextElement();
+			chunkCount++;
+
+			reassembledFile.write(lastChunk.getContent(), 0, lastChunk.getSize());
+
+			assertTrue("Chunk too large: " + lastChunk.getSize(), lastChunk.getSize() <= AVG_CHUNK_SIZE * 8);
+
+			if (chunkEnumeration.hasMoreElements()) {
+				assertNull(lastChunk.getFileChecksum());
+				assertTrue("Chunk too small: " + lastChunk.getSize(), lastChunk.getSize() >= AVG_CHUNK_SIZE / 4);
+			}
+		}
+
+		assertNull(chunkEnumeration.nextElement());
+		assertFalse(chunkEnumeration.hasMoreElements());
+
+		byte[] inputFileChecksum = FileUtil.createChecksum(inputFile, FastCdcChunker.DEFAULT_DIGEST_ALG);
+
+		assertArrayEquals(FileUtils.readFileToByteArray(inputFile), reassembledFile.toByteArray());
+		assertArrayEquals(inputFileChecksum, lastChunk.getFileChecksum());
+
+		// Normalized chunking keeps the average close to the desired size
+		double averageChunkSize = (double) inputFile.length() / chunkCount;
+		logger.log(Level.INFO, "Average chunk size: {0} bytes ({1} chunks)", new Object[] { averageChunkSize, chunkCount });
+
+		assertTrue("Average chunk size off: " + averageChunkSize, averageChunkSize > AVG_CHUNK_SIZE * 0.5 && averageChunkSize < AVG_CHUNK_SIZE * 2);
+	}
+
+	@Test
+	public void testEmptyFileHasNoChunks() throws Exception {
+		File emptyFile = new File(tempDir, "empty");
+		emptyFile.createNewFile();
+
+		ChunkEnumeration chunkEnumeration = new FastCdcChunker(8192).createChunks(emptyFile);
+
+		assertFalse(chunkEnumeration.hasMoreElements());
+		assertNull(chunkEnumeration.nextElement());
+	}
+
+	@Test
+	public void testFileChecksumIfFileSizeIsMultipleOfMaxChunkSize() throws Exception {
+		final int AVG_CHUNK_SIZE = 64 * 1024;
+		final int MAX_CHUNK_SIZE = AVG_CHUNK_SIZE * 8;
+
+		// Zero-filled files are cut at the max. chunk size, so the last chunk ends exactly at a full buffer
+		for (int fileSize : new int[] { MAX_CHUNK_SIZE, 2 * MAX_CHUNK_SIZE, 100000 }) {
+			File inputFile = new File(tempDir, "zeros-" + fileSize);
+			FileUtils.writeByteArrayToFile(inputFile, new byte[fileSize]);
+
+			ChunkEnumeration chunkEnumeration = new FastCdcChunker(AVG_CHUNK_SIZE).createChunks(inputFile);
+			Chunk lastChunk = null;
+			long totalSize = 0;
+
+			while (chunkEnumeration.hasMoreElements()) {
+				lastChunk = chunkEnumeration.nextElement();
+				totalSize += lastChunk.getSize();
+			}
+
+			assertEquals(fileSize, totalSize);
+			assertArrayEquals("No file checksum for " + fileSize + " bytes", FileUtil.createChecksum(inputFile, FastCdcChunker.DEFAULT_DIGEST_ALG),
+					lastChunk.getFileChecksum());
+		}
+	}
+
+	@Test
+	public void testChunkBoundariesAreStable() throws Exception {
+		// Chunk boundaries must never change, or existing repositories will not dedup anymore
+		byte[] data = new byte[256 * 1024];
+		new Random(4711).nextBytes(data);
+
+		File inputFile = new File(tempDir, "stable");
+		FileUtils.writeByteArrayToFile(inputFile, data);
+
+		List<Integer> chunkSizes = new ArrayList<Integer>();
+		ChunkEnumeration chunkEnumeration = new FastCdcChunker(8192).createChunks(inputFile);
+
+		while (chunkEnumeration.hasMoreElements()) {
+			chunkSizes.add(chunkEnumeration.nextElement().getSize());
+		}
+
+		List<Integer> secondChunkSizes = new ArrayList<Integer>();
+		chunkEnumeration = new FastCdcChunker(8192).createChunks(inputFile);
+
+		while (chunkEnumeration.hasMoreElements()) {
+			secondChunkSizes.add(chunkEnumeration.nextElement().getSize());
+		}
+
+		assertEquals(chunkSizes, secondChunkSizes);
+		assertEquals(EXPECTED_STABLE_CHUNK_SIZES, chunkSizes.toString());
+	}
+
+	@Test
+	public void testCompareDedupRatioAndThroughput() throws Exception {
+		// A 'realistic' corpus: Versions of a file with small insertions and deletions
+		// (e.g. documents, source code), plus a slightly modified copy of a large binary
+		List<File> versions = createShiftedVersions(new File(tempDir, "document"), 2 * 1024 * 1024, 8);
+		List<File> binaries = createShiftedVersions(new File(tempDir, "image"), 8 * 1024 * 1024, 2);
+
+		List<File> corpus = new ArrayList<File>();
+		corpus.addAll(versions);
+		corpus.addAll(binaries);
+
+		long totalSize = 0;
+
+		for (File file : corpus) {
+			totalSize += file.length();
+		}
+
+		Chunker[] chunkers = new Chunker[] { new FixedChunker(16 * 1024), new FixedChunker(512 * 1024), new TttdChunker(16 * 1024),
+				new FastCdcChunker(16 * 1024), new FastCdcChunker(64 * 1024) };
+
+		double fixedDedupRatio = 0;
+		double fastCdcDedupRatio = 0;
+
+		for (Chunker chunker : chunkers) {
+			Set<String> uniqueChunks = new HashSet<String>();
+			long uniqueSize = 0;
+
+			long startTime = System.nanoTime();
+
+			for (File file : corpus) {
+				ChunkEnumeration chunkEnumeration = chunker.createChunks(file);
+
+				while (chunkEnumeration.hasMoreElements()) {
+					Chunk chunk = chunkEnumeration.nextElement();
+
+					if (chunk != null && uniqueChunks.add(StringUtil.toHex(chunk.getChecksum()))) {
+						uniqueSize += chunk.getSize();
+					}
+				}
+
+				chunkEnumeration.close();
+			}
+
+			long durationMillis = Math.max(1, (System.nanoTime() - startTime) / 1000000);
+			double dedupRatio = (double) totalSize / uniqueSize;
+			double throughput = totalSize / 1024.0 / 1024.0 / (durationMillis / 1000.0);
+
+			logger.log(Level.INFO, String.format("%-28s dedup ratio %.2f, %d unique chunks, %.1f MB/s", chunker, dedupRatio, uniqueChunks.size(),
+					throughput));
+
+			if (chunker.toString().equals("Fixed-16384-SHA1")) {
+				fixedDedupRatio = dedupRatio;
+			}
+			else if (chunker.toString().equals("FastCDC-16384-SHA1")) {
+				fastCdcDedupRatio = dedupRatio;
+			}
+		}
+
+		assertTrue("FastCDC should dedup shifted data better than fixed-size chunking", fastCdcDedupRatio > fixedDedupRatio);
+	}
+
+	private List<File> createShiftedVersions(File baseFile, int size, int versionCount) throws IOException {
+		Random random = new Random(size);
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+
+		List<File> versions = new ArrayList<File>();
+
+		for (int version = 0; version < versionCount; version++) {
+			File versionFile = new File(baseFile.getAbsolutePath() + "-" + version);
+			FileUtils.writeByteArrayToFile(versionFile, data);
+			versions.add(versionFile);
+
+			// Insert and delete a few bytes at random positions
+			int insertPos = random.nextInt(data.length);
+			byte[] insertBytes = new byte[1 + random.nextInt(100)];
+			random.nextBytes(insertBytes);
+
+			int deletePos = random.nextInt(data.length);
+			int deleteLength = 1 + random.nextInt(100);
+
+			byte[] newData = new byte[data.length + insertBytes.length];
+			System.arraycopy(data, 0, newData, 0, insertPos);
+			System.arraycopy(insertBytes, 0, newData, insertPos, insertBytes.length);
+			System.arraycopy(data, insertPos, newData, insertPos + insertBytes.length, data.length - insertPos);
+
+			deletePos = Math.min(deletePos, newData.length - deleteLength);
+			data = new byte[newData.length - deleteLength];
+			System.arraycopy(newData, 0, data, 0, deletePos);
+			System.arraycopy(newData, deletePos + deleteLength, data, deletePos, newData.length - deletePos - deleteLength);
+		}
+
+		return versions;
+	}
+}
@@ -38,6 +38,7 @@ import javax.crypto.NoSuchPaddingException;
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
 import org.junit.Test;
+import org.syncany.chunk.BinaryMultiChunker;
 import org.syncany.chunk.Chunk;
 import org.syncany.chunk.Chunker;
 import org.syncany.chunk.CipherTransformer;
@@ -115,6 +116,7 @@ public class FrameworkCombinationTest {
 		for (int i = 0; i < multiChunkSizes.length; i++) {
 			//multiChunkers.add(new CustomMultiChunker(multiChunkSizes[i]));
 			multiChunkers.add(new ZipMultiChunker(multiChunkSizes[i]));
+			multiChunkers.add(new BinaryMultiChunker(multiChunkSizes[i]));
 		}
 
 		// Chunks
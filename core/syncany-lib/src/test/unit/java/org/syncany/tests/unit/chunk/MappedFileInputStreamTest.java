@@ -0,0 +1,217 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.chunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.chunk.Chunk;
+import org.syncany.chunk.Chunker.ChunkEnumeration;
+import org.syncany.chunk.FixedChunker;
+import org.syncany.chunk.MappedFileInputStream;
+import org.syncany.chunk.TttdChunker;
+import org.syncany.tests.unit.util.TestFileUtil;
+import org.syncany.util.StringUtil;
+
+public class MappedFileInputStreamTest {
+	private File tempDir;
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testReadAcrossWindows() throws Exception {
+		File inputFile = TestFileUtil.createRandomFileInDirectory(tempDir, 100 * 1024 + 13);
+		byte[] expectedContents = FileUtils.readFileToByteArray(inputFile);
+
+		// Window size is not a multiple of the buffer size
+		try (MappedFileInputStream mappedInputStream = new MappedFileInputStream(inputFile, 4000)) {
+			assertEquals(expectedContents.length, mappedInputStream.available());
+
+			ByteArrayOutputStream actualContents = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1500];
+			int read;
+
+			// Single byte read
+			actualContents.write(mappedInputStream.read());
+
+			while ((read = mappedInputStream.read(buffer, 0, buffer.length)) != -1) {
+				actualContents.write(buffer, 0, read);
+
+				if (mappedInputStream.available() > 0) {
+					assertEquals("Read must fill buffer unless at end of file", buffer.length, read);
+				}
+			}
+
+			assertEquals(0, mappedInputStream.available());
+			assertEquals(-1, mappedInputStream.read());
+			assertArrayEquals(expectedContents, actualContents.toByteArray());
+		}
+	}
+
+	@Test
+	public void testSkip() throws Exception {
+		File inputFile = TestFileUtil.createRandomFileInDirectory(tempDir, 50 * 1024);
+		byte[] expectedContents = FileUtils.readFileToByteArray(inputFile);
+
+		try (MappedFileInputStream mappedInputStream = new MappedFileInputStream(inputFile, 4096)) {
+			assertEquals(100, mappedInputStream.skip(100)); // Within window
+			assertEquals(expectedContents[100] & 0xff, mappedInputStream.read());
+
+			assertEquals(20000, mappedInputStream.skip(20000)); // Across windows
+			assertEquals(expectedContents[20101] & 0xff, mappedInputStream.read());
+
+			assertEquals(expectedContents.length - 20102, mappedInputStream.skip(Long.MAX_VALUE));
+			assertEquals(-1, mappedInputStream.read());
+		}
+	}
+
+	@Test
+	public void testFallbackIfWindowCannotBeMapped() throws Exception {
+		File inputFile = TestFileUtil.createRandomFileInDirectory(tempDir, 200 * 1024 + 13);
+		byte[] expectedContents = FileUtils.readFileToByteArray(inputFile);
+
+		// A negative window size cannot be mapped, so all bytes are read from the channel
+		try (MappedFileInputStream mappedInputStream = new MappedFileInputStream(inputFile, -1)) {
+			ByteArrayOutputStream actualContents = new ByteArrayOutputStream();
+			int read;
+
+			actualContents.write(mappedInputStream.read());
+			assertEquals(1000, mappedInputStream.skip(1000));
+
+			while ((read = mappedInputStream.read()) != -1) {
+				actualContents.write(read);
+			}
+
+			byte[] expectedContentsAfterSkip = new byte[expectedContents.length - 1000];
+			expectedContentsAfterSkip[0] = expectedContents[0];
+			System.arraycopy(expectedContents, 1001, expectedContentsAfterSkip, 1, expectedContents.length - 1001);
+
+			assertEquals(0, mappedInputStream.available());
+			assertArrayEquals(expectedContentsAfterSkip, actualContents.toByteArray());
+		}
+	}
+
+	@Test
+	public void testEmptyFile() throws Exception {
+		File emptyFile = new File(tempDir, "empty");
+		emptyFile.createNewFile();
+
+		try (MappedFileInputStream mappedInputStream = new MappedFileInputStream(emptyFile)) {
+			assertEquals(0, mappedInputStream.available());
+			assertEquals(-1, mappedInputStream.read());
+			assertEquals(-1, mappedInputStream.read(new byte[10], 0, 10));
+		}
+	}
+
+	@Test
+	public void testFileTruncatedBeforeNextWindow() throws Exception {
+		File inputFile = TestFileUtil.createRandomFileInDirectory(tempDir, 40 * 1024);
+		byte[] expectedContents = FileUtils.readFileToByteArray(inputFile);
+
+		try (MappedFileInputStream mappedInputStream = new MappedFileInputStream(inputFile, 16 * 1024)) {
+			byte[] buffer = new byte[8 * 1024];
+			assertEquals(buffer.length, mappedInputStream.read(buffer, 0, buffer.length));
+
+			truncateFile(inputFile, 20 * 1024);
+			ByteArrayOutputStream actualContents = new ByteArrayOutputStream();
+			int read;
+
+			while ((read = mappedInputStream.read(buffer, 0, buffer.length)) != -1) {
+				actualContents.write(buffer, 0, read);
+			}
+
+			assertArrayEquals(Arrays.copyOfRange(expectedContents, 8 * 1024, 20 * 1024), actualContents.toByteArray());
+			assertEquals(0, mappedInputStream.available());
+		}
+	}
+
+	@Test
+	public void testChunksIdenticalToFileInputStream() throws Exception {
+		File inputFile = TestFileUtil.createRandomFileInDirectory(tempDir, 1024 * 1024 + 7);
+
+		FixedChunker fixedChunker = new FixedChunker(16 * 1024);
+		TttdChunker tttdChunker = new TttdChunker(16 * 1024);
+
+		assertEquals(createChunks(fixedChunker.new FixedChunkEnumeration(new FileInputStream(inputFile))),
+				createChunks(fixedChunker.new FixedChunkEnumeration(new MappedFileInputStream(inputFile, 100 * 1000))));
+
+		assertEquals(createChunks(tttdChunker.new TTTDEnumeration(new FileInputStream(inputFile))),
+				createChunks(tttdChunker.new TTTDEnumeration(new MappedFileInputStream(inputFile, 100 * 1000))));
+	}
+
+	@Test
+	public void testChunkerUsesMappedFileForLargeFiles() throws Exception {
+		File inputFile = TestFileUtil.createRandomFileInDirectory(tempDir, FixedChunker.MAPPED_FILE_THRESHOLD + 1);
+		ByteArrayOutputStream actualContents = new ByteArrayOutputStream();
+
+		ChunkEnumeration chunkEnumeration = new FixedChunker(512 * 1024).createChunks(inputFile);
+
+		while (chunkEnumeration.hasMoreElements()) {
+			Chunk chunk = chunkEnumeration.nextElement();
+			actualContents.write(chunk.getContent(), 0, chunk.getSize());
+		}
+
+		chunkEnumeration.close();
+
+		try (InputStream inputStream = new FileInputStream(inputFile)) {
+			assertArrayEquals(IOUtils.toByteArray(inputStream), actualContents.toByteArray());
+		}
+	}
+
+	private void truncateFile(File file, long length) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+			randomAccessFile.setLength(length);
+		}
+	}
+
+	private List<String> createChunks(ChunkEnumeration chunkEnumeration) throws IOException {
+		List<String> chunks = new ArrayList<String>();
+
+		while (chunkEnumeration.hasMoreElements()) {
+			Chunk chunk = chunkEnumeration.nextElement();
+			chunks.add(StringUtil.toHex(chunk.getChecksum()) + "/" + chunk.getSize() + "/"
+					+ ((chunk.getFileChecksum() != null) ? StringUtil.toHex(chunk.getFileChecksum()) : "-"));
+		}
+
+		chunkEnumeration.close();
+		return chunks;
+	}
+}
@@ -36,12 +36,14 @@ import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 import org.junit.Test;
+import org.syncany.chunk.BinaryMultiChunker;
 import org.syncany.chunk.Chunk;
 import org.syncany.chunk.Chunker;
 import org.syncany.chunk.FixedChunker;
 import org.syncany.chunk.MultiChunk;
 import org.syncany.chunk.MultiChunker;
 import org.syncany.chunk.NoTransformer;
+import org.syncany.chunk.SeekableMultiChunker;
 import org.syncany.chunk.Transformer;
 import org.syncany.chunk.ZipMultiChunker;
 import org.syncany.database.MultiChunkEntry.MultiChunkId;
@@ -61,7 +63,9 @@ public class MultiChunkerTest {
 		
 		MultiChunker[] multiChunkers = new MultiChunker[] { 
 			//new CustomMultiChunker(minMultiChunkSize),
-			new ZipMultiChunker(minMultiChunkSize) 
+			new ZipMultiChunker(minMultiChunkSize),
+			new BinaryMultiChunker(minMultiChunkSize),
+			new SeekableMultiChunker(minMultiChunkSize)
 		};
 		
 		for (Chunker chunker : chunkers) {
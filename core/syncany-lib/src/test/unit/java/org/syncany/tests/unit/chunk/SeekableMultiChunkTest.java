@@ -0,0 +1,232 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.chunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.syncany.chunk.Chunk;
+import org.syncany.chunk.Chunker.ChunkEnumeration;
+import org.syncany.chunk.CipherTransformer;
+import org.syncany.chunk.FixedChunker;
+import org.syncany.chunk.GzipTransformer;
+import org.syncany.chunk.MultiChunk;
+import org.syncany.chunk.MultiChunker;
+import org.syncany.chunk.SeekableMultiChunk;
+import org.syncany.chunk.SeekableMultiChunk.Record;
+import org.syncany.chunk.SeekableMultiChunk.Trailer;
+import org.syncany.chunk.SeekableMultiChunker;
+import org.syncany.chunk.Transformer;
+import org.syncany.crypto.CipherSpecs;
+import org.syncany.crypto.CipherUtil;
+import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.tests.unit.util.TestFileUtil;
+import org.syncany.util.StringUtil;
+
+public class SeekableMultiChunkTest {
+	private static Transformer transformer;
+
+	private File tempDir;
+	private MultiChunker multiChunker;
+
+	@BeforeClass
+	public static void setUpTransformer() throws Exception {
+		transformer = new GzipTransformer(new CipherTransformer(CipherSpecs.getDefaultCipherSpecs(), CipherUtil.createMasterKey("some password")));
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+		multiChunker = new SeekableMultiChunker(512, transformer);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testRandomAccessFromFile() throws Exception {
+		File multiChunkFile = new File(tempDir, "multichunk");
+		Map<ChunkChecksum, byte[]> chunks = writeMultiChunk(multiChunkFile, 300 * 1024);
+
+		List<ChunkChecksum> reversedChecksums = new ArrayList<ChunkChecksum>(chunks.keySet());
+		Collections.reverse(reversedChecksums);
+
+		MultiChunk multiChunk = multiChunker.createMultiChunk(multiChunkFile);
+
+		for (ChunkChecksum checksum : reversedChecksums) {
+			try (InputStream chunkInputStream = multiChunk.getChunkInputStream(checksum.getBytes())) {
+				assertArrayEquals(chunks.get(checksum), IOUtils.toByteArray(chunkInputStream));
+			}
+		}
+
+		assertNull(multiChunk.getChunkInputStream(new byte[20]));
+		multiChunk.close();
+	}
+
+	@Test
+	public void testSequentialReadFromStream() throws Exception {
+		File multiChunkFile = new File(tempDir, "multichunk");
+		Map<ChunkChecksum, byte[]> chunks = writeMultiChunk(multiChunkFile, 100 * 1024);
+
+		MultiChunk multiChunk = multiChunker.createMultiChunk(new FileInputStream(multiChunkFile));
+		List<ChunkChecksum> expectedChecksums = new ArrayList<ChunkChecksum>(chunks.keySet());
+		Chunk chunk = null;
+		int chunkCount = 0;
+
+		while (null != (chunk = multiChunk.read())) {
+			ChunkChecksum expectedChecksum = expectedChecksums.get(chunkCount++);
+
+			assertEquals(expectedChecksum, new ChunkChecksum(chunk.getChecksum()));
+			assertArrayEquals(chunks.get(expectedChecksum), chunk.getContent());
+		}
+
+		assertEquals(chunks.size(), chunkCount);
+		multiChunk.close();
+	}
+
+	@Test
+	public void testReadSingleChunkFromTailAndRecord() throws Exception {
+		File multiChunkFile = new File(tempDir, "multichunk");
+		Map<ChunkChecksum, byte[]> chunks = writeMultiChunk(multiChunkFile, 200 * 1024);
+		byte[] multiChunkBytes = Files.readAllBytes(multiChunkFile.toPath());
+
+		// Only the last bytes of the multichunk are needed to read the index
+		Trailer trailer = SeekableMultiChunk.readTrailer(Arrays.copyOfRange(multiChunkBytes, multiChunkBytes.length - 16, multiChunkBytes.length));
+		assertEquals(multiChunkBytes.length, trailer.getIndexOffset() + trailer.getIndexLength() + SeekableMultiChunk.TRAILER_SIZE);
+
+		int indexOffset = (int) trailer.getIndexOffset();
+		List<Record> records = SeekableMultiChunk.readIndex(Arrays.copyOfRange(multiChunkBytes, indexOffset, indexOffset + trailer.getIndexLength()),
+				transformer);
+
+		assertEquals(chunks.size(), records.size());
+
+		// Read a single chunk using its record only
+		Record record = records.get(records.size() / 2);
+		int recordOffset = (int) record.getOffset();
+		byte[] chunkContent = SeekableMultiChunk.readRecord(Arrays.copyOfRange(multiChunkBytes, recordOffset, recordOffset + record.getLength()),
+				transformer);
+
+		assertArrayEquals(chunks.get(record.getChecksum()), chunkContent);
+	}
+
+	@Test
+	public void testChecksumsNotVisibleInMultiChunk() throws Exception {
+		File multiChunkFile = new File(tempDir, "multichunk");
+		Map<ChunkChecksum, byte[]> chunks = writeMultiChunk(multiChunkFile, 100 * 1024);
+		String multiChunkHex = StringUtil.toHex(Files.readAllBytes(multiChunkFile.toPath()));
+
+		for (ChunkChecksum checksum : chunks.keySet()) {
+			assertFalse(multiChunkHex.contains(checksum.toString()));
+		}
+	}
+
+	@Test
+	public void testRecordsArePadded() throws Exception {
+		File multiChunkFile = new File(tempDir, "multichunk");
+		Map<ChunkChecksum, byte[]> chunks = writeMultiChunk(multiChunkFile, 100 * 1024);
+		byte[] multiChunkBytes = Files.readAllBytes(multiChunkFile.toPath());
+
+		Trailer trailer = SeekableMultiChunk.readTrailer(multiChunkBytes);
+		int indexOffset = (int) trailer.getIndexOffset();
+		List<Record> records = SeekableMultiChunk.readIndex(Arrays.copyOfRange(multiChunkBytes, indexOffset, indexOffset + trailer.getIndexLength()),
+				transformer);
+
+		assertEquals(chunks.size(), records.size());
+		assertEquals(0, (indexOffset - SeekableMultiChunk.HEADER_SIZE) % SeekableMultiChunk.RECORD_PADDING_SIZE);
+
+		for (Record record : records) {
+			assertEquals(0, (record.getOffset() - SeekableMultiChunk.HEADER_SIZE) % SeekableMultiChunk.RECORD_PADDING_SIZE);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testTamperedRecord() throws Exception {
+		File multiChunkFile = new File(tempDir, "multichunk");
+		writeMultiChunk(multiChunkFile, 100 * 1024);
+
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(multiChunkFile, "rw")) {
+			randomAccessFile.seek(SeekableMultiChunk.HEADER_SIZE + 100);
+			int tamperedByte = randomAccessFile.read();
+
+			randomAccessFile.seek(SeekableMultiChunk.HEADER_SIZE + 100);
+			randomAccessFile.write(tamperedByte ^ 0xff);
+		}
+
+		MultiChunk multiChunk = multiChunker.createMultiChunk(multiChunkFile);
+
+		try {
+			while (multiChunk.read() != null) {
+				// Read all chunks
+			}
+		}
+		finally {
+			multiChunk.close();
+		}
+	}
+
+	@Test
+	public void testMultiChunkerIsSeekable() {
+		assertTrue(multiChunker.isSeekable());
+	}
+
+	private Map<ChunkChecksum, byte[]> writeMultiChunk(File multiChunkFile, int inputFileSize) throws IOException {
+		File inputFile = new File(tempDir, "input");
+		TestFileUtil.createRandomFile(inputFile, inputFileSize);
+
+		Map<ChunkChecksum, byte[]> chunks = new LinkedHashMap<ChunkChecksum, byte[]>();
+		MultiChunk multiChunk = multiChunker.createMultiChunk(MultiChunkId.secureRandomMultiChunkId(), new FileOutputStream(multiChunkFile));
+		ChunkEnumeration chunkEnumeration = new FixedChunker(8 * 1024).createChunks(inputFile);
+
+		while (chunkEnumeration.hasMoreElements()) {
+			Chunk chunk = chunkEnumeration.nextElement();
+
+			multiChunk.write(chunk);
+			chunks.put(new ChunkChecksum(chunk.getChecksum()), Arrays.copyOf(chunk.getContent(), chunk.getSize()));
+		}
+
+		chunkEnumeration.close();
+		multiChunk.close();
+
+		return chunks;
+	}
+}
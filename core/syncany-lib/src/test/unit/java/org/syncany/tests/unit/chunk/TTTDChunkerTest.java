@@ -27,17 +27,23 @@ import static org.junit.Assert.fail;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.syncany.chunk.Adler32Fingerprinter;
 import org.syncany.chunk.Chunk;
 import org.syncany.chunk.Chunker;
 import org.syncany.chunk.TttdChunker;
 import org.syncany.tests.unit.util.TestFileUtil;
 import org.syncany.util.FileUtil;
+import org.syncany.util.StringUtil;
 
 public class TTTDChunkerTest {
 	private File tempDir;
@@ -100,6 +106,46 @@ public class TTTDChunkerTest {
 		assertArrayEquals("Last chunk's getFileChecksum() should be the file checksum.", inputFileChecksum, lastChunk.getFileChecksum());
 	}
 	
+	@Test
+	public void testChunkBoundariesMatchByteWiseReferenceImplementation() throws Exception {
+		// Setup
+		File inputRandomFile = TestFileUtil.createRandomFileInDirectory(tempDir, 3 * 1024 * 1024 + 17);
+		File inputTextFile = new File(tempDir, "text");
+		StringBuilder text = new StringBuilder();
+
+		for (int i = 0; i < 50000; i++) {
+			text.append("line " + (i % 1000) + " of some low-entropy text\n");
+		}
+
+		FileUtils.writeStringToFile(inputTextFile, text.toString());
+
+		File emptyFile = new File(tempDir, "empty");
+		emptyFile.createNewFile();
+
+		int[][] chunkerParameters = new int[][] {
+				// Tmin, Tmax, D, Ddash, windowSize
+				{ 460, 2800, 540, 270, 48 }, { 3710, 22607, 4359, 2180, 48 }, { 100, 200, 20, 10, 100 }, { 48, 2048, 256, 128, 48 } };
+
+		for (int[] parameters : chunkerParameters) {
+			Chunker chunker = new TttdChunker(parameters[0], parameters[1], parameters[2], parameters[3], parameters[4]);
+
+			for (File inputFile : new File[] { inputRandomFile, inputTextFile, emptyFile }) {
+				List<String> expectedChunks = createReferenceChunks(inputFile, parameters[0], parameters[1], parameters[2], parameters[4]);
+				List<String> actualChunks = new ArrayList<String>();
+
+				Enumeration<Chunk> chunkEnumeration = chunker.createChunks(inputFile);
+
+				while (chunkEnumeration.hasMoreElements()) {
+					Chunk chunk = chunkEnumeration.nextElement();
+					actualChunks.add(StringUtil.toHex(chunk.getChecksum()) + "/" + chunk.getSize() + "/"
+							+ ((chunk.getFileChecksum() != null) ? StringUtil.toHex(chunk.getFileChecksum()) : "-"));
+				}
+
+				assertEquals("Chunks differ for " + chunker + " and " + inputFile, expectedChunks, actualChunks);
+			}
+		}
+	}
+
 	@Test
 	@Ignore
 	public void testNumberAndSizeOfCreatedChunks() {
@@ -127,4 +173,60 @@ public class TTTDChunkerTest {
 		assertNull("No chunk expected, but data received.", chunkEnumeration.nextElement());
 		assertFalse("hasElements() should return 'false' if no chunk available.", chunkEnumeration.hasMoreElements());
 	}
+
+	/**
+	 * Byte-wise TTTD implementation as used by earlier versions of the TTTD chunker. Chunk
+	 * boundaries must not change, so that existing repositories stay compatible.
+	 */
+	private List<String> createReferenceChunks(File file, int Tmin, int Tmax, int D, int windowSize) throws Exception {
+		List<String> chunks = new ArrayList<String>();
+		byte[] fileContents = FileUtils.readFileToByteArray(file);
+		int filePos = 0;
+
+		MessageDigest fileDigest = MessageDigest.getInstance("SHA1");
+		fileDigest.update(fileContents);
+		byte[] fileChecksum = fileDigest.digest();
+
+		boolean closed = false;
+
+		while (!closed) {
+			Adler32Fingerprinter fingerprinter = new Adler32Fingerprinter();
+			byte[] buf = new byte[Tmax];
+			int bufpos = -1;
+			int breakpoint = -1;
+
+			while (bufpos < buf.length - 1) {
+				if (filePos == fileContents.length) {
+					closed = true;
+					break;
+				}
+
+				buf[++bufpos] = fileContents[filePos++];
+
+				if (bufpos < Tmin) {
+					continue;
+				}
+				else if (bufpos == Tmin) {
+					fingerprinter.check(buf, bufpos - windowSize, windowSize);
+				}
+				else {
+					fingerprinter.roll(buf[bufpos]);
+				}
+
+				if ((fingerprinter.getValue() % D) == D - 1) {
+					breakpoint = bufpos;
+					break;
+				}
+			}
+
+			int chunkSize = ((breakpoint == -1) ? bufpos : breakpoint) + 1;
+
+			MessageDigest chunkDigest = MessageDigest.getInstance("SHA1");
+			chunkDigest.update(buf, 0, chunkSize);
+
+			chunks.add(StringUtil.toHex(chunkDigest.digest()) + "/" + chunkSize + "/" + ((closed) ? StringUtil.toHex(fileChecksum) : "-"));
+		}
+
+		return chunks;
+	}
 }
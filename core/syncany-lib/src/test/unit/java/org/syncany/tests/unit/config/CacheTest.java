@@ -20,9 +20,16 @@ package org.syncany.tests.unit.config;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 import org.syncany.config.Cache;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
 import org.syncany.tests.unit.util.TestFileUtil;
 
 public class CacheTest {
@@ -113,4 +120,113 @@ public class CacheTest {
 		
 		TestFileUtil.deleteDirectory(testCacheFolder);
 	}
+	
+	@Test
+	public void testCacheIndexLoadedFromJournal() throws Exception {
+		File testCacheFolder = TestFileUtil.createTempDirectoryInSystemTemp();
+		File journalFile = new File(testCacheFolder.getParentFile(), testCacheFolder.getName() + ".journal");
+		
+		Cache cache = new Cache(testCacheFolder);
+		cache.setKeepBytes(50*1024);
+		
+		TestFileUtil.createRandomFile(cache.getDatabaseFile("a"), 10*1024);
+		TestFileUtil.createRandomFile(cache.getDatabaseFile("b"), 10*1024);
+		TestFileUtil.createRandomFile(cache.getDatabaseFile("c"), 10*1024);
+		
+		cache.getDatabaseFile("a"); // Access order is now b, c, a
+		cache.clear();
+		
+		assertEquals(3, testCacheFolder.listFiles().length);
+		assertTrue(journalFile.exists());
+		
+		// Last modified dates must be ignored if the journal exists
+		new File(testCacheFolder, "b").setLastModified(System.currentTimeMillis() + 60*1000);
+		
+		Cache reloadedCache = new Cache(testCacheFolder);
+		reloadedCache.setKeepBytes(20*1024);		
+		reloadedCache.clear();
+		
+		assertEquals(2, testCacheFolder.listFiles().length);
+		assertTrue(new File(testCacheFolder, "a").exists());
+		assertFalse(new File(testCacheFolder, "b").exists());
+		assertTrue(new File(testCacheFolder, "c").exists());
+		
+		TestFileUtil.deleteDirectory(testCacheFolder);
+		journalFile.delete();
+	}
+	
+	@Test
+	public void testCacheJournalReconciledWithCacheFolder() throws Exception {
+		File testCacheFolder = TestFileUtil.createTempDirectoryInSystemTemp();
+		File journalFile = new File(testCacheFolder.getParentFile(), testCacheFolder.getName() + ".journal");
+		
+		Cache cache = new Cache(testCacheFolder);
+		
+		TestFileUtil.createRandomFile(cache.getDatabaseFile("a"), 10*1024);
+		TestFileUtil.createRandomFile(cache.getDatabaseFile("b"), 10*1024);
+		cache.getDatabaseFile("nonexistent");
+		cache.clear();
+		
+		assertEquals(Arrays.asList("10240 a", "10240 b"), readJournalEntries(journalFile));
+		
+		// Changes made without updating the journal (e.g. after a crash)
+		TestFileUtil.createRandomFile(new File(testCacheFolder, "c"), 20*1024);
+		cache.createTempFile("test");
+		new File(testCacheFolder, "a").delete();
+		
+		Cache reloadedCache = new Cache(testCacheFolder);
+		reloadedCache.clear();
+		
+		assertEquals(Arrays.asList("10240 b", "20480 c"), readJournalEntries(journalFile));
+		
+		TestFileUtil.deleteDirectory(testCacheFolder);
+		journalFile.delete();
+	}
+	
+	@Test
+	public void testCacheDeletesDecryptedMultiChunkIfEncryptedIsCached() throws Exception {
+		File testCacheFolder = TestFileUtil.createTempDirectoryInSystemTemp();
+		File journalFile = new File(testCacheFolder.getParentFile(), testCacheFolder.getName() + ".journal");
+		
+		Cache cache = new Cache(testCacheFolder);
+		cache.setKeepBytes(50*1024);
+		
+		MultiChunkId cachedMultiChunkId = MultiChunkId.secureRandomMultiChunkId();
+		MultiChunkId decryptedOnlyMultiChunkId = MultiChunkId.secureRandomMultiChunkId();
+
+		TestFileUtil.createRandomFile(cache.getEncryptedMultiChunkFile(cachedMultiChunkId), 10*1024);
+		TestFileUtil.createRandomFile(cache.getDecryptedMultiChunkFile(cachedMultiChunkId), 10*1024);
+		TestFileUtil.createRandomFile(cache.getDecryptedMultiChunkFile(decryptedOnlyMultiChunkId), 10*1024);
+		
+		// Decrypted multichunks used since the last clean are kept
+		cache.clear();		
+		assertEquals(3, testCacheFolder.listFiles().length);
+		
+		cache.getDecryptedMultiChunkFile(cachedMultiChunkId);
+		cache.clear();		
+		assertEquals(3, testCacheFolder.listFiles().length);
+		
+		// Unused ones are deleted, if they can be decrypted again
+		cache.clear();
+		
+		assertEquals(2, testCacheFolder.listFiles().length);
+		assertTrue(cache.getEncryptedMultiChunkFile(cachedMultiChunkId).exists());
+		assertFalse(cache.getDecryptedMultiChunkFile(cachedMultiChunkId).exists());
+		assertTrue(cache.getDecryptedMultiChunkFile(decryptedOnlyMultiChunkId).exists());
+		
+		TestFileUtil.deleteDirectory(testCacheFolder);
+		journalFile.delete();
+	}
+
+	private List<String> readJournalEntries(File journalFile) throws IOException {
+		List<String> journalEntries = new ArrayList<String>();
+		
+		for (String line : Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8)) {
+			if (!line.startsWith("#")) {
+				journalEntries.add(line);
+			}
+		}
+		
+		return journalEntries;
+	}
 }
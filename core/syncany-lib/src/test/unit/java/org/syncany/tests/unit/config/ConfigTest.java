@@ -30,10 +30,13 @@ import javax.crypto.spec.SecretKeySpec;
 
 import org.junit.Ignore;
 import org.junit.Test;
+import org.syncany.chunk.Chunker;
+import org.syncany.chunk.FastCdcChunker;
 import org.syncany.config.Config;
 import org.syncany.config.ConfigException;
 import org.syncany.config.to.ConfigTO;
 import org.syncany.config.to.RepoTO;
+import org.syncany.config.to.RepoTO.ChunkerTO;
 import org.syncany.config.to.RepoTO.TransformerTO;
 import org.syncany.crypto.SaltedSecretKey;
 import org.syncany.tests.util.TestAssertUtil;
@@ -77,6 +80,55 @@ public class ConfigTest {
 		assertNotNull(config.getCache());
 	}
 
+	@Test
+	public void testConfigFastCdcChunker() throws Exception {
+		// Setup
+		File localDir = new File("/some/folder");
+		ConfigTO configTO = new ConfigTO();
+		RepoTO repoTO = new RepoTO();
+
+		ChunkerTO chunkerTO = new ChunkerTO();
+		chunkerTO.setType(FastCdcChunker.TYPE);
+		chunkerTO.setSettings(new HashMap<String, String>());
+		chunkerTO.getSettings().put(Chunker.PROPERTY_SIZE, "32");
+
+		configTO.setMachineName("somevalidmachinename"); // <<< valid
+
+		repoTO.setChunkerTO(chunkerTO); // <<< valid
+		repoTO.setMultiChunker(TestConfigUtil.createZipMultiChunkerTO()); // <<< valid
+		repoTO.setRepoId(new byte[] { 0x01, 0x02 }); // <<< valid
+		repoTO.setTransformers(null); // <<< valid
+
+		// Run!
+		Config config = new Config(localDir, configTO, repoTO);
+
+		// Test
+		assertEquals("FastCDC-32768-SHA1", config.getChunker().toString());
+	}
+
+	@Test(expected = ConfigException.class)
+	public void testConfigFastCdcChunkerInvalidSize() throws Exception {
+		// Setup
+		File localDir = new File("/some/folder");
+		ConfigTO configTO = new ConfigTO();
+		RepoTO repoTO = new RepoTO();
+
+		ChunkerTO chunkerTO = new ChunkerTO();
+		chunkerTO.setType(FastCdcChunker.TYPE);
+		chunkerTO.setSettings(new HashMap<String, String>());
+		chunkerTO.getSettings().put(Chunker.PROPERTY_SIZE, "64k"); // <<< invalid
+
+		configTO.setMachineName("somevalidmachinename"); // <<< valid
+
+		repoTO.setChunkerTO(chunkerTO);
+		repoTO.setMultiChunker(TestConfigUtil.createZipMultiChunkerTO()); // <<< valid
+		repoTO.setRepoId(new byte[] { 0x01, 0x02 }); // <<< valid
+		repoTO.setTransformers(null); // <<< valid
+
+		// Run!
+		new Config(localDir, configTO, repoTO);
+	}
+
 	@Test(expected = ConfigException.class)
 	public void testConfigInitLocalDirNull() throws Exception {
 		File localDir = null;
@@ -0,0 +1,166 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+import org.syncany.database.ChunkBloomFilter;
+
+public class ChunkBloomFilterTest {
+	@Test
+	public void testNoFalseNegatives() {
+		ChunkBloomFilter chunkFilter = new ChunkBloomFilter(10000);
+		byte[][] checksums = createRandomChecksums(10000, 1);
+
+		for (byte[] checksum : checksums) {
+			chunkFilter.put(checksum);
+		}
+
+		for (byte[] checksum : checksums) {
+			assertTrue(chunkFilter.mightContain(checksum));
+		}
+
+		assertEquals(checksums.length, chunkFilter.getAddedChunkCount());
+		assertFalse(chunkFilter.isOverloaded());
+	}
+
+	@Test
+	public void testFalsePositiveRate() {
+		ChunkBloomFilter chunkFilter = new ChunkBloomFilter(10000);
+
+		for (byte[] checksum : createRandomChecksums(10000, 1)) {
+			chunkFilter.put(checksum);
+		}
+
+		for (byte[] checksum : createRandomChecksums(100000, 2)) {
+			if (chunkFilter.mightContain(checksum)) {
+				chunkFilter.recordFalsePositive();
+			}
+		}
+
+		assertEquals(100000, chunkFilter.getQueryCount());
+		assertEquals(100000, chunkFilter.getNegativeCount() + chunkFilter.getFalsePositiveCount());
+
+		// ~1% expected at 10 bits per chunk and 7 hash functions
+		assertEquals(0.01, chunkFilter.getExpectedFalsePositiveRate(), 0.005);
+		assertTrue("False positive rate too high: " + chunkFilter.getFalsePositiveRate(), chunkFilter.getFalsePositiveRate() < 0.02);
+
+		chunkFilter.resetStatistics();
+		assertEquals(0, chunkFilter.getQueryCount());
+	}
+
+	@Test
+	public void testOverloaded() {
+		ChunkBloomFilter chunkFilter = new ChunkBloomFilter(100);
+
+		for (byte[] checksum : createRandomChecksums(101, 1)) {
+			chunkFilter.put(checksum);
+		}
+
+		assertTrue(chunkFilter.isOverloaded());
+	}
+
+	@Test
+	public void testPutWithoutCounting() {
+		ChunkBloomFilter chunkFilter = new ChunkBloomFilter(100);
+		byte[][] checksums = createRandomChecksums(10, 1);
+
+		for (byte[] checksum : checksums) {
+			chunkFilter.put(checksum, false);
+		}
+
+		for (byte[] checksum : checksums) {
+			assertTrue(chunkFilter.mightContain(checksum));
+		}
+
+		assertEquals(0, chunkFilter.getAddedChunkCount());
+	}
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		File tempDir = Files.createTempDirectory("syncany-chunkfilter").toFile();
+		File chunkFilterFile = new File(tempDir, "chunk.bloom");
+
+		try {
+			ChunkBloomFilter chunkFilter = new ChunkBloomFilter(1000);
+			byte[][] checksums = createRandomChecksums(1000, 1);
+
+			for (byte[] checksum : checksums) {
+				chunkFilter.put(checksum);
+			}
+
+			chunkFilter.setLastDatabaseVersionId(5);
+			chunkFilter.save(chunkFilterFile);
+
+			ChunkBloomFilter loadedChunkFilter = ChunkBloomFilter.load(chunkFilterFile);
+
+			assertNotNull(loadedChunkFilter);
+			assertEquals(5, loadedChunkFilter.getLastDatabaseVersionId());
+			assertEquals(1000, loadedChunkFilter.getAddedChunkCount());
+
+			for (byte[] checksum : checksums) {
+				assertTrue(loadedChunkFilter.mightContain(checksum));
+			}
+
+			for (byte[] checksum : createRandomChecksums(1000, 2)) {
+				assertEquals(chunkFilter.mightContain(checksum), loadedChunkFilter.mightContain(checksum));
+			}
+		}
+		finally {
+			chunkFilterFile.delete();
+			tempDir.delete();
+		}
+	}
+
+	@Test
+	public void testLoadInvalidFile() throws Exception {
+		File tempDir = Files.createTempDirectory("syncany-chunkfilter").toFile();
+		File chunkFilterFile = new File(tempDir, "chunk.bloom");
+
+		try {
+			assertNull(ChunkBloomFilter.load(chunkFilterFile));
+
+			Files.write(chunkFilterFile.toPath(), new byte[100]);
+			assertNull(ChunkBloomFilter.load(chunkFilterFile));
+		}
+		finally {
+			chunkFilterFile.delete();
+			tempDir.delete();
+		}
+	}
+
+	private byte[][] createRandomChecksums(int count, long seed) {
+		Random random = new Random(seed);
+		byte[][] checksums = new byte[count][20];
+
+		for (byte[] checksum : checksums) {
+			random.nextBytes(checksum);
+		}
+
+		return checksums;
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.syncany.database.ChunkIndex;
+import org.syncany.database.ObjectId;
+import org.syncany.util.StringUtil;
+
+public class ChunkIndexTest {
+	@Test
+	public void testPutAndGet() {
+		ChunkIndex chunkIndex = new ChunkIndex();
+		byte[] checksum1 = ObjectId.parseObjectId("615fba8c2281d5bee891eb092a252d235c237457");
+		byte[] checksum2 = ObjectId.parseObjectId("ab85720d3f31bd08ca1cd25dcd8a490e5f00783b");
+
+		assertEquals(-1, chunkIndex.getSize(checksum1));
+
+		chunkIndex.put(checksum1, 8387);
+		chunkIndex.put(checksum2, 0);
+
+		assertEquals(8387, chunkIndex.getSize(checksum1));
+		assertEquals(0, chunkIndex.getSize(checksum2));
+		assertTrue(chunkIndex.contains(checksum2));
+		assertFalse(chunkIndex.contains(ObjectId.parseObjectId("beefbeefbeefbeefbeefbeefbeefbeefbeefbeef")));
+		assertFalse(chunkIndex.contains(new byte[] { 1, 2, 3 }));
+		assertEquals(2, chunkIndex.getCount());
+
+		chunkIndex.put(checksum1, 1000);
+
+		assertEquals(1000, chunkIndex.getSize(checksum1));
+		assertEquals(2, chunkIndex.getCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPutInvalidChecksumLength() {
+		ChunkIndex chunkIndex = new ChunkIndex();
+
+		chunkIndex.put(new byte[20], 1);
+		chunkIndex.put(new byte[16], 1);
+	}
+
+	@Test
+	public void testPutIntoFullIndex() {
+		ChunkIndex chunkIndex = new ChunkIndex(16);
+		Random random = new Random(42);
+		byte[] firstChecksum = null;
+
+		for (int i = 0; i < 11; i++) {
+			byte[] checksum = new byte[20];
+			random.nextBytes(checksum);
+
+			assertTrue(chunkIndex.put(checksum, i));
+			firstChecksum = (firstChecksum == null) ? checksum : firstChecksum;
+		}
+
+		byte[] newChecksum = new byte[20];
+		random.nextBytes(newChecksum);
+
+		assertFalse(chunkIndex.put(newChecksum, 100));
+		assertFalse(chunkIndex.contains(newChecksum));
+		assertEquals(11, chunkIndex.getCount());
+
+		assertTrue(chunkIndex.put(firstChecksum, 100));
+		assertEquals(100, chunkIndex.getSize(firstChecksum));
+		assertEquals(11, chunkIndex.getCount());
+	}
+
+	@Test
+	public void testManyChunksMatchHashMap() {
+		ChunkIndex chunkIndex = new ChunkIndex();
+		Map<String, Integer> expectedChunks = new HashMap<String, Integer>();
+		Random random = new Random(42);
+
+		for (int i = 0; i < 100000; i++) {
+			byte[] checksum = new byte[20];
+			random.nextBytes(checksum);
+
+			chunkIndex.put(checksum, i);
+			expectedChunks.put(StringUtil.toHex(checksum), i);
+		}
+
+		assertEquals(expectedChunks.size(), chunkIndex.getCount());
+
+		for (Map.Entry<String, Integer> expectedChunk : expectedChunks.entrySet()) {
+			assertEquals((int) expectedChunk.getValue(), chunkIndex.getSize(ObjectId.parseObjectId(expectedChunk.getKey())));
+		}
+
+		for (int i = 0; i < 1000; i++) {
+			byte[] checksum = new byte[20];
+			random.nextBytes(checksum);
+
+			assertEquals(expectedChunks.containsKey(StringUtil.toHex(checksum)), chunkIndex.contains(checksum));
+		}
+	}
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		File tempDir = Files.createTempDirectory("syncany-chunkindex").toFile();
+		File chunkIndexFile = new File(tempDir, "chunk.idx");
+
+		try {
+			ChunkIndex chunkIndex = new ChunkIndex();
+			Random random = new Random(1);
+			byte[][] checksums = new byte[10000][20];
+
+			for (int i = 0; i < checksums.length; i++) {
+				random.nextBytes(checksums[i]);
+				chunkIndex.put(checksums[i], i);
+			}
+
+			chunkIndex.setLastDatabaseVersionId(17);
+			chunkIndex.save(chunkIndexFile);
+
+			ChunkIndex loadedChunkIndex = ChunkIndex.load(chunkIndexFile);
+
+			assertNotNull(loadedChunkIndex);
+			assertEquals(checksums.length, loadedChunkIndex.getCount());
+			assertEquals(17, loadedChunkIndex.getLastDatabaseVersionId());
+
+			for (int i = 0; i < checksums.length; i++) {
+				assertEquals(i, loadedChunkIndex.getSize(checksums[i]));
+			}
+
+			// Modifications after loading do not write through to the file
+			byte[] newChecksum = new byte[20];
+			loadedChunkIndex.put(newChecksum, 1);
+
+			assertEquals(1, loadedChunkIndex.getSize(newChecksum));
+			assertFalse(ChunkIndex.load(chunkIndexFile).contains(newChecksum));
+		}
+		finally {
+			chunkIndexFile.delete();
+			tempDir.delete();
+		}
+	}
+
+	@Test
+	public void testSaveAndLoadEmpty() throws Exception {
+		File tempDir = Files.createTempDirectory("syncany-chunkindex").toFile();
+		File chunkIndexFile = new File(tempDir, "chunk.idx");
+
+		try {
+			ChunkIndex chunkIndex = new ChunkIndex();
+			chunkIndex.save(chunkIndexFile);
+
+			ChunkIndex loadedChunkIndex = ChunkIndex.load(chunkIndexFile);
+
+			assertNotNull(loadedChunkIndex);
+			assertEquals(0, loadedChunkIndex.getCount());
+			assertFalse(loadedChunkIndex.contains(new byte[20]));
+		}
+		finally {
+			chunkIndexFile.delete();
+			tempDir.delete();
+		}
+	}
+
+	@Test
+	public void testLoadInvalidFile() throws Exception {
+		File tempDir = Files.createTempDirectory("syncany-chunkindex").toFile();
+		File chunkIndexFile = new File(tempDir, "chunk.idx");
+
+		try {
+			assertNull(ChunkIndex.load(chunkIndexFile));
+
+			Files.write(chunkIndexFile.toPath(), new byte[100]);
+			assertNull(ChunkIndex.load(chunkIndexFile));
+		}
+		finally {
+			chunkIndexFile.delete();
+			tempDir.delete();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Test;
+import org.syncany.database.FileChecksumCache;
+import org.syncany.database.FileContent.FileChecksum;
+import org.syncany.database.FileVersionComparator;
+import org.syncany.database.FileVersionComparator.FileProperties;
+import org.syncany.util.FileUtil;
+
+public class FileChecksumCacheTest {
+	private static final FileChecksum CHECKSUM = FileChecksum.parseFileChecksum("ffffffffffffffffffffffffffffffffffffffff");
+
+	@Test
+	public void testCacheHitAndMiss() {
+		FileChecksumCache cache = new FileChecksumCache();
+		cache.put("some/file", 100, 10000, CHECKSUM, 20000);
+
+		assertEquals(CHECKSUM, cache.get("some/file", 100, 10000));
+		assertNull(cache.get("some/file", 101, 10000));
+		assertNull(cache.get("some/file", 100, 10001));
+		assertNull(cache.get("other/file", 100, 10000));
+	}
+
+	@Test
+	public void testCacheRejectsRecentlyModifiedFile() {
+		FileChecksumCache cache = new FileChecksumCache();
+
+		cache.put("some/file", 100, 10000, CHECKSUM, 10000 + FileChecksumCache.MODIFIED_DATE_GRANULARITY);
+		assertNull(cache.get("some/file", 100, 10000));
+
+		cache.put("some/file", 100, 10000, CHECKSUM, 10001 + FileChecksumCache.MODIFIED_DATE_GRANULARITY);
+		assertEquals(CHECKSUM, cache.get("some/file", 100, 10000));
+
+		// Re-put with racy timestamp must invalidate existing entry
+		cache.put("some/file", 100, 10000, CHECKSUM, 10000);
+		assertNull(cache.get("some/file", 100, 10000));
+	}
+
+	@Test
+	public void testCacheEvictsEldestEntries() {
+		FileChecksumCache cache = new FileChecksumCache(2);
+
+		cache.put("file1", 1, 0, CHECKSUM, 10000);
+		cache.put("file2", 1, 0, CHECKSUM, 10000);
+		cache.get("file1", 1, 0);
+		cache.put("file3", 1, 0, CHECKSUM, 10000);
+
+		assertEquals(2, cache.size());
+		assertEquals(CHECKSUM, cache.get("file1", 1, 0));
+		assertNull(cache.get("file2", 1, 0));
+		assertEquals(CHECKSUM, cache.get("file3", 1, 0));
+	}
+
+	@Test
+	public void testFileVersionComparatorUsesCache() throws Exception {
+		File tempDir = Files.createTempDirectory("syncany-checksumcache").toFile();
+		File file = new File(tempDir, "file");
+
+		try {
+			long lastModified = System.currentTimeMillis() - 60 * 1000;
+
+			Files.write(file.toPath(), new byte[] { 1, 2, 3, 4 });
+			file.setLastModified(lastModified);
+			lastModified = file.lastModified();
+
+			FileChecksumCache cache = new FileChecksumCache();
+			FileVersionComparator comparator = new FileVersionComparator(tempDir, "SHA1", cache);
+
+			FileProperties firstProperties = comparator.captureFileProperties(file, null, true);
+			FileChecksum expectedChecksum = new FileChecksum(FileUtil.createChecksum(file, "SHA1"));
+
+			assertEquals(expectedChecksum, firstProperties.getChecksum());
+			assertEquals(1, cache.size());
+
+			// Change content, but neither size nor last modified date: cache is used
+			Files.write(file.toPath(), new byte[] { 5, 6, 7, 8 });
+			file.setLastModified(lastModified);
+
+			assertEquals(expectedChecksum, comparator.captureFileProperties(file, null, true).getChecksum());
+
+			// Change last modified date: file is hashed again
+			file.setLastModified(lastModified - 10000);
+
+			FileChecksum changedChecksum = comparator.captureFileProperties(file, null, true).getChecksum();
+			assertNotEquals(expectedChecksum, changedChecksum);
+			assertEquals(new FileChecksum(FileUtil.createChecksum(file, "SHA1")), changedChecksum);
+		}
+		finally {
+			file.delete();
+			tempDir.delete();
+		}
+	}
+}
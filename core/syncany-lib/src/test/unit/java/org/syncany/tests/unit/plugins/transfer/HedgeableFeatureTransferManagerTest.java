@@ -0,0 +1,203 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.plugins.transfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.plugins.dummy.DummyTransferManager;
+import org.syncany.plugins.dummy.DummyTransferSettings;
+import org.syncany.plugins.transfer.StorageException;
+import org.syncany.plugins.transfer.features.Hedgeable;
+import org.syncany.plugins.transfer.features.HedgeableFeatureTransferManager;
+import org.syncany.plugins.transfer.features.HedgeableFeatureTransferManager.DownloadLatencyTracker;
+import org.syncany.plugins.transfer.files.MultichunkRemoteFile;
+import org.syncany.plugins.transfer.files.RangeRemoteFileAttributes;
+import org.syncany.plugins.transfer.files.RemoteFile;
+import org.syncany.tests.unit.util.TestFileUtil;
+
+public class HedgeableFeatureTransferManagerTest {
+	private File tempDir;
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+		tempDir.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testLatencyTrackerPercentileAndBudget() {
+		DownloadLatencyTracker latencyTracker = new DownloadLatencyTracker();
+
+		for (int i = 1; i <= 19; i++) {
+			latencyTracker.recordLatency(i * 10);
+		}
+
+		assertEquals(-1, latencyTracker.getHedgeDelay(95, 0)); // Not enough samples
+
+		latencyTracker.recordLatency(200);
+
+		assertEquals(190, latencyTracker.getHedgeDelay(95, 0));
+		assertEquals(100, latencyTracker.getHedgeDelay(50, 0));
+		assertEquals(500, latencyTracker.getHedgeDelay(95, 500));
+
+		for (int i = 0; i < 20; i++) {
+			latencyTracker.recordRequest(false);
+		}
+
+		assertTrue(latencyTracker.tryRecordHedge(0.1));
+		assertTrue(latencyTracker.tryRecordHedge(0.1));
+		assertTrue(!latencyTracker.tryRecordHedge(0.1)); // 3 hedges > 10% of 22 requests
+		assertEquals(2, latencyTracker.getHedgeCount());
+	}
+
+	@Test
+	public void testSlowDownloadIsHedged() throws Exception {
+		// Setup
+		StallingTransferManager originalTransferManager = new StallingTransferManager();
+		HedgeableFeatureTransferManager transferManager = new HedgeableFeatureTransferManager(originalTransferManager, originalTransferManager,
+				null, StallingTransferManager.class.getAnnotation(Hedgeable.class));
+
+		DownloadLatencyTracker latencyTracker = HedgeableFeatureTransferManager.getLatencyTracker(StallingTransferManager.class);
+
+		// Warm up latency tracker with fast downloads
+		for (int i = 0; i < 30; i++) {
+			transferManager.download(new MultichunkRemoteFile(String.format("multichunk-%040x", i)), new File(tempDir, "fast-" + i));
+		}
+
+		assertEquals(0, latencyTracker.getHedgeCount());
+
+		// Run: The first request for this file stalls
+		File localFile = new File(tempDir, "slow");
+		MultichunkRemoteFile stallingRemoteFile = new MultichunkRemoteFile(String.format("multichunk-%040x", 999));
+		originalTransferManager.stallNextRequest();
+
+		long startTime = System.currentTimeMillis();
+		transferManager.download(stallingRemoteFile, localFile);
+		long duration = System.currentTimeMillis() - startTime;
+
+		// Test
+		assertTrue("Hedged download took " + duration + " ms", duration < StallingTransferManager.STALL_TIME / 2);
+		assertEquals(1, latencyTracker.getHedgeCount());
+		assertEquals(stallingRemoteFile.getName(), FileUtils.readFileToString(localFile));
+		assertEquals(31, waitForTempFilesDeleted(tempDir, 31)); // No leftover temp. files
+	}
+
+	@Test
+	public void testHedgedRangeDownloadUsesOwnAttributesPerRequest() throws Exception {
+		// Setup
+		StallingTransferManager originalTransferManager = new StallingTransferManager();
+		HedgeableFeatureTransferManager transferManager = new HedgeableFeatureTransferManager(originalTransferManager, originalTransferManager,
+				null, StallingTransferManager.class.getAnnotation(Hedgeable.class));
+
+		for (int i = 0; i < 30; i++) {
+			transferManager.download(new MultichunkRemoteFile(String.format("multichunk-%040x", i)), new File(tempDir, "fast-" + i));
+		}
+
+		// Run: The first request for this range stalls
+		MultichunkRemoteFile rangeRemoteFile = new MultichunkRemoteFile(String.format("multichunk-%040x", 998));
+		RangeRemoteFileAttributes rangeAttributes = new RangeRemoteFileAttributes(0, 10);
+		rangeRemoteFile.setAttributes(rangeAttributes);
+
+		originalTransferManager.getRangeAttributes().clear();
+		originalTransferManager.stallNextRequest();
+
+		transferManager.download(rangeRemoteFile, new File(tempDir, "range"));
+
+		// Test
+		List<RangeRemoteFileAttributes> requestRangeAttributes = originalTransferManager.getRangeAttributes();
+
+		assertEquals(2, requestRangeAttributes.size());
+		assertNotSame(rangeAttributes, requestRangeAttributes.get(0));
+		assertNotSame(rangeAttributes, requestRangeAttributes.get(1));
+		assertNotSame(requestRangeAttributes.get(0), requestRangeAttributes.get(1));
+		assertTrue(rangeAttributes.isApplied());
+	}
+
+	private int waitForTempFilesDeleted(File dir, int expectedFileCount) throws InterruptedException {
+		// The cancelled request deletes its temp. file asynchronously, once it noticed the interrupt
+		for (int i = 0; i < 50 && dir.listFiles().length > expectedFileCount; i++) {
+			Thread.sleep(100);
+		}
+
+		return dir.listFiles().length;
+	}
+
+	@Hedgeable(percentile = 90, maxHedgeRatio = 0.5, minHedgeDelay = 100)
+	public static class StallingTransferManager extends DummyTransferManager {
+		private static final long STALL_TIME = 10000;
+
+		private AtomicInteger stallingRequests = new AtomicInteger(0);
+		private List<RangeRemoteFileAttributes> rangeAttributes = new CopyOnWriteArrayList<RangeRemoteFileAttributes>();
+
+		public StallingTransferManager() {
+			super(new DummyTransferSettings(), null);
+		}
+
+		public void stallNextRequest() {
+			stallingRequests.incrementAndGet();
+		}
+
+		public List<RangeRemoteFileAttributes> getRangeAttributes() {
+			return rangeAttributes;
+		}
+
+		@Override
+		public void download(RemoteFile remoteFile, File localFile) throws StorageException {
+			RangeRemoteFileAttributes requestRangeAttributes = remoteFile.getAttributes(RangeRemoteFileAttributes.class);
+
+			if (requestRangeAttributes != null) {
+				rangeAttributes.add(requestRangeAttributes);
+			}
+
+			try {
+				if (stallingRequests.getAndDecrement() > 0) {
+					Thread.sleep(STALL_TIME);
+				}
+				else {
+					stallingRequests.incrementAndGet();
+				}
+
+				FileUtils.writeStringToFile(localFile, remoteFile.getName());
+
+				if (requestRangeAttributes != null) {
+					requestRangeAttributes.setApplied(true);
+				}
+			}
+			catch (InterruptedException | IOException e) {
+				throw new StorageException("Download interrupted", e);
+			}
+		}
+	}
+}
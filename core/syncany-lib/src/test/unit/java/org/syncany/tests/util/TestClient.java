@@ -25,6 +25,7 @@ import java.util.Map;
 import org.apache.commons.io.FileUtils;
 import org.syncany.Client;
 import org.syncany.config.Config;
+import org.syncany.config.to.RepoTO.MultiChunkerTO;
 import org.syncany.crypto.CipherException;
 import org.syncany.operations.cleanup.CleanupOperation;
 import org.syncany.operations.cleanup.CleanupOperationOptions;
@@ -74,7 +75,11 @@ public class TestClient extends Client {
 	private Config config;
 	
 	public TestClient(String machineName, TransferSettings connection) throws Exception {
-		Config testConfig = TestConfigUtil.createTestLocalConfig(machineName, connection);
+		this(machineName, connection, TestConfigUtil.createZipMultiChunkerTO());
+	}
+
+	public TestClient(String machineName, TransferSettings connection, MultiChunkerTO multiChunkerTO) throws Exception {
+		Config testConfig = TestConfigUtil.createTestLocalConfig(machineName, connection, multiChunkerTO);
 
 		testConfig.setMachineName(machineName);
 		testConfig.setDisplayName(machineName);
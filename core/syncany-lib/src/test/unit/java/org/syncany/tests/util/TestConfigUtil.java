@@ -29,6 +29,7 @@ import org.simpleframework.xml.core.Persister;
 import org.syncany.chunk.Chunker;
 import org.syncany.chunk.CipherTransformer;
 import org.syncany.chunk.GzipTransformer;
+import org.syncany.chunk.SeekableMultiChunker;
 import org.syncany.chunk.ZipMultiChunker;
 import org.syncany.config.Config;
 import org.syncany.config.UserConfig;
@@ -94,6 +95,17 @@ public class TestConfigUtil {
 		return multiChunkerTO;
 	}
 
+	public static MultiChunkerTO createSeekableMultiChunkerTO() {
+		Map<String, String> settings = new HashMap<String, String>();
+		settings.put(SeekableMultiChunker.PROPERTY_SIZE, "4096");
+
+		MultiChunkerTO multiChunkerTO = new MultiChunkerTO();
+		multiChunkerTO.setType(SeekableMultiChunker.TYPE);
+		multiChunkerTO.setSettings(settings);
+
+		return multiChunkerTO;
+	}
+
 	public static ChunkerTO createFixedChunkerTO() {
 		Map<String, String> settings = new HashMap<String, String>();
 		settings.put(Chunker.PROPERTY_SIZE, "32768");
@@ -106,12 +118,15 @@ public class TestConfigUtil {
 	}
 
 	public static RepoTO createRepoTO() {
+		return createRepoTO(createZipMultiChunkerTO());
+	}
+
+	public static RepoTO createRepoTO(MultiChunkerTO multiChunkerTO) {
 		// Create Repo TO
 		RepoTO repoTO = new RepoTO();
 		repoTO.setRepoId(new byte[] { 0x01, 0x02, 0x03 });
 
-		// Create ChunkerTO and MultiChunkerTO
-		MultiChunkerTO multiChunkerTO = createZipMultiChunkerTO();
+		// Create ChunkerTO
 		ChunkerTO chunkerTO = createFixedChunkerTO();
 		repoTO.setChunkerTO(chunkerTO); // TODO [low] Chunker not configurable right now. Not used.
 		repoTO.setMultiChunker(multiChunkerTO);
@@ -167,10 +182,14 @@ public class TestConfigUtil {
 	}
 
 	public static Config createTestLocalConfig(String machineName, TransferSettings connection) throws Exception {
+		return createTestLocalConfig(machineName, connection, createZipMultiChunkerTO());
+	}
+
+	public static Config createTestLocalConfig(String machineName, TransferSettings connection, MultiChunkerTO multiChunkerTO) throws Exception {
 		File tempLocalDir = TestFileUtil.createTempDirectoryInSystemTemp(createUniqueName("client-" + machineName, connection));
 		tempLocalDir.mkdirs();
 
-		RepoTO repoTO = createRepoTO();
+		RepoTO repoTO = createRepoTO(multiChunkerTO);
 
 		// Create config TO
 		ConfigTO configTO = new ConfigTO();
@@ -82,7 +82,7 @@ public class FileUtil {
 	public static byte[] createChecksum(File filename, String digestAlgorithm) throws NoSuchAlgorithmException, IOException {
 		FileInputStream fis = new FileInputStream(filename);
 
-		byte[] buffer = new byte[1024];
+		byte[] buffer = new byte[64 * 1024];
 		MessageDigest complete = MessageDigest.getInstance(digestAlgorithm);
 		int numRead;
 
@@ -21,38 +21,52 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.jets3t.service.Constants;
 import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.ServiceException;
 import org.jets3t.service.impl.rest.httpclient.GoogleStorageService;
 import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.impl.rest.httpclient.RestStorageService;
 import org.jets3t.service.model.GSBucket;
+import org.jets3t.service.model.MultipartPart;
+import org.jets3t.service.model.MultipartUpload;
 import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
 import org.jets3t.service.model.StorageBucket;
 import org.jets3t.service.model.StorageObject;
 import org.syncany.config.Config;
 import org.syncany.plugins.s3.S3TransferManager.S3ReadAfterWriteConsistentFeatureExtension;
 import org.syncany.plugins.transfer.AbstractTransferManager;
+import org.syncany.plugins.transfer.ConcurrentDownloads;
 import org.syncany.plugins.transfer.StorageException;
 import org.syncany.plugins.transfer.StorageMoveException;
 import org.syncany.plugins.transfer.TransferManager;
+import org.syncany.plugins.transfer.features.Hedgeable;
 import org.syncany.plugins.transfer.features.ReadAfterWriteConsistent;
 import org.syncany.plugins.transfer.features.ReadAfterWriteConsistentFeatureExtension;
 import org.syncany.plugins.transfer.files.ActionRemoteFile;
 import org.syncany.plugins.transfer.files.CleanupRemoteFile;
 import org.syncany.plugins.transfer.files.DatabaseRemoteFile;
 import org.syncany.plugins.transfer.files.MultichunkRemoteFile;
+import org.syncany.plugins.transfer.files.RangeRemoteFileAttributes;
 import org.syncany.plugins.transfer.files.RemoteFile;
+import org.syncany.plugins.transfer.files.ResumableRemoteFileAttributes;
 import org.syncany.plugins.transfer.files.SyncanyRemoteFile;
 import org.syncany.plugins.transfer.files.TempRemoteFile;
 import org.syncany.plugins.transfer.files.TransactionRemoteFile;
+import org.syncany.plugins.transfer.to.PartialUploadTO;
+import org.syncany.plugins.transfer.to.PartialUploadTO.PartTO;
 
 /**
  * The REST transfer manager implements a {@link TransferManager} based on
@@ -72,16 +86,27 @@ import org.syncany.plugins.transfer.files.TransactionRemoteFile;
  * <p>Concrete implementations of this class must override the {@link #createBucket()} method and the
  * {@link #createService()} method.
  *
+ * <p>Large uploads marked with {@link ResumableRemoteFileAttributes} are uploaded as S3 multipart
+ * uploads (not supported for Google Storage). Their upload ID and completed parts are recorded, so
+ * that an interrupted upload can be resumed where it stopped. Downloads marked with
+ * {@link RangeRemoteFileAttributes} are fetched with an HTTP range request.
+ *
+ * <p>Since the underlying JetS3t service is thread-safe, slow downloads may be
+ * hedged (see {@link Hedgeable}).
+ *
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  * @author Christian Roth <christian.roth@port17.de>
  */
 @ReadAfterWriteConsistent(extension = S3ReadAfterWriteConsistentFeatureExtension.class)
+@Hedgeable
+@ConcurrentDownloads
 public class S3TransferManager extends AbstractTransferManager {
 	private enum Type {
 		GOOGLE, NON_STANDARD, S3
 	}
 
 	private static final String APPLICATION_CONTENT_TYPE = "application/x-syncany";
+	private static final long MULTIPART_UPLOAD_PART_SIZE = 5 * 1024 * 1024; // S3 minimum part size
 	private static final Logger logger = Logger.getLogger(S3TransferManager.class.getSimpleName());
 
 	private RestStorageService service;
@@ -216,10 +241,11 @@ public class S3TransferManager extends AbstractTransferManager {
 
 		File tempFile = null;
 		String remotePath = getRemoteFile(remoteFile);
+		RangeRemoteFileAttributes rangeAttributes = remoteFile.getAttributes(RangeRemoteFileAttributes.class);
 
 		try {
 			// Download
-			StorageObject fileObj = service.getObject(bucket.getName(), remotePath);
+			StorageObject fileObj = (rangeAttributes != null) ? getObjectRange(remotePath, rangeAttributes) : service.getObject(bucket.getName(), remotePath);
 			InputStream fileObjInputStream = fileObj.getDataInputStream();
 
 			logger.log(Level.FINE, "- Downloading from bucket " + bucket.getName() + ": " + fileObj + " ...");
@@ -234,6 +260,10 @@ public class S3TransferManager extends AbstractTransferManager {
 			}
 
 			FileUtils.moveFile(tempFile, localFile);
+
+			if (rangeAttributes != null) {
+				rangeAttributes.setApplied(true);
+			}
 		}
 		catch (Exception ex) {
 			if (tempFile != null) {
@@ -244,12 +274,37 @@ public class S3TransferManager extends AbstractTransferManager {
 		}
 	}
 
+	private StorageObject getObjectRange(String remotePath, RangeRemoteFileAttributes rangeAttributes) throws ServiceException {
+		// Byte ranges are inclusive; a missing start requests the last N bytes (suffix range)
+		Long byteRangeStart = (rangeAttributes.isSuffix()) ? null : rangeAttributes.getOffset();
+		Long byteRangeEnd = (rangeAttributes.isSuffix()) ? rangeAttributes.getLength() : rangeAttributes.getOffset() + rangeAttributes.getLength() - 1;
+
+		return service.getObject(bucket.getName(), remotePath, null, null, null, null, byteRangeStart, byteRangeEnd);
+	}
+
 	@Override
 	public void upload(File localFile, RemoteFile remoteFile) throws StorageException {
 		connect();
 
 		String remotePath = getRemoteFile(remoteFile);
+		ResumableRemoteFileAttributes resumableAttributes = remoteFile.getAttributes(ResumableRemoteFileAttributes.class);
+
+		boolean supportsMultipartUpload = service instanceof S3Service;
+		boolean isResumableUpload = resumableAttributes != null && localFile.length() > MULTIPART_UPLOAD_PART_SIZE;
 
+		if (supportsMultipartUpload && isResumableUpload) {
+			uploadMultipart(localFile, remotePath, resumableAttributes.getPartialUpload());
+		}
+		else {
+			if (supportsMultipartUpload && resumableAttributes != null) {
+				abortMultipartUpload(remotePath, resumableAttributes.getPartialUpload());
+			}
+
+			uploadSingle(localFile, remotePath);
+		}
+	}
+
+	private void uploadSingle(File localFile, String remotePath) throws StorageException {
 		try {
 			StorageObject fileObject = new StorageObject(remotePath);
 
@@ -266,6 +321,118 @@ public class S3TransferManager extends AbstractTransferManager {
 		}
 	}
 
+	/**
+	 * Uploads the local file using an S3 multipart upload, and records the upload ID and
+	 * every completed part in the given {@link PartialUploadTO}. If the partial upload refers
+	 * to a still existing multipart upload of the same file, only the missing parts are uploaded.
+	 */
+	private void uploadMultipart(File localFile, String remotePath, PartialUploadTO partialUpload) throws StorageException {
+		S3Service s3Service = (S3Service) service;
+
+		try {
+			MultipartUpload multipartUpload = resumeOrStartMultipartUpload(s3Service, localFile, remotePath, partialUpload);
+
+			long localFileSize = localFile.length();
+			long offset = partialUpload.getUploadedBytes();
+			int partNumber = partialUpload.getParts().size() + 1;
+
+			while (offset < localFileSize) {
+				long partSize = Math.min(MULTIPART_UPLOAD_PART_SIZE, localFileSize - offset);
+
+				try (FileInputStream partInputStream = new FileInputStream(localFile)) {
+					partInputStream.getChannel().position(offset);
+
+					S3Object partObject = new S3Object(remotePath);
+					partObject.setContentLength(partSize);
+					partObject.setDataInputStream(new BoundedInputStream(partInputStream, partSize));
+
+					logger.log(Level.FINE, "- Uploading part " + partNumber + " (offset " + offset + ", " + partSize + " bytes) of " + remotePath + " ...");
+					MultipartPart multipartPart = s3Service.multipartUploadPart(multipartUpload, partNumber, partObject);
+
+					partialUpload.addPart(partNumber, offset, partSize, multipartPart.getEtag());
+				}
+
+				offset += partSize;
+				partNumber++;
+			}
+
+			List<MultipartPart> multipartParts = new ArrayList<MultipartPart>();
+
+			for (PartTO part : partialUpload.getParts()) {
+				multipartParts.add(new MultipartPart(part.getNumber(), null, part.getEtag(), part.getLength()));
+			}
+
+			s3Service.multipartCompleteUpload(multipartUpload, multipartParts);
+			partialUpload.clear();
+		}
+		catch (Exception ex) {
+			logger.log(Level.SEVERE, "Cannot upload " + localFile + " to " + remotePath + " (multipart upload: " + partialUpload + ")", ex);
+			throw new StorageException(ex);
+		}
+	}
+
+	/**
+	 * Returns the multipart upload referenced by the given partial upload, if it still exists
+	 * on the remote side and belongs to the given file. Otherwise, a stale multipart upload is
+	 * aborted and a new one is started.
+	 */
+	private MultipartUpload resumeOrStartMultipartUpload(S3Service s3Service, File localFile, String remotePath, PartialUploadTO partialUpload)
+			throws S3ServiceException {
+
+		if (partialUpload.isResumable(localFile)) {
+			MultipartUpload multipartUpload = new MultipartUpload(partialUpload.getUploadId(), bucket.getName(), remotePath);
+
+			try {
+				Map<Integer, String> remotePartEtags = new HashMap<Integer, String>();
+
+				for (MultipartPart remotePart : s3Service.multipartListParts(multipartUpload)) {
+					remotePartEtags.put(remotePart.getPartNumber(), remotePart.getEtag());
+				}
+
+				boolean allPartsExist = true;
+
+				for (PartTO part : partialUpload.getParts()) {
+					allPartsExist = allPartsExist && part.getEtag() != null && part.getEtag().equals(remotePartEtags.get(part.getNumber()));
+				}
+
+				if (allPartsExist) {
+					logger.log(Level.INFO, "Resuming multipart upload of " + remotePath + " at byte " + partialUpload.getUploadedBytes() + " ...");
+					return multipartUpload;
+				}
+			}
+			catch (S3ServiceException e) {
+				logger.log(Level.INFO, "Cannot resume multipart upload " + partialUpload.getUploadId() + ", starting new upload.", e);
+			}
+		}
+
+		abortMultipartUpload(remotePath, partialUpload);
+
+		S3Object fileObject = new S3Object(remotePath);
+		fileObject.setContentType(APPLICATION_CONTENT_TYPE);
+
+		MultipartUpload multipartUpload = s3Service.multipartStartUpload(bucket.getName(), fileObject);
+		partialUpload.start(multipartUpload.getUploadId(), localFile);
+
+		return multipartUpload;
+	}
+
+	/**
+	 * Aborts the multipart upload referenced by the given partial upload (if any), so
+	 * that the storage used by its parts is released.
+	 */
+	private void abortMultipartUpload(String remotePath, PartialUploadTO partialUpload) {
+		if (partialUpload.getUploadId() != null) {
+			try {
+				((S3Service) service).multipartAbortUpload(new MultipartUpload(partialUpload.getUploadId(), bucket.getName(), remotePath));
+			}
+			catch (S3ServiceException e) {
+				logger.log(Level.INFO, "Cannot abort multipart upload " + partialUpload.getUploadId() + "; ignoring.", e);
+			}
+
+			partialUpload.clear();
+		}
+	}
+
 	@Override
 	public boolean delete(RemoteFile remoteFile) throws StorageException {
 		connect();